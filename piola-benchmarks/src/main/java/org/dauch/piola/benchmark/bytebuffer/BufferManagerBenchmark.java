@@ -0,0 +1,178 @@
+package org.dauch.piola.benchmark.bytebuffer;
+
+/*-
+ * #%L
+ * piola-server
+ * %%
+ * Copyright (C) 2024 dauch
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import org.dauch.piola.collections.buffer.BufferManager;
+import org.dauch.piola.util.MoreFiles;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import static java.lang.System.getProperty;
+import static java.nio.file.Files.createTempDirectory;
+
+@Fork(value = 1, jvmArgs = "-Xmx4g")
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Measurement(iterations = 3)
+@Warmup(iterations = 3)
+@Threads(8)
+public class BufferManagerBenchmark {
+
+  private static final int COUNT = 512;
+  private static final int BUFFER_SIZE = 4096;
+
+  @Benchmark
+  public ByteBuffer getAndRelease(PoolState state) {
+    var pool = state.pool;
+    var buf = pool.get();
+    pool.release(buf);
+    return buf;
+  }
+
+  @State(Scope.Benchmark)
+  public static class PoolState {
+
+    @Param({"scan", "stack"})
+    private String type;
+
+    // buffers kept by the slow consumers during the benchmark
+    @Param({"0", "256", "480"})
+    private int held;
+
+    private Path tempDir;
+    private Pool pool;
+
+    @Setup
+    public void setup() {
+      pool = switch (type) {
+        case "scan" -> new ScanPool();
+        case "stack" -> {
+          try {
+            tempDir = createTempDirectory(Path.of(getProperty("user.home")), "buffers");
+          } catch (IOException e) {
+            throw new UncheckedIOException(e);
+          }
+          yield new ManagerPool(new BufferManager("bench", tempDir, COUNT, BUFFER_SIZE, 1f, true));
+        }
+        default -> throw new IllegalArgumentException(type);
+      };
+      for (int i = 0; i < held; i++) {
+        pool.get();
+      }
+    }
+
+    @TearDown
+    public void close() throws IOException {
+      if (pool instanceof ManagerPool(var manager)) {
+        try (var _ = (Closeable) () -> MoreFiles.deleteRecursively(tempDir)) {
+          manager.close();
+        }
+      }
+    }
+  }
+
+  public static void main(String... args) throws Exception {
+    var runner = new Runner(new OptionsBuilder()
+      .include(MethodHandles.lookup().lookupClass().getName())
+      .build());
+    runner.run();
+  }
+
+  interface Pool {
+    ByteBuffer get();
+    void release(ByteBuffer buffer);
+  }
+
+  private record ManagerPool(BufferManager manager) implements Pool {
+
+    @Override
+    public ByteBuffer get() {
+      return manager.get();
+    }
+
+    @Override
+    public void release(ByteBuffer buffer) {
+      manager.release(buffer);
+    }
+  }
+
+  // the former BufferManager algorithm: a CAS scan to acquire, a scan to find the slot and a notification to release
+  private static final class ScanPool implements Pool {
+
+    private static final VarHandle BUFFERS = MethodHandles.arrayElementVarHandle(ByteBuffer[].class);
+
+    private final ByteBuffer[] buffers = new ByteBuffer[COUNT];
+    private final ByteBuffer[] buffersInUse;
+
+    private ScanPool() {
+      var memory = ByteBuffer.allocateDirect(COUNT * BUFFER_SIZE);
+      for (int i = 0; i < COUNT; i++) {
+        buffers[i] = memory.slice(i * BUFFER_SIZE, BUFFER_SIZE);
+      }
+      buffersInUse = buffers.clone();
+    }
+
+    @Override
+    public ByteBuffer get() {
+      while (true) {
+        for (int i = 0; i < COUNT; i++) {
+          var buf = buffers[i];
+          if (BUFFERS.compareAndSet(buffersInUse, i, buf, null)) {
+            return buf;
+          }
+        }
+        try {
+          synchronized (buffers) {
+            buffers.wait();
+          }
+        } catch (InterruptedException _) {
+        }
+      }
+    }
+
+    @Override
+    public void release(ByteBuffer buffer) {
+      var index = -1;
+      for (int i = 0; i < COUNT; i++) {
+        if (buffers[i] == buffer) {
+          index = i;
+          break;
+        }
+      }
+      BUFFERS.setRelease(buffersInUse, index, buffer.clear());
+      synchronized (buffers) {
+        buffers.notify();
+      }
+    }
+  }
+}
@@ -27,6 +27,7 @@ import org.openjdk.jmh.infra.Blackhole;
 import org.openjdk.jmh.runner.Runner;
 import org.openjdk.jmh.runner.options.OptionsBuilder;
 
+import java.lang.foreign.MemorySegment;
 import java.lang.invoke.MethodHandles;
 import java.nio.ByteBuffer;
 import java.util.IdentityHashMap;
@@ -42,6 +43,7 @@ import java.util.stream.IntStream;
 public class ByteBufferFindBenchmark {
 
   private static final int OPS = 100;
+  private static final int BUFFER_SIZE = 64;
 
   @Benchmark
   @OperationsPerInvocation(OPS)
@@ -58,7 +60,7 @@ public class ByteBufferFindBenchmark {
     @Param({"64", "128", "1024", "8192"})
     private int size;
 
-    @Param({"array", "hash"})
+    @Param({"array", "hash", "address"})
     private String type;
 
     private BufferFinder finder;
@@ -67,9 +69,14 @@ public class ByteBufferFindBenchmark {
     @Setup
     public void setup() {
       var buffers = new ByteBuffer[size];
+      var memory = ByteBuffer.allocateDirect(size * BUFFER_SIZE);
+      for (int i = 0; i < size; i++) {
+        buffers[i] = memory.slice(i * BUFFER_SIZE, BUFFER_SIZE);
+      }
       finder = switch (type) {
         case "array" -> new ArrayFinder(buffers);
         case "hash" -> new IdentityHashFinder(buffers);
+        case "address" -> new AddressFinder(buffers, MemorySegment.ofBuffer(memory).address());
         default -> throw new IllegalArgumentException(type);
       };
       var random = new Random(0L);
@@ -103,6 +110,23 @@ public class ByteBufferFindBenchmark {
     }
   }
 
+  // the way BufferManager resolves its buffers sliced from a single mapping
+  private record AddressFinder(ByteBuffer[] array, long address) implements BufferFinder {
+
+    @Override
+    public int find(ByteBuffer buffer) {
+      // the segment of a buffer starts at its position
+      var offset = MemorySegment.ofBuffer(buffer).address() - buffer.position() - address;
+      if (offset >= 0L && offset % BUFFER_SIZE == 0L && offset / BUFFER_SIZE < array.length) {
+        var i = (int) (offset / BUFFER_SIZE);
+        if (array[i] == buffer) {
+          return i;
+        }
+      }
+      return -1;
+    }
+  }
+
   public static final class IdentityHashFinder implements BufferFinder {
 
     private final IdentityHashMap<ByteBuffer, Integer> map;
@@ -24,15 +24,20 @@ package org.dauch.piola.benchmark.map;
 
 import org.dauch.piola.collections.map.LongLongAVLDiskMap;
 import org.dauch.piola.collections.map.LongLongAVLMemoryMap;
+import org.dauch.piola.collections.map.LongLongAVLOffHeapMap;
+import org.dauch.piola.collections.map.LongLongBTreeDiskMap;
+import org.dauch.piola.collections.map.LongLongHashDiskMap;
 import org.dauch.piola.util.*;
 import org.openjdk.jmh.annotations.Threads;
 import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.profile.GCProfiler;
 import org.openjdk.jmh.runner.Runner;
 import org.openjdk.jmh.runner.options.OptionsBuilder;
 
 import java.io.*;
 import java.lang.invoke.MethodHandles;
 import java.nio.file.Path;
+import java.util.Arrays;
 import java.util.Random;
 import java.util.concurrent.TimeUnit;
 import java.util.stream.LongStream;
@@ -49,6 +54,8 @@ import static java.nio.file.Files.createTempDirectory;
 public class LongLongAVLMapBenchmark {
 
   private static final int COUNT = 1 << 20;
+  private static final int LARGE_COUNT = 1 << 22;
+  private static final int LARGE_LOOKUPS = 1 << 13;
 
   @Benchmark
   @OperationsPerInvocation(COUNT)
@@ -62,6 +69,110 @@ public class LongLongAVLMapBenchmark {
     return map;
   }
 
+  @Benchmark
+  @OperationsPerInvocation(COUNT)
+  public long diskGet(AVLDiskGetState state) {
+    var map = state.map;
+    var ks = state.keys;
+    var count = 0L;
+    for (int i = 0, l = ks.length; i < l; i++) {
+      count += map.countValues(ks[i]);
+    }
+    return count;
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(COUNT)
+  public long diskCount(AVLDiskCountState state) {
+    var map = state.map;
+    var ks = state.keys;
+    var count = 0L;
+    for (int i = 0, l = ks.length; i < l; i++) {
+      count += map.count(ks[i], ks[i] + 100L);
+    }
+    return count;
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(COUNT)
+  public LongLongAVLDiskMap diskBulk(AVLDiskBulkState state) {
+    var map = state.map;
+    map.putAll(state.sortedKeys, state.values);
+    return map;
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(COUNT)
+  public LongLongBTreeDiskMap btree(BTreeDiskState state) {
+    var map = state.map;
+    var ks = state.keys;
+    var vs = state.values;
+    for (int i = 0, l = state.keys.length; i < l; i++) {
+      map.put(ks[i], vs[i]);
+    }
+    return map;
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(COUNT)
+  public long btreeGet(BTreeDiskGetState state) {
+    var map = state.map;
+    var ks = state.keys;
+    var count = 0L;
+    for (int i = 0, l = ks.length; i < l; i++) {
+      count += map.countValues(ks[i]);
+    }
+    return count;
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(LARGE_LOOKUPS)
+  public long diskLargeGet(AVLLargeState state) {
+    var map = state.map;
+    var ks = state.lookups;
+    var count = 0L;
+    for (int i = 0, l = ks.length; i < l; i++) {
+      count += map.countValues(ks[i]);
+    }
+    return count;
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(LARGE_LOOKUPS)
+  public long btreeLargeGet(BTreeLargeState state) {
+    var map = state.map;
+    var ks = state.lookups;
+    var count = 0L;
+    for (int i = 0, l = ks.length; i < l; i++) {
+      count += map.countValues(ks[i]);
+    }
+    return count;
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(COUNT)
+  public LongLongHashDiskMap hash(HashDiskState state) {
+    var map = state.map;
+    var ks = state.keys;
+    var vs = state.values;
+    for (int i = 0, l = state.keys.length; i < l; i++) {
+      map.put(ks[i], vs[i]);
+    }
+    return map;
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(COUNT)
+  public long hashGet(HashDiskGetState state) {
+    var map = state.map;
+    var ks = state.keys;
+    var count = 0L;
+    for (int i = 0, l = ks.length; i < l; i++) {
+      count += map.countValues(ks[i]);
+    }
+    return count;
+  }
+
   @Benchmark
   @OperationsPerInvocation(COUNT)
   public LongLongAVLMemoryMap memory(AVLMemoryState state) {
@@ -74,11 +185,23 @@ public class LongLongAVLMapBenchmark {
     return map;
   }
 
+  @Benchmark
+  @OperationsPerInvocation(COUNT)
+  public LongLongAVLOffHeapMap offHeap(AVLOffHeapState state) {
+    var map = state.map;
+    var ks = state.keys;
+    var vs = state.values;
+    for (int i = 0, l = state.keys.length; i < l; i++) {
+      map.put(ks[i], vs[i]);
+    }
+    return map;
+  }
+
   @State(Scope.Benchmark)
   public static class AVLDiskState extends AVLMemoryState {
 
     private final Path tempDir;
-    private final LongLongAVLDiskMap map;
+    final LongLongAVLDiskMap map;
 
     public AVLDiskState() {
       try {
@@ -98,6 +221,254 @@ public class LongLongAVLMapBenchmark {
     }
   }
 
+  @State(Scope.Benchmark)
+  public static class AVLDiskGetState extends AVLDiskState {
+
+    public AVLDiskGetState() {
+      var map = this.map;
+      var ks = keys;
+      var vs = values;
+      for (int i = 0, l = ks.length; i < l; i++) {
+        map.put(ks[i], vs[i]);
+      }
+    }
+  }
+
+  @State(Scope.Benchmark)
+  public static class AVLDiskCountState extends AVLMemoryState {
+
+    private final Path tempDir;
+    final LongLongAVLDiskMap map;
+
+    public AVLDiskCountState() {
+      try {
+        tempDir = createTempDirectory(Path.of(getProperty("user.home")), "avl");
+        map = new LongLongAVLDiskMap(tempDir.resolve("data.data"), 1 << 20, 1024, false, true);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+      var ks = keys;
+      var vs = values;
+      for (int i = 0, l = ks.length; i < l; i++) {
+        map.put(ks[i], vs[i]);
+      }
+    }
+
+    @TearDown
+    public void close() throws IOException {
+      try (var _ = (Closeable) () -> MoreFiles.deleteRecursively(tempDir)) {
+        map.close();
+      }
+    }
+  }
+
+  @State(Scope.Benchmark)
+  public static class BTreeDiskState extends AVLMemoryState {
+
+    private final Path tempDir;
+    final LongLongBTreeDiskMap map;
+
+    public BTreeDiskState() {
+      try {
+        tempDir = createTempDirectory(Path.of(getProperty("user.home")), "btree");
+        map = new LongLongBTreeDiskMap(tempDir.resolve("data.data"), 1 << 12, 1 << 20, 1024);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+
+    @TearDown
+    public void close() throws IOException {
+      try (var _ = (Closeable) () -> MoreFiles.deleteRecursively(tempDir)) {
+        map.close();
+      }
+    }
+  }
+
+  @State(Scope.Benchmark)
+  public static class BTreeDiskGetState extends BTreeDiskState {
+
+    public BTreeDiskGetState() {
+      var map = this.map;
+      var ks = keys;
+      var vs = values;
+      for (int i = 0, l = ks.length; i < l; i++) {
+        map.put(ks[i], vs[i]);
+      }
+    }
+  }
+
+  @State(Scope.Benchmark)
+  public static class AVLLargeState extends LargeState {
+
+    private final Path tempDir;
+    final LongLongAVLDiskMap map;
+
+    // the index is filled through a large cache and reopened with a small one
+    public AVLLargeState() {
+      try {
+        tempDir = createTempDirectory(Path.of(getProperty("user.home")), "avl");
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+      var file = tempDir.resolve("data.data");
+      try (var filled = new LongLongAVLDiskMap(file, 1 << 20, 1024)) {
+        var ks = keys;
+        for (int i = 0, l = ks.length; i < l; i++) {
+          filled.put(ks[i], i);
+        }
+      }
+      map = new LongLongAVLDiskMap(file, 1 << 20, 8);
+    }
+
+    @TearDown
+    public void close() throws IOException {
+      try (var _ = (Closeable) () -> MoreFiles.deleteRecursively(tempDir)) {
+        map.close();
+      }
+    }
+  }
+
+  @State(Scope.Benchmark)
+  public static class BTreeLargeState extends LargeState {
+
+    private final Path tempDir;
+    final LongLongBTreeDiskMap map;
+
+    // the index is filled through a large cache and reopened with a small one
+    public BTreeLargeState() {
+      try {
+        tempDir = createTempDirectory(Path.of(getProperty("user.home")), "btree");
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+      var file = tempDir.resolve("data.data");
+      try (var filled = new LongLongBTreeDiskMap(file, 1 << 12, 1 << 20, 1024)) {
+        var ks = keys;
+        for (int i = 0, l = ks.length; i < l; i++) {
+          filled.put(ks[i], i);
+        }
+      }
+      map = new LongLongBTreeDiskMap(file, 1 << 12, 1 << 20, 8);
+    }
+
+    @TearDown
+    public void close() throws IOException {
+      try (var _ = (Closeable) () -> MoreFiles.deleteRecursively(tempDir)) {
+        map.close();
+      }
+    }
+  }
+
+  // the index is many times larger than the segment cache, so the random lookups keep mapping
+  // the evicted segments and fault their pages in
+  @State(Scope.Benchmark)
+  public static class LargeState {
+
+    final long[] keys;
+    final long[] lookups;
+
+    public LargeState() {
+      var random = new Random(0L);
+      keys = random.longs(LARGE_COUNT).toArray();
+      lookups = random.ints(LARGE_LOOKUPS, 0, LARGE_COUNT).mapToLong(i -> keys[i]).toArray();
+    }
+
+    // the evicted segments are unmapped once collected, the lookups alone may allocate nothing
+    // and run out of mappings otherwise
+    @Setup(Level.Iteration)
+    public void collect() {
+      System.gc();
+    }
+  }
+
+  @State(Scope.Benchmark)
+  public static class HashDiskState extends AVLMemoryState {
+
+    private final Path tempDir;
+    final LongLongHashDiskMap map;
+
+    public HashDiskState() {
+      try {
+        tempDir = createTempDirectory(Path.of(getProperty("user.home")), "hash");
+        map = new LongLongHashDiskMap(tempDir.resolve("data.data"), 1 << 20, 1024);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+
+    @TearDown
+    public void close() throws IOException {
+      try (var _ = (Closeable) () -> MoreFiles.deleteRecursively(tempDir)) {
+        map.close();
+      }
+    }
+  }
+
+  @State(Scope.Benchmark)
+  public static class HashDiskGetState extends HashDiskState {
+
+    public HashDiskGetState() {
+      var map = this.map;
+      var ks = keys;
+      var vs = values;
+      for (int i = 0, l = ks.length; i < l; i++) {
+        map.put(ks[i], vs[i]);
+      }
+    }
+  }
+
+  @State(Scope.Benchmark)
+  public static class AVLDiskBulkState extends AVLMemoryState {
+
+    private final Path tempDir;
+    private final long[] sortedKeys = keys.clone();
+    private LongLongAVLDiskMap map;
+    private int iteration;
+
+    public AVLDiskBulkState() {
+      Arrays.sort(sortedKeys);
+      try {
+        tempDir = createTempDirectory(Path.of(getProperty("user.home")), "avl");
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+
+    // the bulk load writes a new tree only into an empty map
+    @Setup(Level.Iteration)
+    public void open() {
+      map = new LongLongAVLDiskMap(tempDir.resolve(iteration++ + ".data"), 1 << 20, 1024);
+    }
+
+    @TearDown(Level.Iteration)
+    public void closeMap() {
+      map.close();
+    }
+
+    @TearDown
+    public void close() throws IOException {
+      MoreFiles.deleteRecursively(tempDir);
+    }
+  }
+
+  @State(Scope.Benchmark)
+  public static class AVLOffHeapState extends AVLMemoryState {
+
+    private LongLongAVLOffHeapMap map;
+
+    // a new map for every invocation like in the memory benchmark
+    @Setup(Level.Invocation)
+    public void open() {
+      map = new LongLongAVLOffHeapMap();
+    }
+
+    @TearDown(Level.Invocation)
+    public void closeMap() {
+      map.close();
+    }
+  }
+
   @State(Scope.Benchmark)
   public static class AVLMemoryState {
 
@@ -114,6 +485,7 @@ public class LongLongAVLMapBenchmark {
   public static void main(String... args) throws Exception {
     new Runner(new OptionsBuilder()
       .include(MethodHandles.lookup().lookupClass().getName())
+      .addProfiler(GCProfiler.class)
       .build()).run();
   }
 }
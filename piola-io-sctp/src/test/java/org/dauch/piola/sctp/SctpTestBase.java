@@ -61,6 +61,8 @@ public abstract class SctpTestBase {
   protected void initServer(@TempDir Path baseDir, @TempDir Path bufferDir) {
     var props = new Properties();
     props.setProperty("test.baseDir", baseDir.toString());
+    props.setProperty("test.segmentSize", "64");
+    props.setProperty("test.retentionInterval", "50");
     props.setProperty("test.bufferDir", bufferDir.toString());
     props.setProperty("test.bufferCount", "4");
     props.setProperty("test.maxMessageSize", "1000000");
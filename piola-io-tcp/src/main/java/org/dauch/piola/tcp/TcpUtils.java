@@ -22,12 +22,14 @@ package org.dauch.piola.tcp;
  * #L%
  */
 
+import org.dauch.piola.util.Crc;
+
 import java.io.IOException;
 import java.io.StreamCorruptedException;
 import java.net.*;
 import java.nio.ByteBuffer;
 import java.nio.channels.*;
-import java.util.zip.CRC32;
+import java.util.zip.CRC32C;
 
 import static java.net.InetSocketAddress.createUnresolved;
 import static java.net.StandardProtocolFamily.INET;
@@ -73,8 +75,20 @@ public interface TcpUtils {
   }
 
   static int crc(ByteBuffer buffer) {
-    var crc = new CRC32();
+    var crc = new CRC32C();
     crc.update(buffer.slice());
     return (int) crc.getValue();
   }
+
+  /**
+   * Computes the checksum of the buffer followed by the bytes with the given checksum.
+   *
+   * @param buffer   Buffer
+   * @param checksum Checksum of the following bytes
+   * @param length   Number of the following bytes
+   * @return Checksum
+   */
+  static int crc(ByteBuffer buffer, int checksum, long length) {
+    return Crc.combine(crc(buffer), checksum, length);
+  }
 }
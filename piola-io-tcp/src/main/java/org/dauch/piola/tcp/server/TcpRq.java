@@ -30,6 +30,7 @@ import java.io.EOFException;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.channels.SocketChannel;
 
 import static java.util.concurrent.locks.LockSupport.parkNanos;
@@ -47,11 +48,32 @@ public record TcpRq(
 
   public void write(ByteBuffer buffer) throws IOException {
     synchronized (channel.blockingLock()) {
-      while (buffer.hasRemaining()) {
-        var n = channel.write(buffer);
-        if (n < 0) throw new EOFException("Write exhausted");
-        else if (n == 0) parkNanos(100_000L);
+      write0(buffer);
+    }
+  }
+
+  public void write(ByteBuffer buffer, FileChannel file, long position, long size) throws IOException {
+    synchronized (channel.blockingLock()) {
+      write0(buffer);
+      while (size > 0L) {
+        var n = file.transferTo(position, size, channel);
+        if (n > 0L) {
+          position += n;
+          size -= n;
+        } else if (position >= file.size()) {
+          throw new EOFException("Transfer exhausted");
+        } else {
+          parkNanos(100_000L);
+        }
       }
     }
   }
+
+  private void write0(ByteBuffer buffer) throws IOException {
+    while (buffer.hasRemaining()) {
+      var n = channel.write(buffer);
+      if (n < 0) throw new EOFException("Write exhausted");
+      else if (n == 0) parkNanos(100_000L);
+    }
+  }
 }
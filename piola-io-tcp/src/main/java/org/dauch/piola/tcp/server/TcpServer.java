@@ -25,6 +25,7 @@ package org.dauch.piola.tcp.server;
 import org.dauch.piola.io.api.*;
 import org.dauch.piola.io.api.response.Response;
 import org.dauch.piola.io.server.AbstractServer;
+import org.dauch.piola.io.server.FileRegion;
 import org.dauch.piola.tcp.SocketThread;
 import org.dauch.piola.tcp.TcpUtils;
 
@@ -223,6 +224,33 @@ public final class TcpServer extends AbstractServer<TcpRq, TcpRs> {
     }
   }
 
+  @Override
+  protected void writeResponse(TcpRq tcpRq, FileRegion region, Response rs) throws Exception {
+    if (region == null) {
+      writeResponse(tcpRq, (ByteBuffer) null, rs);
+      return;
+    }
+    var buf = writeBuffers.get();
+    try {
+      ResponseFactory.write(rs, buf
+        .putInt(0) // crc
+        .putInt(0) // size
+        .putInt(0) // protocolId
+        .putInt(id)
+        .putInt(tcpRq.stream())
+        .putLong(tcpRq.id())
+      );
+      tcpRq.context().write(buf);
+      buf.flip();
+      // the payload is not read: its checksum comes from the record and is combined with the header one
+      buf.putInt(0, TcpUtils.crc(buf.slice(8, buf.limit() - 8), region.checksum(), region.size()));
+      buf.putInt(4, buf.limit() - 8 + region.size());
+      tcpRq.write(buf, region.channel(), region.position(), region.size());
+    } finally {
+      writeBuffers.release(buf);
+    }
+  }
+
   @Override
   protected void reject(TcpRq tcpRq) {
     var ch = tcpRq.channel();
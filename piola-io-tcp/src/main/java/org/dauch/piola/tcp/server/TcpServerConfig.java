@@ -49,6 +49,9 @@ public record TcpServerConfig(
   @Default("0.25f") float freeRatio,
   @Default("bufferDirDefault()") Path bufferDir,
   @Default("baseDirDefault()") Path baseDir,
+  @Default("1L << 30") long segmentSize,
+  @Default("60_000L") long retentionInterval,
+  @Default("0.01f") float indexFilterRate,
   @Default("true") boolean sparse,
   @Default("false") boolean keepAlive
 ) implements CommonConfig, ServerConfig {
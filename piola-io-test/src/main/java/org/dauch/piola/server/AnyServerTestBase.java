@@ -26,18 +26,25 @@ import org.dauch.piola.io.api.index.IndexType;
 import org.dauch.piola.io.api.index.IndexValue;
 import org.dauch.piola.io.api.request.*;
 import org.dauch.piola.io.api.response.*;
+import org.dauch.piola.io.api.topic.Compression;
+import org.dauch.piola.io.api.topic.Durability;
 import org.dauch.piola.io.client.Client;
+import org.dauch.piola.io.client.Responses;
 import org.dauch.piola.io.server.Server;
 import org.junit.jupiter.api.Test;
 
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.IntConsumer;
 
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static java.util.concurrent.TimeUnit.SECONDS;
 import static org.awaitility.Awaitility.waitAtMost;
-import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.*;
 
 public interface AnyServerTestBase {
 
@@ -147,4 +154,292 @@ public interface AnyServerTestBase {
       .response();
     assertEquals(new DataReceivedResponse(0L), rs);
   }
-}
+
+  @Test
+  default void sendAndReadData() {
+    // given
+    {
+      var rs = getClient().send(new TopicCreateRequest("t1"), null, 0, getAddress())
+        .poll(3L, SECONDS)
+        .response();
+      assertEquals(new TopicInfoResponse("t1"), rs);
+    }
+    var offsets = new long[3];
+    for (int i = 0; i < offsets.length; i++) {
+      var indices = new IndexValue[] {new IndexValue("a", i, IndexType.UNORDERED)};
+      var data = new byte[] {(byte) i, 2, 3, 4, 5};
+      var rs = getClient().send(new DataSendRequest("t1", indices), ByteBuffer.wrap(data), 0, getAddress())
+        .poll(3L, SECONDS)
+        .response();
+      offsets[i] = assertInstanceOf(DataReceivedResponse.class, rs).offset();
+    }
+    // when
+    var responses = getClient().send(new DataReadRequest("t1", offsets[1], 10), null, 0, getAddress());
+    // then
+    for (int i = 1; i < offsets.length; i++) {
+      var rs = responses.poll(3L, SECONDS);
+      var data = assertInstanceOf(DataResponse.class, rs.response());
+      assertEquals(offsets[i], data.offset());
+      assertEquals(new IndexValue("a", i, IndexType.UNORDERED), data.indices()[0]);
+      assertArrayEquals(new byte[] {(byte) i, 2, 3, 4, 5}, rs.payload());
+      if (i + 1 < offsets.length) {
+        assertEquals(offsets[i + 1], data.next());
+      }
+    }
+    var end = assertInstanceOf(DataResponse.class, responses.poll(3L, SECONDS).response());
+    assertTrue(end.isEndOfInput());
+    // when
+    var rs = getClient().send(new DataReadRequest("t1", end.next()), null, 0, getAddress())
+      .poll(3L, SECONDS)
+      .response();
+    // then
+    assertEquals(end.next(), assertInstanceOf(DataResponse.class, rs).next());
+  }
+
+  @Test
+  default void queryIndex() {
+    // given
+    {
+      var rs = getClient().send(new TopicCreateRequest("q1"), null, 0, getAddress())
+        .poll(3L, SECONDS)
+        .response();
+      assertEquals(new TopicInfoResponse("q1"), rs);
+    }
+    var values = new long[] {50L, 10L, 40L, 20L, 30L};
+    var offsets = new long[values.length];
+    for (int i = 0; i < values.length; i++) {
+      var indices = new IndexValue[] {new IndexValue("v", values[i], IndexType.ASC)};
+      var data = new byte[] {(byte) values[i]};
+      var rs = getClient().send(new DataSendRequest("q1", indices), ByteBuffer.wrap(data), 0, getAddress())
+        .poll(3L, SECONDS)
+        .response();
+      offsets[i] = assertInstanceOf(DataReceivedResponse.class, rs).offset();
+    }
+    // when
+    var asc = getClient().send(new DataQueryRequest("q1", "v", 20L, 40L, 10, false, false), null, 0, getAddress());
+    // then
+    var ascOffsets = assertInstanceOf(DataOffsetsResponse.class, asc.poll(3L, SECONDS).response());
+    assertArrayEquals(new long[] {offsets[3], offsets[4], offsets[2]}, ascOffsets.offsets());
+    assertTrue(assertInstanceOf(DataOffsetsResponse.class, asc.poll(3L, SECONDS).response()).isEndOfInput());
+    // when
+    var desc = getClient().send(new DataQueryRequest("q1", "v", 20L, 50L, 2, true, false), null, 0, getAddress());
+    // then
+    var descOffsets = assertInstanceOf(DataOffsetsResponse.class, desc.poll(3L, SECONDS).response());
+    assertArrayEquals(new long[] {offsets[0], offsets[2]}, descOffsets.offsets());
+    assertTrue(assertInstanceOf(DataOffsetsResponse.class, desc.poll(3L, SECONDS).response()).isEndOfInput());
+    // when
+    var records = getClient().send(new DataQueryRequest("q1", "v", 0L, 30L, 10, false, true), null, 0, getAddress());
+    // then
+    for (var i : new int[] {1, 3, 4}) {
+      var rs = records.poll(3L, SECONDS);
+      var data = assertInstanceOf(DataResponse.class, rs.response());
+      assertEquals(offsets[i], data.offset());
+      assertEquals(new IndexValue("v", values[i], IndexType.ASC), data.indices()[0]);
+      assertArrayEquals(new byte[] {(byte) values[i]}, rs.payload());
+    }
+    assertTrue(assertInstanceOf(DataResponse.class, records.poll(3L, SECONDS).response()).isEndOfInput());
+    // when
+    var unknown = getClient().send(new DataQueryRequest("q1", "w", 0L, 30L, 10, false, false), null, 0, getAddress());
+    // then
+    assertTrue(assertInstanceOf(DataOffsetsResponse.class, unknown.poll(3L, SECONDS).response()).isEndOfInput());
+  }
+
+  @Test
+  default void sendDurableData() {
+    // given
+    {
+      var rs = getClient().send(new TopicCreateRequest("d1", Durability.BATCH), null, 0, getAddress())
+        .poll(3L, SECONDS)
+        .response();
+      assertEquals(new TopicInfoResponse("d1"), rs);
+    }
+    // when
+    var responses = new ArrayList<Responses<DataSendResponse>>();
+    for (int i = 0; i < 8; i++) {
+      var durability = i % 2 == 0 ? null : Durability.REQUEST;
+      var rq = new DataSendRequest("d1", new IndexValue[0], durability);
+      responses.add(getClient().send(rq, ByteBuffer.wrap(new byte[] {(byte) i}), i, getAddress()));
+    }
+    // then
+    var offsets = new HashSet<Long>();
+    for (var r : responses) {
+      var rs = r.poll(3L, SECONDS).response();
+      assertTrue(offsets.add(assertInstanceOf(DataReceivedResponse.class, rs).offset()));
+    }
+  }
+
+  @Test
+  default void sendConcurrently() {
+    // given
+    {
+      var rs = getClient().send(new TopicCreateRequest("c1"), null, 0, getAddress())
+        .poll(3L, SECONDS)
+        .response();
+      assertEquals(new TopicInfoResponse("c1"), rs);
+    }
+    // when
+    var responses = new ArrayList<Responses<DataSendResponse>>();
+    for (int i = 0; i < 64; i++) {
+      var indices = new IndexValue[] {new IndexValue("i", i, IndexType.UNORDERED)};
+      var rq = new DataSendRequest("c1", indices);
+      responses.add(getClient().send(rq, ByteBuffer.wrap(new byte[] {(byte) i}), i % 16, getAddress()));
+    }
+    var offsets = new HashMap<Long, Integer>();
+    for (int i = 0; i < responses.size(); i++) {
+      var rs = responses.get(i).poll(3L, SECONDS).response();
+      offsets.put(assertInstanceOf(DataReceivedResponse.class, rs).offset(), i);
+    }
+    // then
+    var records = getClient().send(new DataReadRequest("c1", 0L, 100), null, 0, getAddress());
+    for (int i = 0; i < responses.size(); i++) {
+      var rs = records.poll(3L, SECONDS);
+      var data = assertInstanceOf(DataResponse.class, rs.response());
+      var expected = offsets.remove(data.offset());
+      assertNotNull(expected);
+      assertEquals(new IndexValue("i", expected, IndexType.UNORDERED), data.indices()[0]);
+      assertArrayEquals(new byte[] {(byte) (int) expected}, rs.payload());
+    }
+    assertTrue(offsets.isEmpty());
+    assertTrue(assertInstanceOf(DataResponse.class, records.poll(3L, SECONDS).response()).isEndOfInput());
+  }
+
+  @Test
+  default void readByOrdinal() {
+    // given
+    {
+      var rs = getClient().send(new TopicCreateRequest("o1"), null, 0, getAddress())
+        .poll(3L, SECONDS)
+        .response();
+      assertEquals(new TopicInfoResponse("o1"), rs);
+    }
+    var offsets = new long[10];
+    for (int i = 0; i < offsets.length; i++) {
+      var rs = getClient().send(new DataSendRequest("o1", new IndexValue[0]), ByteBuffer.wrap(new byte[] {(byte) i}), 0, getAddress())
+        .poll(3L, SECONDS)
+        .response();
+      offsets[i] = assertInstanceOf(DataReceivedResponse.class, rs).offset();
+    }
+    // when
+    var responses = getClient().send(new DataReadRequest("o1", 7L, 2, true), null, 0, getAddress());
+    // then
+    for (int i = 7; i < 9; i++) {
+      var rs = responses.poll(3L, SECONDS);
+      assertEquals(offsets[i], assertInstanceOf(DataResponse.class, rs.response()).offset());
+      assertArrayEquals(new byte[] {(byte) i}, rs.payload());
+    }
+    assertEquals(offsets[9], assertInstanceOf(DataResponse.class, responses.poll(3L, SECONDS).response()).next());
+    // when
+    var rs = getClient().send(new DataReadRequest("o1", 10L, 1, true), null, 0, getAddress())
+      .poll(3L, SECONDS)
+      .response();
+    // then
+    assertTrue(assertInstanceOf(DataResponse.class, rs).isEndOfInput());
+  }
+
+  @Test
+  default void sendCompressedData() {
+    // given
+    {
+      var rq = new TopicCreateRequest("z1", Durability.NONE, Compression.DEFLATE);
+      var rs = getClient().send(rq, null, 0, getAddress()).poll(3L, SECONDS).response();
+      assertEquals(new TopicInfoResponse("z1"), rs);
+    }
+    var responses = new ArrayList<Responses<DataSendResponse>>();
+    for (int i = 0; i < 32; i++) {
+      var indices = new IndexValue[] {new IndexValue("i", i, IndexType.UNORDERED)};
+      var payload = ByteBuffer.wrap(new byte[] {(byte) i, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, (byte) i});
+      responses.add(getClient().send(new DataSendRequest("z1", indices), payload, i % 8, getAddress()));
+    }
+    var offsets = new HashMap<Long, Integer>();
+    for (int i = 0; i < responses.size(); i++) {
+      var rs = responses.get(i).poll(3L, SECONDS).response();
+      offsets.put(assertInstanceOf(DataReceivedResponse.class, rs).offset(), i);
+    }
+    // when
+    var records = getClient().send(new DataReadRequest("z1", 0L, 100), null, 0, getAddress());
+    var query = getClient().send(new DataQueryRequest("z1", "i", 7L, 7L, 1, false, true), null, 0, getAddress());
+    // then
+    for (int i = 0; i < responses.size(); i++) {
+      var rs = records.poll(3L, SECONDS);
+      var data = assertInstanceOf(DataResponse.class, rs.response());
+      var expected = (int) offsets.remove(data.offset());
+      assertEquals(new IndexValue("i", expected, IndexType.UNORDERED), data.indices()[0]);
+      assertEquals(16, rs.payload().length);
+      assertEquals((byte) expected, rs.payload()[15]);
+    }
+    assertTrue(offsets.isEmpty());
+    assertTrue(assertInstanceOf(DataResponse.class, records.poll(3L, SECONDS).response()).isEndOfInput());
+    var rs = query.poll(3L, SECONDS);
+    assertEquals(new IndexValue("i", 7L, IndexType.UNORDERED), assertInstanceOf(DataResponse.class, rs.response()).indices()[0]);
+    assertEquals(7, rs.payload()[0]);
+  }
+
+  @Test
+  default void dropOldSegments() {
+    // given
+    {
+      var rq = new TopicCreateRequest("r1", Durability.NONE, Compression.NONE, 128L, 0L);
+      var rs = getClient().send(rq, null, 0, getAddress()).poll(3L, SECONDS).response();
+      assertEquals(new TopicInfoResponse("r1"), rs);
+    }
+    // when
+    var offsets = new ArrayList<Long>();
+    for (int i = 0; i < 16; i++) {
+      var rq = new DataSendRequest("r1", new IndexValue[0]);
+      var rs = getClient().send(rq, ByteBuffer.wrap(new byte[] {(byte) i}), 0, getAddress()).poll(3L, SECONDS);
+      offsets.add(assertInstanceOf(DataReceivedResponse.class, rs.response()).offset());
+    }
+    // then
+    waitAtMost(3L, SECONDS).until(() -> {
+      var rs = getClient().send(new DataReadRequest("r1", 0L), null, 0, getAddress()).poll(3L, SECONDS);
+      return assertInstanceOf(DataResponse.class, rs.response()).offset() > 0L;
+    });
+    var records = getClient().send(new DataReadRequest("r1", 0L, 100), null, 0, getAddress());
+    var retained = new ArrayList<Long>();
+    for (var data = assertInstanceOf(DataResponse.class, records.poll(3L, SECONDS).response()); !data.isEndOfInput(); ) {
+      retained.add(data.offset());
+      data = assertInstanceOf(DataResponse.class, records.poll(3L, SECONDS).response());
+    }
+    assertEquals(offsets.subList(offsets.size() - retained.size(), offsets.size()), retained);
+    assertTrue(retained.size() < offsets.size());
+  }
+
+  @Test
+  default void subscribe() {
+    // given
+    {
+      var rs = getClient().send(new TopicCreateRequest("s1"), null, 0, getAddress()).poll(3L, SECONDS).response();
+      assertEquals(new TopicInfoResponse("s1"), rs);
+    }
+    var offsets = new ArrayList<Long>();
+    var send = (IntConsumer) i -> {
+      var rq = new DataSendRequest("s1", new IndexValue[0]);
+      var rs = getClient().send(rq, ByteBuffer.wrap(new byte[] {(byte) i}), 0, getAddress()).poll(3L, SECONDS);
+      offsets.add(assertInstanceOf(DataReceivedResponse.class, rs.response()).offset());
+    };
+    for (int i = 0; i < 3; i++) {
+      send.accept(i);
+    }
+    // when
+    var records = getClient().send(new DataSubscribeRequest("s1", 0L, false, 2, 4), null, 5, getAddress());
+    var pushed = new ArrayList<DataResponse>();
+    for (int i = 0; i < 3; i++) {
+      var rs = records.poll(3L, SECONDS);
+      pushed.add(assertInstanceOf(DataResponse.class, rs.response()));
+      assertArrayEquals(new byte[] {(byte) i}, rs.payload());
+    }
+    for (int i = 3; i < 6; i++) {
+      send.accept(i);
+    }
+    pushed.add(assertInstanceOf(DataResponse.class, records.poll(3L, SECONDS).response()));
+    var blocked = records.poll(300L, MILLISECONDS);
+    getClient().send(new DataAckRequest("s1", pushed.get(1).next()), null, 5, getAddress());
+    for (int i = 0; i < 2; i++) {
+      pushed.add(assertInstanceOf(DataResponse.class, records.poll(3L, SECONDS).response()));
+    }
+    getClient().send(new DataAckRequest("s1", -1L, true), null, 5, getAddress());
+    // then
+    assertNull(blocked);
+    assertEquals(offsets, pushed.stream().map(DataResponse::offset).toList());
+  }
+}
\ No newline at end of file
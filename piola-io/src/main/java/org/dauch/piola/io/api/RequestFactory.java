@@ -40,6 +40,10 @@ public final class RequestFactory {
       case 3 -> TopicGetRequestSerde.read(input, context);
       case 4 -> TopicListRequestSerde.read(input, context);
       case 5 -> DataSendRequestSerde.read(input, context);
+      case 6 -> DataReadRequestSerde.read(input, context);
+      case 7 -> DataQueryRequestSerde.read(input, context);
+      case 8 -> DataSubscribeRequestSerde.read(input, context);
+      case 9 -> DataAckRequestSerde.read(input, context);
       default -> new UnknownRequest(req);
     };
   }
@@ -51,6 +55,10 @@ public final class RequestFactory {
       case TopicGetRequest r -> TopicGetRequestSerde.write(r, output.putInt(3));
       case TopicListRequest r -> TopicListRequestSerde.write(r, output.putInt(4));
       case DataSendRequest r -> DataSendRequestSerde.write(r, output.putInt(5));
+      case DataReadRequest r -> DataReadRequestSerde.write(r, output.putInt(6));
+      case DataQueryRequest r -> DataQueryRequestSerde.write(r, output.putInt(7));
+      case DataSubscribeRequest r -> DataSubscribeRequestSerde.write(r, output.putInt(8));
+      case DataAckRequest r -> DataAckRequestSerde.write(r, output.putInt(9));
       case UnknownRequest r -> UnknownRequestSerde.write(r, output.putInt(0));
     }
   }
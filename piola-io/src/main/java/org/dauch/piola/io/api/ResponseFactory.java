@@ -43,6 +43,7 @@ public final class ResponseFactory {
       // data
       case 2000 -> DataReceivedResponseSerde.read(input, context);
       case 2001 -> DataResponseSerde.read(input, context);
+      case 2002 -> DataOffsetsResponseSerde.read(input, context);
       // otherwise
       default -> new UnknownResponse(code);
     };
@@ -59,6 +60,7 @@ public final class ResponseFactory {
       // data
       case DataReceivedResponse r -> DataReceivedResponseSerde.write(r, output.putInt(2000));
       case DataResponse r -> DataResponseSerde.write(r, output.putInt(2001));
+      case DataOffsetsResponse r -> DataOffsetsResponseSerde.write(r, output.putInt(2002));
     }
   }
 }
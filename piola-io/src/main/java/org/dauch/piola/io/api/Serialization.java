@@ -23,6 +23,9 @@ package org.dauch.piola.io.api;
  */
 
 import org.dauch.piola.io.api.index.IndexType;
+import org.dauch.piola.io.api.topic.Compression;
+import org.dauch.piola.io.api.topic.IndexEngine;
+import org.dauch.piola.io.api.topic.Durability;
 import org.dauch.piola.io.api.index.IndexValue;
 import org.dauch.piola.io.exception.ExceptionData;
 import org.dauch.piola.util.Id;
@@ -120,6 +123,19 @@ public final class Serialization {
     for (var v : value) write(buffer, v);
   }
 
+  public static long[] read(ByteBuffer buffer, long[] value) {
+    var array = new long[buffer.getInt()];
+    for (int i = 0; i < array.length; i++) {
+      array[i] = buffer.getLong();
+    }
+    return array;
+  }
+
+  public static void write(ByteBuffer buffer, long[] value) {
+    buffer.putInt(value.length);
+    for (var v : value) buffer.putLong(v);
+  }
+
   public static void write(ByteBuffer buffer, Id id) {
     buffer.putLong(id.value());
   }
@@ -139,6 +155,30 @@ public final class Serialization {
     return Instant.ofEpochSecond(seconds, nanos);
   }
 
+  public static void write(ByteBuffer buffer, Durability value) {
+    buffer.put((byte) value.ordinal());
+  }
+
+  public static Durability read(ByteBuffer buffer, Durability value) {
+    return Durability.byId(buffer.get());
+  }
+
+  public static void write(ByteBuffer buffer, Compression value) {
+    buffer.put((byte) value.ordinal());
+  }
+
+  public static Compression read(ByteBuffer buffer, Compression value) {
+    return Compression.byId(buffer.get());
+  }
+
+  public static void write(ByteBuffer buffer, IndexEngine value) {
+    buffer.put((byte) value.ordinal());
+  }
+
+  public static IndexEngine read(ByteBuffer buffer, IndexEngine value) {
+    return IndexEngine.byId(buffer.get());
+  }
+
   public static void write(ByteBuffer buffer, IndexValue[] value) {
     if (value == null) {
       buffer.put((byte) 0);
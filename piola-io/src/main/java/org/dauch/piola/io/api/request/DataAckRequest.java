@@ -0,0 +1,46 @@
+package org.dauch.piola.io.api.request;
+
+/*-
+ * #%L
+ * piola-server
+ * %%
+ * Copyright (C) 2024 dauch
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import org.dauch.piola.io.annotation.*;
+import org.dauch.piola.io.api.response.DataSubscribeResponse;
+
+/**
+ * Acknowledgement of the records pushed by the subscription on the stream of the request.
+ * No response is sent back.
+ *
+ * @param topic  Topic name
+ * @param offset Offset following the last processed record (the {@code next} field of its response)
+ * @param cancel True to finish the subscription
+ */
+@Serde
+public record DataAckRequest(
+  @Id(1) @Default("\"default\"") String topic,
+  @Id(2) long offset,
+  @Id(3) boolean cancel
+) implements Request<DataSubscribeResponse> {
+
+  public DataAckRequest(String topic, long offset) {
+    this(topic, offset, false);
+  }
+}
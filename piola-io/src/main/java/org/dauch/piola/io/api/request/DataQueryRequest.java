@@ -0,0 +1,44 @@
+package org.dauch.piola.io.api.request;
+
+/*-
+ * #%L
+ * piola-server
+ * %%
+ * Copyright (C) 2024 dauch
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import org.dauch.piola.io.annotation.*;
+import org.dauch.piola.io.api.response.DataQueryResponse;
+
+import static org.dauch.piola.util.Id.decode;
+
+@Serde
+public record DataQueryRequest(
+  @Id(1) @Default("\"default\"") String topic,
+  @Id(2) long index,
+  @Id(3) @Default("Long.MIN_VALUE") long from,
+  @Id(4) @Default("Long.MAX_VALUE") long to,
+  @Id(5) @Default("Integer.MAX_VALUE") int limit,
+  @Id(6) boolean descending,
+  @Id(7) boolean records
+) implements Request<DataQueryResponse> {
+
+  public DataQueryRequest(String topic, String index, long from, long to, int limit, boolean descending, boolean records) {
+    this(topic, decode(index), from, to, limit, descending, records);
+  }
+}
@@ -23,9 +23,29 @@ package org.dauch.piola.io.api.request;
  */
 
 import org.dauch.piola.io.annotation.*;
+import org.dauch.piola.io.api.response.DataReadResponse;
 
+/**
+ * Data reading request.
+ *
+ * @param topic   Topic name
+ * @param offset  Offset of the first record or its ordinal if {@code ordinal} is set
+ * @param count   Maximum number of records to read
+ * @param ordinal True if {@code offset} is a record ordinal (a zero-based record number within the topic)
+ */
 @Serde
 public record DataReadRequest(
-  @Id(1) @Default("\"default\"") String topic
-) {
+  @Id(1) @Default("\"default\"") String topic,
+  @Id(2) long offset,
+  @Id(3) @Default("1") int count,
+  @Id(4) boolean ordinal
+) implements Request<DataReadResponse> {
+
+  public DataReadRequest(String topic, long offset, int count) {
+    this(topic, offset, count, false);
+  }
+
+  public DataReadRequest(String topic, long offset) {
+    this(topic, offset, 1);
+  }
 }
@@ -25,13 +25,26 @@ package org.dauch.piola.io.api.request;
 import org.dauch.piola.io.annotation.*;
 import org.dauch.piola.io.api.index.IndexValue;
 import org.dauch.piola.io.api.response.DataSendResponse;
+import org.dauch.piola.io.api.topic.Durability;
 
+/**
+ * Data sending request.
+ *
+ * @param topic      Topic name
+ * @param indices    Index values of the record
+ * @param durability Durability of the record or null to use the topic durability
+ */
 @Serde
 public record DataSendRequest(
   @Id(1) @Default("\"default\"") String topic,
-  @Id(2) IndexValue[] indices
+  @Id(2) IndexValue[] indices,
+  @Id(3) Durability durability
 ) implements Request<DataSendResponse> {
 
+  public DataSendRequest(String topic, IndexValue[] indices) {
+    this(topic, indices, null);
+  }
+
   @Override
   public boolean hasPayload() {
     return true;
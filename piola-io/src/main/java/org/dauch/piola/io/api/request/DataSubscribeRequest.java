@@ -0,0 +1,51 @@
+package org.dauch.piola.io.api.request;
+
+/*-
+ * #%L
+ * piola-server
+ * %%
+ * Copyright (C) 2024 dauch
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import org.dauch.piola.io.annotation.*;
+import org.dauch.piola.io.api.response.DataSubscribeResponse;
+
+/**
+ * Subscription request. The server pushes the records of the topic to the stream of the request
+ * as soon as they are committed, a new subscription on the same stream replaces the previous one.
+ * The subscription is finished by an error response.
+ *
+ * @param topic   Topic name
+ * @param offset  Offset of the first record or its ordinal if {@code ordinal} is set
+ * @param ordinal True if {@code offset} is a record ordinal
+ * @param batch   Maximum number of records pushed at once
+ * @param window  Maximum number of records pushed but not acknowledged by {@link DataAckRequest}
+ */
+@Serde
+public record DataSubscribeRequest(
+  @Id(1) @Default("\"default\"") String topic,
+  @Id(2) long offset,
+  @Id(3) boolean ordinal,
+  @Id(4) @Default("64") int batch,
+  @Id(5) @Default("1024") int window
+) implements Request<DataSubscribeResponse> {
+
+  public DataSubscribeRequest(String topic, long offset) {
+    this(topic, offset, false, 64, 1024);
+  }
+}
@@ -30,6 +30,10 @@ public sealed interface Request<R extends Response> permits
   TopicGetRequest,
   TopicListRequest,
   DataSendRequest,
+  DataReadRequest,
+  DataQueryRequest,
+  DataSubscribeRequest,
+  DataAckRequest,
   UnknownRequest {
 
   default boolean hasPayload() {
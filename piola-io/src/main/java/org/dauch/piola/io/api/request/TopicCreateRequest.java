@@ -24,9 +24,49 @@ package org.dauch.piola.io.api.request;
 
 import org.dauch.piola.io.annotation.*;
 import org.dauch.piola.io.api.response.TopicCreateResponse;
+import org.dauch.piola.io.api.topic.Compression;
+import org.dauch.piola.io.api.topic.Durability;
+import org.dauch.piola.io.api.topic.IndexEngine;
 
+/**
+ * Topic creation request. The settings are ignored if the topic exists.
+ *
+ * @param topic           Topic name
+ * @param durability      Default durability of the records
+ * @param compression     Compression of the records
+ * @param retentionBytes  Maximum size of the topic data in bytes or 0 for unlimited size
+ * @param retentionMillis Maximum age of the records in milliseconds or 0 for unlimited age
+ * @param indexEngine     Storage engine of the indices created for the topic
+ */
 @Serde
 public record TopicCreateRequest(
-  @Id(0x01) @Default("\"default\"") String topic
+  @Id(0x01) @Default("\"default\"") String topic,
+  @Id(0x02) @Default("NONE") Durability durability,
+  @Id(0x03) @Default("NONE") Compression compression,
+  @Id(0x04) @Default("0L") long retentionBytes,
+  @Id(0x05) @Default("0L") long retentionMillis,
+  @Id(0x06) @Default("AVL") IndexEngine indexEngine
 ) implements Request<TopicCreateResponse> {
+
+  public TopicCreateRequest(
+    String topic,
+    Durability durability,
+    Compression compression,
+    long retentionBytes,
+    long retentionMillis
+  ) {
+    this(topic, durability, compression, retentionBytes, retentionMillis, IndexEngine.AVL);
+  }
+
+  public TopicCreateRequest(String topic, Durability durability, Compression compression) {
+    this(topic, durability, compression, 0L, 0L);
+  }
+
+  public TopicCreateRequest(String topic, Durability durability) {
+    this(topic, durability, Compression.NONE);
+  }
+
+  public TopicCreateRequest(String topic) {
+    this(topic, Durability.NONE);
+  }
 }
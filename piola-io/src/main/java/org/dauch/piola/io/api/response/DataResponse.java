@@ -24,9 +24,20 @@ package org.dauch.piola.io.api.response;
 
 import org.dauch.piola.io.annotation.Id;
 import org.dauch.piola.io.annotation.Serde;
+import org.dauch.piola.io.api.index.IndexValue;
 
 @Serde
 public record DataResponse(
-  @Id(1) long offset
-) implements DataReadResponse {
+  @Id(1) long offset,
+  @Id(2) long next,
+  @Id(3) IndexValue[] indices
+) implements DataReadResponse, DataQueryResponse, DataSubscribeResponse {
+
+  public static DataResponse endOfInput(long next) {
+    return new DataResponse(-1L, next, null);
+  }
+
+  public boolean isEndOfInput() {
+    return offset < 0L;
+  }
 }
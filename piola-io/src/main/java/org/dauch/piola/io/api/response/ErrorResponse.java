@@ -34,7 +34,9 @@ public record ErrorResponse(@Id(1) String error, @Id(2) @Custom ExceptionData ex
   TopicGetResponse,
   TopicListResponse,
   DataSendResponse,
-  DataReadResponse {
+  DataReadResponse,
+  DataQueryResponse,
+  DataSubscribeResponse {
 
   public ErrorResponse(String error) {
     this(error, (ExceptionData) null);
@@ -30,5 +30,7 @@ public sealed interface Response permits
   TopicGetResponse,
   TopicListResponse,
   DataSendResponse,
-  DataReadResponse {
+  DataReadResponse,
+  DataQueryResponse,
+  DataSubscribeResponse {
 }
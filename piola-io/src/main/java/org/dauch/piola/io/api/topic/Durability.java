@@ -0,0 +1,50 @@
+package org.dauch.piola.io.api.topic;
+
+/*-
+ * #%L
+ * piola-server
+ * %%
+ * Copyright (C) 2024 dauch
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+/**
+ * Defines when a written record is acknowledged.
+ */
+public enum Durability {
+  /**
+   * The record is acknowledged once it is written to the page cache.
+   */
+  NONE,
+  /**
+   * The record is acknowledged once it is forced to the storage. Concurrent writes are forced together.
+   */
+  BATCH,
+  /**
+   * The record is acknowledged once it is forced to the storage by a dedicated force call.
+   */
+  REQUEST;
+
+  public static Durability byId(int id) {
+    return switch (id) {
+      case 0 -> NONE;
+      case 1 -> BATCH;
+      case 2 -> REQUEST;
+      default -> throw new IllegalArgumentException("Unsupported durability: " + id);
+    };
+  }
+}
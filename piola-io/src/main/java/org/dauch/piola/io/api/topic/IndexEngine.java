@@ -0,0 +1,54 @@
+package org.dauch.piola.io.api.topic;
+
+/*-
+ * #%L
+ * piola-server
+ * %%
+ * Copyright (C) 2024 dauch
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+/**
+ * Defines how the indices of a topic are stored.
+ */
+public enum IndexEngine {
+  /**
+   * Each key is a node of an AVL tree, multiple values of a key are stored in value blocks.
+   */
+  AVL,
+  /**
+   * Entries are stored in the fixed size pages of a B+tree with linked leaves. The pages are updated in place,
+   * so the tree is rebuilt from the records after a crash.
+   */
+  BTREE,
+  /**
+   * Keys are stored in an open addressing hash table, multiple values of a key are stored in overflow blocks.
+   * A value lookup touches a single table slot, while a range query scans the whole table holding the lock
+   * the writers update the indices with. The table is updated in place, so it is rebuilt from the records
+   * after a crash.
+   */
+  HASH;
+
+  public static IndexEngine byId(int id) {
+    return switch (id) {
+      case 0 -> AVL;
+      case 1 -> BTREE;
+      case 2 -> HASH;
+      default -> throw new IllegalArgumentException("Unsupported index engine: " + id);
+    };
+  }
+}
@@ -31,6 +31,7 @@ import org.dauch.piola.concurrent.DrainQueue;
 import org.dauch.piola.io.exception.ExceptionData;
 import org.dauch.piola.util.*;
 
+import java.io.EOFException;
 import java.lang.invoke.MethodHandles;
 import java.lang.invoke.VarHandle;
 import java.math.BigInteger;
@@ -83,7 +84,7 @@ public abstract class AbstractServer<RQ extends ServerRequest, RS extends Server
     try {
       writeBuffers = $("writeBuffers", new BufferManager("server-write", config));
       readBuffers = $("readBuffers", new BufferManager("server-read", config));
-      handler = new ServerHandler(logger, config.baseDir());
+      handler = new ServerHandler(logger, config);
       requests = new DrainQueue<>(config.queueSize(), rqs);
       requestThread = Thread.ofVirtual().name("request-thread-" + config.id()).unstarted(this::requestLoop);
       mainLoopThread = Thread.ofVirtual().name("server-loop-" + config.id()).unstarted(this::mainLoop);
@@ -192,7 +193,11 @@ public abstract class AbstractServer<RQ extends ServerRequest, RS extends Server
     mainLoopThread.start();
   }
 
-  protected final void doProcess(RQ element, BiConsumer<ByteBuffer, ? super Response> responses) throws Exception {
+  protected final void doProcess(
+    RQ element,
+    BiConsumer<ByteBuffer, ? super Response> responses,
+    BiConsumer<FileRegion, ? super Response> regions
+  ) throws Exception {
     var request = element.request();
     switch (request) {
       case UnknownRequest r -> {
@@ -204,6 +209,10 @@ public abstract class AbstractServer<RQ extends ServerRequest, RS extends Server
       case TopicGetRequest r -> handler.getTopic(r, rs -> responses.accept(null, rs));
       case TopicListRequest r -> handler.listTopics(r, rs -> responses.accept(null, rs));
       case DataSendRequest r -> handler.sendData(r, element, rs -> responses.accept(null, rs));
+      case DataReadRequest r -> handler.readData(r, (rs, region) -> regions.accept(region, rs), (rs, b) -> responses.accept(b, rs));
+      case DataQueryRequest r -> handler.queryData(r, (rs, region) -> regions.accept(region, rs), (rs, b) -> responses.accept(b, rs));
+      case DataSubscribeRequest r -> handler.subscribeData(r, element, (rs, region) -> regions.accept(region, rs), (rs, b) -> responses.accept(b, rs));
+      case DataAckRequest r -> handler.ackData(r, element);
     }
   }
 
@@ -215,6 +224,29 @@ public abstract class AbstractServer<RQ extends ServerRequest, RS extends Server
   protected abstract void writeResponse(RQ rq, ByteBuffer payload, Response rs) throws Exception;
   protected abstract void reject(RQ rq);
 
+  /**
+   * Writes a response with a payload located in a file. The default implementation reads the region
+   * into a heap buffer, transports able to send file data directly should override it.
+   *
+   * @param rq     Request
+   * @param region Payload region (or null if absent)
+   * @param rs     Response
+   * @throws Exception On any error
+   */
+  protected void writeResponse(RQ rq, FileRegion region, Response rs) throws Exception {
+    if (region == null) {
+      writeResponse(rq, (ByteBuffer) null, rs);
+    } else {
+      var payload = ByteBuffer.allocate(region.size());
+      while (payload.hasRemaining()) {
+        if (region.channel().read(payload, region.position() + payload.position()) < 0) {
+          throw new EOFException();
+        }
+      }
+      writeResponse(rq, payload.flip(), rs);
+    }
+  }
+
   protected boolean processRequest(RQ r) {
     try {
       doProcess(r, (b, rs) -> {
@@ -223,6 +255,12 @@ public abstract class AbstractServer<RQ extends ServerRequest, RS extends Server
         } catch (Throwable e) {
           throw new BreakException(e);
         }
+      }, (region, rs) -> {
+        try {
+          writeResponse(r, region, rs);
+        } catch (Throwable e) {
+          throw new BreakException(e);
+        }
       });
       return false;
     } catch (BreakException e) {
@@ -232,7 +270,7 @@ public abstract class AbstractServer<RQ extends ServerRequest, RS extends Server
     } catch (Throwable e) {
       logger.log(ERROR, () -> "Unable to process request " + r, e);
       try {
-        writeResponse(r, null, new ErrorResponse("Unknown error", ExceptionData.from(e)));
+        writeResponse(r, (ByteBuffer) null, new ErrorResponse("Unknown error", ExceptionData.from(e)));
         return false;
       } catch (Throwable x) {
         logger.log(INFO, () -> "Write exception " + r, x);
@@ -262,7 +300,7 @@ public abstract class AbstractServer<RQ extends ServerRequest, RS extends Server
           if (!hasNonVisited) start++;
           continue;
         }
-        var thread = sink(ths, i, count, t, sink);
+        var thread = sink(ths, e.stream(), i, count, t, sink);
         if (THREADS_VH.compareAndSet(ths, e.stream(), null, thread)) {
           thread.start();
           if (!hasNonVisited) start++;
@@ -278,33 +316,11 @@ public abstract class AbstractServer<RQ extends ServerRequest, RS extends Server
     }
   }
 
-  private <T extends ServerRequest> Thread sink(Thread[] a, int i, int count, T[] t, Predicate<T> sink) {
-    var s = t[i].stream();
+  private <T extends ServerRequest> Thread sink(Thread[] a, int s, int i, int count, T[] t, Predicate<T> sink) {
     var threadName = "requests-" + id + "-" + s;
     return Thread.ofVirtual().name(threadName).unstarted(() -> {
       try {
-        for (int k = i; k < count; k++) {
-          var e = t[k];
-          if (e.stream() == s) {
-            t[k] = null;
-            releaseFence();
-            if (sink.test(e)) {
-              for (k++; k < count; k++) {
-                e = t[k];
-                t[k] = null;
-                releaseFence();
-                var buf = e.buffer();
-                if (buf != null) {
-                  readBuffers.release(buf);
-                }
-              }
-            }
-            var buf = e.buffer();
-            if (buf != null) {
-              readBuffers.release(buf);
-            }
-          }
-        }
+        consume(s, i, count, t, sink, readBuffers::release);
       } catch (Throwable unexpectedError) {
         logger.log(ERROR, "Unexpected exception", unexpectedError);
       } finally {
@@ -314,6 +330,36 @@ public abstract class AbstractServer<RQ extends ServerRequest, RS extends Server
     });
   }
 
+  // passes the requests of the stream s from t[i, count) to the sink and takes them from the array,
+  // once the sink rejects a request the following requests of the stream are dropped,
+  // the entries of the other streams are left to their own workers
+  static <T extends ServerRequest> void consume(int s, int i, int count, T[] t, Predicate<T> sink, Consumer<ByteBuffer> release) {
+    for (int k = i; k < count; k++) {
+      var e = t[k];
+      if (e != null && e.stream() == s) {
+        t[k] = null;
+        releaseFence();
+        if (sink.test(e)) {
+          for (k++; k < count; k++) {
+            var r = t[k];
+            if (r != null && r.stream() == s) {
+              t[k] = null;
+              releaseFence();
+              var buf = r.buffer();
+              if (buf != null) {
+                release.accept(buf);
+              }
+            }
+          }
+        }
+        var buf = e.buffer();
+        if (buf != null) {
+          release.accept(buf);
+        }
+      }
+    }
+  }
+
   @Override
   public String toString() {
     return getClass().getSimpleName() + "(" + id + ")";
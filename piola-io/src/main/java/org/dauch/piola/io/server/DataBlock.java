@@ -0,0 +1,143 @@
+package org.dauch.piola.io.server;
+
+/*-
+ * #%L
+ * piola-server
+ * %%
+ * Copyright (C) 2024 dauch
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import org.dauch.piola.io.exception.DataCorruptionException;
+
+import java.nio.ByteBuffer;
+import java.util.zip.*;
+
+/**
+ * Block of records of a compressed topic. A block consists of a header (checksum, compressed size
+ * and record count), a directory of the record ends within the uncompressed data and the compressed data.
+ * A record of a block is addressed by the block offset plus the record index: the directory takes
+ * more than a byte per record, so the record addresses never reach the following block.
+ * Uncompressed records have the same layout as the plain ones except the checksum covering the whole block.
+ */
+final class DataBlock {
+
+  // checksum (4 bytes), compressed data size (4 bytes) and record count (2 bytes)
+  static final int HEADER_SIZE = 2 * Integer.BYTES + Short.BYTES;
+  // a block is completed when either of the limits is reached
+  static final int MAX_RECORDS = 1024;
+  static final int MAX_RAW_SIZE = 1 << 20;
+
+  private DataBlock() {
+  }
+
+  /**
+   * Encodes the records into a block.
+   *
+   * @param raw      Uncompressed records
+   * @param ends     Record ends within the uncompressed records
+   * @param deflater Deflater
+   * @return Block buffer
+   */
+  static ByteBuffer encode(ByteBuffer raw, int[] ends, Deflater deflater) {
+    var directory = HEADER_SIZE + ends.length * Integer.BYTES;
+    var block = ByteBuffer.allocate(directory + raw.remaining() + (raw.remaining() >>> 10) + 64).position(directory);
+    deflater.reset();
+    deflater.setInput(raw);
+    deflater.finish();
+    while (!deflater.finished()) {
+      if (!block.hasRemaining()) {
+        block = ByteBuffer.allocate(block.capacity() << 1).put(block.flip());
+      }
+      deflater.deflate(block);
+    }
+    block.flip();
+    block.putInt(Integer.BYTES, block.limit() - directory);
+    block.putShort(2 * Integer.BYTES, (short) ends.length);
+    for (int i = 0; i < ends.length; i++) {
+      block.putInt(HEADER_SIZE + i * Integer.BYTES, ends[i]);
+    }
+    var crc = new CRC32C();
+    crc.update(block.position(Integer.BYTES));
+    return block.putInt(0, (int) crc.getValue()).rewind();
+  }
+
+  /**
+   * Validates the block header.
+   *
+   * @param header Buffer starting with the block header
+   * @param offset Block offset
+   * @return Block size
+   */
+  static long size(ByteBuffer header, long offset) {
+    if (header.remaining() < HEADER_SIZE) {
+      throw new DataCorruptionException("Truncated block header at " + offset, null);
+    }
+    var count = count(header);
+    var compressed = header.getInt(Integer.BYTES);
+    if (count <= 0 || count > MAX_RECORDS || compressed < 0) {
+      throw new DataCorruptionException("Invalid block header at " + offset, null);
+    }
+    return HEADER_SIZE + (long) count * Integer.BYTES + compressed;
+  }
+
+  static int count(ByteBuffer block) {
+    return block.getShort(2 * Integer.BYTES);
+  }
+
+  static int end(ByteBuffer block, int index) {
+    return block.getInt(HEADER_SIZE + index * Integer.BYTES);
+  }
+
+  /**
+   * Decompresses the records of the block.
+   *
+   * @param block    Block buffer
+   * @param offset   Block offset
+   * @param inflater Inflater
+   * @return Uncompressed records
+   */
+  static ByteBuffer decode(ByteBuffer block, long offset, Inflater inflater) {
+    var count = count(block);
+    var directory = HEADER_SIZE + count * Integer.BYTES;
+    var size = end(block, count - 1);
+    if (size < 0) {
+      throw new DataCorruptionException("Invalid block directory at " + offset, null);
+    }
+    var raw = ByteBuffer.allocate(size);
+    inflater.reset();
+    var input = block.slice(directory, block.getInt(Integer.BYTES));
+    if (input.isDirect()) {
+      // the inflater doesn't accept buffers of the mapped segments
+      input = ByteBuffer.allocate(input.remaining()).put(input).flip();
+    }
+    inflater.setInput(input);
+    try {
+      while (raw.hasRemaining() && !inflater.finished()) {
+        if (inflater.inflate(raw) == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+          break;
+        }
+      }
+    } catch (DataFormatException e) {
+      throw new DataCorruptionException("Invalid compressed data at " + offset, e);
+    }
+    if (raw.hasRemaining()) {
+      throw new DataCorruptionException("Truncated compressed data at " + offset, null);
+    }
+    return raw.flip();
+  }
+}
@@ -0,0 +1,253 @@
+package org.dauch.piola.io.server;
+
+/*-
+ * #%L
+ * piola-server
+ * %%
+ * Copyright (C) 2024 dauch
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.EnumSet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+import static java.nio.channels.FileChannel.MapMode.READ_ONLY;
+import static java.nio.file.StandardOpenOption.*;
+
+/**
+ * A data log segment: a file containing the records starting from the base offset.
+ * Only the last segment of a topic is writable: writers reserve byte ranges in it and write them
+ * concurrently. Once a segment is sealed, it becomes immutable and is read through a read-only mapping.
+ */
+final class DataSegment implements AutoCloseable {
+
+  private static final Pattern NAME_PATTERN = Pattern.compile("\\d{20}\\.data");
+  // added to the reserved size of a fenced segment, so the following reservations exceed any segment size
+  private static final long FENCE = 1L << 62;
+
+  private final long base;
+  private final Path file;
+  private final FileChannel channel;
+  private final OrdinalIndex ordinals;
+  private final Arena arena = Arena.ofShared();
+  private final AtomicLong reserved;
+  private volatile long size;
+  private volatile boolean sealed;
+  private volatile boolean dirty;
+  private volatile MemorySegment mapped;
+
+  private DataSegment(long base, Path file, boolean writable) throws IOException {
+    this.base = base;
+    this.file = file;
+    this.channel = writable
+      ? FileChannel.open(file, EnumSet.of(CREATE, READ, WRITE))
+      : FileChannel.open(file, EnumSet.of(READ));
+    try {
+      this.ordinals = new OrdinalIndex(ordinalsFile());
+    } catch (Throwable e) {
+      try (channel) {
+        throw e;
+      }
+    }
+    this.size = channel.size();
+    this.reserved = new AtomicLong(size);
+    this.sealed = !writable;
+  }
+
+  static DataSegment create(Path directory, long base) throws IOException {
+    return new DataSegment(base, file(directory, base), true);
+  }
+
+  static Path file(Path directory, long base) {
+    return directory.resolve("%020d.data".formatted(base));
+  }
+
+  static DataSegment open(Path file, boolean writable) throws IOException {
+    var name = file.getFileName().toString();
+    return new DataSegment(Long.parseLong(name.substring(0, name.indexOf('.'))), file, writable);
+  }
+
+  static boolean isSegment(Path file) {
+    return NAME_PATTERN.matcher(file.getFileName().toString()).matches();
+  }
+
+  long base() {
+    return base;
+  }
+
+  /**
+   * Returns the size of the segment. The size of a writable segment is the size it was opened with.
+   */
+  long size() {
+    return size;
+  }
+
+  long end() {
+    return base + size;
+  }
+
+  boolean isSealed() {
+    return sealed;
+  }
+
+  FileChannel channel() {
+    return channel;
+  }
+
+  OrdinalIndex ordinals() {
+    return ordinals;
+  }
+
+  /**
+   * Reserves a byte range at the end of the segment.
+   *
+   * @param length Length of the range
+   * @return Position of the range relative to the segment base
+   */
+  long reserve(int length) {
+    return reserved.getAndAdd(length);
+  }
+
+  void write(ByteBuffer buffer, long position) throws IOException {
+    for (var p = position; buffer.hasRemaining(); ) {
+      var n = channel.write(buffer, p);
+      if (n < 0) {
+        throw new EOFException();
+      }
+      p += n;
+    }
+    dirty = true;
+  }
+
+  void truncate(long size) throws IOException {
+    channel.truncate(size);
+    this.size = size;
+    reserved.set(size);
+  }
+
+  void seal(long size) {
+    this.size = size;
+    this.sealed = true;
+  }
+
+  /**
+   * Seals the segment at the given size and stops the reservations: the following ones get positions
+   * beyond any segment size. The ranges reserved before are dropped by {@link #trim()}.
+   *
+   * @param size Size of the segment
+   * @return End of the reserved ranges relative to the segment base
+   */
+  long fence(long size) {
+    seal(size);
+    return reserved.getAndAdd(FENCE);
+  }
+
+  /**
+   * Drops the bytes written beyond the size of a fenced segment.
+   */
+  void trim() throws IOException {
+    channel.truncate(size);
+  }
+
+  /**
+   * Returns true if the segment was written since the last force.
+   */
+  boolean isDirty() {
+    return dirty;
+  }
+
+  void force() throws IOException {
+    // cleared first, so a write completed during the force is forced by the next one
+    dirty = false;
+    channel.force(false);
+  }
+
+  /**
+   * Reads the bytes at the given position of the segment.
+   *
+   * @param position Position relative to the segment base
+   * @param buffer   Buffer to read the bytes into if the segment is not sealed yet
+   * @return Buffer ready to be read: either a slice of the mapped segment or the given buffer
+   */
+  ByteBuffer read(long position, ByteBuffer buffer) throws IOException {
+    var m = mapped();
+    if (m != null) {
+      return m.asSlice(position, buffer.remaining()).asByteBuffer();
+    }
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer, position + buffer.position()) < 0) {
+        throw new EOFException();
+      }
+    }
+    return buffer.flip();
+  }
+
+  private MemorySegment mapped() throws IOException {
+    var m = mapped;
+    if (m == null && sealed) {
+      synchronized (this) {
+        if ((m = mapped) == null) {
+          mapped = m = channel.map(READ_ONLY, 0L, size, arena);
+        }
+      }
+    }
+    return m;
+  }
+
+  /**
+   * Returns the last modification time of the segment file.
+   *
+   * @return Time in milliseconds since the epoch
+   */
+  long lastModified() throws IOException {
+    return Files.getLastModifiedTime(file).toMillis();
+  }
+
+  /**
+   * Closes the segment and deletes its files. The segment must not be accessed concurrently.
+   */
+  void delete() throws IOException {
+    close();
+    Files.deleteIfExists(ordinalsFile());
+    Files.deleteIfExists(file);
+  }
+
+  private Path ordinalsFile() {
+    return file.resolveSibling("%020d.ordinals".formatted(base));
+  }
+
+  @Override
+  public void close() throws IOException {
+    try (channel; ordinals) {
+      arena.close();
+    }
+  }
+
+  @Override
+  public String toString() {
+    return file.getFileName().toString();
+  }
+}
@@ -0,0 +1,37 @@
+package org.dauch.piola.io.server;
+
+/*-
+ * #%L
+ * piola-server
+ * %%
+ * Copyright (C) 2024 dauch
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import java.nio.channels.FileChannel;
+
+/**
+ * A region of a file to be sent as a response payload without copying it through the write buffers.
+ * The region carries the checksum of its bytes, so a transport checksumming its frames doesn't read them.
+ *
+ * @param channel  File channel
+ * @param position Region start position
+ * @param size     Region size
+ * @param checksum CRC-32C of the region bytes
+ */
+public record FileRegion(FileChannel channel, long position, int size, int checksum) {
+}
@@ -0,0 +1,76 @@
+package org.dauch.piola.io.server;
+
+/*-
+ * #%L
+ * piola-server
+ * %%
+ * Copyright (C) 2024 dauch
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import java.io.IOException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Group commit: the first writer waiting for its data to be durable becomes a leader and forces
+ * everything written so far, the writers arriving during the force wait for the next round
+ * and are released together.
+ */
+final class GroupCommit {
+
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition forced = lock.newCondition();
+  private long durable;
+  private boolean forcing;
+
+  /**
+   * Waits until the data up to the given offset is forced to the storage.
+   *
+   * @param end    Offset the data should be durable up to
+   * @param forcer Forces the written data and returns the offset it is durable up to
+   */
+  void await(long end, Forcer forcer) throws IOException {
+    lock.lock();
+    try {
+      while (durable < end) {
+        if (forcing) {
+          forced.awaitUninterruptibly();
+          continue;
+        }
+        forcing = true;
+        var target = durable;
+        lock.unlock();
+        try {
+          target = forcer.force();
+        } finally {
+          lock.lock();
+          forcing = false;
+          durable = Math.max(durable, target);
+          forced.signalAll();
+        }
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @FunctionalInterface
+  interface Forcer {
+    long force() throws IOException;
+  }
+}
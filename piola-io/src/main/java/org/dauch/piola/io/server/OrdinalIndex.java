@@ -0,0 +1,179 @@
+package org.dauch.piola.io.server;
+
+/*-
+ * #%L
+ * piola-server
+ * %%
+ * Copyright (C) 2024 dauch
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.EnumSet;
+
+import static java.nio.file.StandardOpenOption.*;
+
+/**
+ * Sparse index of a data segment mapping record ordinals to record offsets.
+ * The file consists of (ordinal, offset) pairs sorted by ordinal, the entries are cached in memory.
+ * Entries are added by a single writer at a time, readers may access the index concurrently.
+ */
+final class OrdinalIndex implements AutoCloseable {
+
+  // an entry is added when either of the intervals since the last entry is reached
+  static final int RECORD_INTERVAL = 1024;
+  static final long BYTE_INTERVAL = 1L << 18;
+
+  private static final int ENTRY_SIZE = 2 * Long.BYTES;
+
+  private final FileChannel channel;
+  private final ByteBuffer buffer = ByteBuffer.allocate(ENTRY_SIZE);
+  private volatile long[] entries;
+  private volatile int count;
+
+  OrdinalIndex(Path file) throws IOException {
+    channel = FileChannel.open(file, EnumSet.of(CREATE, READ, WRITE));
+    var n = (int) (channel.size() / ENTRY_SIZE);
+    var data = ByteBuffer.allocate(n * ENTRY_SIZE);
+    while (data.hasRemaining()) {
+      if (channel.read(data, data.position()) < 0) {
+        throw new EOFException();
+      }
+    }
+    data.flip();
+    var array = new long[Math.max(n, 8) * 2];
+    for (int i = 0; i < n * 2; i++) {
+      array[i] = data.getLong();
+    }
+    entries = array;
+    count = n;
+  }
+
+  boolean isEmpty() {
+    return count == 0;
+  }
+
+  int size() {
+    return count;
+  }
+
+  long ordinal(int index) {
+    return entries[index * 2];
+  }
+
+  long offset(int index) {
+    return entries[index * 2 + 1];
+  }
+
+  /**
+   * Finds the last entry with the ordinal less than or equal to the given one.
+   *
+   * @param ordinal Record ordinal
+   * @return Entry index or -1 if not found
+   */
+  int floor(long ordinal) {
+    var n = count;
+    var array = entries;
+    int lo = 0, hi = n - 1, result = -1;
+    while (lo <= hi) {
+      var mid = (lo + hi) >>> 1;
+      if (array[mid * 2] <= ordinal) {
+        result = mid;
+        lo = mid + 1;
+      } else {
+        hi = mid - 1;
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Finds the last entry with the offset less than or equal to the given one.
+   *
+   * @param offset Offset
+   * @return Entry index or -1 if there is no such entry
+   */
+  int floorOffset(long offset) {
+    var n = count;
+    var array = entries;
+    int lo = 0, hi = n - 1, result = -1;
+    while (lo <= hi) {
+      var mid = (lo + hi) >>> 1;
+      if (array[mid * 2 + 1] <= offset) {
+        result = mid;
+        lo = mid + 1;
+      } else {
+        hi = mid - 1;
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Adds an entry if the given record is far enough from the last entry.
+   *
+   * @param ordinal Record ordinal
+   * @param offset  Record offset
+   */
+  void add(long ordinal, long offset) throws IOException {
+    var n = count;
+    var array = entries;
+    if (n > 0 && ordinal - array[n * 2 - 2] < RECORD_INTERVAL && offset - array[n * 2 - 1] < BYTE_INTERVAL) {
+      return;
+    }
+    buffer.clear().putLong(ordinal).putLong(offset).flip();
+    while (buffer.hasRemaining()) {
+      channel.write(buffer, (long) n * ENTRY_SIZE + buffer.position());
+    }
+    if (array.length == n * 2) {
+      entries = array = Arrays.copyOf(array, array.length * 2);
+    }
+    array[n * 2] = ordinal;
+    array[n * 2 + 1] = offset;
+    count = n + 1;
+  }
+
+  /**
+   * Removes the entries pointing to the given offset and beyond.
+   *
+   * @param offset Offset
+   */
+  void truncate(long offset) throws IOException {
+    var n = count;
+    while (n > 0 && entries[n * 2 - 1] >= offset) {
+      n--;
+    }
+    if (n < count) {
+      channel.truncate((long) n * ENTRY_SIZE);
+      count = n;
+    }
+  }
+
+  void force() throws IOException {
+    channel.force(false);
+  }
+
+  @Override
+  public void close() throws IOException {
+    channel.close();
+  }
+}
@@ -30,4 +30,7 @@ public interface ServerConfig extends BufferConfig {
   int id();
   int queueSize();
   Path baseDir();
+  long segmentSize();
+  long retentionInterval();
+  float indexFilterRate();
 }
@@ -24,40 +24,67 @@ package org.dauch.piola.io.server;
 
 import org.dauch.piola.io.api.request.*;
 import org.dauch.piola.io.api.response.*;
+import org.dauch.piola.io.exception.DataCorruptionException;
 import org.dauch.piola.io.validation.TopicValidation;
 
+import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
 import java.util.function.Consumer;
 
 import static java.lang.Integer.remainderUnsigned;
 import static java.lang.System.Logger.Level.ERROR;
 import static java.lang.System.Logger.Level.INFO;
+import static java.lang.System.Logger.Level.WARNING;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 
 public final class ServerHandler implements AutoCloseable {
 
+  // maximum time a subscription waits for new records before checking its state
+  private static final long TAIL_TIMEOUT = 100_000_000L;
+
   private final System.Logger logger;
   private final Path baseDir;
+  private final long segmentSize;
+  private final float indexFilterRate;
   private final ReentrantLock[] locks = new ReentrantLock[256];
   private final ConcurrentSkipListMap<String, TopicData> topics = new ConcurrentSkipListMap<>();
+  private final ConcurrentHashMap<Subscription.Key, Subscription> subscriptions = new ConcurrentHashMap<>();
+  private final long retentionInterval;
+  private final CountDownLatch closed = new CountDownLatch(1);
+  private final Thread retentionThread;
 
-  public ServerHandler(System.Logger logger, Path baseDir) throws Exception {
+  public ServerHandler(System.Logger logger, ServerConfig config) throws Exception {
     this.logger = logger;
-    this.baseDir = baseDir;
+    this.baseDir = config.baseDir();
+    this.segmentSize = config.segmentSize();
+    this.indexFilterRate = config.indexFilterRate();
+    this.retentionInterval = config.retentionInterval();
     Files.createDirectories(baseDir);
     for (int i = 0; i < locks.length; i++) {
       locks[i] = new ReentrantLock();
     }
+    retentionThread = Thread.ofVirtual().name("retention").start(this::retentionLoop);
   }
 
   public void createTopic(TopicCreateRequest request, Consumer<? super TopicCreateResponse> consumer) {
     withWriteLock(request.topic(), d -> {
       try {
         if (!d.exists()) {
-          d.create();
+          d.create(new TopicSettings(
+            request.durability(),
+            request.compression(),
+            request.retentionBytes(),
+            request.retentionMillis(),
+            request.indexEngine()
+          ));
         }
         consumer.accept(new TopicInfoResponse(request.topic()));
       } catch (Throwable e) {
@@ -140,19 +167,158 @@ public final class ServerHandler implements AutoCloseable {
       if (d == null) {
         consumer.accept(new ErrorResponse("Topic " + request.topic() + " doesn't exist"));
       } else {
-        var offset = d.writeData(sr.buffer(), request.indices());
+        var offset = d.writeData(sr.buffer(), request.indices(), request.durability());
         consumer.accept(new DataReceivedResponse(offset));
       }
     });
   }
 
+  public void readData(
+    DataReadRequest request,
+    BiConsumer<? super DataReadResponse, FileRegion> consumer,
+    BiConsumer<? super DataReadResponse, ByteBuffer> payloads
+  ) {
+    TopicValidation.validateName(request.topic());
+    withReadLock(request.topic(), d -> {
+      if (d == null) {
+        consumer.accept(new ErrorResponse("Topic " + request.topic() + " doesn't exist"), null);
+      } else {
+        try {
+          var offset = request.ordinal() ? d.offsetOf(request.offset()) : request.offset();
+          var next = d.readData(offset, request.count(), consumer::accept, payloads::accept);
+          consumer.accept(DataResponse.endOfInput(next), null);
+        } catch (IllegalArgumentException | DataCorruptionException e) {
+          logger.log(ERROR, () -> "Unable to read data from " + d, e);
+          consumer.accept(new ErrorResponse("Data reading error", e), null);
+        }
+      }
+    });
+  }
+
+  public void queryData(
+    DataQueryRequest request,
+    BiConsumer<? super DataQueryResponse, FileRegion> consumer,
+    BiConsumer<? super DataQueryResponse, ByteBuffer> payloads
+  ) {
+    TopicValidation.validateName(request.topic());
+    withReadLock(request.topic(), d -> {
+      if (d == null) {
+        consumer.accept(new ErrorResponse("Topic " + request.topic() + " doesn't exist"), null);
+      } else {
+        try {
+          var from = request.from();
+          var to = request.to();
+          var limit = request.limit();
+          var desc = request.descending();
+          if (request.records()) {
+            d.queryIndex(request.index(), from, to, limit, desc, o -> d.readRecords(o, consumer::accept, payloads::accept));
+            consumer.accept(DataResponse.endOfInput(-1L), null);
+          } else {
+            d.queryIndex(request.index(), from, to, limit, desc, o -> consumer.accept(new DataOffsetsResponse(o), null));
+            consumer.accept(new DataOffsetsResponse(new long[0]), null);
+          }
+        } catch (IllegalArgumentException | DataCorruptionException e) {
+          logger.log(ERROR, () -> "Unable to query data from " + d, e);
+          consumer.accept(new ErrorResponse("Data query error", e), null);
+        }
+      }
+    });
+  }
+
+  public void subscribeData(
+    DataSubscribeRequest request,
+    ServerRequest sr,
+    BiConsumer<? super DataSubscribeResponse, FileRegion> consumer,
+    BiConsumer<? super DataSubscribeResponse, ByteBuffer> payloads
+  ) {
+    TopicValidation.validateName(request.topic());
+    if (request.batch() <= 0 || request.window() <= 0 || request.window() > Subscription.MAX_WINDOW) {
+      consumer.accept(new ErrorResponse("Invalid subscription batch or window"), null);
+      return;
+    }
+    var key = new Subscription.Key(sr.address(), sr.stream());
+    var subscription = new Subscription(
+      key,
+      request.topic(),
+      request.offset(),
+      request.ordinal(),
+      request.batch(),
+      request.window()
+    );
+    var old = subscriptions.put(key, subscription);
+    if (old != null) {
+      old.cancel();
+    }
+    subscription.start(() -> tail(subscription, consumer, payloads));
+  }
+
+  public void ackData(DataAckRequest request, ServerRequest sr) {
+    var key = new Subscription.Key(sr.address(), sr.stream());
+    var subscription = subscriptions.get(key);
+    if (subscription != null && subscription.topic.equals(request.topic())) {
+      if (request.cancel()) {
+        subscriptions.remove(key, subscription);
+        subscription.cancel();
+      } else {
+        subscription.ack(request.offset());
+      }
+    }
+  }
+
+  private void tail(
+    Subscription s,
+    BiConsumer<? super DataSubscribeResponse, FileRegion> consumer,
+    BiConsumer<? super DataSubscribeResponse, ByteBuffer> payloads
+  ) {
+    var data = new TopicData[1];
+    try {
+      while (!s.isCancelled() && closed.getCount() > 0L) {
+        var offset = s.next;
+        var credit = Math.min(s.batch, s.credit());
+        withReadLock(s.topic, d -> {
+          if (d == null) {
+            consumer.accept(new ErrorResponse("Topic " + s.topic + " doesn't exist"), null);
+            s.cancel();
+            return;
+          }
+          if (!s.resolved) {
+            s.next = d.offsetOf(s.next);
+            s.resolved = true;
+          }
+          if (credit > 0) {
+            s.next = d.readData(s.next, credit, (rs, region) -> {
+              s.pushed(rs.next());
+              consumer.accept(rs, region);
+            }, (rs, payload) -> {
+              s.pushed(rs.next());
+              payloads.accept(rs, payload);
+            });
+          }
+          data[0] = d;
+        });
+        if (credit == 0) {
+          LockSupport.parkNanos(s, TAIL_TIMEOUT);
+        } else if (s.next == offset && data[0] != null) {
+          data[0].awaitData(offset, TAIL_TIMEOUT);
+        }
+      }
+    } catch (IllegalArgumentException | DataCorruptionException e) {
+      logger.log(ERROR, () -> "Unable to push data of " + s.topic, e);
+      consumer.accept(new ErrorResponse("Data subscription error", e), null);
+    } catch (Throwable e) {
+      logger.log(INFO, () -> "Subscription " + s.key + " to " + s.topic + " finished", e);
+    } finally {
+      subscriptions.remove(s.key, s);
+    }
+  }
+
   private void withWriteLock(String topic, Consumer<TopicData> task) {
     TopicValidation.validateName(topic);
     var locked = new AtomicBoolean(true);
     var lock = locks[remainderUnsigned(topic.hashCode(), locks.length)];
     lock.lock();
     try {
-      var data = topics.computeIfAbsent(topic, _ -> new TopicData(baseDir.resolve(topic)));
+      var data = topics.computeIfAbsent(topic, this::topicData);
       data.withWriteLock(() -> {
         lock.unlock();
         locked.set(false);
@@ -171,7 +337,11 @@ public final class ServerHandler implements AutoCloseable {
     var lock = locks[remainderUnsigned(topic.hashCode(), locks.length)];
     lock.lock();
     try {
-      var data = topics.get(topic);
+      // topics existing before the start are loaded on first access
+      var cached = topics.get(topic);
+      var data = cached != null || !Files.isDirectory(baseDir.resolve(topic))
+        ? cached
+        : topics.computeIfAbsent(topic, this::topicData);
       if (data == null || !data.exists()) {
         lock.unlock();
         locked.set(false);
@@ -190,8 +360,69 @@ public final class ServerHandler implements AutoCloseable {
     }
   }
 
+  // the thread is not interrupted on close: an interrupt would close the file channels it uses,
+  // only the loaded topics are visited: a cold topic is checked once it is accessed
+  private void retentionLoop() {
+    try {
+      while (!closed.await(retentionInterval, MILLISECONDS)) {
+        for (var e : topics.entrySet()) {
+          if (closed.getCount() == 0L) {
+            return;
+          }
+          maintain(e.getKey(), e.getValue());
+        }
+      }
+    } catch (InterruptedException e) {
+      logger.log(WARNING, "Retention thread interrupted", e);
+    }
+  }
+
+  // the write lock is taken only if there is a segment to drop or an index to compact
+  private void maintain(String topic, TopicData data) {
+    try {
+      if (!data.isRetentionDue(System.currentTimeMillis()) && !data.isCompactionDue()) {
+        return;
+      }
+    } catch (Throwable e) {
+      logger.log(ERROR, () -> "Unable to check retention of " + topic, e);
+      return;
+    }
+    withWriteLock(topic, d -> {
+      try {
+        if (d == data && d.exists()) {
+          var dropped = d.applyRetention(System.currentTimeMillis());
+          if (dropped > 0) {
+            logger.log(INFO, () -> "Dropped " + dropped + " segments of " + topic);
+          }
+        }
+      } catch (Throwable e) {
+        logger.log(ERROR, () -> "Unable to apply retention to " + topic, e);
+      }
+      try {
+        if (d == data && d.exists()) {
+          var compacted = d.compactIndices();
+          if (compacted > 0) {
+            logger.log(INFO, () -> "Compacted " + compacted + " indices of " + topic);
+          }
+        }
+      } catch (Throwable e) {
+        logger.log(ERROR, () -> "Unable to compact the indices of " + topic, e);
+      }
+    });
+  }
+
+  private TopicData topicData(String topic) {
+    return new TopicData(logger, baseDir.resolve(topic), segmentSize, indexFilterRate);
+  }
+
   @Override
   public void close() throws Exception {
+    closed.countDown();
+    retentionThread.join();
+    for (var subscription : subscriptions.values()) {
+      subscription.cancel();
+      subscription.join();
+    }
     var closeException = new IllegalStateException("Close exception");
     topics.entrySet().removeIf(e -> {
       var topic = e.getKey();
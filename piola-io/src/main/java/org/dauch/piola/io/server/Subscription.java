@@ -0,0 +1,106 @@
+package org.dauch.piola.io.server;
+
+/*-
+ * #%L
+ * piola-server
+ * %%
+ * Copyright (C) 2024 dauch
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A subscription pushing the records of a topic to a client stream. The records are pushed by a dedicated
+ * thread, the number of records pushed but not acknowledged by the client is limited by the window.
+ */
+final class Subscription {
+
+  static final int MAX_WINDOW = 1 << 16;
+
+  final Key key;
+  final String topic;
+  final int batch;
+  private volatile Thread thread;
+  // next offsets of the records in flight
+  private final long[] inFlight;
+  private int head;
+  private int size;
+  private volatile boolean cancelled;
+
+  // accessed by the subscription thread only
+  long next;
+  boolean resolved;
+
+  Subscription(Key key, String topic, long offset, boolean ordinal, int batch, int window) {
+    this.key = key;
+    this.topic = topic;
+    this.batch = batch;
+    this.inFlight = new long[window];
+    this.next = offset;
+    this.resolved = !ordinal;
+  }
+
+  void start(Runnable task) {
+    thread = Thread.ofVirtual().name("subscription-" + topic + "-" + key.stream()).start(task);
+  }
+
+  void join() throws InterruptedException {
+    var t = thread;
+    if (t != null) {
+      t.join();
+    }
+  }
+
+  boolean isCancelled() {
+    return cancelled;
+  }
+
+  void cancel() {
+    cancelled = true;
+    LockSupport.unpark(thread);
+  }
+
+  /**
+   * Returns the number of records that may be pushed without exceeding the window.
+   */
+  synchronized int credit() {
+    return inFlight.length - size;
+  }
+
+  synchronized void pushed(long next) {
+    inFlight[(head + size++) % inFlight.length] = next;
+  }
+
+  /**
+   * Releases the records preceding the given offset from the window.
+   *
+   * @param offset Offset following the last processed record
+   */
+  void ack(long offset) {
+    synchronized (this) {
+      while (size > 0 && inFlight[head] <= offset) {
+        head = (head + 1) % inFlight.length;
+        size--;
+      }
+    }
+    LockSupport.unpark(thread);
+  }
+
+  record Key(InetSocketAddress address, int stream) {}
+}
@@ -22,34 +22,106 @@ package org.dauch.piola.io.server;
  * #L%
  */
 
+import org.dauch.piola.collections.bloom.LongBloomFilter;
 import org.dauch.piola.collections.map.LongLongAVLDiskMap;
+import org.dauch.piola.collections.map.LongLongBTreeDiskMap;
+import org.dauch.piola.collections.map.LongLongDiskMap;
+import org.dauch.piola.collections.map.LongLongHashDiskMap;
+import org.dauch.piola.collections.map.LongLongPredicate;
 import org.dauch.piola.io.api.Serialization;
 import org.dauch.piola.io.api.index.IndexValue;
+import org.dauch.piola.io.api.response.DataResponse;
+import org.dauch.piola.io.api.topic.Compression;
+import org.dauch.piola.io.api.topic.Durability;
+import org.dauch.piola.io.api.topic.IndexEngine;
+import org.dauch.piola.io.exception.DataCorruptionException;
 import org.dauch.piola.util.*;
 
 import java.io.*;
+import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.EnumSet;
-import java.util.TreeMap;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.locks.*;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.zip.*;
 
 import static java.lang.System.Logger.Level.ERROR;
+import static java.lang.System.Logger.Level.INFO;
+import static java.lang.System.Logger.Level.WARNING;
 import static java.nio.file.Files.createDirectories;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
 import static java.nio.file.StandardOpenOption.*;
 
 final class TopicData {
 
-  private final ByteBuffer attrBuffer = ByteBuffer.allocateDirect(2 << 17);
+  // checksum (4 bytes), index count (1 byte), index values (17 bytes each) and payload size (4 bytes)
+  static final int MAX_HEADER_SIZE = Integer.BYTES + 1 + Byte.MAX_VALUE * (2 * Long.BYTES + 1) + Integer.BYTES;
+  // the file marking the data of the topic was closed properly
+  static final String CLEAN_MARKER = "data.clean";
+  // the single data file of the topics written before the data was split into segments
+  static final String LEGACY_DATA = "data.data";
+  // the file of the index directory holding the end of the records covered by the index checkpoints
+  static final String INDEX_CHECKPOINT = "indices.checkpoint";
+  // maximum number of offsets collected from an index while holding the data lock
+  static final int QUERY_BATCH_SIZE = 1024;
+  // default false positive rate of the index filters
+  static final float FILTER_RATE = 0.01f;
+
+  private final System.Logger logger;
   private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
-  private final TreeMap<Long, LongLongAVLDiskMap> indices = new TreeMap<>();
+  private final ConcurrentSkipListMap<Long, LongLongDiskMap> indices = new ConcurrentSkipListMap<>();
+  private final ConcurrentSkipListMap<Long, LongBloomFilter> filters = new ConcurrentSkipListMap<>();
+  private final ConcurrentSkipListMap<Long, DataSegment> segments = new ConcurrentSkipListMap<>();
+  private final ConcurrentSkipListMap<Long, DataSegment> ordinalSegments = new ConcurrentSkipListMap<>();
+  private final ConcurrentSkipListMap<Long, Thread> commitWaiters = new ConcurrentSkipListMap<>();
+  private final GroupCommit groupCommit = new GroupCommit();
+  private final ConcurrentLinkedQueue<Append> pendingAppends = new ConcurrentLinkedQueue<>();
+  private final ReentrantLock blockLock = new ReentrantLock();
+  private final ConcurrentLinkedQueue<Inflater> inflaters = new ConcurrentLinkedQueue<>();
+  private final Set<Thread> tailers = ConcurrentHashMap.newKeySet();
+  private final Set<Thread> rollWaiters = ConcurrentHashMap.newKeySet();
   private final Path directory;
-  private FileChannel dataChannel;
+  private final long segmentSize;
+  private final float filterRate;
+  private volatile long committed = -1L;
+  private volatile DataSegment active;
+  // accessed by the publishing writer only, writers publish one after another
+  private long nextOrdinal;
+  private volatile TopicSettings settings;
+  private volatile boolean gaps;
+  // accessed by the group commit leader only: base of the first segment that may get unforced records
+  private long unforced;
+  // guarded by the write lock: first offset retained by the last index pruning
+  private long pruned;
+  // guarded by the block lock
+  private Deflater deflater;
+
+  TopicData(System.Logger logger, Path directory, long segmentSize) {
+    this(logger, directory, segmentSize, FILTER_RATE);
+  }
 
-  TopicData(Path directory) {
+  /**
+   * Constructs the data of a topic.
+   *
+   * @param logger      Logger
+   * @param directory   Topic directory
+   * @param segmentSize Data segment size
+   * @param filterRate  False positive rate of the Bloom filters of the indices or 0 to not use the filters
+   */
+  TopicData(System.Logger logger, Path directory, long segmentSize, float filterRate) {
+    this.logger = logger;
     this.directory = directory;
+    this.segmentSize = segmentSize;
+    this.filterRate = filterRate;
   }
 
   boolean delete() throws IOException {
@@ -60,8 +132,31 @@ final class TopicData {
     return Files.exists(directory);
   }
 
-  void create() throws Exception {
+  void create(TopicSettings settings) throws Exception {
     createDirectories(directory.resolve("index"));
+    try (var writer = Files.newBufferedWriter(directory.resolve("topic.properties"))) {
+      settings.toProperties().store(writer, null);
+    }
+    this.settings = settings;
+  }
+
+  TopicSettings settings() throws IOException {
+    var s = settings;
+    if (s == null) {
+      synchronized (this) {
+        if ((s = settings) == null) {
+          var file = directory.resolve("topic.properties");
+          var properties = new Properties();
+          if (Files.exists(file)) {
+            try (var reader = Files.newBufferedReader(file)) {
+              properties.load(reader);
+            }
+          }
+          settings = s = TopicSettings.fromProperties(properties);
+        }
+      }
+    }
+    return s;
   }
 
   void withReadLock(Runnable task) {
@@ -82,53 +177,1476 @@ final class TopicData {
     }
   }
 
-  synchronized long writeData(ByteBuffer buffer, IndexValue[] indices) {
+  /**
+   * Writes a record. Writers reserve byte ranges of the active segment and write them concurrently,
+   * only the index updates are serialized. The records become visible to the readers
+   * in the offset order: a writer publishes its record once all the preceding records are published.
+   * Records of a compressed topic are written in blocks: one of the concurrent writers
+   * compresses the pending records into a block and writes it on behalf of the others.
+   *
+   * @param buffer     Payload
+   * @param indices    Index values
+   * @param durability Durability or null to use the topic durability
+   * @return Offset of the record
+   */
+  long writeData(ByteBuffer buffer, IndexValue[] indices, Durability durability) {
+    try {
+      var settings = settings();
+      var mode = durability == null ? settings.durability() : durability;
+      var append = new Append(buffer, indices);
+      switch (settings.compression()) {
+        case NONE -> appendRecord(append);
+        case DEFLATE -> appendBlock(append);
+      }
+      switch (mode) {
+        case NONE -> {}
+        case BATCH -> groupCommit.await(append.end, this::force);
+        case REQUEST -> append.segment.force();
+      }
+      return append.offset;
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private void appendRecord(Append append) throws IOException {
+    var buffer = append.payload;
+    var header = ByteBuffer.allocate(Integer.BYTES + append.headerSize());
+    Serialization.write(header.position(Integer.BYTES), append.indices);
+    header.putInt(buffer.remaining()).flip();
+    var crc = new CRC32C();
+    crc.update(header.position(Integer.BYTES));
+    crc.update(buffer.duplicate());
+    header.putInt(0, (int) crc.getValue()).rewind();
+    var size = header.remaining() + buffer.remaining();
+    var pos = reserve(size);
+    var end = pos + size;
+    DataSegment segment = null;
+    try {
+      segment = segment(pos);
+      var local = pos - segment.base();
+      segment.write(header, local);
+      segment.write(buffer, local + header.limit());
+      synchronized (this) {
+        updateIndices(append.indices, pos);
+      }
+    } catch (Throwable e) {
+      // a failed range is published anyway to not block the following writers
+      fail(pos, end, e);
+      throw e;
+    }
+    publish(segment, pos, end, 1);
+    if (pos == segment.base() && size > segmentSize) {
+      roll(segment, size);
+    }
+    append.complete(segment, pos, end);
+  }
+
+  private void appendBlock(Append append) throws IOException {
+    pendingAppends.add(append);
+    while (!append.done) {
+      blockLock.lock();
+      try {
+        if (!append.done) {
+          writeBlock();
+        }
+      } finally {
+        blockLock.unlock();
+      }
+    }
+    switch (append.error) {
+      case null -> {}
+      case IOException e -> throw e;
+      case RuntimeException e -> throw e;
+      case Error e -> throw e;
+      default -> throw new IllegalStateException(append.error);
+    }
+  }
+
+  // called by the block lock holder, the failures are reported to the writers of the block
+  private void writeBlock() {
+    var batch = new ArrayList<Append>();
+    var rawSize = 0L;
+    while (batch.size() < DataBlock.MAX_RECORDS && rawSize < DataBlock.MAX_RAW_SIZE) {
+      var a = pendingAppends.poll();
+      if (a == null) {
+        break;
+      }
+      batch.add(a);
+      rawSize += a.rawSize();
+    }
+    try {
+      var raw = ByteBuffer.allocate(Math.toIntExact(rawSize));
+      var ends = new int[batch.size()];
+      for (int i = 0; i < ends.length; i++) {
+        var a = batch.get(i);
+        Serialization.write(raw, a.indices);
+        raw.putInt(a.payload.remaining()).put(a.payload.duplicate());
+        ends[i] = raw.position();
+      }
+      if (deflater == null) {
+        deflater = new Deflater();
+      }
+      var block = DataBlock.encode(raw.flip(), ends, deflater);
+      var size = block.remaining();
+      var pos = reserve(size);
+      var end = pos + size;
+      DataSegment segment = null;
+      try {
+        segment = segment(pos);
+        segment.write(block, pos - segment.base());
+        synchronized (this) {
+          for (int i = 0; i < ends.length; i++) {
+            updateIndices(batch.get(i).indices, pos + i);
+          }
+        }
+      } catch (Throwable e) {
+        fail(pos, end, e);
+        throw e;
+      }
+      publish(segment, pos, end, ends.length);
+      if (pos == segment.base() && size > segmentSize) {
+        roll(segment, size);
+      }
+      for (int i = 0; i < ends.length; i++) {
+        batch.get(i).complete(segment, pos + i, end);
+      }
+    } catch (Throwable e) {
+      batch.forEach(a -> a.fail(e));
+    }
+  }
+
+  // reserves a byte range in the active segment, the first writer not fitting into the segment seals it
+  private long reserve(int size) throws IOException {
+    while (true) {
+      var segment = activeSegment();
+      var local = segment.reserve(size);
+      if (local == 0L || local + size <= segmentSize) {
+        return segment.base() + local;
+      } else if (local <= segmentSize) {
+        roll(segment, local);
+      } else {
+        awaitRoll(segment);
+      }
+    }
+  }
+
+  // parks until the writer sealing the segment starts the next one
+  private void awaitRoll(DataSegment segment) {
+    var thread = Thread.currentThread();
+    rollWaiters.add(thread);
+    try {
+      while (active == segment) {
+        LockSupport.park(this);
+      }
+    } finally {
+      rollWaiters.remove(thread);
+    }
+  }
+
+  private void updateIndices(IndexValue[] indices, long pos) throws IOException {
+    for (var index : indices) {
+      var map = getOrCreateIndex(index.key());
+      put(map, index, pos);
+      var filter = filters.get(index.key());
+      if (filter != null) {
+        filter.add(index.value());
+      }
+    }
+  }
+
+  private static void put(LongLongDiskMap map, IndexValue index, long pos) {
+    switch (index.type()) {
+      case UNORDERED -> map.put(index.value(), pos);
+      case ASC -> map.put(index.value(), pos, (v1, v2) -> v1 - v2);
+      case DESC -> map.put(index.value(), pos, (v1, v2) -> v2 - v1);
+    }
+  }
+
+  // publishes a written range, a range reserved in a fenced segment is discarded
+  private void publish(DataSegment segment, long pos, long end, int records) throws IOException {
+    awaitCommitted(pos);
+    try {
+      if (segment.isSealed() && pos >= segment.end()) {
+        segment.trim();
+        throw new IOException("Segment " + segment + " was fenced at " + segment.end() + " before " + pos);
+      }
+      var ordinal = nextOrdinal;
+      nextOrdinal += records;
+      segment.ordinals().add(ordinal, pos);
+    } finally {
+      commit(end);
+    }
+  }
+
+  /**
+   * Publishes a range the writer failed to write. The segment is fenced: it is sealed before the range,
+   * the writers of the ranges reserved after it discard them and the next segment starts after them,
+   * so the readers and the index scans skip the failed range as a gap.
+   */
+  private void fail(long pos, long end, Throwable error) {
+    awaitCommitted(pos);
+    try {
+      var segment = segments.floorEntry(pos).getValue();
+      if (!segment.isSealed() || pos < segment.end()) {
+        var reserved = segment.fence(pos - segment.base());
+        gaps = true;
+        logger.log(WARNING, () -> "Fenced " + segment + " at " + pos, error);
+        start(segment.base() + reserved);
+      }
+      segment.trim();
+    } catch (Throwable e) {
+      error.addSuppressed(e);
+    } finally {
+      commit(end);
+    }
+  }
+
+  private void commit(long end) {
+    committed = end;
+    var waiter = commitWaiters.get(end);
+    if (waiter != null) {
+      LockSupport.unpark(waiter);
+    }
+    if (!tailers.isEmpty()) {
+      tailers.forEach(LockSupport::unpark);
+    }
+  }
+
+  private void awaitCommitted(long pos) {
+    if (committed < pos) {
+      commitWaiters.put(pos, Thread.currentThread());
+      try {
+        while (committed < pos) {
+          LockSupport.park(this);
+        }
+      } finally {
+        commitWaiters.remove(pos);
+      }
+    }
+  }
+
+  private void roll(DataSegment segment, long size) throws IOException {
+    var end = segment.base() + size;
+    awaitCommitted(end);
+    if (segment.isSealed()) {
+      // fenced by a failed write, the next segment is already started
+      return;
+    }
+    segment.seal(size);
+    segment.force();
+    segment.ordinals().force();
+    // the indices are checkpointed with each sealed segment, so a crash loses only the entries of the last one
+    synchronized (this) {
+      checkpointIndices(end);
+    }
+    start(end);
+  }
+
+  // starts the next active segment, called by the publishing writer
+  private void start(long base) throws IOException {
+    var next = DataSegment.create(directory, base);
+    segments.put(base, next);
+    ordinalSegments.put(nextOrdinal, next);
+    active = next;
+    rollWaiters.forEach(LockSupport::unpark);
+  }
+
+  // forces every segment written since the last force: a segment fenced by a failed write
+  // may hold unforced records when the next one starts
+  private long force() throws IOException {
+    var end = committed;
+    var first = -1L;
+    for (var segment : segments.tailMap(unforced, true).values()) {
+      // a segment sealed before the force gets no more records
+      var sealed = segment.isSealed();
+      if (segment.isDirty()) {
+        segment.force();
+      }
+      if (!sealed && first < 0L) {
+        first = segment.base();
+      }
+    }
+    if (first >= 0L) {
+      unforced = first;
+    }
+    return end;
+  }
+
+  /**
+   * Waits for a record to be committed at the given offset or beyond.
+   *
+   * @param offset  Offset
+   * @param timeout Maximum time to wait in nanoseconds
+   */
+  void awaitData(long offset, long timeout) {
+    var thread = Thread.currentThread();
+    tailers.add(thread);
     try {
-      if (dataChannel == null) {
-        dataChannel = FileChannel.open(directory.resolve("data.data"), EnumSet.of(CREATE, WRITE, APPEND));
+      if (committed <= offset) {
+        LockSupport.parkNanos(this, timeout);
       }
-      var pos = dataChannel.position();
-      Serialization.write(attrBuffer.clear(), indices);
-      attrBuffer.putInt(buffer.remaining());
-      var b = new ByteBuffer[]{attrBuffer.flip(), buffer};
-      while (attrBuffer.hasRemaining() && buffer.hasRemaining()) {
-        var n = dataChannel.write(b);
-        if (n < 0) {
-          throw new EOFException();
+    } finally {
+      tailers.remove(thread);
+    }
+  }
+
+  /**
+   * Reads records starting from the given offset. Payloads of a plain topic are not read: the consumer gets
+   * a file region pointing to the payload to be able to transfer it directly to the transport.
+   * Payloads of a compressed topic are decompressed block by block and passed as buffers.
+   *
+   * @param offset   Offset of the first record
+   * @param count    Maximum number of records to read
+   * @param consumer Record consumer getting payload regions
+   * @param payloads Record consumer getting decompressed payloads
+   * @return Offset of the record following the last consumed one
+   */
+  long readData(
+    long offset,
+    int count,
+    BiConsumer<DataResponse, FileRegion> consumer,
+    BiConsumer<DataResponse, ByteBuffer> payloads
+  ) {
+    try {
+      return readData(offset, count, committed(), consumer, payloads);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private long readData(
+    long offset,
+    int count,
+    long end,
+    BiConsumer<DataResponse, FileRegion> consumer,
+    BiConsumer<DataResponse, ByteBuffer> payloads
+  ) throws IOException {
+    if (offset < 0L || offset > end) {
+      throw new IllegalArgumentException("Offset " + offset + " is out of range [0, " + end + "]");
+    } else if (offset == end || count <= 0) {
+      return offset;
+    } else if (settings().compression() != Compression.NONE) {
+      return readBlocks(offset, count, end, payloads);
+    }
+    var header = ByteBuffer.allocate(MAX_HEADER_SIZE);
+    var headerBytes = new byte[MAX_HEADER_SIZE];
+    var crc = new CRC32C();
+    for (int i = 0; i < count && (offset = skipGap(offset)) < end; i++) {
+      var segment = segment(offset);
+      var segmentEnd = segment.isSealed() ? Math.min(end, segment.end()) : end;
+      var local = offset - segment.base();
+      var buffer = segment.read(local, header.clear().limit((int) Math.min(MAX_HEADER_SIZE, segmentEnd - offset)));
+      final IndexValue[] indices;
+      final int size;
+      try {
+        indices = Serialization.read(buffer.position(Integer.BYTES), (IndexValue[]) null);
+        size = buffer.getInt();
+      } catch (BufferUnderflowException | IllegalArgumentException e) {
+        throw new DataCorruptionException("Invalid record header at " + offset, e);
+      }
+      var position = local + buffer.position();
+      var next = offset + buffer.position() + size;
+      if (size < 0 || next > segmentEnd) {
+        throw new DataCorruptionException("Invalid record size " + size + " at " + offset, null);
+      }
+      // the payload checksum is extracted from the record checksum covering the header and the payload,
+      // the header is copied as the mapped buffers of the shared arena can't be checksummed directly
+      var headerSize = buffer.position() - Integer.BYTES;
+      buffer.get(Integer.BYTES, headerBytes, 0, headerSize);
+      crc.reset();
+      crc.update(headerBytes, 0, headerSize);
+      var checksum = Crc.combine((int) crc.getValue(), buffer.getInt(0), size);
+      consumer.accept(new DataResponse(offset, next, indices), new FileRegion(segment.channel(), position, size, checksum));
+      offset = next;
+    }
+    return offset;
+  }
+
+  private long readBlocks(long offset, int count, long end, BiConsumer<DataResponse, ByteBuffer> consumer) throws IOException {
+    var header = ByteBuffer.allocate(DataBlock.HEADER_SIZE);
+    var inflater = inflaters.poll();
+    if (inflater == null) {
+      inflater = new Inflater();
+    }
+    try {
+      for (int i = 0; i < count && (offset = skipGap(offset)) < end; ) {
+        var segment = segment(offset);
+        var segmentEnd = segment.isSealed() ? Math.min(end, segment.end()) : end;
+        var start = findBlock(segment, offset, segmentEnd, header);
+        var size = blockHeader(segment, start, segmentEnd, header).size();
+        var block = segment.read(start - segment.base(), ByteBuffer.allocate((int) size));
+        var n = DataBlock.count(block);
+        if (offset - start >= n) {
+          throw new IllegalArgumentException("No record found at " + offset);
+        }
+        var raw = DataBlock.decode(block, start, inflater);
+        for (var j = (int) (offset - start); j < n && i < count; j++, i++) {
+          offset = readRecord(block, raw, start, size, j, consumer);
         }
       }
-      for (var index : indices) {
-        var map = getOrCreateIndex(index.key());
-        switch (index.type()) {
-          case UNORDERED -> map.put(index.value(), pos);
-          case ASC -> map.put(index.value(), pos, (v1, v2) -> v1 - v2);
-          case DESC -> map.put(index.value(), pos, (v1, v2) -> v2 - v1);
+      return offset;
+    } finally {
+      inflaters.add(inflater);
+    }
+  }
+
+  // passes the record j of a decompressed block to the consumer and returns the offset of the next record
+  private static long readRecord(
+    ByteBuffer block,
+    ByteBuffer raw,
+    long start,
+    long size,
+    int j,
+    BiConsumer<DataResponse, ByteBuffer> consumer
+  ) {
+    var from = j == 0 ? 0 : DataBlock.end(block, j - 1);
+    var record = raw.slice(from, DataBlock.end(block, j) - from);
+    final IndexValue[] indices;
+    final int payloadSize;
+    try {
+      indices = Serialization.read(record, (IndexValue[]) null);
+      payloadSize = record.getInt();
+    } catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException e) {
+      throw new DataCorruptionException("Invalid record header at " + (start + j), e);
+    }
+    if (payloadSize != record.remaining()) {
+      throw new DataCorruptionException("Invalid record size " + payloadSize + " at " + (start + j), null);
+    }
+    var next = j + 1 < DataBlock.count(block) ? start + j + 1 : start + size;
+    consumer.accept(new DataResponse(start + j, next, indices), record);
+    return next;
+  }
+
+  /**
+   * Reads the records at the given offsets passing them in the given order. The offsets of a compressed topic
+   * are visited in the offset order, so each block is decompressed once per call however many of its records
+   * are requested, the payloads are copied out of the blocks and passed once the whole batch is read.
+   *
+   * @param offsets  Record offsets
+   * @param consumer Record consumer getting payload regions
+   * @param payloads Record consumer getting decompressed payloads
+   */
+  void readRecords(
+    long[] offsets,
+    BiConsumer<DataResponse, FileRegion> consumer,
+    BiConsumer<DataResponse, ByteBuffer> payloads
+  ) {
+    try {
+      if (settings().compression() == Compression.NONE) {
+        for (var offset : offsets) {
+          readData(offset, 1, consumer, payloads);
+        }
+        return;
+      }
+      var end = committed();
+      var sorted = offsets.clone();
+      Arrays.sort(sorted);
+      var responses = new DataResponse[sorted.length];
+      var records = new ByteBuffer[sorted.length];
+      var header = ByteBuffer.allocate(DataBlock.HEADER_SIZE);
+      var inflater = inflaters.poll();
+      if (inflater == null) {
+        inflater = new Inflater();
+      }
+      try {
+        ByteBuffer block = null;
+        ByteBuffer raw = null;
+        var start = 0L;
+        var size = 0L;
+        for (int i = 0; i < sorted.length; i++) {
+          var offset = sorted[i];
+          if (offset < 0L || offset >= end) {
+            throw new IllegalArgumentException("Offset " + offset + " is out of range [0, " + end + ")");
+          } else if (block == null || offset >= start + size) {
+            var segment = segment(offset);
+            var segmentEnd = segment.isSealed() ? Math.min(end, segment.end()) : end;
+            start = findBlock(segment, offset, segmentEnd, header);
+            size = blockHeader(segment, start, segmentEnd, header).size();
+            block = segment.read(start - segment.base(), ByteBuffer.allocate((int) size));
+            raw = DataBlock.decode(block, start, inflater);
+          }
+          if (offset - start >= DataBlock.count(block)) {
+            throw new IllegalArgumentException("No record found at " + offset);
+          }
+          var k = i;
+          readRecord(block, raw, start, size, (int) (offset - start), (rs, record) -> {
+            responses[k] = rs;
+            records[k] = ByteBuffer.allocate(record.remaining()).put(record).flip();
+          });
         }
+      } finally {
+        inflaters.add(inflater);
+      }
+      for (var offset : offsets) {
+        var k = Arrays.binarySearch(sorted, offset);
+        payloads.accept(responses[k], records[k].duplicate());
       }
-      return pos;
     } catch (IOException e) {
       throw new UncheckedIOException(e);
     }
   }
 
-  private LongLongAVLDiskMap getOrCreateIndex(long key) {
-    return indices.computeIfAbsent(key, k -> {
-      var file = directory.resolve("index").resolve(Id.encode(k));
-      return new LongLongAVLDiskMap(file, 1 << 20, 64);
+  // finds the block containing the given offset starting from the closest sparse index entry
+  private long findBlock(DataSegment segment, long offset, long segmentEnd, ByteBuffer header) throws IOException {
+    var index = segment.ordinals();
+    var i = index.floorOffset(offset);
+    var start = i < 0 ? segment.base() : index.offset(i);
+    while (true) {
+      var next = start + blockHeader(segment, start, segmentEnd, header).size;
+      if (offset < next) {
+        return start;
+      }
+      start = next;
+    }
+  }
+
+  /**
+   * Drops the oldest segments exceeding the retention limits of the topic. Neither the active segment
+   * nor a segment followed by an empty one is dropped: the first ordinal of a segment is restored on load
+   * from the ordinal index entry of its first record. The index scans skip the entries pointing to the dropped
+   * records, the entries are pruned once the records dropped since the last pruning outsize the retained ones.
+   * The caller holds the write lock, so the dropped segments are not accessed concurrently.
+   *
+   * @param now Current time in milliseconds
+   * @return Number of dropped segments
+   */
+  int applyRetention(long now) throws IOException {
+    var settings = settings();
+    if (!settings.hasRetention()) {
+      return 0;
+    }
+    var end = committed();
+    var size = size(end);
+    var dropped = 0;
+    for (var e = segments.firstEntry(); isExpired(e, settings, size, end, now); e = segments.firstEntry()) {
+      var segment = e.getValue();
+      segments.remove(e.getKey());
+      // an empty segment fenced by a failed write has no ordinal entry
+      ordinalSegments.remove(ordinalSegments.firstKey(), segment);
+      gaps = true;
+      size -= segment.size();
+      segment.delete();
+      dropped++;
+    }
+    var first = segments.firstKey();
+    if (dropped > 0 && first - pruned >= end - first) {
+      pruneIndices(first);
+    }
+    return dropped;
+  }
+
+  /**
+   * Removes the entries pointing to the records before the first retained one from all the indices
+   * of the topic: an AVL index is compacted without them, a hash or B+tree index is rebuilt from the retained
+   * records. The indices not loaded yet are loaded. The caller holds the write lock.
+   */
+  private void pruneIndices(long first) throws IOException {
+    synchronized (this) {
+      for (var e : indexEngines().entrySet()) {
+        var key = e.getKey();
+        var engine = e.getValue();
+        if (engine == IndexEngine.AVL) {
+          if (getIndex(key) instanceof LongLongAVLDiskMap map) {
+            replaceIndex(key, map, f -> map.compact(f, (_, v) -> v >= first));
+          }
+          continue;
+        }
+        // the index and its filter are closed before the rebuild deletes their files
+        var filter = filters.remove(key);
+        if (filter != null) {
+          filter.close();
+        }
+        var map = indices.remove(key);
+        if (map != null) {
+          map.close();
+        }
+        var rebuilt = rebuildIndex(key, indexFile(key, engine), engine);
+        openFilter(key, rebuilt);
+        indices.put(key, rebuilt);
+      }
+    }
+    pruned = first;
+    logger.log(INFO, () -> "Pruned the indices of " + this + " before " + first);
+  }
+
+  // the engines of the index files by the index keys
+  private Map<Long, IndexEngine> indexEngines() throws IOException {
+    var engines = new TreeMap<Long, IndexEngine>();
+    try (var ds = Files.newDirectoryStream(directory.resolve("index"))) {
+      for (var file : ds) {
+        var name = file.getFileName().toString();
+        var dot = name.indexOf('.');
+        var engine = dot < 0 ? IndexEngine.AVL : switch (name.substring(dot)) {
+          case ".btree" -> IndexEngine.BTREE;
+          case ".hash" -> IndexEngine.HASH;
+          default -> null;
+        };
+        if (engine != null) {
+          engines.put(Id.decode(dot < 0 ? name : name.substring(0, dot)), engine);
+        }
+      }
+    }
+    return engines;
+  }
+
+  /**
+   * Compacts the loaded AVL indices whose replaced nodes and blocks take more space than the live ones:
+   * the indices are read without locking, so the replaced cells are never reused. The compacted file is moved
+   * over the index file, it keeps the checkpoint mark and the filter of the index. The caller holds
+   * the write lock, so the replaced index is not read concurrently.
+   *
+   * @return Number of compacted indices
+   */
+  int compactIndices() throws IOException {
+    var compacted = 0;
+    synchronized (this) {
+      for (var e : indices.entrySet()) {
+        if (e.getValue() instanceof LongLongAVLDiskMap map && isCompactionDue(map)) {
+          replaceIndex(e.getKey(), map, map::compact);
+          compacted++;
+        }
+      }
+    }
+    return compacted;
+  }
+
+  /**
+   * Checks whether {@link #compactIndices()} would compact an index. The check needs no lock:
+   * its result is a hint confirmed under the write lock.
+   *
+   * @return True if a loaded index has to be compacted
+   */
+  boolean isCompactionDue() {
+    for (var index : indices.values()) {
+      if (index instanceof LongLongAVLDiskMap map && isCompactionDue(map)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static boolean isCompactionDue(LongLongAVLDiskMap map) {
+    return map.garbageBytes() > map.usedBytes() - map.garbageBytes();
+  }
+
+  // writes the index to a temporary file moved over the index file once checkpointed
+  private void replaceIndex(long key, LongLongAVLDiskMap map, Function<Path, LongLongAVLDiskMap> compaction)
+    throws IOException {
+    var file = indexFile(key, IndexEngine.AVL);
+    var temp = file.resolveSibling(file.getFileName() + ".tmp");
+    Files.deleteIfExists(temp);
+    var compacted = compaction.apply(temp);
+    try {
+      Files.move(temp, file, ATOMIC_MOVE);
+    } catch (Throwable e) {
+      compacted.close();
+      Files.deleteIfExists(temp);
+      throw e;
+    }
+    indices.put(key, compacted);
+    map.close();
+  }
+
+  /**
+   * Checks whether {@link #applyRetention(long)} would drop a segment. A topic not loaded yet is not checked,
+   * so the check neither loads nor recovers the cold topics. The check needs no lock: its result is a hint
+   * confirmed under the write lock.
+   *
+   * @param now Current time in milliseconds
+   * @return True if the oldest segment exceeds the retention limits
+   */
+  boolean isRetentionDue(long now) throws IOException {
+    var end = committed;
+    if (end < 0L) {
+      return false;
+    }
+    var settings = settings();
+    return settings.hasRetention() && isExpired(segments.firstEntry(), settings, size(end), end, now);
+  }
+
+  // the oldest segment exceeding the limits is dropped if it is sealed and followed by a non-empty one
+  private boolean isExpired(
+    Map.Entry<Long, DataSegment> e,
+    TopicSettings settings,
+    long size,
+    long end,
+    long now
+  ) throws IOException {
+    if (e == null) {
+      return false;
+    }
+    var segment = e.getValue();
+    var next = segments.higherEntry(e.getKey());
+    if (next == null || !segment.isSealed() || size(next.getValue(), end) == 0L) {
+      return false;
+    }
+    return settings.retentionMillis() > 0L && segment.lastModified() < now - settings.retentionMillis()
+      || settings.retentionBytes() > 0L && size > settings.retentionBytes();
+  }
+
+  private long size(long end) {
+    var size = 0L;
+    for (var segment : segments.values()) {
+      size += size(segment, end);
+    }
+    return size;
+  }
+
+  private static long size(DataSegment segment, long end) {
+    return segment.isSealed() ? segment.size() : Math.max(0L, end - segment.base());
+  }
+
+  /**
+   * Finds the offset of the record with the given ordinal using the sparse ordinal index
+   * of the segment containing the record.
+   *
+   * @param ordinal Record ordinal
+   * @return Offset of the record or the end offset if there is no such record yet
+   */
+  long offsetOf(long ordinal) {
+    try {
+      var end = committed();
+      var e = ordinalSegments.floorEntry(ordinal);
+      if (e == null && ordinal >= 0L && (e = ordinalSegments.firstEntry()) != null) {
+        // the record was dropped by the retention, the first retained record is found instead
+        ordinal = e.getKey();
+      }
+      if (ordinal < 0L || e == null) {
+        throw new IllegalArgumentException("Ordinal " + ordinal + " is out of range");
+      }
+      var segment = e.getValue();
+      var index = segment.ordinals();
+      var i = index.floor(ordinal);
+      var o = i < 0 ? e.getKey() : index.ordinal(i);
+      var offset = i < 0 ? segment.base() : index.offset(i);
+      var blocks = settings().compression() != Compression.NONE;
+      var header = ByteBuffer.allocate(MAX_HEADER_SIZE);
+      while (o < ordinal && (offset = skipGap(offset)) < end) {
+        var s = segment(offset);
+        var segmentEnd = s.isSealed() ? Math.min(end, s.end()) : end;
+        if (!blocks) {
+          offset = skipRecord(s, offset, segmentEnd, header);
+          o++;
+        } else {
+          var block = blockHeader(s, offset, segmentEnd, header);
+          if (ordinal < o + block.count()) {
+            return offset + (ordinal - o);
+          }
+          offset += block.size();
+          o += block.count();
+        }
+      }
+      return Math.min(offset, end);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private long skipRecord(DataSegment segment, long offset, long segmentEnd, ByteBuffer header) throws IOException {
+    var local = offset - segment.base();
+    var buffer = segment.read(local, header.clear().limit((int) Math.min(MAX_HEADER_SIZE, segmentEnd - offset)));
+    final int size;
+    try {
+      buffer.position(Integer.BYTES + 1 + buffer.get(Integer.BYTES) * (2 * Long.BYTES + 1));
+      size = buffer.getInt();
+    } catch (BufferUnderflowException | IllegalArgumentException e) {
+      throw new DataCorruptionException("Invalid record header at " + offset, e);
+    }
+    var next = offset + buffer.position() + size;
+    if (size < 0 || next > segmentEnd) {
+      throw new DataCorruptionException("Invalid record size " + size + " at " + offset, null);
+    }
+    return next;
+  }
+
+  private BlockHeader blockHeader(DataSegment segment, long offset, long segmentEnd, ByteBuffer header) throws IOException {
+    var local = offset - segment.base();
+    var buffer = segment.read(local, header.clear().limit((int) Math.min(DataBlock.HEADER_SIZE, segmentEnd - offset)));
+    var size = DataBlock.size(buffer, offset);
+    if (offset + size > segmentEnd) {
+      throw new DataCorruptionException("Invalid block size " + size + " at " + offset, null);
+    }
+    return new BlockHeader(DataBlock.count(buffer), size);
+  }
+
+  // verifies the checksum of a record or a block
+  private void verifyChecksum(DataSegment segment, long offset, long next, ByteBuffer header) throws IOException {
+    var expected = segment.read(offset - segment.base(), header.clear().limit(Integer.BYTES)).getInt();
+    var crc = new CRC32C();
+    for (var p = offset + Integer.BYTES; p < next; ) {
+      var n = (int) Math.min(header.capacity(), next - p);
+      crc.update(segment.read(p - segment.base(), header.clear().limit(n)));
+      p += n;
+    }
+    if ((int) crc.getValue() != expected) {
+      throw new DataCorruptionException("Checksum mismatch at " + offset, null);
+    }
+  }
+
+  // the offsets following a segment truncated on recovery are not used: the next segment starts after them,
+  // the offsets preceding the first segment belong to the segments dropped by the retention
+  private long skipGap(long offset) {
+    if (gaps) {
+      var e = segments.floorEntry(offset);
+      if (e == null) {
+        var first = segments.firstEntry();
+        return first == null ? offset : first.getKey();
+      } else if (e.getValue().isSealed() && offset >= e.getValue().end()) {
+        var next = segments.higherKey(offset);
+        return next == null ? offset : next;
+      }
+    }
+    return offset;
+  }
+
+  /**
+   * Scans the index in the given key range. Offsets are collected in batches. An index supporting
+   * concurrent reads is scanned without locking, otherwise the data lock is held for a batch only,
+   * so the writers are not blocked during the whole scan. An index without resumable scans is scanned
+   * in a single pass, its offsets are passed in batches after it: a range scan of a hash index visits
+   * the whole table holding the lock, so the index updates of the writers wait for it.
+   * Records written after the scan has been started are not visited.
+   * A single key lookup is skipped if the Bloom filter of the index has not seen the key.
+   *
+   * @param index      Index key
+   * @param from       Lower bound of index values (inclusive)
+   * @param to         Upper bound of index values (inclusive)
+   * @param limit      Maximum number of offsets to visit
+   * @param descending True to scan the index values in descending order
+   * @param consumer   Offset batch consumer
+   */
+  void queryIndex(long index, long from, long to, int limit, boolean descending, Consumer<long[]> consumer) {
+    try {
+      var end = committed();
+      var map = indices.get(index);
+      if (map == null) {
+        synchronized (this) {
+          if ((map = getIndex(index)) == null) {
+            return;
+          }
+        }
+      }
+      var scan = new IndexScan(end, limit, !map.resumableScans());
+      var filter = from == to ? filters.get(index) : null;
+      if (filter != null && !filter.mightContain(from)) {
+        return;
+      }
+      for (var done = limit <= 0 || from > to; !done; ) {
+        if (map.concurrentReads()) {
+          done = scan.next(map, from, to, descending);
+        } else {
+          synchronized (this) {
+            done = scan.next(map, from, to, descending);
+          }
+        }
+        for (int i = 0; i < scan.size; i += QUERY_BATCH_SIZE) {
+          consumer.accept(Arrays.copyOfRange(scan.batch, i, Math.min(scan.size, i + QUERY_BATCH_SIZE)));
+        }
+        scan.size = 0;
+        done |= scan.limit == 0;
+      }
+      if (filter != null && !scan.found) {
+        filter.falsePositive();
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private long committed() throws IOException {
+    var c = committed;
+    if (c < 0L) {
+      synchronized (this) {
+        if ((c = committed) < 0L) {
+          committed = c = loadSegments();
+        }
+      }
+    }
+    return c;
+  }
+
+  /**
+   * Loads the segments. If the data was not closed properly, the records following the last
+   * sparse ordinal index entry of the last segment are verified and the segment is truncated
+   * at the first broken one. As the index entries may point to the records lost on a crash,
+   * the offsets the last segment could use are not reused: the next segment is started after them.
+   * The indices restored to their last checkpoints get the records following it.
+   */
+  private long loadSegments() throws IOException {
+    convertLegacyData();
+    var files = new TreeMap<Long, Path>();
+    try (var ds = Files.newDirectoryStream(directory, f -> Files.isRegularFile(f) && DataSegment.isSegment(f))) {
+      for (var file : ds) {
+        var name = file.getFileName().toString();
+        files.put(Long.parseLong(name.substring(0, name.indexOf('.'))), file);
+      }
+    }
+    var clean = Files.deleteIfExists(directory.resolve(CLEAN_MARKER));
+    if (clean) {
+      try (var ch = FileChannel.open(directory, READ)) {
+        ch.force(true);
+      }
+    }
+    var ordinal = 0L;
+    var lastSize = 0L;
+    DataSegment last = null;
+    for (var e : files.entrySet()) {
+      var recover = !clean && e.getKey().equals(files.lastKey());
+      var segment = DataSegment.open(e.getValue(), e.getKey().equals(files.lastKey()));
+      if (last == null && !segment.ordinals().isEmpty()) {
+        // the preceding segments may have been dropped by the retention
+        ordinal = segment.ordinals().ordinal(0);
+      }
+      segments.put(segment.base(), segment);
+      ordinalSegments.put(ordinal, segment);
+      gaps |= last == null ? segment.base() != 0L : last.end() != segment.base();
+      lastSize = segment.size();
+      ordinal = indexOrdinals(segment, ordinal, recover);
+      last = segment;
+    }
+    if (last != null && !clean) {
+      var fence = last.base() + Math.max(segmentSize, lastSize);
+      last.seal(last.size());
+      last.force();
+      last.ordinals().force();
+      var next = DataSegment.create(directory, fence);
+      segments.put(fence, next);
+      ordinalSegments.put(ordinal, next);
+      gaps = true;
+      var recovered = last.end();
+      logger.log(WARNING, () -> "Recovered " + this + " up to " + recovered + ", next segment starts at " + fence);
+      repairIndices(recovered, fence);
+      last = next;
+    }
+    nextOrdinal = ordinal;
+    return last == null ? 0L : last.end();
+  }
+
+  /**
+   * Converts the legacy data file to the first segment. The legacy records have no checksums, so they are
+   * copied with the checksums added and the indices pointing to the legacy positions are rebuilt.
+   * The segment is moved into place once complete, so an interrupted conversion is restarted on the next open.
+   * A torn legacy tail is dropped.
+   */
+  private void convertLegacyData() throws IOException {
+    var legacy = directory.resolve(LEGACY_DATA);
+    var target = DataSegment.file(directory, 0L);
+    if (!Files.exists(legacy)) {
+      return;
+    } else if (Files.exists(target)) {
+      Files.delete(legacy);
+      return;
+    } else if (settings().compression() != Compression.NONE) {
+      throw new IllegalStateException("Legacy data of " + this + " can't be converted to compressed segments");
+    }
+    try (var ds = Files.newDirectoryStream(directory.resolve("index"))) {
+      for (var file : ds) {
+        Files.delete(file);
+      }
+    }
+    var temp = target.resolveSibling(target.getFileName() + ".tmp");
+    var count = 0L;
+    var pos = 0L;
+    var offset = 0L;
+    final long size;
+    try (var in = FileChannel.open(legacy, READ); var out = FileChannel.open(temp, CREATE, WRITE, TRUNCATE_EXISTING)) {
+      var header = ByteBuffer.allocate(MAX_HEADER_SIZE);
+      var crc = new CRC32C();
+      size = in.size();
+      for (; pos < size; count++) {
+        readFully(in, header.clear().position(Integer.BYTES).limit((int) Math.min(MAX_HEADER_SIZE, size - pos + Integer.BYTES)), pos);
+        final IndexValue[] indices;
+        final int payloadSize;
+        try {
+          indices = Serialization.read(header.flip().position(Integer.BYTES), (IndexValue[]) null);
+          payloadSize = header.getInt();
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+          break;
+        }
+        var headerSize = header.position() - Integer.BYTES;
+        if (payloadSize < 0 || pos + headerSize + payloadSize > size) {
+          break;
+        }
+        var payload = readFully(in, ByteBuffer.allocate(payloadSize), pos + headerSize).flip();
+        crc.reset();
+        crc.update(header.limit(header.position()).position(Integer.BYTES));
+        crc.update(payload.duplicate());
+        header.putInt(0, (int) crc.getValue()).rewind();
+        var record = new ByteBuffer[] {header, payload};
+        while (header.hasRemaining() || payload.hasRemaining()) {
+          out.write(record);
+        }
+        updateIndices(indices, offset);
+        offset += header.limit() + payloadSize;
+        pos += headerSize + payloadSize;
+      }
+      out.force(true);
+    }
+    checkpointIndices(offset);
+    Files.move(temp, target, ATOMIC_MOVE);
+    Files.delete(legacy);
+    var converted = count;
+    var dropped = size - pos;
+    logger.log(WARNING, () -> "Converted " + converted + " legacy records of " + this + ", dropped " + dropped + " bytes");
+  }
+
+  private static ByteBuffer readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+    for (var p = position; buffer.hasRemaining(); ) {
+      var n = channel.read(buffer, p);
+      if (n < 0) {
+        throw new EOFException();
+      }
+      p += n;
+    }
+    return buffer;
+  }
+
+  /**
+   * Adds the missing sparse ordinal index entries of the segment scanning the records following
+   * the last entry.
+   *
+   * @param segment Segment
+   * @param ordinal Ordinal of the first record of the segment
+   * @param recover True to verify the scanned records and truncate the segment at the first broken one
+   * @return Ordinal of the record following the last record of the segment
+   */
+  private long indexOrdinals(DataSegment segment, long ordinal, boolean recover) throws IOException {
+    var index = segment.ordinals();
+    index.truncate(segment.end());
+    var offset = segment.base();
+    if (!index.isEmpty()) {
+      ordinal = index.ordinal(index.size() - 1);
+      offset = index.offset(index.size() - 1);
+    }
+    var blocks = settings().compression() != Compression.NONE;
+    var header = ByteBuffer.allocate(MAX_HEADER_SIZE);
+    for (var end = segment.end(); offset < end; ) {
+      final long next;
+      final int records;
+      try {
+        if (blocks) {
+          var block = blockHeader(segment, offset, end, header);
+          next = offset + block.size();
+          records = block.count();
+        } else {
+          next = skipRecord(segment, offset, end, header);
+          records = 1;
+        }
+        if (recover) {
+          verifyChecksum(segment, offset, next, header);
+        }
+      } catch (DataCorruptionException e) {
+        if (!recover) {
+          throw e;
+        }
+        var size = offset - segment.base();
+        logger.log(WARNING, () -> "Truncating " + segment + " to " + size, e);
+        segment.truncate(size);
+        index.truncate(offset);
+        break;
+      }
+      index.add(ordinal, offset);
+      ordinal += records;
+      offset = next;
+    }
+    return ordinal;
+  }
+
+  DataSegment segment(long offset) {
+    var e = segments.floorEntry(offset);
+    if (e == null) {
+      throw new IllegalArgumentException("No segment found for " + offset);
+    }
+    return e.getValue();
+  }
+
+  private DataSegment activeSegment() throws IOException {
+    var segment = active;
+    if (segment == null) {
+      synchronized (this) {
+        if ((segment = active) == null) {
+          var end = committed();
+          var last = segments.lastEntry();
+          if (last == null) {
+            segment = DataSegment.create(directory, end);
+            segments.put(segment.base(), segment);
+            ordinalSegments.put(nextOrdinal, segment);
+          } else {
+            segment = last.getValue();
+          }
+          active = segment;
+        }
+      }
+    }
+    return segment;
+  }
+
+  /**
+   * Checkpoints the indices marking them with the end of the records they cover, then records the end
+   * in the index directory: the indices not loaded are not modified, so all the indices cover the records
+   * up to it. Called while holding the monitor, so no record is indexed concurrently.
+   */
+  private void checkpointIndices(long end) throws IOException {
+    for (var index : indices.values()) {
+      index.checkpoint(end);
+    }
+    var file = directory.resolve("index").resolve(INDEX_CHECKPOINT);
+    var temp = file.resolveSibling(INDEX_CHECKPOINT + ".tmp");
+    try (var ch = FileChannel.open(temp, CREATE, WRITE, TRUNCATE_EXISTING)) {
+      var buffer = ByteBuffer.wrap(Long.toString(end).getBytes(StandardCharsets.US_ASCII));
+      while (buffer.hasRemaining()) {
+        ch.write(buffer);
+      }
+      ch.force(true);
+    }
+    Files.move(temp, file, ATOMIC_MOVE);
+  }
+
+  // an unreadable checkpoint file makes the indices repaired from the first record
+  private long indexCheckpoint() {
+    try {
+      return Long.parseLong(Files.readString(directory.resolve("index").resolve(INDEX_CHECKPOINT)).trim());
+    } catch (IOException | NumberFormatException e) {
+      return 0L;
+    }
+  }
+
+  /**
+   * Adds the records written after the last index checkpoint to the indices after a crash: an index is restored
+   * to its last checkpoint, so it lacks the records from its mark. A hash or B+tree index has no consistent
+   * state to be restored to, as its pages are updated in place, so it is rebuilt from the first record.
+   * The filters are dropped as they are forced on close only, they are filled again from the repaired indices.
+   * Called while loading the segments.
+   *
+   * @param recovered End of the recovered records
+   * @param end       End of the records the indices are checkpointed with
+   */
+  private void repairIndices(long recovered, long end) throws IOException {
+    filters.values().forEach(LongBloomFilter::close);
+    filters.clear();
+    try (var ds = Files.newDirectoryStream(directory.resolve("index"), "*.bloom")) {
+      for (var file : ds) {
+        Files.delete(file);
+      }
+    }
+    var maps = new HashMap<Long, LongLongDiskMap>(indices);
+    var rebuilt = new HashSet<Long>();
+    try (var ds = Files.newDirectoryStream(directory.resolve("index"), "*.{btree,hash}")) {
+      for (var file : ds) {
+        var name = file.getFileName().toString();
+        var key = Id.decode(name.substring(0, name.indexOf('.')));
+        var engine = name.endsWith(".hash") ? IndexEngine.HASH : IndexEngine.BTREE;
+        var map = maps.remove(key);
+        if (map != null) {
+          indices.remove(key);
+          map.close();
+        }
+        Files.delete(file);
+        maps.put(key, openIndex(file, engine));
+        rebuilt.add(key);
+      }
+    }
+    var entries = new long[1];
+    BiConsumer<DataResponse, Object> consumer = (rs, _) -> {
+      for (var index : rs.indices()) {
+        if (!maps.containsKey(index.key())) {
+          maps.put(index.key(), openRepairedIndex(index.key(), rebuilt));
+        }
+        var map = maps.get(index.key());
+        if (map != null && (rebuilt.contains(index.key()) || map.mark() >= 0L && rs.offset() >= map.mark())) {
+          put(map, index, rs.offset());
+          entries[0]++;
+        }
+      }
+    };
+    var first = segments.firstKey();
+    var from = rebuilt.isEmpty() ? Math.max(indexCheckpoint(), first) : first;
+    for (var offset = from; offset < recovered; ) {
+      offset = readData(offset, QUERY_BATCH_SIZE, recovered, consumer::accept, consumer::accept);
+    }
+    maps.forEach((key, map) -> {
+      if (map != null) {
+        openFilter(key, map);
+        indices.put(key, map);
+      }
     });
+    checkpointIndices(end);
+    var repaired = entries[0];
+    logger.log(WARNING, () -> "Repaired the indices of " + this + " from " + from + " with " + repaired + " entries");
+  }
+
+  // an index of an unsupported version or without a valid checkpoint is skipped, it is rebuilt when loaded,
+  // a missing index is created and gets all the repaired records
+  private LongLongDiskMap openRepairedIndex(long key, Set<Long> rebuilt) {
+    try {
+      for (var engine : IndexEngine.values()) {
+        var file = indexFile(key, engine);
+        if (Files.exists(file)) {
+          try {
+            return openIndex(file, engine);
+          } catch (IllegalStateException e) {
+            logger.log(WARNING, () -> "Skipped the repair of " + file, e);
+            return null;
+          }
+        }
+      }
+      var engine = settings().indexEngine();
+      rebuilt.add(key);
+      return openIndex(indexFile(key, engine), engine);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private LongLongDiskMap getIndex(long key) {
+    var map = indices.get(key);
+    if (map == null) {
+      for (var engine : IndexEngine.values()) {
+        var file = indexFile(key, engine);
+        if (Files.exists(file)) {
+          try {
+            map = openIndex(file, engine);
+          } catch (IllegalStateException e) {
+            logger.log(WARNING, () -> "Rebuilding " + file, e);
+            map = rebuildIndex(key, file, engine);
+          }
+          openFilter(key, map);
+          indices.put(key, map);
+          break;
+        }
+      }
+    }
+    return map;
+  }
+
+  /**
+   * Rebuilds an index of an unsupported version or without a valid checkpoint from the records.
+   * The filter of the index is dropped as well, so it is filled from the rebuilt index.
+   * Called while holding the monitor, so no record is indexed concurrently.
+   */
+  private LongLongDiskMap rebuildIndex(long key, Path file, IndexEngine engine) {
+    try {
+      Files.delete(file);
+      Files.deleteIfExists(filterFile(key));
+      var map = openIndex(file, engine);
+      BiConsumer<DataResponse, Object> consumer = (rs, _) -> {
+        for (var index : rs.indices()) {
+          if (index.key() == key) {
+            put(map, index, rs.offset());
+          }
+        }
+      };
+      var end = committed();
+      for (var offset = 0L; offset < end; ) {
+        offset = readData(offset, QUERY_BATCH_SIZE, end, consumer::accept, consumer::accept);
+      }
+      map.checkpoint(end);
+      return map;
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  // an existing index keeps its engine, the new ones are created with the engine of the topic settings
+  private LongLongDiskMap getOrCreateIndex(long key) throws IOException {
+    var map = getIndex(key);
+    if (map == null) {
+      var engine = settings().indexEngine();
+      map = openIndex(indexFile(key, engine), engine);
+      openFilter(key, map);
+      indices.put(key, map);
+    }
+    return map;
+  }
+
+  // the filter is registered before the index, so the lock-free readers finding the index find the filter as well,
+  // the filter file is deleted while the filters are disabled, as it would miss the keys indexed meanwhile
+  private void openFilter(long key, LongLongDiskMap map) {
+    var file = filterFile(key);
+    if (filterRate <= 0f) {
+      try {
+        Files.deleteIfExists(file);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+      return;
+    }
+    var filter = new LongBloomFilter(file, filterRate);
+    if (filter.isReset()) {
+      map.forEach(Long.MIN_VALUE, Long.MAX_VALUE, false, (k, _) -> {
+        filter.add(k);
+        return true;
+      });
+    }
+    filters.put(key, filter);
+  }
+
+  private Path filterFile(long key) {
+    return directory.resolve("index").resolve(Id.encode(key) + ".bloom");
+  }
+
+  LongBloomFilter filter(long index) {
+    return filters.get(index);
+  }
+
+  LongLongDiskMap index(long index) {
+    return indices.get(index);
+  }
+
+  private Path indexFile(long key, IndexEngine engine) {
+    var name = Id.encode(key);
+    return directory.resolve("index").resolve(switch (engine) {
+      case AVL -> name;
+      case BTREE -> name + ".btree";
+      case HASH -> name + ".hash";
+    });
+  }
+
+  private static LongLongDiskMap openIndex(Path file, IndexEngine engine) {
+    return switch (engine) {
+      case AVL -> new LongLongAVLDiskMap(file, 1 << 20, 64, true, false, 4);
+      case BTREE -> new LongLongBTreeDiskMap(file, 1 << 12, 1 << 20, 64);
+      case HASH -> new LongLongHashDiskMap(file, 1 << 20, 64);
+    };
   }
 
   public void close(System.Logger logger) {
-    try (var _ = dataChannel; var cc = new CompositeCloseable(logger)) {
-      indices.forEach((k, v) -> cc.add(Id.encode(k), v));
-      indices.clear();
+    try {
+      var segment = active;
+      if (segment != null) {
+        segment.force();
+        segment.ordinals().force();
+      }
+      if (committed >= 0L && exists()) {
+        synchronized (this) {
+          checkpointIndices(committed);
+        }
+      }
+      closeAll(logger);
+      if (deflater != null) {
+        deflater.end();
+        deflater = null;
+      }
+      inflaters.forEach(Inflater::end);
+      inflaters.clear();
+      if (committed >= 0L && exists()) {
+        Files.createFile(directory.resolve(CLEAN_MARKER));
+      }
     } catch (Throwable e) {
       logger.log(ERROR, "Unable to close", e);
     }
   }
 
+  private void closeAll(System.Logger logger) {
+    try (var cc = new CompositeCloseable(logger)) {
+      indices.forEach((k, v) -> cc.add(Id.encode(k), v));
+      indices.clear();
+      filters.forEach((k, v) -> cc.add(Id.encode(k) + ".bloom", v));
+      filters.clear();
+      segments.forEach((k, v) -> cc.add(v.toString(), v));
+      segments.clear();
+      ordinalSegments.clear();
+    }
+  }
+
   @Override
   public String toString() {
     return directory.getFileName().toString();
   }
+
+  // an index without resumable scans is scanned in a single pass collecting all the offsets,
+  // as each resumed pass would scan the whole index again
+  private final class IndexScan implements LongLongPredicate {
+
+    private final long end;
+    private final boolean collect;
+    private long[] batch = new long[QUERY_BATCH_SIZE];
+    private int limit;
+    private int size;
+    private long lastKey;
+    private long lastKeyCount;
+    private long skip;
+    private boolean found;
+
+    private IndexScan(long end, int limit, boolean collect) {
+      this.end = end;
+      this.limit = limit;
+      this.collect = collect;
+    }
+
+    // collects the next batch resuming after the values of the last key already visited
+    private boolean next(LongLongDiskMap map, long from, long to, boolean descending) {
+      skip = lastKeyCount;
+      if (lastKeyCount == 0L) {
+        return map.forEach(from, to, descending, this);
+      } else if (descending) {
+        return map.forEach(from, lastKey, true, this);
+      } else {
+        return map.forEach(lastKey, to, false, this);
+      }
+    }
+
+    @Override
+    public boolean test(long key, long offset) {
+      found = true;
+      if (offset >= end || gaps && skipGap(offset) != offset) {
+        return true;
+      }
+      if (lastKeyCount > 0L && key == lastKey) {
+        if (skip > 0L) {
+          skip--;
+          return true;
+        }
+        lastKeyCount++;
+      } else {
+        lastKey = key;
+        lastKeyCount = 1L;
+      }
+      if (size == batch.length) {
+        batch = Arrays.copyOf(batch, size * 2);
+      }
+      batch[size++] = offset;
+      return --limit > 0 && (collect || size < batch.length);
+    }
+  }
+
+  private record BlockHeader(int count, long size) {}
+
+  private static final class Append {
+
+    private final ByteBuffer payload;
+    private final IndexValue[] indices;
+    private DataSegment segment;
+    private long offset;
+    private long end;
+    private Throwable error;
+    private volatile boolean done;
+
+    private Append(ByteBuffer payload, IndexValue[] indices) {
+      this.payload = payload;
+      this.indices = indices;
+    }
+
+    // index count (1 byte), index values (17 bytes each) and payload size (4 bytes)
+    private int headerSize() {
+      return 1 + indices.length * (2 * Long.BYTES + 1) + Integer.BYTES;
+    }
+
+    private long rawSize() {
+      return headerSize() + (long) payload.remaining();
+    }
+
+    private void complete(DataSegment segment, long offset, long end) {
+      this.segment = segment;
+      this.offset = offset;
+      this.end = end;
+      done = true;
+    }
+
+    private void fail(Throwable error) {
+      this.error = error;
+      done = true;
+    }
+  }
 }
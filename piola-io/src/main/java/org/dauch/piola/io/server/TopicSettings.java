@@ -0,0 +1,67 @@
+package org.dauch.piola.io.server;
+
+/*-
+ * #%L
+ * piola-server
+ * %%
+ * Copyright (C) 2024 dauch
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import org.dauch.piola.io.annotation.Conf;
+import org.dauch.piola.io.annotation.Default;
+import org.dauch.piola.io.api.conf.TopicSettingsIO;
+import org.dauch.piola.io.api.topic.Compression;
+import org.dauch.piola.io.api.topic.Durability;
+import org.dauch.piola.io.api.topic.IndexEngine;
+
+import java.util.Properties;
+
+@Conf
+public record TopicSettings(
+  @Default("NONE") Durability durability,
+  @Default("NONE") Compression compression,
+  @Default("0L") long retentionBytes,
+  @Default("0L") long retentionMillis,
+  @Default("AVL") IndexEngine indexEngine
+) {
+
+  public TopicSettings(Durability durability, Compression compression, long retentionBytes, long retentionMillis) {
+    this(durability, compression, retentionBytes, retentionMillis, IndexEngine.AVL);
+  }
+
+  /**
+   * Returns true if the old records of the topic are dropped.
+   */
+  public boolean hasRetention() {
+    return retentionBytes > 0L || retentionMillis > 0L;
+  }
+
+  public static TopicSettings fromProperties(Properties properties) {
+    return TopicSettingsIO.get("topic", properties);
+  }
+
+  public Properties toProperties() {
+    var properties = new Properties();
+    properties.setProperty("topic.durability", durability.name());
+    properties.setProperty("topic.compression", compression.name());
+    properties.setProperty("topic.retentionBytes", Long.toString(retentionBytes));
+    properties.setProperty("topic.retentionMillis", Long.toString(retentionMillis));
+    properties.setProperty("topic.indexEngine", indexEngine.name());
+    return properties;
+  }
+}
@@ -0,0 +1,88 @@
+package org.dauch.piola.io.server;
+
+/*-
+ * #%L
+ * piola-server
+ * %%
+ * Copyright (C) 2024 dauch
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import org.dauch.piola.io.api.SerializationContext;
+import org.dauch.piola.io.api.request.Request;
+import org.junit.jupiter.api.Test;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AbstractServerTest {
+
+  @Test
+  void consumeOwnStreamOnly() {
+    // given
+    var a1 = new TestRequest(1L, 0);
+    var b1 = new TestRequest(2L, 1);
+    var a2 = new TestRequest(3L, 0);
+    var b2 = new TestRequest(4L, 1);
+    var requests = new TestRequest[] {a1, null, b1, a2, b2};
+    var processed = new ArrayList<TestRequest>();
+    var released = new ArrayList<ByteBuffer>();
+    // when
+    AbstractServer.consume(0, 0, requests.length, requests, r -> processed.add(r) && r == a1, released::add);
+    // then
+    assertEquals(List.of(a1), processed);
+    assertEquals(List.of(a2.buffer(), a1.buffer()), released);
+    assertArrayEquals(new TestRequest[] {null, null, b1, null, b2}, requests);
+    // when
+    AbstractServer.consume(1, 2, requests.length, requests, r -> !processed.add(r), released::add);
+    // then
+    assertEquals(List.of(a1, b1, b2), processed);
+    assertEquals(List.of(a2.buffer(), a1.buffer(), b1.buffer(), b2.buffer()), released);
+    assertArrayEquals(new TestRequest[requests.length], requests);
+  }
+
+  private record TestRequest(long id, int stream, ByteBuffer buffer) implements ServerRequest {
+
+    private TestRequest(long id, int stream) {
+      this(id, stream, ByteBuffer.allocate(1));
+    }
+
+    @Override
+    public InetSocketAddress address() {
+      return null;
+    }
+
+    @Override
+    public Request<?> request() {
+      return null;
+    }
+
+    @Override
+    public SerializationContext context() {
+      return null;
+    }
+
+    @Override
+    public int protocolId() {
+      return 0;
+    }
+  }
+}
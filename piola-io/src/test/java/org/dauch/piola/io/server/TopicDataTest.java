@@ -0,0 +1,667 @@
+package org.dauch.piola.io.server;
+
+/*-
+ * #%L
+ * piola-server
+ * %%
+ * Copyright (C) 2024 dauch
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import org.dauch.piola.collections.map.LongLongAVLDiskMap;
+import org.dauch.piola.io.api.Serialization;
+import org.dauch.piola.io.api.index.IndexType;
+import org.dauch.piola.io.api.index.IndexValue;
+import org.dauch.piola.io.api.topic.Compression;
+import org.dauch.piola.io.api.topic.Durability;
+import org.dauch.piola.io.api.topic.IndexEngine;
+import org.dauch.piola.util.Id;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.stream.LongStream;
+
+import static java.nio.file.StandardOpenOption.WRITE;
+import static org.junit.jupiter.api.Assertions.*;
+
+class TopicDataTest {
+
+  private static final System.Logger LOGGER = System.getLogger("TopicDataTest");
+
+  @TempDir
+  private Path dir;
+
+  @Test
+  void reopen() throws Exception {
+    // given
+    var offsets = new long[5];
+    var data = new TopicData(LOGGER, dir, 64L);
+    data.create(new TopicSettings(Durability.NONE, Compression.NONE, 0L, 0L));
+    for (int i = 0; i < offsets.length; i++) {
+      offsets[i] = write(data, i);
+    }
+    var end = data.offsetOf(offsets.length);
+    data.close(LOGGER);
+    // when
+    var reopened = new TopicData(LOGGER, dir, 64L);
+    // then
+    try {
+      assertArrayEquals(offsets, read(reopened, 0L));
+      assertEquals(offsets[3], reopened.offsetOf(3L));
+      assertEquals(end, write(reopened, 5));
+    } finally {
+      reopened.close(LOGGER);
+    }
+  }
+
+  @Test
+  void recoverTornTail() throws Exception {
+    // given
+    var offsets = new long[3];
+    var data = new TopicData(LOGGER, dir, 1L << 20);
+    data.create(new TopicSettings(Durability.NONE, Compression.NONE, 0L, 0L));
+    for (int i = 0; i < offsets.length; i++) {
+      offsets[i] = write(data, i);
+    }
+    data.close(LOGGER);
+    Files.delete(dir.resolve(TopicData.CLEAN_MARKER));
+    try (var ch = FileChannel.open(dir.resolve("%020d.data".formatted(0L)), EnumSet.of(WRITE))) {
+      ch.truncate(ch.size() - 1L);
+    }
+    // when
+    var reopened = new TopicData(LOGGER, dir, 1L << 20);
+    // then
+    try {
+      assertArrayEquals(new long[] {offsets[0], offsets[1]}, read(reopened, 0L));
+      assertArrayEquals(new long[] {offsets[0], offsets[1]}, query(reopened));
+      var offset = write(reopened, 3);
+      assertEquals(1L << 20, offset);
+      assertArrayEquals(new long[] {offsets[0], offsets[1], offset}, read(reopened, 0L));
+      assertArrayEquals(new long[] {offsets[0], offsets[1], offset}, query(reopened));
+      assertEquals(offset, reopened.offsetOf(2L));
+    } finally {
+      reopened.close(LOGGER);
+    }
+  }
+
+  @Test
+  void repairIndices() throws Exception {
+    // given
+    var offsets = new long[101];
+    var data = new TopicData(LOGGER, dir, 1L << 10);
+    data.create(new TopicSettings(Durability.NONE, Compression.NONE, 0L, 0L));
+    for (int i = 0; i < 100; i++) {
+      offsets[i] = write(data, i);
+    }
+    // when
+    // the data is not closed, so the indices are restored to the checkpoints of the segment rolls
+    var reopened = new TopicData(LOGGER, dir, 1L << 10);
+    var again = (TopicData) null;
+    // then
+    try {
+      assertArrayEquals(Arrays.copyOf(offsets, 100), read(reopened, 0L));
+      assertArrayEquals(Arrays.copyOf(offsets, 100), query(reopened));
+      offsets[100] = write(reopened, 100);
+      assertArrayEquals(offsets, query(reopened));
+      again = new TopicData(LOGGER, dir, 1L << 10);
+      assertArrayEquals(offsets, query(again));
+      assertArrayEquals(new long[] {offsets[100]}, query(again, 100L));
+    } finally {
+      if (again != null) {
+        again.close(LOGGER);
+      }
+      reopened.close(LOGGER);
+      data.close(LOGGER);
+    }
+  }
+
+  @Test
+  void rebuildHashIndexAfterCrash() throws Exception {
+    // given
+    var offsets = new long[100];
+    var data = new TopicData(LOGGER, dir, 1L << 10);
+    data.create(new TopicSettings(Durability.NONE, Compression.NONE, 0L, 0L, IndexEngine.HASH));
+    for (int i = 0; i < offsets.length; i++) {
+      offsets[i] = write(data, i);
+    }
+    data.close(LOGGER);
+    // the table pages are updated in place, a crash may leave any of them unwritten
+    Files.delete(dir.resolve(TopicData.CLEAN_MARKER));
+    try (var ch = FileChannel.open(dir.resolve("index").resolve("i.hash"), EnumSet.of(WRITE))) {
+      ch.truncate(0L);
+    }
+    // when
+    var reopened = new TopicData(LOGGER, dir, 1L << 10);
+    // then
+    try {
+      assertArrayEquals(offsets, query(reopened));
+      assertArrayEquals(new long[] {offsets[42]}, query(reopened, 42L));
+    } finally {
+      reopened.close(LOGGER);
+    }
+  }
+
+  @Test
+  void recoverCorruptedRecord() throws Exception {
+    // given
+    var offsets = new long[3];
+    var data = new TopicData(LOGGER, dir, 1L << 20);
+    data.create(new TopicSettings(Durability.NONE, Compression.NONE, 0L, 0L));
+    for (int i = 0; i < offsets.length; i++) {
+      offsets[i] = write(data, i);
+    }
+    data.close(LOGGER);
+    Files.delete(dir.resolve(TopicData.CLEAN_MARKER));
+    try (var ch = FileChannel.open(dir.resolve("%020d.data".formatted(0L)), EnumSet.of(WRITE))) {
+      // a payload byte of the second record: checksum (4), index values (1 + 17), size (4), payload (4)
+      ch.write(ByteBuffer.wrap(new byte[] {127}), offsets[1] + 28L);
+    }
+    // when
+    var reopened = new TopicData(LOGGER, dir, 1L << 20);
+    // then
+    try {
+      assertArrayEquals(new long[] {offsets[0]}, read(reopened, 0L));
+      assertArrayEquals(new long[] {offsets[0]}, query(reopened));
+    } finally {
+      reopened.close(LOGGER);
+    }
+  }
+
+  @Test
+  void convertLegacyData() throws Exception {
+    // given
+    var legacy = ByteBuffer.allocate(1024);
+    for (int i = 0; i < 3; i++) {
+      Serialization.write(legacy, new IndexValue[] {new IndexValue("i", i, IndexType.ASC)});
+      legacy.putInt(4).put(new byte[] {(byte) i, 1, 2, 3});
+    }
+    // a torn tail
+    legacy.put((byte) 1);
+    Files.createDirectories(dir.resolve("index"));
+    Files.write(dir.resolve(TopicData.LEGACY_DATA), Arrays.copyOf(legacy.array(), legacy.position()));
+    Files.write(dir.resolve("index").resolve("i"), new byte[] {1, 2, 3});
+    // when
+    var data = new TopicData(LOGGER, dir, 1L << 20);
+    // then
+    try {
+      // checksum (4), index values (1 + 17), size (4), payload (4)
+      var offsets = new long[] {0L, 30L, 60L};
+      assertArrayEquals(offsets, read(data, 0L));
+      assertArrayEquals(offsets, query(data));
+      assertEquals(offsets[2], data.offsetOf(2L));
+      assertFalse(Files.exists(dir.resolve(TopicData.LEGACY_DATA)));
+    } finally {
+      data.close(LOGGER);
+    }
+  }
+
+  @Test
+  void fenceFailedWrite() throws Exception {
+    // given
+    var data = new TopicData(LOGGER, dir, 1L << 20);
+    data.create(new TopicSettings(Durability.NONE, Compression.NONE, 0L, 0L));
+    var first = write(data, 0);
+    // the index of the key j can't be created, so the record is written but can't be indexed
+    Files.createDirectories(dir.resolve("index").resolve("j"));
+    var failed = new IndexValue[] {new IndexValue("j", 1L, IndexType.ASC)};
+    // when
+    assertThrows(RuntimeException.class, () -> data.writeData(ByteBuffer.wrap(new byte[] {1, 1, 2, 3}), failed, null));
+    var second = write(data, 2);
+    // then
+    try {
+      assertTrue(second > first);
+      assertArrayEquals(new long[] {first, second}, read(data, 0L));
+      assertArrayEquals(new long[] {first, second}, query(data));
+      assertEquals(second, data.offsetOf(1L));
+    } finally {
+      data.close(LOGGER);
+    }
+    var reopened = new TopicData(LOGGER, dir, 1L << 20);
+    try {
+      assertArrayEquals(new long[] {first, second}, read(reopened, 0L));
+      assertArrayEquals(new long[] {first, second}, query(reopened));
+      assertEquals(second, reopened.offsetOf(1L));
+    } finally {
+      reopened.close(LOGGER);
+    }
+  }
+
+  @Test
+  void forceFencedSegment() throws Exception {
+    // given
+    var data = new TopicData(LOGGER, dir, 1L << 20);
+    data.create(new TopicSettings(Durability.NONE, Compression.NONE, 0L, 0L));
+    var first = write(data, 0);
+    Files.createDirectories(dir.resolve("index").resolve("j"));
+    var failed = new IndexValue[] {new IndexValue("j", 1L, IndexType.ASC)};
+    assertThrows(RuntimeException.class, () -> data.writeData(ByteBuffer.wrap(new byte[] {1, 1, 2, 3}), failed, null));
+    // when
+    var indices = new IndexValue[] {new IndexValue("i", 2L, IndexType.ASC)};
+    var second = data.writeData(ByteBuffer.wrap(new byte[] {2, 1, 2, 3}), indices, Durability.BATCH);
+    // then
+    try {
+      assertNotSame(data.segment(first), data.segment(second));
+      assertFalse(data.segment(first).isDirty());
+      assertFalse(data.segment(second).isDirty());
+    } finally {
+      data.close(LOGGER);
+    }
+  }
+
+  @Test
+  void rebuildUnsupportedIndex() throws Exception {
+    // given
+    var offsets = new long[100];
+    var data = new TopicData(LOGGER, dir, 1L << 10);
+    data.create(new TopicSettings(Durability.NONE, Compression.NONE, 0L, 0L));
+    for (int i = 0; i < offsets.length; i++) {
+      offsets[i] = write(data, i % 10);
+    }
+    data.close(LOGGER);
+    try (var ch = FileChannel.open(dir.resolve("index").resolve("i"), EnumSet.of(WRITE))) {
+      // the version of the index files written before the value blocks
+      ch.write(ByteBuffer.allocate(Long.BYTES).order(ByteOrder.nativeOrder()).putLong(0, 1L), 0L);
+    }
+    // when
+    var reopened = new TopicData(LOGGER, dir, 1L << 10);
+    // then
+    try {
+      var expected = new ArrayList<Long>();
+      for (int v = 0; v < 10; v++) {
+        for (int i = v; i < offsets.length; i += 10) {
+          expected.add(offsets[i]);
+        }
+      }
+      assertArrayEquals(expected.stream().mapToLong(Long::longValue).toArray(), query(reopened));
+      assertArrayEquals(new long[] {offsets[3], offsets[13], offsets[23], offsets[33], offsets[43], offsets[53],
+        offsets[63], offsets[73], offsets[83], offsets[93]}, query(reopened, 3L));
+    } finally {
+      reopened.close(LOGGER);
+    }
+  }
+
+  @Test
+  void compressedBlocks() throws Exception {
+    // given
+    var offsets = new long[200];
+    var data = new TopicData(LOGGER, dir, 1L << 20);
+    data.create(new TopicSettings(Durability.NONE, Compression.DEFLATE, 0L, 0L));
+    try (var executor = Executors.newFixedThreadPool(8)) {
+      for (int i = 0; i < offsets.length; i++) {
+        var n = i;
+        executor.submit(() -> offsets[n] = write(data, n % 100));
+      }
+    }
+    Arrays.sort(offsets);
+    // when
+    var read = read(data, 0L);
+    var ordinal = data.offsetOf(150L);
+    data.close(LOGGER);
+    Files.delete(dir.resolve(TopicData.CLEAN_MARKER));
+    var reopened = new TopicData(LOGGER, dir, 1L << 20);
+    // then
+    try {
+      assertArrayEquals(offsets, read);
+      assertEquals(offsets[150], ordinal);
+      assertArrayEquals(offsets, read(reopened, 0L));
+      assertArrayEquals(Arrays.copyOfRange(offsets, 150, 200), read(reopened, offsets[150]));
+      assertEquals(offsets[150], reopened.offsetOf(150L));
+      assertEquals(offsets.length, query(reopened).length);
+      var requested = new long[] {offsets[199], offsets[3], offsets[150], offsets[3], offsets[0]};
+      var records = new ArrayList<Long>();
+      reopened.readRecords(requested, (rs, region) -> fail(), (rs, payload) -> {
+        assertEquals(rs.indices()[0].value(), payload.get(payload.position()));
+        records.add(rs.offset());
+      });
+      assertArrayEquals(requested, records.stream().mapToLong(Long::longValue).toArray());
+    } finally {
+      reopened.close(LOGGER);
+    }
+  }
+
+  @Test
+  void retainBytes() throws Exception {
+    // given
+    var offsets = new long[10];
+    var data = new TopicData(LOGGER, dir, 64L);
+    data.create(new TopicSettings(Durability.NONE, Compression.NONE, 100L, 0L));
+    for (int i = 0; i < offsets.length; i++) {
+      offsets[i] = write(data, i);
+    }
+    var due = data.isRetentionDue(System.currentTimeMillis());
+    // when
+    var dropped = data.applyRetention(System.currentTimeMillis());
+    // then
+    var retained = read(data, 0L);
+    var first = offsets.length - retained.length;
+    try {
+      assertTrue(due);
+      assertFalse(data.isRetentionDue(System.currentTimeMillis()));
+      assertTrue(dropped > 0);
+      assertTrue(first > 0);
+      assertArrayEquals(Arrays.copyOfRange(offsets, first, offsets.length), retained);
+      assertArrayEquals(retained, query(data));
+      assertEquals(retained[0], data.offsetOf(0L));
+      assertEquals(offsets[first + 1], data.offsetOf(first + 1));
+    } finally {
+      data.close(LOGGER);
+    }
+    var reopened = new TopicData(LOGGER, dir, 64L);
+    try {
+      // a topic not loaded yet is not loaded by the check
+      assertFalse(reopened.isRetentionDue(System.currentTimeMillis()));
+      assertTrue(Files.exists(dir.resolve(TopicData.CLEAN_MARKER)));
+      assertArrayEquals(retained, read(reopened, 0L));
+      assertEquals(offsets[first + 1], reopened.offsetOf(first + 1));
+      assertEquals(0, reopened.applyRetention(System.currentTimeMillis()));
+    } finally {
+      reopened.close(LOGGER);
+    }
+  }
+
+  @Test
+  void pruneIndices() throws Exception {
+    for (var engine : IndexEngine.values()) {
+      // given
+      var offsets = new long[10];
+      var data = new TopicData(LOGGER, dir.resolve(engine.name()), 64L);
+      data.create(new TopicSettings(Durability.NONE, Compression.NONE, 100L, 0L, engine));
+      for (int i = 0; i < offsets.length; i++) {
+        offsets[i] = write(data, i);
+      }
+      // when
+      data.applyRetention(System.currentTimeMillis());
+      // then
+      try {
+        var retained = read(data, 0L);
+        assertTrue(retained.length < offsets.length);
+        var indexed = new ArrayList<Long>();
+        data.index(Id.decode("i")).forEach(Long.MIN_VALUE, Long.MAX_VALUE, false, (_, v) -> indexed.add(v));
+        assertEquals(Arrays.stream(retained).boxed().toList(), indexed.stream().sorted().toList(), engine.name());
+        assertArrayEquals(retained, query(data));
+        var offset = write(data, 10);
+        assertArrayEquals(new long[] {offset}, query(data, 10L));
+      } finally {
+        data.close(LOGGER);
+      }
+    }
+  }
+
+  @Test
+  void retainAge() throws Exception {
+    // given
+    var offsets = new long[10];
+    var data = new TopicData(LOGGER, dir, 64L);
+    data.create(new TopicSettings(Durability.NONE, Compression.NONE, 0L, 60_000L));
+    for (int i = 0; i < offsets.length; i++) {
+      offsets[i] = write(data, i);
+    }
+    // when
+    var kept = data.applyRetention(System.currentTimeMillis());
+    var dropped = data.applyRetention(System.currentTimeMillis() + 120_000L);
+    // then
+    try {
+      assertEquals(0, kept);
+      assertTrue(dropped > 0);
+      var retained = read(data, 0L);
+      assertEquals(offsets[offsets.length - 1], retained[retained.length - 1]);
+      assertTrue(retained.length < offsets.length);
+    } finally {
+      data.close(LOGGER);
+    }
+  }
+
+  @Test
+  void compactIndices() throws Exception {
+    // given
+    var offsets = new long[1000];
+    var data = new TopicData(LOGGER, dir, 1L << 10);
+    data.create(new TopicSettings(Durability.NONE, Compression.NONE, 0L, 0L));
+    for (int i = 0; i < offsets.length; i++) {
+      // each checkpoint of the segment rolls makes the following insertions replace the path from the root
+      offsets[i] = write(data, i);
+    }
+    var index = (LongLongAVLDiskMap) data.index(Id.decode("i"));
+    var live = index.usedBytes() - index.garbageBytes();
+    assertTrue(data.isCompactionDue());
+    // when
+    var compacted = data.compactIndices();
+    // then
+    try {
+      assertEquals(1, compacted);
+      assertFalse(data.isCompactionDue());
+      var replaced = (LongLongAVLDiskMap) data.index(Id.decode("i"));
+      assertNotSame(index, replaced);
+      assertTrue(replaced.usedBytes() <= live);
+      assertFalse(Files.exists(dir.resolve("index").resolve("i.tmp")));
+      assertArrayEquals(offsets, query(data));
+      assertArrayEquals(new long[] {offsets[42]}, query(data, 42L));
+      var offset = write(data, 1000);
+      assertArrayEquals(new long[] {offset}, query(data, 1000L));
+    } finally {
+      data.close(LOGGER);
+    }
+    var reopened = new TopicData(LOGGER, dir, 1L << 10);
+    try {
+      assertArrayEquals(offsets, query(reopened));
+      assertEquals(1, query(reopened, 1000L).length);
+    } finally {
+      reopened.close(LOGGER);
+    }
+  }
+
+  @Test
+  void btreeIndex() throws Exception {
+    // given
+    var offsets = new long[100];
+    var data = new TopicData(LOGGER, dir, 1L << 20);
+    data.create(new TopicSettings(Durability.NONE, Compression.NONE, 0L, 0L, IndexEngine.BTREE));
+    for (int i = 0; i < offsets.length; i++) {
+      offsets[i] = write(data, i);
+    }
+    data.close(LOGGER);
+    // when
+    var reopened = new TopicData(LOGGER, dir, 1L << 20);
+    // then
+    try {
+      assertTrue(Files.exists(dir.resolve("index").resolve(Id.encode(Id.decode("i")) + ".btree")));
+      assertArrayEquals(offsets, query(reopened));
+      var offset = write(reopened, 100);
+      var queried = query(reopened);
+      assertEquals(offsets.length + 1, queried.length);
+      assertEquals(offset, queried[offsets.length]);
+    } finally {
+      reopened.close(LOGGER);
+    }
+  }
+
+  @Test
+  void rebuildBTreeIndexAfterCrash() throws Exception {
+    // given
+    var offsets = new long[100];
+    var data = new TopicData(LOGGER, dir, 1L << 10);
+    data.create(new TopicSettings(Durability.NONE, Compression.NONE, 0L, 0L, IndexEngine.BTREE));
+    for (int i = 0; i < offsets.length; i++) {
+      offsets[i] = write(data, i);
+    }
+    data.close(LOGGER);
+    Files.delete(dir.resolve(TopicData.CLEAN_MARKER));
+    try (var ch = FileChannel.open(dir.resolve("index").resolve("i.btree"), EnumSet.of(WRITE))) {
+      ch.truncate(0L);
+    }
+    // when
+    var reopened = new TopicData(LOGGER, dir, 1L << 10);
+    // then
+    try {
+      assertArrayEquals(offsets, query(reopened));
+    } finally {
+      reopened.close(LOGGER);
+    }
+  }
+
+  @Test
+  void hashIndex() throws Exception {
+    // given
+    var offsets = new long[1500];
+    var data = new TopicData(LOGGER, dir, 1L << 20);
+    data.create(new TopicSettings(Durability.NONE, Compression.NONE, 0L, 0L, IndexEngine.HASH));
+    for (int i = 0; i < offsets.length; i++) {
+      offsets[i] = write(data, i);
+    }
+    data.close(LOGGER);
+    // when
+    var reopened = new TopicData(LOGGER, dir, 1L << 20);
+    // then
+    try {
+      assertTrue(Files.exists(dir.resolve("index").resolve(Id.encode(Id.decode("i")) + ".hash")));
+      assertArrayEquals(Arrays.copyOf(offsets, 1000), query(reopened));
+      for (int i = 0; i < offsets.length; i++) {
+        assertArrayEquals(new long[] {offsets[i]}, query(reopened, i));
+      }
+      var batches = new ArrayList<long[]>();
+      reopened.queryIndex(Id.decode("i"), 0L, Long.MAX_VALUE, Integer.MAX_VALUE, true, batches::add);
+      assertEquals(List.of(TopicData.QUERY_BATCH_SIZE, offsets.length - TopicData.QUERY_BATCH_SIZE),
+        batches.stream().map(b -> b.length).toList());
+      var descending = batches.stream().flatMapToLong(LongStream::of).toArray();
+      for (int i = 0; i < offsets.length; i++) {
+        assertEquals(offsets[offsets.length - 1 - i], descending[i]);
+      }
+    } finally {
+      reopened.close(LOGGER);
+    }
+  }
+
+  @Test
+  void indexFilter() throws Exception {
+    // given
+    var offsets = new long[100];
+    var data = new TopicData(LOGGER, dir, 1L << 20);
+    data.create(new TopicSettings(Durability.NONE, Compression.NONE, 0L, 0L));
+    for (int i = 0; i < offsets.length; i++) {
+      offsets[i] = write(data, i);
+    }
+    data.close(LOGGER);
+    // when
+    var reopened = new TopicData(LOGGER, dir, 1L << 20);
+    // then
+    try {
+      assertArrayEquals(new long[0], query(reopened, 1000L));
+      var filter = reopened.filter(Id.decode("i"));
+      assertFalse(filter.isReset());
+      assertEquals(BigInteger.ONE, filter.getNegatives());
+      for (int i = 0; i < offsets.length; i++) {
+        assertArrayEquals(new long[] {offsets[i]}, query(reopened, i));
+      }
+      assertEquals(BigInteger.valueOf(offsets.length + 1), filter.getChecks());
+      var offset = write(reopened, 1000);
+      assertArrayEquals(new long[] {offset}, query(reopened, 1000L));
+    } finally {
+      reopened.close(LOGGER);
+    }
+    var unfiltered = new TopicData(LOGGER, dir, 1L << 20, 0f);
+    long unfilteredOffset;
+    try {
+      assertArrayEquals(new long[] {offsets[7]}, query(unfiltered, 7L));
+      assertNull(unfiltered.filter(Id.decode("i")));
+      unfilteredOffset = write(unfiltered, 2000);
+    } finally {
+      unfiltered.close(LOGGER);
+    }
+    // the keys indexed while the filters were disabled are found once they are enabled again
+    var refiltered = new TopicData(LOGGER, dir, 1L << 20);
+    try {
+      assertArrayEquals(new long[] {unfilteredOffset}, query(refiltered, 2000L));
+      assertTrue(refiltered.filter(Id.decode("i")).isReset());
+    } finally {
+      refiltered.close(LOGGER);
+    }
+  }
+
+  @Test
+  void queryWhileWriting() throws Exception {
+    // given
+    var offsets = new long[2000];
+    var data = new TopicData(LOGGER, dir, 1L << 20);
+    data.create(new TopicSettings(Durability.NONE, Compression.NONE, 0L, 0L));
+    try (var executor = Executors.newSingleThreadExecutor()) {
+      // when
+      var writer = executor.submit(() -> {
+        for (int i = 0; i < offsets.length; i++) {
+          offsets[i] = write(data, i);
+        }
+      });
+      // then
+      for (var count = 0; !writer.isDone(); ) {
+        var queried = query(data);
+        assertTrue(queried.length >= count);
+        for (int i = 1; i < queried.length; i++) {
+          assertTrue(queried[i - 1] < queried[i]);
+        }
+        count = queried.length;
+      }
+      writer.get();
+      assertArrayEquals(Arrays.copyOf(offsets, 1000), query(data));
+    } finally {
+      data.close(LOGGER);
+    }
+  }
+
+  private static long write(TopicData data, int i) {
+    var indices = new IndexValue[] {new IndexValue("i", i, IndexType.ASC)};
+    return data.writeData(ByteBuffer.wrap(new byte[] {(byte) i, 1, 2, 3}), indices, null);
+  }
+
+  private static long[] read(TopicData data, long offset) {
+    var offsets = new ArrayList<Long>();
+    data.readData(offset, 1000, (rs, region) -> {
+      assertEquals(4, region.size());
+      offsets.add(rs.offset());
+    }, (rs, payload) -> {
+      assertEquals(4, payload.remaining());
+      assertEquals(rs.indices()[0].value(), payload.get(payload.position()));
+      offsets.add(rs.offset());
+    });
+    return offsets.stream().mapToLong(Long::longValue).toArray();
+  }
+
+  private static long[] query(TopicData data, long value) {
+    var offsets = new ArrayList<Long>();
+    data.queryIndex(Id.decode("i"), value, value, 1000, false, batch -> {
+      for (var o : batch) offsets.add(o);
+    });
+    return offsets.stream().mapToLong(Long::longValue).toArray();
+  }
+
+  private static long[] query(TopicData data) {
+    var offsets = new ArrayList<Long>();
+    data.queryIndex(Id.decode("i"), Long.MIN_VALUE, Long.MAX_VALUE, 1000, false, batch -> {
+      for (var o : batch) offsets.add(o);
+    });
+    return offsets.stream().mapToLong(Long::longValue).toArray();
+  }
+}
@@ -0,0 +1,293 @@
+package org.dauch.piola.collections.bloom;
+
+/*-
+ * #%L
+ * piola-server
+ * %%
+ * Copyright (C) 2024 dauch
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import org.dauch.piola.concurrent.BigIntCounter;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.math.BigInteger;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.EnumSet;
+
+import static java.lang.foreign.ValueLayout.JAVA_LONG;
+import static java.nio.channels.FileChannel.MapMode.READ_WRITE;
+import static java.nio.file.StandardOpenOption.*;
+
+/**
+ * A scalable Bloom filter of long keys mapped to a file. The filter is a sequence of stages:
+ * the keys are added to the last stage, and a new stage of a double capacity is started when it is full.
+ * The false positive rate of the stage {@code i} is {@code rate / 2^(i + 1)}, so the false positive rate
+ * of the filter stays below {@code rate} however many keys are added.
+ * <p>
+ * The file header has a flag set while the filter is open. A filter not closed properly may miss the keys
+ * added before a crash, so it is reset on open as well as a filter created with another rate,
+ * the owner adds the keys again if {@link #isReset()} returns true.
+ * <p>
+ * The filter is modified by a single thread, the readers need no locks.
+ */
+public final class LongBloomFilter implements BloomFilterMXBean, AutoCloseable {
+
+  // common constants
+  static final int HEADER_SIZE = 4096;
+  static final long VERSION = 1;
+  static final long MIN_CAPACITY = 1L << 12;
+
+  // header offsets
+  static final int H_VERSION = 0; // file version
+  static final int H_RATE = H_VERSION + Long.BYTES; // false positive rate (double bits)
+  static final int H_STAGES = H_RATE + Long.BYTES; // number of stages
+  static final int H_OPEN = H_STAGES + Long.BYTES; // 1 while the filter is open
+
+  // stage offsets
+  static final int S_COUNT = 0; // number of keys
+  static final int S_BITS = 64; // bits
+
+  private final FileChannel channel;
+  private final Arena arena = Arena.ofShared();
+  private final MemorySegment header;
+  private final double rate;
+  private final boolean reset;
+  private final BigIntCounter checks = new BigIntCounter();
+  private final BigIntCounter negatives = new BigIntCounter();
+  private final BigIntCounter falsePositives = new BigIntCounter();
+  private volatile Stage[] stages;
+
+  /**
+   * Opens or creates a filter.
+   *
+   * @param file A file to use as storage
+   * @param rate False positive rate in (0, 1)
+   */
+  public LongBloomFilter(Path file, double rate) {
+    if (!(rate > 0d && rate < 1d)) {
+      throw new IllegalArgumentException("rate must be in (0, 1)");
+    }
+    this.rate = rate;
+    try {
+      channel = FileChannel.open(file, EnumSet.of(CREATE, WRITE, READ));
+      try {
+        header = channel.map(READ_WRITE, 0L, HEADER_SIZE, arena);
+        reset = header.get(JAVA_LONG, H_VERSION) != VERSION
+          || header.get(JAVA_LONG, H_RATE) != Double.doubleToLongBits(rate)
+          || header.get(JAVA_LONG, H_OPEN) != 0L;
+        if (reset) {
+          channel.truncate(HEADER_SIZE);
+          header.fill((byte) 0);
+          header.set(JAVA_LONG, H_VERSION, VERSION);
+          header.set(JAVA_LONG, H_RATE, Double.doubleToLongBits(rate));
+          header.set(JAVA_LONG, H_STAGES, 1L);
+        }
+        var stages = new Stage[(int) header.get(JAVA_LONG, H_STAGES)];
+        var offset = (long) HEADER_SIZE;
+        for (int i = 0; i < stages.length; i++) {
+          stages[i] = stage(i, offset);
+          offset += stages[i].size();
+        }
+        this.stages = stages;
+        header.set(JAVA_LONG, H_OPEN, 1L);
+        header.force();
+      } catch (Throwable e) {
+        try (channel; arena) {
+          throw e;
+        }
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * Returns true if the filter was created or reset on open, so the keys added before are lost.
+   *
+   * @return Reset flag
+   */
+  public boolean isReset() {
+    return reset;
+  }
+
+  /**
+   * Returns false if the key was never added, true if it might have been added.
+   *
+   * @param key Key
+   * @return Check result
+   */
+  public boolean mightContain(long key) {
+    checks.increment();
+    if (test(key)) {
+      return true;
+    }
+    negatives.increment();
+    return false;
+  }
+
+  /**
+   * Reports a positive check of a key which was not found.
+   */
+  public void falsePositive() {
+    falsePositives.increment();
+  }
+
+  /**
+   * Adds a key to the filter.
+   *
+   * @param key Key
+   */
+  public void add(long key) {
+    // the stages are filled by the keys not found only, so the duplicates do not start new stages
+    if (test(key)) {
+      return;
+    }
+    var stages = this.stages;
+    var stage = stages[stages.length - 1];
+    var h1 = hash1(key);
+    var h2 = hash2(key);
+    for (int i = 0; i < stage.hashes; i++) {
+      var bit = Math.unsignedMultiplyHigh(h1 + i * h2, stage.bits);
+      var offset = S_BITS + (bit >>> 6) * Long.BYTES;
+      stage.segment.set(JAVA_LONG, offset, stage.segment.get(JAVA_LONG, offset) | (1L << bit));
+    }
+    var count = stage.segment.get(JAVA_LONG, S_COUNT) + 1L;
+    stage.segment.set(JAVA_LONG, S_COUNT, count);
+    if (count == stage.capacity) {
+      var next = stage(stages.length, stage.offset + stage.size());
+      header.set(JAVA_LONG, H_STAGES, stages.length + 1L);
+      stages = Arrays.copyOf(stages, stages.length + 1);
+      stages[stages.length - 1] = next;
+      this.stages = stages;
+    }
+  }
+
+  private boolean test(long key) {
+    var h1 = hash1(key);
+    var h2 = hash2(key);
+    for (var stage : stages) {
+      var found = true;
+      for (int i = 0; i < stage.hashes && found; i++) {
+        var bit = Math.unsignedMultiplyHigh(h1 + i * h2, stage.bits);
+        found = (stage.segment.get(JAVA_LONG, S_BITS + (bit >>> 6) * Long.BYTES) & (1L << bit)) != 0L;
+      }
+      if (found) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  // the stage geometry is derived from the rate and the stage number, so only the stage count is stored
+  private Stage stage(int n, long offset) {
+    var capacity = MIN_CAPACITY << n;
+    var stageRate = rate / (2L << n);
+    var log2 = Math.log(2d);
+    var bits = (long) Math.ceil(-capacity * Math.log(stageRate) / (log2 * log2) / Long.SIZE) * Long.SIZE;
+    var hashes = (int) Math.max(1L, Math.round((double) bits / capacity * log2));
+    try {
+      var segment = channel.map(READ_WRITE, offset, S_BITS + bits / Byte.SIZE, arena);
+      return new Stage(segment, offset, capacity, bits, hashes);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private static long hash1(long key) {
+    return mix(key);
+  }
+
+  private static long hash2(long key) {
+    return mix(key ^ 0x9E3779B97F4A7C15L) | 1L;
+  }
+
+  private static long mix(long h) {
+    h = (h ^ (h >>> 33)) * 0xff51afd7ed558ccdL;
+    h = (h ^ (h >>> 33)) * 0xc4ceb9fe1a85ec53L;
+    return h ^ (h >>> 33);
+  }
+
+  @Override
+  public BigInteger getChecks() {
+    return checks.get();
+  }
+
+  @Override
+  public BigInteger getNegatives() {
+    return negatives.get();
+  }
+
+  @Override
+  public BigInteger getFalsePositives() {
+    return falsePositives.get();
+  }
+
+  /**
+   * Returns the share of the checks answered negatively.
+   *
+   * @return Hit rate
+   */
+  @Override
+  public double getHitRate() {
+    var c = checks.get();
+    return c.signum() == 0 ? 0d : negatives.get().doubleValue() / c.doubleValue();
+  }
+
+  /**
+   * Returns the number of the keys added to the filter. The keys found by the filter
+   * when they were added are not counted.
+   *
+   * @return Key count
+   */
+  @Override
+  public long getKeys() {
+    var keys = 0L;
+    for (var stage : stages) {
+      keys += stage.segment.get(JAVA_LONG, S_COUNT);
+    }
+    return keys;
+  }
+
+  /**
+   * Forces the filter and marks it as closed properly.
+   */
+  @Override
+  public void close() {
+    try (channel; arena) {
+      for (var stage : stages) {
+        stage.segment.force();
+      }
+      header.set(JAVA_LONG, H_OPEN, 0L);
+      header.force();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private record Stage(MemorySegment segment, long offset, long capacity, long bits, int hashes) {
+
+    private long size() {
+      return S_BITS + bits / Byte.SIZE;
+    }
+  }
+}
@@ -23,6 +23,8 @@ package org.dauch.piola.collections.buffer;
  */
 
 import java.io.*;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
 import java.lang.invoke.MethodHandles;
 import java.lang.invoke.VarHandle;
 import java.lang.ref.SoftReference;
@@ -32,6 +34,8 @@ import java.nio.channels.FileChannel;
 import java.nio.file.*;
 import java.util.*;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Consumer;
 
 import static java.lang.Math.signum;
@@ -41,6 +45,13 @@ import static java.nio.channels.FileChannel.MapMode.READ_WRITE;
 import static java.nio.channels.FileChannel.open;
 import static java.nio.file.StandardOpenOption.*;
 
+/**
+ * A pool of equally sized buffers sliced from a single file mapping. The free buffers are kept
+ * in a lock-free stack of indices: the head holds the top index and a tag incremented by each change
+ * to avoid the ABA problem, the next indices are kept in an array. The index of a buffer is derived
+ * from its address relative to the mapping, so both the acquisition and the release take O(1).
+ * The waiting acquirers are notified only when there are any.
+ */
 public final class BufferManager implements Closeable {
 
   private static final VarHandle BUFFERS = MethodHandles.arrayElementVarHandle(ByteBuffer[].class);
@@ -51,10 +62,18 @@ public final class BufferManager implements Closeable {
   private final float freeSpaceRatio;
   private final FileChannel channel;
   private final Path file;
+  private final long address;
+  private final int bufferSize;
+  // free indices stack: the tag in the high half and the top index + 1 in the low half of the head
+  private final AtomicLong head = new AtomicLong();
+  private final int[] next;
+  private final AtomicInteger waiters = new AtomicInteger();
 
   public BufferManager(String prefix, Path directory, int count, int maxBufferSize, float freeSpaceRatio, boolean sparse) {
     this.prefix = prefix;
     this.buffers = new ByteBuffer[count];
+    this.next = new int[count];
+    this.bufferSize = maxBufferSize;
     this.freeSpaceRatio = freeSpaceRatio;
     var name = prefix + Long.toUnsignedString(nanoTime(), 32) + ".data";
     this.file = directory.resolve(name);
@@ -64,10 +83,15 @@ public final class BufferManager implements Closeable {
         opts.add(SPARSE);
       }
       channel = open(file, opts);
+      // the mapping is released by GC together with the buffers like the mapped byte buffers
+      var mapping = channel.map(READ_WRITE, 0L, (long) count * maxBufferSize, Arena.ofAuto());
+      address = mapping.address();
       for (int i = count - 1; i >= 0; i--) {
-        buffers[i] = channel.map(READ_WRITE, (long) i * (long) maxBufferSize, maxBufferSize);
+        buffers[i] = mapping.asSlice((long) i * maxBufferSize, maxBufferSize).asByteBuffer();
+        next[i] = i + 1 < count ? i + 1 : -1;
       }
       buffersInUse = buffers.clone();
+      head.set(count > 0 ? 1L : 0L);
     } catch (Throwable e) {
       if (BufferManager.this.channel != null) {
         try {
@@ -89,27 +113,48 @@ public final class BufferManager implements Closeable {
   }
 
   private ByteBuffer get0() {
-    for (int i = 0, l = buffers.length; i < l; i++) {
-      var buf = buffers[i];
-      if (BUFFERS.compareAndSet(buffersInUse, i, buf, null)) {
+    for (var h = head.get(); ; h = head.get()) {
+      var i = (int) h - 1;
+      if (i < 0) {
+        return null;
+      }
+      // a stale next index is discarded by the failing CAS as the tag has changed since
+      if (head.compareAndSet(h, (h & 0xFFFF_FFFF_0000_0000L) + (1L << 32) | next[i] + 1)) {
+        var buf = buffers[i];
+        BUFFERS.setRelease(buffersInUse, i, null);
         return buf;
       }
     }
-    return null;
+  }
+
+  private void put0(int i) {
+    for (var h = head.get(); ; h = head.get()) {
+      next[i] = (int) h - 1;
+      if (head.compareAndSet(h, (h & 0xFFFF_FFFF_0000_0000L) + (1L << 32) | i + 1)) {
+        return;
+      }
+    }
   }
 
   public ByteBuffer get() {
-    for (var buf = get0(); ; buf = get0()) {
-      if (buf == null) {
-        try {
-          synchronized (buffers) {
+    var buf = get0();
+    if (buf != null) {
+      return buf;
+    }
+    // a release either sees the registered waiter or pushes the buffer before the check under the monitor
+    waiters.incrementAndGet();
+    try {
+      synchronized (buffers) {
+        while ((buf = get0()) == null) {
+          try {
             buffers.wait();
+          } catch (InterruptedException _) {
           }
-        } catch (InterruptedException _) {
         }
-      } else {
-        return buf;
       }
+      return buf;
+    } finally {
+      waiters.decrementAndGet();
     }
   }
 
@@ -119,8 +164,11 @@ public final class BufferManager implements Closeable {
       cleanup(buf);
     }
     if (BUFFERS.compareAndSet(buffersInUse, index, null, buf.clear())) {
-      synchronized (buffers) {
-        buffers.notify();
+      put0(index);
+      if (waiters.get() > 0) {
+        synchronized (buffers) {
+          buffers.notify();
+        }
       }
     } else {
       throw new IllegalStateException("Unable to return the buffer " + buf + " to the pool " + prefix);
@@ -134,9 +182,13 @@ public final class BufferManager implements Closeable {
   }
 
   public int find(ByteBuffer buffer) {
-    var bs = buffers;
-    for (int i = 0, l = bs.length; i < l; i++) {
-      if (bs[i] == buffer) return i;
+    if (buffer.isDirect()) {
+      // the segment of a buffer starts at its position
+      var offset = MemorySegment.ofBuffer(buffer).address() - buffer.position() - address;
+      if (offset >= 0L && offset % bufferSize == 0L && offset / bufferSize < buffers.length) {
+        var i = (int) (offset / bufferSize);
+        if (buffers[i] == buffer) return i;
+      }
     }
     throw new IllegalStateException("Buffer " + buffer + " is unknown for " + prefix);
   }
@@ -147,7 +199,7 @@ public final class BufferManager implements Closeable {
   }
 
   public int maxBufferSize() {
-    return buffers[0].capacity();
+    return bufferSize;
   }
 
   @Override
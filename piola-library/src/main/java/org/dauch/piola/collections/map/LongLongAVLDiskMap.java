@@ -22,21 +22,33 @@ package org.dauch.piola.collections.map;
  * #L%
  */
 
+import org.dauch.piola.concurrent.BigIntCounter;
+
 import java.io.*;
 import java.lang.foreign.Arena;
 import java.lang.foreign.MemorySegment;
 import java.lang.ref.Cleaner;
 import java.lang.ref.Cleaner.Cleanable;
+import java.math.BigInteger;
 import java.nio.channels.FileChannel;
 import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
 import java.util.EnumSet;
+import java.util.NoSuchElementException;
 import java.util.Objects;
 import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.LongBinaryOperator;
 import java.util.function.LongConsumer;
+import java.util.stream.IntStream;
 import java.util.stream.LongStream;
 import java.util.stream.Stream;
+import java.util.zip.CRC32C;
 
+import static java.lang.foreign.ValueLayout.JAVA_BYTE;
+import static java.lang.foreign.ValueLayout.JAVA_INT;
 import static java.lang.foreign.ValueLayout.JAVA_LONG;
 import static java.nio.channels.FileChannel.MapMode.READ_ONLY;
 import static java.nio.channels.FileChannel.MapMode.READ_WRITE;
@@ -49,29 +61,102 @@ import static java.nio.file.StandardOpenOption.*;
  * from multiple threads use a {@link java.util.concurrent.locks.ReadWriteLock}
  * to synchronize the {@link LongLongAVLDiskMap#get(long, LongConsumer)} method with a {@code readLock}
  * and the {@link LongLongAVLDiskMap#put(long, long)} method with a {@code writeLock}.
+ * A single value of a key is stored in the node, multiple values are stored in a linked list
+ * of blocks holding up to {@value #MAX_BLOCK} values each.
+ * <p>
+ * In the concurrent reads mode the readers need no locks while a single thread writes.
+ * The new nodes and blocks are fully written before being linked by a single release store,
+ * the rotated nodes and the blocks changed in the middle are replaced by copies
+ * instead of being modified in place, so a reader always sees a consistent tree and finds
+ * all the entries inserted before the read has started. The replaced nodes and blocks are
+ * not reused, so this mode trades some space for the lock-free reads: their size is counted
+ * by {@link #garbageBytes()}.
+ * <p>
+ * The removed nodes and value blocks are linked into the free lists kept in the file header
+ * and reused by the following insertions (the free lists are terminated by 0 as this address
+ * belongs to the header). In the concurrent reads mode the removed nodes and blocks are not reused
+ * as the readers could still traverse them, the space is reclaimed by {@link #compact(Path)}.
+ * <p>
+ * A {@link #checkpoint()} makes the state durable. The nodes and blocks written before it are not modified
+ * afterwards: the cells carry the generation of the checkpoint they were written before, and a change of an older
+ * cell writes a copy of it together with the path from the root (once per checkpoint), while the replaced cells
+ * are freed after the next checkpoint. The header keeps two checksummed checkpoint slots written alternately,
+ * so a map opened after a crash has the state of the newest valid checkpoint without any scan. The free lists
+ * are dropped after a crash as their cells could be reused after the checkpoint, {@link #compact(Path)}
+ * reclaims the space.
+ * <p>
+ * The mapped segments are cached up to {@code maxSegments} read-write and {@code maxSegments}
+ * read-only segments, so the memory budget of the cache is {@code 2 * maxSegments * segmentSize}.
+ * The least recently used segments are evicted first by the CLOCK policy.
+ * The cache metrics are exposed through the {@link SegmentCacheMXBean} interface.
+ * <p>
+ * The read-only segments can be prefetched: when the misses follow each other in the file order (a cursor scan
+ * of a compacted or bulk loaded map) the next {@code prefetchSegments} segments in the same direction are mapped
+ * and loaded into memory by a virtual thread, and the first read of a prefetched segment moves the window further,
+ * so a long scan does not stall on the page faults of each segment.
+ * <p>
+ * A map created with the order statistics layout keeps the number of values of the subtree in each node,
+ * so {@link #count(long, long)}, {@link #rank(long)} and {@link #select(long)} take O(log n) instead of a scan.
+ * The totals of the modified path are updated up to the root by each modification. The layout is recorded
+ * in the file header and kept by the following opens. In the concurrent reads mode a reader may see
+ * the totals of a path being updated, so the results are exact only when no modification is in progress.
  */
-public final class LongLongAVLDiskMap implements AutoCloseable {
+public final class LongLongAVLDiskMap implements LongLongDiskMap, SegmentCacheMXBean {
 
   private static final Cleaner CLEANER = Cleaner.create(Thread.ofVirtual().name("avlmap").factory());
-  private static final ConcurrentSkipListMap<Long, Cleanable> CLEAN_ACTIONS = new ConcurrentSkipListMap<>();
 
   // common constants
-  static final int FILE_HEADER_SIZE = 128;
-  static final long VERSION = 1;
+  static final int FILE_HEADER_SIZE = 4096;
+  static final long VERSION = 5;
+  static final int MIN_BLOCK = 4;
+  static final int MAX_BLOCK = 256;
+  // a free block of the class k has at least MIN_BLOCK << k slots
+  static final int FREE_CLASSES = Integer.numberOfTrailingZeros(MAX_BLOCK / MIN_BLOCK) + 1;
 
   // header offsets
   static final int H_VERSION = 0; // file version
   static final int H_ROOT = H_VERSION + Long.BYTES; // root node address
   static final int H_LAST = H_ROOT + Long.BYTES; // last position
+  static final int H_MARK = H_LAST + Long.BYTES; // mark of the last checkpoint
+  static final int H_GARBAGE = H_MARK + Long.BYTES; // bytes of the cells replaced or removed in the concurrent reads mode
+  static final int H_FREE_NODES = H_GARBAGE + Long.BYTES; // head of the free node list
+  static final int H_FREE_BLOCKS = H_FREE_NODES + Long.BYTES; // heads of the free block lists by capacity class
+  static final int H_CLEAN = H_FREE_BLOCKS + FREE_CLASSES * Long.BYTES; // generation of the checkpoint written by close
+  static final int H_FLAGS = H_CLEAN + Long.BYTES; // layout flags set on creation
+  static final int H_SLOTS = 1024; // two checkpoint slots, each in its own disk sector
+  static final int SLOT_SIZE = 512;
+
+  // checkpoint slot offsets, the state is a copy of the [H_ROOT, H_CLEAN) header range
+  static final int C_GENERATION = 0;
+  static final int C_STATE = C_GENERATION + Long.BYTES;
+  static final int C_CHECKSUM = C_STATE + H_CLEAN - H_ROOT; // CRC32C of the preceding slot bytes (int)
 
   // node arithmetics
   static final int KEY = 0;
-  static final int VALUE = KEY + Long.BYTES;
-  static final int NEXT = VALUE + Long.BYTES;
-  static final int LEFT = NEXT + Long.BYTES;
+  static final int VALUE = KEY + Long.BYTES; // the value if there is only one, otherwise the head block address
+  static final int TAIL = VALUE + Long.BYTES; // tail block address
+  static final int COUNT = TAIL + Long.BYTES; // values count
+  static final int LEFT = COUNT + Long.BYTES;
   static final int RIGHT = LEFT + Long.BYTES;
   static final int HEIGHT = RIGHT + Long.BYTES;
-  static final int NODE_SIZE = HEIGHT + Long.BYTES;
+  static final int GENERATION = HEIGHT + Long.BYTES; // generation of the checkpoint following the node write
+  static final int NODE_SIZE = GENERATION + Long.BYTES;
+  static final int TOTAL = NODE_SIZE; // values count of the subtree (the order statistics layout only)
+  static final int STATISTICS_NODE_SIZE = TOTAL + Long.BYTES;
+
+  // layout flags
+  static final long F_ORDER_STATISTICS = 1L;
+
+  // sequential read-only misses in a row starting the prefetch
+  static final int SEQUENTIAL_MISSES = 2;
+
+  // value block arithmetics (values occupy the [start, end) slots of the block)
+  static final int B_NEXT = 0; // next block address
+  static final int B_CAPACITY = B_NEXT + Long.BYTES; // number of value slots (int)
+  static final int B_START = B_CAPACITY + Integer.BYTES; // first used slot (int)
+  static final int B_END = B_START + Integer.BYTES; // slot following the last used one (int)
+  static final int B_GENERATION = B_END + Integer.BYTES; // generation of the checkpoint following the block write (int)
+  static final int B_VALUES = B_GENERATION + Integer.BYTES; // value slots
 
   // file channel
   private final FileChannel channel;
@@ -83,30 +168,245 @@ public final class LongLongAVLDiskMap implements AutoCloseable {
   // segments cache
   private final int segmentSize;
   private final int maxSegments;
-  private final ConcurrentSkipListMap<Long, MemorySegment> rw = new ConcurrentSkipListMap<>(Long::compare);
-  private final ConcurrentSkipListMap<Long, MemorySegment> ro = new ConcurrentSkipListMap<>(Long::compare);
+  private final int maxBlock;
+  private final boolean concurrentReads;
+  private final boolean orderStatistics;
+  private final int nodeSize;
+  private final int prefetchSegments;
+
+  // writer state reused by the modifications
+  private final NodeAccess writer = new NodeAccess(false);
+  private long[] path = new long[64];
+  private int pathDepth;
+  private long[] chain = new long[64];
+  // generation of the next checkpoint, the cells of the older generations are not modified
+  private long generation;
+  // stale cells removed since the last checkpoint, they are freed once the next checkpoint is written
+  private long[] releasedNodes = new long[64];
+  private int releasedNodeCount;
+  private long[] releasedBlocks = new long[64];
+  private int releasedBlockCount;
+  private final ConcurrentSkipListMap<Long, SegmentEntry> rw = new ConcurrentSkipListMap<>(Long::compare);
+  private final ConcurrentSkipListMap<Long, SegmentEntry> ro = new ConcurrentSkipListMap<>(Long::compare);
+  private final ConcurrentSkipListMap<Long, Cleanable> cleanActions = new ConcurrentSkipListMap<>();
+  // the last used segments, racy reads are safe as the entry segments are immutable
+  private SegmentEntry lastRw;
+  private SegmentEntry lastRo;
+  // CLOCK hands of the segment caches (offsets of the last visited segments)
+  private long rwHand;
+  private long roHand;
+  // sequential access detection by the read-only misses, racy updates are tolerated as the prefetch is a hint
+  private long lastMiss = -1L;
+  private int direction;
+  private int sequentialMisses;
+  private final AtomicBoolean prefetching = new AtomicBoolean();
+  private volatile Thread prefetcher;
+
+  // segment cache metrics
+  private final BigIntCounter hits = new BigIntCounter();
+  // the fast path hits are counted apart by a striped counter, so the lookups do not contend on it
+  private final LongAdder lastHits = new LongAdder();
+  private final BigIntCounter misses = new BigIntCounter();
+  private final BigIntCounter maps = new BigIntCounter();
+  private final BigIntCounter unmaps = new BigIntCounter();
+  private final BigIntCounter forcedBytes = new BigIntCounter();
+  private final BigIntCounter prefetches = new BigIntCounter();
+  private final BigIntCounter prefetchHits = new BigIntCounter();
 
   /**
    * Constructs an AVL disk based map.
    *
    * @param file        A file to use as storage
    * @param segmentSize Segment size (memory mapped segments of such size will be used as
-   * @param maxSegments Maximum number of segments (segment evictions from the cache start from smaller offsets)
+   * @param maxSegments Maximum number of segments (the least recently used segments are evicted first)
    */
   public LongLongAVLDiskMap(Path file, int segmentSize, int maxSegments) {
+    this(file, segmentSize, maxSegments, false);
+  }
+
+  /**
+   * Constructs an AVL disk based map.
+   *
+   * @param file            A file to use as storage
+   * @param segmentSize     Segment size (memory mapped segments of such size will be used as
+   * @param maxSegments     Maximum number of segments (the least recently used segments are evicted first)
+   * @param concurrentReads True to allow the readers to run concurrently with a single writer without locking
+   */
+  public LongLongAVLDiskMap(Path file, int segmentSize, int maxSegments, boolean concurrentReads) {
+    this(file, segmentSize, maxSegments, concurrentReads, false);
+  }
+
+  /**
+   * Constructs an AVL disk based map.
+   *
+   * @param file            A file to use as storage
+   * @param segmentSize     Segment size (memory mapped segments of such size will be used as
+   * @param maxSegments     Maximum number of segments (the least recently used segments are evicted first)
+   * @param concurrentReads True to allow the readers to run concurrently with a single writer without locking
+   * @param orderStatistics True to create a new file with the order statistics layout, an existing file keeps its layout
+   */
+  public LongLongAVLDiskMap(Path file, int segmentSize, int maxSegments, boolean concurrentReads, boolean orderStatistics) {
+    this(file, segmentSize, maxSegments, concurrentReads, orderStatistics, 0);
+  }
+
+  /**
+   * Constructs an AVL disk based map.
+   *
+   * @param file             A file to use as storage
+   * @param segmentSize      Segment size (memory mapped segments of such size will be used as
+   * @param maxSegments      Maximum number of segments (the least recently used segments are evicted first)
+   * @param concurrentReads  True to allow the readers to run concurrently with a single writer without locking
+   * @param orderStatistics  True to create a new file with the order statistics layout, an existing file keeps its layout
+   * @param prefetchSegments Number of read-only segments to prefetch ahead of a sequential scan, 0 disables the prefetch
+   */
+  public LongLongAVLDiskMap(
+    Path file,
+    int segmentSize,
+    int maxSegments,
+    boolean concurrentReads,
+    boolean orderStatistics,
+    int prefetchSegments
+  ) {
     this.segmentSize = checkSegmentSize(segmentSize);
     this.maxSegments = checkMaxSegments(maxSegments);
+    this.prefetchSegments = checkPrefetchSegments(prefetchSegments, maxSegments);
+    this.maxBlock = Math.min(MAX_BLOCK, (segmentSize - B_VALUES) / Long.BYTES);
+    this.concurrentReads = concurrentReads;
     try {
       channel = FileChannel.open(file, EnumSet.of(CREATE, WRITE, READ));
       header = channel.map(READ_WRITE, 0L, FILE_HEADER_SIZE, headerArena);
-      if (header.get(JAVA_LONG, H_LAST) == 0L) {
+      if (header.get(JAVA_LONG, H_VERSION) == 0L) {
         header.set(JAVA_LONG, H_VERSION, VERSION);
         header.set(JAVA_LONG, H_ROOT, -1L);
         header.set(JAVA_LONG, H_LAST, FILE_HEADER_SIZE);
+        header.set(JAVA_LONG, H_FLAGS, orderStatistics ? F_ORDER_STATISTICS : 0L);
+        generation = 1L;
+        commit();
+      } else if (header.get(JAVA_LONG, H_VERSION) != VERSION) {
+        var version = header.get(JAVA_LONG, H_VERSION);
+        headerArena.close();
+        channel.close();
+        throw new IllegalStateException("Unsupported version " + version + " of " + file);
+      } else if (!recover()) {
+        headerArena.close();
+        channel.close();
+        throw new IllegalStateException("No valid checkpoint in " + file);
+      }
+      this.orderStatistics = (header.get(JAVA_LONG, H_FLAGS) & F_ORDER_STATISTICS) != 0L;
+      this.nodeSize = this.orderStatistics ? STATISTICS_NODE_SIZE : NODE_SIZE;
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  // restores the state of the last valid checkpoint slot, the free lists are restored only after a clean close
+  // as their cells could be reused after the checkpoint
+  private boolean recover() {
+    var slot = -1;
+    for (int i = 0, s = H_SLOTS; i < 2; i++, s += SLOT_SIZE) {
+      if (header.get(JAVA_INT, s + C_CHECKSUM) == checksum(s)
+        && (slot < 0 || header.get(JAVA_LONG, s + C_GENERATION) > header.get(JAVA_LONG, slot + C_GENERATION))) {
+        slot = s;
+      }
+    }
+    if (slot < 0) {
+      return false;
+    }
+    var g = header.get(JAVA_LONG, slot + C_GENERATION);
+    MemorySegment.copy(header, slot + C_STATE, header, H_ROOT, H_CLEAN - H_ROOT);
+    if (header.get(JAVA_LONG, H_CLEAN) != g) {
+      header.asSlice(H_FREE_NODES, H_CLEAN - H_FREE_NODES).fill((byte) 0);
+    }
+    header.set(JAVA_LONG, H_CLEAN, 0L);
+    header.force();
+    generation = g + 1L;
+    return true;
+  }
+
+  private int checksum(int slot) {
+    var crc = new CRC32C();
+    crc.update(header.asSlice(slot, C_CHECKSUM).toArray(JAVA_BYTE));
+    return (int) crc.getValue();
+  }
+
+  /**
+   * Makes the current state of the map durable. The changed segments are forced first,
+   * then the state is written to the older of the two checksummed checkpoint slots of the header,
+   * so a crash during the checkpoint leaves the previous one intact. A map opened after a crash
+   * has the state of the last checkpoint, no scan is needed.
+   */
+  @Override
+  public void checkpoint() {
+    commit();
+  }
+
+  /**
+   * Makes the current state of the map durable along with the given mark, see {@link #checkpoint()}.
+   * A map opened after a crash has the mark of the checkpoint it was restored to, a new map has the mark 0.
+   *
+   * @param mark Non-negative mark, e.g. the position of the source data covered by the checkpoint
+   */
+  @Override
+  public void checkpoint(long mark) {
+    if (mark < 0L) {
+      throw new IllegalArgumentException("Negative mark: " + mark);
+    }
+    header.set(JAVA_LONG, H_MARK, mark);
+    commit();
+  }
+
+  @Override
+  public long mark() {
+    return header.get(JAVA_LONG, H_MARK);
+  }
+
+  /**
+   * Returns the size of the file part holding the cells, including the free and the replaced ones.
+   *
+   * @return Size in bytes
+   */
+  public long usedBytes() {
+    return header.get(JAVA_LONG, H_LAST);
+  }
+
+  /**
+   * Returns the size of the nodes and blocks replaced or removed in the concurrent reads mode. They are not reused,
+   * the space is reclaimed by {@link #compact(Path)}. The count is durable with the checkpoints.
+   *
+   * @return Size in bytes
+   */
+  public long garbageBytes() {
+    return header.get(JAVA_LONG, H_GARBAGE);
+  }
+
+  // writes the checkpoint and frees the cells released before it, returns true if there were such cells
+  private boolean commit() {
+    try {
+      for (var entry : rw.values()) {
+        entry.segment.force();
+        forcedBytes.add((int) entry.segment.byteSize());
       }
+      // flushes the changes of the evicted segments
+      channel.force(false);
     } catch (IOException e) {
       throw new UncheckedIOException(e);
     }
+    var slot = H_SLOTS + (int) (generation & 1L) * SLOT_SIZE;
+    header.set(JAVA_LONG, slot + C_GENERATION, generation);
+    MemorySegment.copy(header, H_ROOT, header, slot + C_STATE, H_CLEAN - H_ROOT);
+    header.set(JAVA_INT, slot + C_CHECKSUM, checksum(slot));
+    header.force();
+    generation++;
+    // the released cells are referenced by the previous checkpoint only
+    var released = releasedNodeCount + releasedBlockCount > 0;
+    for (int i = 0; i < releasedNodeCount; i++) {
+      free(releasedNodes[i]);
+    }
+    for (int i = 0; i < releasedBlockCount; i++) {
+      free(block(releasedBlocks[i], false));
+    }
+    releasedNodeCount = releasedBlockCount = 0;
+    return released;
   }
 
   /**
@@ -116,9 +416,13 @@ public final class LongLongAVLDiskMap implements AutoCloseable {
    * @param consumer Value consumer
    */
   public void get(long key, LongConsumer consumer) {
-    var node = get(node(root(), true), key);
-    if (node != null) {
-      node.forEachValue(consumer);
+    var nodes = new NodeAccess(true);
+    var node = find(nodes, key);
+    if (node >= 0L) {
+      testValues(key, nodes.get(node, COUNT), nodes.get(node, TAIL), nodes.get(node, VALUE), true, (_, v) -> {
+        consumer.accept(v);
+        return true;
+      });
     }
   }
 
@@ -129,8 +433,9 @@ public final class LongLongAVLDiskMap implements AutoCloseable {
    * @return Stream of values
    */
   public LongStream get(long key) {
-    var node = get(node(root(), true), key);
-    return node == null ? LongStream.empty() : node.values();
+    var nodes = new NodeAccess(true);
+    var node = find(nodes, key);
+    return node < 0L ? LongStream.empty() : values(nodes.get(node, COUNT), nodes.get(node, TAIL), nodes.get(node, VALUE));
   }
 
   /**
@@ -140,7 +445,7 @@ public final class LongLongAVLDiskMap implements AutoCloseable {
    * @return True if the key is present
    */
   public boolean contains(long key) {
-    return get(node(root(), true), key) != null;
+    return find(new NodeAccess(true), key) >= 0L;
   }
 
   /**
@@ -151,8 +456,9 @@ public final class LongLongAVLDiskMap implements AutoCloseable {
    * @return Check status
    */
   public boolean contains(long key, long value) {
-    var node = get(node(root(), true), key);
-    return node != null && node.contains(value);
+    var nodes = new NodeAccess(true);
+    var node = find(nodes, key);
+    return node >= 0L && !testValues(key, nodes.get(node, COUNT), nodes.get(node, TAIL), nodes.get(node, VALUE), true, (_, v) -> v != value);
   }
 
   /**
@@ -165,8 +471,9 @@ public final class LongLongAVLDiskMap implements AutoCloseable {
    * @return Check status
    */
   public boolean contains(long key, long value, LongBinaryOperator comparator) {
-    var node = get(node(root(), true), key);
-    return node != null && node.contains(value, comparator);
+    var nodes = new NodeAccess(true);
+    var node = find(nodes, key);
+    return node >= 0L && contains(nodes.get(node, COUNT), nodes.get(node, TAIL), nodes.get(node, VALUE), value, comparator);
   }
 
   /**
@@ -176,23 +483,207 @@ public final class LongLongAVLDiskMap implements AutoCloseable {
    * @return Values count
    */
   public long countValues(long key) {
-    var node = get(node(root(), true), key);
-    return node == null ? 0L : node.countValues();
+    var nodes = new NodeAccess(true);
+    var node = find(nodes, key);
+    return node < 0L ? 0L : nodes.get(node, COUNT);
   }
 
-  private VirtualNode get(VirtualNode node, long key) {
-    if (node == null) {
-      return null;
+  /**
+   * Returns the number of values of the map. Requires the order statistics layout.
+   *
+   * @return Values count
+   */
+  public long countValues() {
+    checkOrderStatistics();
+    var nodes = new NodeAccess(true);
+    return total(nodes, root());
+  }
+
+  /**
+   * Returns the number of values of the keys in the given range in O(log n).
+   * Requires the order statistics layout.
+   *
+   * @param from Lower bound of keys (inclusive)
+   * @param to   Upper bound of keys (inclusive)
+   * @return Values count
+   */
+  public long count(long from, long to) {
+    checkOrderStatistics();
+    return from > to ? 0L : countBelow(to, true) - countBelow(from, false);
+  }
+
+  /**
+   * Returns the number of values of the keys less than the given key in O(log n),
+   * i.e. the position of the first value of the key in the key order. Requires the order statistics layout.
+   *
+   * @param key Key
+   * @return Rank of the key
+   */
+  public long rank(long key) {
+    checkOrderStatistics();
+    return countBelow(key, false);
+  }
+
+  /**
+   * Returns the key of the value at the given position in the key order in O(log n),
+   * the values of a key occupy {@link #countValues(long)} consecutive positions. Requires the order statistics layout.
+   *
+   * @param index Value position (zero-based)
+   * @return Key of the value
+   * @throws IndexOutOfBoundsException if the position is negative or not less than {@link #countValues()}
+   */
+  public long select(long index) {
+    checkOrderStatistics();
+    var nodes = new NodeAccess(true);
+    var i = index;
+    for (var node = i < 0L ? -1L : root(); node >= 0L; ) {
+      var left = nodes.get(node, LEFT);
+      var leftTotal = total(nodes, left);
+      if (i < leftTotal) {
+        node = left;
+      } else {
+        i -= leftTotal;
+        var count = nodes.get(node, COUNT);
+        if (i < count) {
+          return nodes.get(node, KEY);
+        }
+        i -= count;
+        node = nodes.get(node, RIGHT);
+      }
+    }
+    throw new IndexOutOfBoundsException("Index " + index + " out of bounds");
+  }
+
+  // returns the number of values of the keys less than the key (or equal to it if inclusive)
+  private long countBelow(long key, boolean inclusive) {
+    var nodes = new NodeAccess(true);
+    var count = 0L;
+    for (var node = root(); node >= 0L; ) {
+      var nodeKey = nodes.get(node, KEY);
+      if (key < nodeKey) {
+        node = nodes.get(node, LEFT);
+      } else {
+        count += total(nodes, nodes.get(node, LEFT));
+        if (key == nodeKey) {
+          return inclusive ? count + nodes.get(node, COUNT) : count;
+        }
+        count += nodes.get(node, COUNT);
+        node = nodes.get(node, RIGHT);
+      }
+    }
+    return count;
+  }
+
+  private void checkOrderStatistics() {
+    if (!orderStatistics) {
+      throw new IllegalStateException("The map has no order statistics layout");
+    }
+  }
+
+  /**
+   * Visits the entries with keys in the given range in key order.
+   * The values of a key are visited in the order they are stored.
+   *
+   * @param from       Lower bound of keys (inclusive)
+   * @param to         Upper bound of keys (inclusive)
+   * @param descending True to visit the keys in descending order
+   * @param visitor    Entry visitor returning false to stop the iteration
+   * @return False if the iteration was stopped by the visitor
+   */
+  public boolean forEach(long from, long to, boolean descending, LongLongPredicate visitor) {
+    if (from > to) {
+      return true;
+    }
+    var cursor = cursor();
+    if (descending) {
+      for (var found = cursor.floor(to); found && cursor.key() >= from; found = cursor.previous()) {
+        if (!cursor.testValues(visitor)) return false;
+      }
     } else {
-      var nodeKey = node.getKey();
+      for (var found = cursor.ceiling(from); found && cursor.key() <= to; found = cursor.next()) {
+        if (!cursor.testValues(visitor)) return false;
+      }
+    }
+    return true;
+  }
+
+  @Override
+  public boolean concurrentReads() {
+    return concurrentReads;
+  }
+
+  /**
+   * Returns true if the nodes keep the values counts of their subtrees, so the map answers
+   * {@link #count(long, long)}, {@link #rank(long)} and {@link #select(long)}.
+   *
+   * @return Order statistics layout
+   */
+  public boolean orderStatistics() {
+    return orderStatistics;
+  }
+
+  @Override
+  public BigInteger getHits() {
+    return hits.get().add(BigInteger.valueOf(lastHits.sum()));
+  }
+
+  @Override
+  public BigInteger getMisses() {
+    return misses.get();
+  }
+
+  @Override
+  public BigInteger getMaps() {
+    return maps.get();
+  }
+
+  @Override
+  public BigInteger getUnmaps() {
+    return unmaps.get();
+  }
+
+  @Override
+  public BigInteger getForcedBytes() {
+    return forcedBytes.get();
+  }
+
+  @Override
+  public BigInteger getPrefetches() {
+    return prefetches.get();
+  }
+
+  @Override
+  public BigInteger getPrefetchHits() {
+    return prefetchHits.get();
+  }
+
+  @Override
+  public int getCachedSegments() {
+    return rw.size() + ro.size();
+  }
+
+  /**
+   * Returns a new cursor over the keys of the map. The cursor is not positioned,
+   * call one of its seek methods first.
+   *
+   * @return A cursor
+   */
+  public Cursor cursor() {
+    return new Cursor();
+  }
+
+  private long find(NodeAccess nodes, long key) {
+    for (var node = root(); node >= 0L; ) {
+      var nodeKey = nodes.get(node, KEY);
       if (key < nodeKey) {
-        return get(node.getLeft(), key);
+        node = nodes.get(node, LEFT);
       } else if (key > nodeKey) {
-        return get(node.getRight(), key);
+        node = nodes.get(node, RIGHT);
       } else {
         return node;
       }
     }
+    return -1L;
   }
 
   /**
@@ -202,10 +693,11 @@ public final class LongLongAVLDiskMap implements AutoCloseable {
    * @param value Value
    */
   public void set(long key, long value) {
-    var root = root();
-    var node = set(node(root, false), key, value);
-    if (root != node.node) {
-      header.set(JAVA_LONG, H_ROOT, node.node);
+    var node = insert(key, value);
+    if (node >= 0L) {
+      var target = detach(node, false);
+      setFirst(target, value);
+      attach(node, target);
     }
   }
 
@@ -216,10 +708,11 @@ public final class LongLongAVLDiskMap implements AutoCloseable {
    * @param value Entry value
    */
   public void put(long key, long value) {
-    var root = root();
-    var node = put(node(root, false), key, value);
-    if (root != node.node) {
-      header.set(JAVA_LONG, H_ROOT, node.node);
+    var node = insert(key, value);
+    if (node >= 0L) {
+      var target = detach(node, writer.get(node, COUNT) == 1L);
+      prepend(target, blocks(target), value);
+      attach(node, target);
     }
   }
 
@@ -233,196 +726,1139 @@ public final class LongLongAVLDiskMap implements AutoCloseable {
    * @param comparator Value comparator
    */
   public void put(long key, long value, LongBinaryOperator comparator) {
-    var root = root();
-    var node = put(node(root, false), key, value, comparator);
-    if (root != node.node) {
-      header.set(JAVA_LONG, H_ROOT, node.node);
+    var node = insert(key, value);
+    if (node >= 0L) {
+      var nodes = writer;
+      if (nodes.get(node, COUNT) == 1L && comparator.applyAsLong(value, nodes.get(node, VALUE)) == 0L) {
+        return;
+      }
+      var target = detach(node, nodes.get(node, COUNT) == 1L);
+      add(target, value, comparator);
+      attach(node, target);
     }
   }
 
-  private VirtualNode put(VirtualNode node, long key, long value) {
-    if (node == null) {
-      return write(key, value);
-    } else {
-      var nodeKey = node.getKey();
-      if (key < nodeKey) {
-        node.setLeft(put(node.getLeft(), key, value));
-      } else if (key > nodeKey) {
-        node.setRight(put(node.getRight(), key, value));
-      } else {
-        node.add(value);
-        return node;
-      }
-      return balance(node);
+  /**
+   * Removes the key with all its values.
+   *
+   * @param key Key
+   * @return True if the key was present
+   */
+  public boolean remove(long key) {
+    var node = locate(key);
+    if (node < 0L) {
+      return false;
     }
+    if (writer.get(node, COUNT) > 1L) {
+      releaseBlocks(writer.get(node, VALUE), writer.get(node, TAIL));
+    }
+    unlink(node);
+    return true;
   }
 
-  private VirtualNode put(VirtualNode node, long key, long value, LongBinaryOperator comparator) {
-    if (node == null) {
-      return write(key, value);
-    } else {
-      var nodeKey = node.getKey();
-      if (key < nodeKey) {
-        node.setLeft(put(node.getLeft(), key, value, comparator));
-      } else if (key > nodeKey) {
-        node.setRight(put(node.getRight(), key, value, comparator));
-      } else {
-        node.add(value, comparator);
-        return node;
+  /**
+   * Removes the first of the stored values of the key equal to the given value.
+   * The key is removed together with its last value.
+   *
+   * @param key   Key
+   * @param value Value
+   * @return True if the value was present
+   */
+  public boolean remove(long key, long value) {
+    var node = locate(key);
+    if (node < 0L) {
+      return false;
+    }
+    var nodes = writer;
+    if (nodes.get(node, COUNT) == 1L) {
+      if (nodes.get(node, VALUE) != value) {
+        return false;
       }
-      return balance(node);
+      unlink(node);
+      return true;
     }
-  }
-
-  private VirtualNode set(VirtualNode node, long key, long value) {
-    if (node == null) {
-      return write(key, value);
-    } else {
-      var nodeKey = node.getKey();
-      if (key < nodeKey) {
-        node.setLeft(set(node.getLeft(), key, value));
-      } else if (key > nodeKey) {
-        node.setRight(set(node.getRight(), key, value));
-      } else {
-        node.set(value);
-        return node;
+    var tail = nodes.get(node, TAIL);
+    for (Block prev = null, block = block(nodes.get(node, VALUE), false); ; prev = block, block = block(block.next(), false)) {
+      for (int i = block.start(), end = block.end(); i < end; i++) {
+        if (block.value(i) == value) {
+          var target = detach(node, nodes.get(node, COUNT) == 2L);
+          removeAt(target, prev, block, i);
+          attach(node, target);
+          return true;
+        }
+      }
+      if (block.addr == tail) {
+        return false;
       }
-      return balance(node);
     }
   }
 
-  private long height(VirtualNode node) {
-    return node == null ? 0 : node.getHeight();
-  }
-
-  private void updateHeight(VirtualNode node) {
-    node.setHeight(1L + Math.max(height(node.getLeft()), height(node.getRight())));
-  }
-
-  private int balanceFactor(VirtualNode node) {
-    return (int) (height(node.getLeft()) - height(node.getRight()));
-  }
-
-  private VirtualNode balance(VirtualNode node) {
-    var bf = balanceFactor(node);
-    if (bf > 1) {
-      var left = node.getLeft();
-      if (height(left.getLeft()) < height(left.getRight())) {
-        node.setLeft(rotateLeft(left));
+  /**
+   * Inserts the entries of the given arrays sorted by key. The result is the same
+   * as calling {@link #put(long, long)} for each entry in the array order, i.e. the values
+   * of the same key are stored in the reverse order. When the map is empty, a perfectly
+   * balanced tree is written sequentially in one pass, otherwise the entries are put one by one.
+   *
+   * @param keys   Keys sorted in ascending order (duplicates are allowed)
+   * @param values Values
+   */
+  public void putAll(long[] keys, long[] values) {
+    if (keys.length != values.length) {
+      throw new IllegalArgumentException("keys and values lengths mismatch: " + keys.length + " != " + values.length);
+    }
+    // group starts of the distinct keys with a sentinel at the end
+    var starts = new int[keys.length + 1];
+    var count = 0;
+    for (int i = 0; i < keys.length; i++) {
+      if (i == 0 || keys[i] != keys[i - 1]) {
+        if (i > 0 && keys[i] < keys[i - 1]) {
+          throw new IllegalArgumentException("keys are not sorted at " + i);
+        }
+        starts[count++] = i;
       }
-      return rotateRight(node);
-    } else if (bf < -1) {
-      var right = node.getRight();
-      if (height(right.getLeft()) > height(right.getRight())) {
-        node.setRight(rotateRight(right));
+    }
+    if (count == 0) {
+      return;
+    }
+    if (root() >= 0L) {
+      for (int i = 0; i < keys.length; i++) {
+        put(keys[i], values[i]);
       }
-      return rotateLeft(node);
-    } else {
-      updateHeight(node);
-      return node;
+      return;
     }
+    starts[count] = keys.length;
+    var counts = new long[count];
+    for (int i = 0; i < count; i++) {
+      counts[i] = starts[i + 1] - starts[i];
+    }
+    load(count, counts, new ArraySource(keys, values, starts));
   }
 
-  private VirtualNode rotateRight(VirtualNode n) {
-    var rotated = n.getLeft();
-    n.setLeft(rotated.getRight());
-    rotated.setRight(n);
-    updateHeight(n);
-    updateHeight(rotated);
-    return rotated;
-  }
-
-  private VirtualNode rotateLeft(VirtualNode n) {
-    var rotated = n.getRight();
-    n.setRight(rotated.getLeft());
-    rotated.setLeft(n);
-    updateHeight(n);
-    updateHeight(rotated);
-    return rotated;
-  }
-
-  private VirtualNode write(long key, long value) {
-    var last = getAndAdd(header, H_LAST, NODE_SIZE);
-    var entry = segment(last, NODE_SIZE, false);
-    var base = (int) (last - entry.offset);
-    var segment = entry.segment;
-    segment.set(JAVA_LONG, base + KEY, key);
-    segment.set(JAVA_LONG, base + VALUE, value);
-    segment.set(JAVA_LONG, base + NEXT, -1L);
-    segment.set(JAVA_LONG, base + LEFT, -1L);
-    segment.set(JAVA_LONG, base + RIGHT, -1L);
-    segment.set(JAVA_LONG, base + HEIGHT, 1L);
-    return new VirtualNode(segment, last, base, false, this);
+  /**
+   * Writes the entries of the map to a new file as a perfectly balanced tree followed sequentially
+   * by the value blocks of each node. Neither the free space nor the nodes and blocks replaced
+   * in the concurrent reads mode are copied, so the new file is densely packed. The map must not be
+   * modified during the compaction, the readers may proceed. The values of a key keep their order.
+   * The new file is checkpointed with the mark of this map before being returned.
+   *
+   * @param file An empty or non-existing target file
+   * @return The compacted map opened with the same settings
+   */
+  public LongLongAVLDiskMap compact(Path file) {
+    return compact(file, null);
   }
 
-  private SegmentEntry segment(long offset, int size, boolean ro) {
-    var entry = rw.ceilingEntry(offset - segmentSize + size);
-    if (entry != null && entry.getKey() <= offset) {
-      return new SegmentEntry(entry.getKey(), entry.getValue());
-    }
-    if (ro) {
-      entry = this.ro.ceilingEntry(offset - segmentSize + size);
-      if (entry != null && entry.getKey() <= offset) {
-        return new SegmentEntry(entry.getKey(), entry.getValue());
+  /**
+   * Writes the entries of the map accepted by the filter to a new file, see {@link #compact(Path)}.
+   * The keys having no accepted value are dropped.
+   *
+   * @param file   An empty or non-existing target file
+   * @param filter Entry filter returning true to keep the entry or null to keep all the entries
+   * @return The compacted map opened with the same settings
+   */
+  public LongLongAVLDiskMap compact(Path file, LongLongPredicate filter) {
+    // the first pass collects the value counts of the keys to lay out the tree
+    var counts = new long[64];
+    var count = 0;
+    var cursor = cursor();
+    for (var found = cursor.first(); found; found = cursor.next()) {
+      if (count == counts.length) {
+        counts = Arrays.copyOf(counts, count << 1);
       }
+      counts[count++] = cursor.countValues();
     }
-    var arena = Arena.ofShared();
-    try {
-      var segment = ro
-        ? channel.map(READ_ONLY, offset, Math.min(channel.size() - offset, segmentSize), arena)
-        : channel.map(READ_WRITE, offset, segmentSize, arena);
-      var segmentAddress = segment.address();
-      CLEAN_ACTIONS.put(segmentAddress, CLEANER.register(segment, () -> {
-        CLEAN_ACTIONS.remove(segmentAddress);
-        arena.close();
-      }));
-      var segments = ro ? this.ro : this.rw;
-      segments.put(offset, segment);
-      while (segments.size() > maxSegments) {
-        for (var it = segments.values().iterator(); it.hasNext(); ) {
-          var s = it.next();
-          if (s != segment && segments.size() > maxSegments) {
-            it.remove();
-            s.force();
-            if (segments.size() <= maxSegments) {
-              return new SegmentEntry(offset, segment);
-            }
+    EntrySource source = new CursorSource();
+    if (filter != null) {
+      // the second pass counts the accepted values, the keys without them are skipped by the source
+      var accepted = new long[count];
+      var kept = 0;
+      for (int i = 0; i < count; i++) {
+        var key = source.nextKey();
+        for (var j = 0L; j < counts[i]; j++) {
+          if (filter.test(key, source.nextValue())) {
+            accepted[i]++;
           }
         }
+        if (accepted[i] > 0L) {
+          counts[kept++] = accepted[i];
+        }
       }
-      return new SegmentEntry(offset, segment);
-    } catch (IOException e) {
-      arena.close();
-      throw new UncheckedIOException(e);
+      count = kept;
+      source = new FilteredSource(accepted, filter);
+    }
+    var target = new LongLongAVLDiskMap(file, segmentSize, maxSegments, concurrentReads, orderStatistics);
+    try {
+      if (target.root() >= 0L) {
+        throw new IllegalArgumentException("Target map is not empty: " + file);
+      }
+      if (count > 0) {
+        target.load(count, counts, source);
+      }
+      target.checkpoint(mark());
+      return target;
     } catch (Throwable e) {
-      arena.close();
+      target.close();
       throw e;
     }
   }
 
-  private VirtualNode node(long node, boolean ro) {
-    return node < 0L ? null : newNode(node, ro);
-  }
-
-  private VirtualNode newNode(long node, boolean ro) {
-    var entry = segment(node, NODE_SIZE, ro);
-    return new VirtualNode(entry.segment, node, (int) (node - entry.offset), ro, this);
+  // writes the tree of the distinct keys into the empty map
+  private void load(int count, long[] counts, EntrySource source) {
+    // node addresses relative to the allocated region
+    var addresses = new long[count];
+    var size = 0L;
+    for (int i = 0; i < count; i++) {
+      addresses[i] = size;
+      size += nodeSize + blocksSize(counts[i]);
+    }
+    var loader = new BulkLoader(source, counts, addresses, getAndAdd(header, H_LAST, size));
+    root(loader.build(0, count));
   }
 
-  private long root() {
-    return header.get(JAVA_LONG, H_ROOT);
+  // returns the node of the key or -1, the path to the node (or to its insertion point) is path[0, pathDepth)
+  private long locate(long key) {
+    var nodes = writer;
+    var depth = 0;
+    var node = root();
+    while (node >= 0L) {
+      var nodeKey = nodes.get(node, KEY);
+      if (key == nodeKey) {
+        break;
+      }
+      if (depth == path.length) {
+        path = Arrays.copyOf(path, depth << 1);
+      }
+      path[depth++] = node;
+      node = nodes.get(node, key < nodeKey ? LEFT : RIGHT);
+    }
+    pathDepth = depth;
+    return node;
   }
 
-  private static long getAndAdd(MemorySegment segment, long offset, long value) {
-    return (long) JAVA_LONG.varHandle().getAndAdd(segment, offset, value);
+  // returns the node of the key if it exists, otherwise inserts a new node with the value and returns -1
+  private long insert(long key, long value) {
+    var nodes = writer;
+    var depth = 0;
+    var node = root();
+    while (node >= 0L) {
+      var nodeKey = nodes.get(node, KEY);
+      if (key == nodeKey) {
+        pathDepth = depth;
+        return node;
+      }
+      if (depth == path.length) {
+        path = Arrays.copyOf(path, depth << 1);
+      }
+      path[depth++] = node;
+      node = nodes.get(node, key < nodeKey ? LEFT : RIGHT);
+    }
+    freshen(depth, key);
+    node = write(key, value);
+    // link the new node and rebalance the path bottom-up until the subtree height stays the same
+    for (var child = node; ; ) {
+      if (depth == 0) {
+        root(child);
+        break;
+      }
+      var parent = path[--depth];
+      var parentKey = nodes.get(parent, KEY);
+      nodes.set(parent, key < parentKey ? LEFT : RIGHT, child);
+      var height = nodes.get(parent, HEIGHT);
+      var balanced = balance(parent);
+      if (balanced == parent && nodes.get(parent, HEIGHT) == height) {
+        updateTotals(depth);
+        break;
+      }
+      child = balanced;
+    }
+    return -1L;
   }
 
-  private static long getAndSet(MemorySegment segment, long offset, long value) {
-    return (long) JAVA_LONG.varHandle().getAndSet(segment, offset, value);
+  // removes the node found by locate from the tree and rebalances the path bottom-up
+  private void unlink(long node) {
+    var nodes = writer;
+    var depth = pathDepth;
+    freshen(depth, nodes.get(node, KEY));
+    var left = nodes.get(node, LEFT);
+    var right = nodes.get(node, RIGHT);
+    if (left < 0L || right < 0L) {
+      link(depth, nodes.get(node, KEY), left < 0L ? right : left);
+    } else {
+      // the successor takes the place of the node
+      var slot = depth;
+      depth = push(depth, node);
+      var successor = right;
+      for (var l = nodes.get(successor, LEFT); l >= 0L; l = nodes.get(successor, LEFT)) {
+        depth = push(depth, successor);
+        successor = l;
+      }
+      // the path to the successor is copied bottom-up up to the first node modifiable in place,
+      // so the new subtree is published by a single link
+      var rest = nodes.get(successor, RIGHT);
+      var d = depth - 1;
+      for (; d > slot; d--) {
+        var n = path[d];
+        if (!concurrentReads && !stale(n)) {
+          nodes.set(n, LEFT, rest);
+          rest = right;
+          break;
+        }
+        var copy = copy(n);
+        nodes.set(copy, LEFT, rest);
+        release(n);
+        path[d] = rest = copy;
+      }
+      successor = writable(successor);
+      nodes.set(successor, LEFT, left);
+      nodes.set(successor, RIGHT, rest);
+      nodes.set(successor, HEIGHT, nodes.get(node, HEIGHT));
+      path[slot] = successor;
+      link(slot, nodes.get(successor, KEY), successor);
+    }
+    release(node);
+    // rebalance the path bottom-up until the subtree height stays the same
+    while (depth > 0) {
+      var n = path[--depth];
+      var height = nodes.get(n, HEIGHT);
+      var balanced = balance(n);
+      if (balanced != n) {
+        link(depth, nodes.get(balanced, KEY), balanced);
+      } else if (nodes.get(n, HEIGHT) == height) {
+        break;
+      }
+    }
+    updateTotals(depth);
+  }
+
+  // links the child to the node at the given path depth (or as the root), the key selects the side
+  private void link(int depth, long key, long child) {
+    if (depth == 0) {
+      root(child);
+    } else {
+      var nodes = writer;
+      var parent = path[depth - 1];
+      nodes.set(parent, key < nodes.get(parent, KEY) ? LEFT : RIGHT, child);
+    }
+  }
+
+  // replaces the stale nodes of the path[0, depth) by their copies, the stale nodes are a suffix of the path
+  // as the ancestors of a node written after the last checkpoint were copied before linking it
+  private void freshen(int depth, long key) {
+    var d = depth;
+    while (d > 0 && stale(path[d - 1])) {
+      d--;
+    }
+    for (; d < depth; d++) {
+      var node = path[d];
+      var copy = copy(node);
+      link(d, key, copy);
+      release(node);
+      path[d] = copy;
+    }
+  }
+
+  // returns the node or its copy to modify instead of it if the node is stale or in the concurrent reads mode
+  private long writable(long node) {
+    if (!concurrentReads && !stale(node)) {
+      return node;
+    }
+    var copy = copy(node);
+    release(node);
+    return copy;
+  }
+
+  private int push(int depth, long node) {
+    if (depth == path.length) {
+      path = Arrays.copyOf(path, depth << 1);
+    }
+    path[depth] = node;
+    return depth + 1;
+  }
+
+  private long height(long node) {
+    return node < 0L ? 0L : writer.get(node, HEIGHT);
+  }
+
+  // updates the height and the subtree total of the node from its children
+  private void update(long node) {
+    var nodes = writer;
+    nodes.set(node, HEIGHT, 1L + Math.max(height(nodes.get(node, LEFT)), height(nodes.get(node, RIGHT))));
+    if (orderStatistics) {
+      updateTotal(node);
+    }
+  }
+
+  private long total(NodeAccess nodes, long node) {
+    return node < 0L ? 0L : nodes.get(node, TOTAL);
+  }
+
+  private void updateTotal(long node) {
+    var nodes = writer;
+    nodes.set(node, TOTAL, nodes.get(node, COUNT) + total(nodes, nodes.get(node, LEFT)) + total(nodes, nodes.get(node, RIGHT)));
+  }
+
+  // recomputes the subtree totals of the path[0, depth) nodes bottom-up, the rebalancing stops below them
+  private void updateTotals(int depth) {
+    if (orderStatistics) {
+      for (var d = depth - 1; d >= 0; d--) {
+        updateTotal(path[d]);
+      }
+    }
+  }
+
+  private long balance(long node) {
+    var nodes = writer;
+    var left = nodes.get(node, LEFT);
+    var right = nodes.get(node, RIGHT);
+    var bf = height(left) - height(right);
+    if (bf > 1L) {
+      if (height(nodes.get(left, LEFT)) < height(nodes.get(left, RIGHT))) {
+        nodes.set(node, LEFT, rotateLeft(left));
+      }
+      return rotateRight(node);
+    } else if (bf < -1L) {
+      if (height(nodes.get(right, LEFT)) > height(nodes.get(right, RIGHT))) {
+        nodes.set(node, RIGHT, rotateRight(right));
+      }
+      return rotateLeft(node);
+    } else {
+      update(node);
+      return node;
+    }
+  }
+
+  // the rotated nodes are replaced by their copies in the concurrent reads mode or if they are stale
+  private long rotateRight(long n) {
+    var nodes = writer;
+    var rotated = writable(nodes.get(n, LEFT));
+    n = writable(n);
+    nodes.set(n, LEFT, nodes.get(rotated, RIGHT));
+    nodes.set(rotated, RIGHT, n);
+    update(n);
+    update(rotated);
+    return rotated;
+  }
+
+  private long rotateLeft(long n) {
+    var nodes = writer;
+    var rotated = writable(nodes.get(n, RIGHT));
+    n = writable(n);
+    nodes.set(n, RIGHT, nodes.get(rotated, LEFT));
+    nodes.set(rotated, LEFT, n);
+    update(n);
+    update(rotated);
+    return rotated;
+  }
+
+  private long write(long key, long value) {
+    var last = allocateNode();
+    var nodes = writer;
+    nodes.set(last, KEY, key);
+    nodes.set(last, VALUE, value);
+    nodes.set(last, TAIL, -1L);
+    nodes.set(last, COUNT, 1L);
+    nodes.set(last, LEFT, -1L);
+    nodes.set(last, RIGHT, -1L);
+    nodes.set(last, HEIGHT, 1L);
+    nodes.set(last, GENERATION, generation);
+    if (orderStatistics) {
+      nodes.set(last, TOTAL, 1L);
+    }
+    return last;
+  }
+
+  private SegmentEntry segment(long offset, int size, boolean ro) {
+    // fast path: the last used segments
+    var last = lastRw;
+    if (last != null && last.covers(offset, size)) {
+      lastHits.increment();
+      return last;
+    }
+    if (ro && (last = lastRo) != null && last.covers(offset, size)) {
+      lastHits.increment();
+      return last;
+    }
+    // the last used segments are marked as referenced when replaced, so the fast path does not write
+    var entry = rw.ceilingEntry(offset - segmentSize + size);
+    if (entry != null && entry.getKey() <= offset) {
+      hits.increment();
+      return lastRw(entry.getValue());
+    }
+    if (ro) {
+      entry = this.ro.ceilingEntry(offset - segmentSize + size);
+      // read-only segments may be shorter than segmentSize
+      if (entry != null && entry.getValue().covers(offset, size)) {
+        hits.increment();
+        var result = entry.getValue();
+        var prefetched = result.prefetched;
+        if (prefetched != 0) {
+          result.prefetched = 0;
+          prefetchHits.increment();
+          prefetch(result.offset, prefetched);
+        }
+        return lastRo(result);
+      }
+    }
+    misses.increment();
+    var result = map(offset, ro);
+    if (ro) {
+      this.ro.put(offset, result);
+      roHand = evict(this.ro, result, roHand);
+      if (prefetchSegments > 0) {
+        detectSequential(offset);
+      }
+      return lastRo(result);
+    } else {
+      rw.put(offset, result);
+      rwHand = evict(rw, result, rwHand);
+      return lastRw(result);
+    }
+  }
+
+  // maps a segment at the offset, the mapping is released by the cleaner once the segment is unreachable
+  private SegmentEntry map(long offset, boolean ro) {
+    var arena = Arena.ofShared();
+    try {
+      var segment = ro
+        ? channel.map(READ_ONLY, offset, Math.min(channel.size() - offset, segmentSize), arena)
+        : channel.map(READ_WRITE, offset, segmentSize, arena);
+      maps.increment();
+      var segmentAddress = segment.address();
+      var actions = cleanActions;
+      var unmaps = this.unmaps;
+      actions.put(segmentAddress, CLEANER.register(segment, () -> {
+        actions.remove(segmentAddress);
+        arena.close();
+        unmaps.increment();
+      }));
+      return new SegmentEntry(offset, segment);
+    } catch (IOException e) {
+      arena.close();
+      throw new UncheckedIOException(e);
+    } catch (Throwable e) {
+      arena.close();
+      throw e;
+    }
+  }
+
+  // a read-only miss within two segments from the previous one in the same direction is sequential,
+  // a run of such misses starts the prefetch ahead of the scan
+  private void detectSequential(long offset) {
+    var last = lastMiss;
+    var distance = offset - last;
+    var d = last < 0L || Math.abs(distance) > 2L * segmentSize ? 0 : Long.signum(distance);
+    sequentialMisses = d != 0 && d == direction ? sequentialMisses + 1 : 1;
+    direction = d;
+    lastMiss = offset;
+    if (d != 0 && sequentialMisses >= SEQUENTIAL_MISSES) {
+      prefetch(offset, d);
+    }
+  }
+
+  // maps and loads the segments following the one at the offset in the direction on a virtual thread,
+  // the segments already cached are skipped, a single prefetch runs at a time
+  private void prefetch(long from, int direction) {
+    if (!prefetching.compareAndSet(false, true)) {
+      return;
+    }
+    prefetcher = Thread.ofVirtual().name("avlmap-prefetch").start(() -> {
+      try {
+        for (int i = 1; i <= prefetchSegments; i++) {
+          var offset = Math.max(FILE_HEADER_SIZE, from + (long) direction * i * segmentSize);
+          var rest = channel.size() - offset;
+          if (rest <= 0L) {
+            break;
+          }
+          var cached = ro.floorEntry(offset);
+          if (cached != null && cached.getValue().covers(offset, (int) Math.min(rest, segmentSize / 2))) {
+            continue;
+          }
+          var entry = map(offset, true);
+          entry.segment.load();
+          entry.prefetched = direction;
+          if (ro.putIfAbsent(offset, entry) == null) {
+            roHand = evict(ro, entry, roHand);
+            prefetches.increment();
+          }
+        }
+      } catch (IOException | RuntimeException e) {
+        // the prefetch is a hint, the readers map the segments on demand
+      } finally {
+        prefetching.set(false);
+      }
+    });
+  }
+
+  private SegmentEntry lastRw(SegmentEntry entry) {
+    var last = lastRw;
+    if (last != null) {
+      last.referenced = true;
+    }
+    entry.referenced = true;
+    return lastRw = entry;
+  }
+
+  private SegmentEntry lastRo(SegmentEntry entry) {
+    var last = lastRo;
+    if (last != null) {
+      last.referenced = true;
+    }
+    entry.referenced = true;
+    return lastRo = entry;
+  }
+
+  // CLOCK eviction: the hand sweeps the segments in offset order clearing the reference bits
+  // and evicts the first segment not referenced since the previous sweep, returns the new hand position.
+  // The evicted segments are not forced, their changes are written back by the OS on unmapping
+  // and flushed by the close method.
+  private long evict(ConcurrentSkipListMap<Long, SegmentEntry> segments, SegmentEntry added, long hand) {
+    while (segments.size() > maxSegments) {
+      var e = segments.higherEntry(hand);
+      if (e == null && (e = segments.firstEntry()) == null) {
+        break;
+      }
+      hand = e.getKey();
+      var s = e.getValue();
+      if (s == added || s == lastRw || s == lastRo) {
+        continue;
+      }
+      if (s.referenced) {
+        s.referenced = false;
+      } else {
+        segments.remove(hand, s);
+      }
+    }
+    return hand;
+  }
+
+  private Block block(long addr, boolean ro) {
+    var entry = segment(addr, B_VALUES, ro);
+    var base = addr - entry.offset;
+    var size = B_VALUES + entry.segment.get(JAVA_INT, base + B_CAPACITY) * (long) Long.BYTES;
+    if (base + size > entry.segment.byteSize()) {
+      entry = segment(addr, (int) size, ro);
+      base = addr - entry.offset;
+    }
+    return new Block(entry.segment, base, addr);
+  }
+
+  private long allocateNode() {
+    var free = header.get(JAVA_LONG, H_FREE_NODES);
+    if (free == 0L) {
+      return getAndAdd(header, H_LAST, nodeSize);
+    }
+    header.set(JAVA_LONG, H_FREE_NODES, writer.get(free, KEY));
+    return free;
+  }
+
+  // frees the removed node, a stale one is freed after the next checkpoint as the checkpointed tree refers to it,
+  // the removed cells are not reused in the concurrent reads mode
+  private void release(long node) {
+    if (concurrentReads) {
+      header.set(JAVA_LONG, H_GARBAGE, header.get(JAVA_LONG, H_GARBAGE) + nodeSize);
+      return;
+    }
+    if (stale(node)) {
+      if (releasedNodeCount == releasedNodes.length) {
+        releasedNodes = Arrays.copyOf(releasedNodes, releasedNodeCount << 1);
+      }
+      releasedNodes[releasedNodeCount++] = node;
+    } else {
+      free(node);
+    }
+  }
+
+  private void release(Block block) {
+    if (concurrentReads) {
+      var size = B_VALUES + block.capacity() * (long) Long.BYTES;
+      header.set(JAVA_LONG, H_GARBAGE, header.get(JAVA_LONG, H_GARBAGE) + size);
+      return;
+    }
+    if (stale(block)) {
+      if (releasedBlockCount == releasedBlocks.length) {
+        releasedBlocks = Arrays.copyOf(releasedBlocks, releasedBlockCount << 1);
+      }
+      releasedBlocks[releasedBlockCount++] = block.addr;
+    } else {
+      free(block);
+    }
+  }
+
+  // releases the blocks of the [first, tail] chain
+  private void releaseBlocks(long first, long tail) {
+    for (var addr = first; ; ) {
+      var block = block(addr, false);
+      var next = block.next();
+      release(block);
+      if (addr == tail) {
+        break;
+      }
+      addr = next;
+    }
+  }
+
+  // links the node to the free list
+  private void free(long node) {
+    writer.set(node, KEY, header.get(JAVA_LONG, H_FREE_NODES));
+    header.set(JAVA_LONG, H_FREE_NODES, node);
+  }
+
+  // links the block to the free list of the largest class it fits
+  private void free(Block block) {
+    var head = H_FREE_BLOCKS + (31 - Integer.numberOfLeadingZeros(block.capacity() / MIN_BLOCK)) * Long.BYTES;
+    block.next(header.get(JAVA_LONG, head));
+    header.set(JAVA_LONG, head, block.addr);
+  }
+
+  // the cells written before the last checkpoint belong to the checkpointed tree and must not be modified
+  private boolean stale(long node) {
+    return writer.get(node, GENERATION) != generation;
+  }
+
+  private boolean stale(Block block) {
+    return block.generation() != (int) generation;
+  }
+
+  // allocates an empty block with the used slots range positioned at the given slot,
+  // a reused block may have more slots than requested
+  private Block newBlock(int capacity, int position) {
+    var head = H_FREE_BLOCKS + (32 - Integer.numberOfLeadingZeros((capacity - 1) / MIN_BLOCK)) * Long.BYTES;
+    var free = header.get(JAVA_LONG, head);
+    if (free != 0L) {
+      var block = block(free, false);
+      header.set(JAVA_LONG, head, block.next());
+      block.next(-1L);
+      block.start(position);
+      block.end(position);
+      block.generation((int) generation);
+      return block;
+    }
+    var size = B_VALUES + capacity * (long) Long.BYTES;
+    var addr = getAndAdd(header, H_LAST, size);
+    var entry = segment(addr, (int) size, false);
+    var block = new Block(entry.segment, addr - entry.offset, addr);
+    block.next(-1L);
+    block.segment.set(JAVA_INT, block.base + B_CAPACITY, capacity);
+    block.start(position);
+    block.end(position);
+    block.generation((int) generation);
+    return block;
+  }
+
+  // the blocks grow with the number of values of a key
+  private int blockCapacity(long count) {
+    return (int) Math.min(maxBlock, Math.max(MIN_BLOCK, Long.highestOneBit(count)));
+  }
+
+  // size of the full blocks holding the given number of values written by the bulk load
+  private long blocksSize(long count) {
+    if (count == 1L) {
+      return 0L;
+    }
+    var full = count / maxBlock;
+    var rest = count % maxBlock;
+    return full * (B_VALUES + maxBlock * (long) Long.BYTES) + (rest == 0 ? 0L : B_VALUES + Math.max(MIN_BLOCK, rest) * (long) Long.BYTES);
+  }
+
+  // the block chains are traversed up to the tail read before the head, as a tail written before the last
+  // checkpoint may be followed by the blocks of a newer generation (or by garbage after a crash); the writer
+  // links the blocks before publishing them as the tail
+  private boolean testValues(long key, long count, long tail, long value, boolean ro, LongLongPredicate visitor) {
+    if (count == 1L) {
+      return visitor.test(key, value);
+    }
+    for (var addr = value; ; ) {
+      var block = block(addr, ro);
+      for (int i = block.start(), end = block.end(); i < end; i++) {
+        if (!visitor.test(key, block.value(i))) return false;
+      }
+      if (addr == tail || (addr = block.next()) < 0L) {
+        return true;
+      }
+    }
+  }
+
+  private boolean contains(long count, long tail, long first, long value, LongBinaryOperator comparator) {
+    if (count == 1L) {
+      return comparator.applyAsLong(value, first) == 0L;
+    }
+    for (var addr = first; ; ) {
+      var block = block(addr, true);
+      if (comparator.applyAsLong(value, block.value(block.end() - 1)) <= 0L) {
+        return block.search(value, comparator) >= 0;
+      }
+      if (addr == tail || (addr = block.next()) < 0L) {
+        return false;
+      }
+    }
+  }
+
+  private LongStream values(long count, long tail, long first) {
+    if (count == 1L) {
+      return LongStream.of(first);
+    }
+    return Stream.iterate(block(first, true), Objects::nonNull, b -> b.addr == tail || b.next() < 0L ? null : block(b.next(), true))
+      .flatMapToLong(b -> IntStream.range(b.start(), b.end()).mapToLong(b::value));
+  }
+
+  private void setFirst(long node, long value) {
+    var nodes = writer;
+    if (nodes.get(node, COUNT) == 1L) {
+      nodes.set(node, VALUE, value);
+    } else {
+      var head = block(nodes.get(node, VALUE), false);
+      if (stale(head)) {
+        var copy = copy(head);
+        copy.value(copy.start(), value);
+        var tail = nodes.get(node, TAIL) == head.addr;
+        if (!tail) {
+          copy.next(head.next());
+        }
+        nodes.set(node, VALUE, copy.addr);
+        if (tail) {
+          nodes.set(node, TAIL, copy.addr);
+        }
+        release(head);
+      } else {
+        head.value(head.start(), value);
+      }
+    }
+  }
+
+  private void add(long node, long value, LongBinaryOperator comparator) {
+    var nodes = writer;
+    var head = blocks(node);
+    var c = comparator.applyAsLong(value, head.value(head.start()));
+    if (c <= 0L) {
+      if (c < 0L) prepend(node, head, value);
+      return;
+    }
+    var tail = block(nodes.get(node, TAIL), false);
+    c = comparator.applyAsLong(value, tail.value(tail.end() - 1));
+    if (c >= 0L) {
+      if (c > 0L) append(node, tail, value);
+      return;
+    }
+    // the value lies between the first and the last values, skip the blocks with smaller values
+    for (Block prev = null, block = head; ; prev = block, block = block(block.next(), false)) {
+      if (comparator.applyAsLong(value, block.value(block.end() - 1)) <= 0L) {
+        var i = block.search(value, comparator);
+        if (i < 0) {
+          if (concurrentReads || stale(block)) {
+            replace(node, prev, block, -i - 1, value);
+          } else {
+            insert(node, block, -i - 1, value);
+          }
+        }
+        return;
+      }
+    }
+  }
+
+  // moves the single value of the node to a block if needed and returns the head block
+  private Block blocks(long node) {
+    var nodes = writer;
+    var value = nodes.get(node, VALUE);
+    if (nodes.get(node, COUNT) > 1L) {
+      return block(value, false);
+    }
+    var block = newBlock(MIN_BLOCK, MIN_BLOCK / 2);
+    block.value(MIN_BLOCK / 2, value);
+    block.end(MIN_BLOCK / 2 + 1);
+    nodes.set(node, VALUE, block.addr);
+    nodes.set(node, TAIL, block.addr);
+    return block;
+  }
+
+  private void prepend(long node, Block head, long value) {
+    var nodes = writer;
+    var start = head.start();
+    if (start == 0 || stale(head)) {
+      var capacity = blockCapacity(nodes.get(node, COUNT));
+      var block = newBlock(capacity, capacity);
+      block.value(capacity - 1, value);
+      block.start(capacity - 1);
+      block.next(head.addr);
+      nodes.set(node, VALUE, block.addr);
+    } else {
+      head.value(start - 1, value);
+      head.start(start - 1);
+    }
+    incrementCount(node);
+  }
+
+  private void append(long node, Block tail, long value) {
+    var nodes = writer;
+    var end = tail.end();
+    if (end == tail.capacity() || stale(tail)) {
+      var block = newBlock(blockCapacity(nodes.get(node, COUNT)), 0);
+      block.value(0, value);
+      block.end(1);
+      // the next block address of a stale tail is not read through the checkpointed tree
+      tail.next(block.addr);
+      nodes.set(node, TAIL, block.addr);
+    } else {
+      tail.value(end, value);
+      tail.end(end + 1);
+    }
+    incrementCount(node);
+  }
+
+  // inserts the value before the i-th slot shifting the shorter side of the block
+  private void insert(long node, Block block, int i, long value) {
+    var start = block.start();
+    var end = block.end();
+    var capacity = block.capacity();
+    if (start > 0 && (end == capacity || i - start <= end - i)) {
+      block.moveTo(start, i, block, start - 1);
+      block.start(start - 1);
+      block.value(i - 1, value);
+    } else if (end < capacity) {
+      block.moveTo(i, end, block, i + 1);
+      block.end(end + 1);
+      block.value(i, value);
+    } else {
+      // split the full block moving its upper half to a new block
+      var half = (start + end) >>> 1;
+      var next = newBlock(capacity, 0);
+      block.moveTo(half, end, next, 0);
+      next.end(end - half);
+      next.next(block.next());
+      block.next(next.addr);
+      block.end(half);
+      if (writer.get(node, TAIL) == block.addr) {
+        writer.set(node, TAIL, next.addr);
+      }
+      if (i <= half) {
+        insert(node, block, i, value);
+      } else {
+        insert(node, next, i - half, value);
+      }
+      return;
+    }
+    incrementCount(node);
+  }
+
+  // removes the i-th slot of the block of the node having more than one value
+  private void removeAt(long node, Block prev, Block block, int i) {
+    var nodes = writer;
+    var count = nodes.get(node, COUNT) - 1L;
+    if (count == 1L) {
+      // the remaining value moves back to the node
+      var first = nodes.get(node, VALUE);
+      var tail = nodes.get(node, TAIL);
+      var remaining = 0L;
+      for (var addr = first; ; addr = block(addr, false).next()) {
+        var b = block(addr, false);
+        for (int j = b.start(), end = b.end(); j < end; j++) {
+          if (addr != block.addr || j != i) {
+            remaining = b.value(j);
+          }
+        }
+        if (addr == tail) {
+          break;
+        }
+      }
+      releaseBlocks(first, tail);
+      nodes.set(node, VALUE, remaining);
+      nodes.set(node, TAIL, -1L);
+      nodes.set(node, COUNT, 1L);
+      return;
+    }
+    var start = block.start();
+    var end = block.end();
+    var tail = nodes.get(node, TAIL) == block.addr;
+    if (end - start == 1) {
+      // the emptied block is unlinked, it is not the only block as the node keeps more than one value
+      prev = relink(node, prev, tail ? -1L : block.next());
+      if (tail) {
+        nodes.set(node, TAIL, prev.addr);
+      }
+      release(block);
+    } else if (concurrentReads || stale(block)) {
+      var copy = newBlock(block.capacity(), 0);
+      block.moveTo(start, i, copy, 0);
+      block.moveTo(i + 1, end, copy, i - start);
+      copy.end(end - start - 1);
+      if (!tail) {
+        copy.next(block.next());
+      }
+      relink(node, prev, copy.addr);
+      if (tail) {
+        nodes.set(node, TAIL, copy.addr);
+      }
+      release(block);
+    } else if (i - start < end - 1 - i) {
+      block.moveTo(start, i, block, start + 1);
+      block.start(start + 1);
+    } else {
+      block.moveTo(i + 1, end, block, i);
+      block.end(end - 1);
+    }
+    nodes.set(node, COUNT, count);
+  }
+
+  // inserts the value before the i-th slot writing the block with the value to a new block or two
+  // new blocks if it is full, then links them instead of the block
+  private void replace(long node, Block prev, Block block, int i, long value) {
+    var nodes = writer;
+    var start = block.start();
+    var end = block.end();
+    var capacity = block.capacity();
+    var count = end - start + 1;
+    var first = newBlock(capacity, 0);
+    var last = first;
+    if (count <= capacity) {
+      copy(block, i, value, 0, count, first);
+    } else {
+      last = newBlock(capacity, 0);
+      copy(block, i, value, 0, count / 2, first);
+      copy(block, i, value, count / 2, count, last);
+      first.next(last.addr);
+    }
+    var tail = nodes.get(node, TAIL) == block.addr;
+    if (!tail) {
+      last.next(block.next());
+    }
+    relink(node, prev, first.addr);
+    if (tail) {
+      nodes.set(node, TAIL, last.addr);
+    }
+    release(block);
+    incrementCount(node);
+  }
+
+  // links the address after the predecessor block or as the head if there is no predecessor, the stale
+  // predecessors are replaced by copies back to the first fresh one, returns the block preceding the address
+  private Block relink(long node, Block prev, long addr) {
+    var nodes = writer;
+    if (prev == null) {
+      nodes.set(node, VALUE, addr);
+      return null;
+    }
+    if (!stale(prev)) {
+      prev.next(addr);
+      return prev;
+    }
+    var n = 0;
+    for (var a = nodes.get(node, VALUE); ; a = block(a, false).next()) {
+      if (n == chain.length) {
+        chain = Arrays.copyOf(chain, n << 1);
+      }
+      chain[n++] = a;
+      if (a == prev.addr) {
+        break;
+      }
+    }
+    Block result = null;
+    for (var block = prev; ; ) {
+      var copy = copy(block);
+      copy.next(addr);
+      release(block);
+      addr = copy.addr;
+      if (result == null) {
+        result = copy;
+      }
+      if (--n == 0) {
+        nodes.set(node, VALUE, addr);
+        return result;
+      }
+      block = block(chain[n - 1], false);
+      if (!stale(block)) {
+        block.next(addr);
+        return result;
+      }
+    }
+  }
+
+  // writes a copy of the block keeping the positions of the used slots
+  private Block copy(Block block) {
+    var start = block.start();
+    var end = block.end();
+    var copy = newBlock(block.capacity(), start);
+    block.moveTo(start, end, copy, start);
+    copy.end(end);
+    return copy;
+  }
+
+  // copies the [from, to) values of the block values with the value inserted before the i-th slot
+  private static void copy(Block block, int i, long value, int from, int to, Block target) {
+    var start = block.start();
+    var at = i - start;
+    var position = 0;
+    if (from < Math.min(to, at)) {
+      block.moveTo(start + from, start + Math.min(to, at), target, position);
+      position += Math.min(to, at) - from;
+    }
+    if (from <= at && at < to) {
+      target.value(position++, value);
+    }
+    var rest = Math.max(from, at + 1);
+    if (rest < to) {
+      block.moveTo(start + rest - 1, start + to - 1, target, position);
+      position += to - rest;
+    }
+    target.end(position);
+  }
+
+  // prepares the node found by insert or locate for a modification, returns a copy of the node if it is stale
+  // or if the representation of its values changes in the concurrent reads mode
+  private long detach(long node, boolean transition) {
+    freshen(pathDepth, writer.get(node, KEY));
+    return stale(node) || concurrentReads && transition ? copy(node) : node;
+  }
+
+  // links the modified copy instead of the node and updates the subtree totals of the path
+  private void attach(long node, long target) {
+    if (target != node) {
+      link(pathDepth, writer.get(node, KEY), target);
+      release(node);
+    }
+    if (orderStatistics) {
+      updateTotal(target);
+      updateTotals(pathDepth);
+    }
+  }
+
+  private long copy(long node) {
+    var copy = allocateNode();
+    var nodes = writer;
+    for (var field = KEY; field < GENERATION; field += Long.BYTES) {
+      nodes.set(copy, field, nodes.get(node, field));
+    }
+    nodes.set(copy, GENERATION, generation);
+    if (orderStatistics) {
+      nodes.set(copy, TOTAL, nodes.get(node, TOTAL));
+    }
+    return copy;
+  }
+
+  private void incrementCount(long node) {
+    writer.set(node, COUNT, writer.get(node, COUNT) + 1L);
+  }
+
+  private long root() {
+    return getAcquire(header, H_ROOT);
+  }
+
+  private void root(long root) {
+    setRelease(header, H_ROOT, root);
+  }
+
+  private static long getAndAdd(MemorySegment segment, long offset, long value) {
+    return (long) JAVA_LONG.varHandle().getAndAdd(segment, offset, value);
+  }
+
+  private static long getAcquire(MemorySegment segment, long offset) {
+    return (long) JAVA_LONG.varHandle().getAcquire(segment, offset);
+  }
+
+  private static void setRelease(MemorySegment segment, long offset, long value) {
+    JAVA_LONG.varHandle().setRelease(segment, offset, value);
   }
 
   /**
-   * Forces the cached segments to flush back to the storage, closes the file channel.
+   * Writes a checkpoint marked as the clean one, so the free lists are kept, closes the file channel.
    * On Windows there is an issue of not being able to delete a file if there is at least
    * one buffer that wasn't unmapped. To overcome this issue we are using a trick to
    * wrap such buffers into {@link java.lang.ref.WeakReference} and then generate
@@ -434,16 +1870,28 @@ public final class LongLongAVLDiskMap implements AutoCloseable {
   public void close() {
     try (channel; headerArena; var _ = (Closeable) header::force) {
       var exception = new IllegalArgumentException();
-      ro.clear();
-      rw.entrySet().removeIf(e -> {
+      try {
+        // the cells freed by the first checkpoint are in the free lists of the second one
+        if (commit()) {
+          commit();
+        }
+        header.set(JAVA_LONG, H_CLEAN, generation - 1L);
+      } catch (Throwable x) {
+        exception.addSuppressed(new IllegalStateException("Unable to checkpoint", x));
+      }
+      var thread = prefetcher;
+      if (thread != null) {
         try {
-          e.getValue().force();
-        } catch (Throwable x) {
-          exception.addSuppressed(new IllegalStateException("Unable to force segment at " + e.getKey(), x));
+          thread.join();
+        } catch (InterruptedException x) {
+          Thread.currentThread().interrupt();
+          exception.addSuppressed(x);
         }
-        return true;
-      });
-      CLEAN_ACTIONS.entrySet().removeIf(e -> {
+      }
+      lastRw = lastRo = null;
+      ro.clear();
+      rw.clear();
+      cleanActions.entrySet().removeIf(e -> {
         try {
           e.getValue().clean();
         } catch (Throwable x) {
@@ -466,6 +1914,13 @@ public final class LongLongAVLDiskMap implements AutoCloseable {
     return maxSegments;
   }
 
+  private static int checkPrefetchSegments(int prefetchSegments, int maxSegments) {
+    if (prefetchSegments < 0 || prefetchSegments >= maxSegments) {
+      throw new IllegalArgumentException("prefetchSegments must be in [0, maxSegments)");
+    }
+    return prefetchSegments;
+  }
+
   private static int checkSegmentSize(int segmentSize) {
     if (segmentSize < 1024) {
       throw new IllegalArgumentException("segmentSize must be at least 1024");
@@ -476,176 +1931,522 @@ public final class LongLongAVLDiskMap implements AutoCloseable {
     return segmentSize;
   }
 
-  private static boolean couldUseTheSameSegment(long addr, long offset, int dataSize, int segmentSize) {
+  private static boolean couldUseTheSameSegment(long addr, long offset, int dataSize, long segmentSize) {
     return addr >= offset && addr <= offset + segmentSize - dataSize;
   }
 
-  private record VirtualNode(MemorySegment segment, long node, int base, boolean ro, LongLongAVLDiskMap map) {
+  // reads and writes the node fields by address through the last used segment
+  private final class NodeAccess {
+
+    private final boolean ro;
+    private MemorySegment segment;
+    private long offset;
+    private long length;
 
-    private void set(long value) {
-      segment.set(JAVA_LONG, base + VALUE, value);
+    private NodeAccess(boolean ro) {
+      this.ro = ro;
     }
 
-    private void add(long value) {
-      var last = getAndAdd(map.header, H_LAST, 16L);
-      valueSegmentOf(last).set(last, getAndSet(segment, base + VALUE, value), getAndSet(segment, base + NEXT, last));
+    private long get(long node, int field) {
+      var s = segment(node);
+      return ro ? getAcquire(s, node - offset + field) : s.get(JAVA_LONG, node - offset + field);
     }
 
-    private void add(long value, LongBinaryOperator comparator) {
-      var v = segment.get(JAVA_LONG, base + VALUE);
-      var c = comparator.applyAsLong(value, v);
-      if (c == 0) {
-        return;
+    private void set(long node, int field, long value) {
+      setRelease(segment(node), node - offset + field, value);
+    }
+
+    private MemorySegment segment(long node) {
+      var o = node - offset;
+      if (o < 0L || o > length - nodeSize) {
+        var entry = LongLongAVLDiskMap.this.segment(node, nodeSize, ro);
+        segment = entry.segment;
+        offset = entry.offset;
+        length = segment.byteSize();
       }
-      if (c < 0) {
-        add(value);
-      } else {
-        var prevEntry = new SegmentEntry(node - base, segment);
-        var prevNode = node;
-        for (var n = segment.get(JAVA_LONG, base + NEXT); n >= 0; ) {
-          var s = valueSegmentOf(n);
-          v = s.value(n);
-          if ((c = comparator.applyAsLong(value, v)) == 0) return;
-          if (c < 0) {
-            var last = getAndAdd(map.header, H_LAST, 16L);
-            var lastEntry = valueSegmentOf(last);
-            prevEntry.next(prevNode, last);
-            lastEntry.set(last, value, n);
-            return;
-          } else {
-            var nn = s.next(n);
-            if (nn < 0L) {
-              var last = getAndAdd(map.header, H_LAST, 16L);
-              valueSegmentOf(last).set(last, value, -1L);
-              s.next(n, last);
-              return;
-            }
-            prevNode = n;
-            prevEntry = s;
-            n = nn;
-          }
+      return segment;
+    }
+  }
+
+  /**
+   * An ordered cursor over the keys of the map. The cursor keeps the path from the root
+   * to the current node as node addresses and reads the nodes through read-only mapped segments,
+   * so moving the cursor does not allocate. Any map modification invalidates the position of the cursor,
+   * it should be repositioned by a seek method after that.
+   */
+  public final class Cursor {
+
+    private final NodeAccess nodes = new NodeAccess(true);
+    private long[] path = new long[64];
+    private int depth;
+
+    private Cursor() {
+    }
+
+    /**
+     * Positions the cursor at the smallest key.
+     *
+     * @return False if the map is empty
+     */
+    public boolean first() {
+      depth = 0;
+      return descend(root(), LEFT);
+    }
+
+    /**
+     * Positions the cursor at the largest key.
+     *
+     * @return False if the map is empty
+     */
+    public boolean last() {
+      depth = 0;
+      return descend(root(), RIGHT);
+    }
+
+    /**
+     * Positions the cursor at the smallest key greater than or equal to the given key.
+     *
+     * @param key Key
+     * @return False if there is no such key
+     */
+    public boolean ceiling(long key) {
+      depth = 0;
+      var found = 0;
+      for (var node = root(); node >= 0L; ) {
+        push(node);
+        var nodeKey = nodes.get(node, KEY);
+        if (key < nodeKey) {
+          found = depth;
+          node = nodes.get(node, LEFT);
+        } else if (key > nodeKey) {
+          node = nodes.get(node, RIGHT);
+        } else {
+          return true;
+        }
+      }
+      depth = found;
+      return found > 0;
+    }
+
+    /**
+     * Positions the cursor at the largest key less than or equal to the given key.
+     *
+     * @param key Key
+     * @return False if there is no such key
+     */
+    public boolean floor(long key) {
+      depth = 0;
+      var found = 0;
+      for (var node = root(); node >= 0L; ) {
+        push(node);
+        var nodeKey = nodes.get(node, KEY);
+        if (key > nodeKey) {
+          found = depth;
+          node = nodes.get(node, RIGHT);
+        } else if (key < nodeKey) {
+          node = nodes.get(node, LEFT);
+        } else {
+          return true;
         }
       }
+      depth = found;
+      return found > 0;
+    }
+
+    /**
+     * Moves the cursor to the next key in ascending order.
+     *
+     * @return False if there is no next key, the cursor becomes unpositioned
+     */
+    public boolean next() {
+      return move(RIGHT, LEFT);
+    }
+
+    /**
+     * Moves the cursor to the previous key in ascending order.
+     *
+     * @return False if there is no previous key, the cursor becomes unpositioned
+     */
+    public boolean previous() {
+      return move(LEFT, RIGHT);
     }
 
-    private long getKey() {
-      return segment.get(JAVA_LONG, base + KEY);
+    /**
+     * Returns true if the cursor is positioned at a key.
+     *
+     * @return Position status
+     */
+    public boolean isPositioned() {
+      return depth > 0;
     }
 
-    private VirtualNode getLeft() {
-      return nodeOf(segment.get(JAVA_LONG, base + LEFT));
+    /**
+     * Returns the key at the cursor position.
+     *
+     * @return Current key
+     */
+    public long key() {
+      return nodes.get(current(), KEY);
     }
 
-    private VirtualNode getRight() {
-      return nodeOf(segment.get(JAVA_LONG, base + RIGHT));
+    /**
+     * Visits the values of the current key in the order they are stored.
+     *
+     * @param consumer Value consumer
+     */
+    public void forEachValue(LongConsumer consumer) {
+      testValues((_, v) -> {
+        consumer.accept(v);
+        return true;
+      });
     }
 
-    private VirtualNode nodeOf(long node) {
-      if (node < 0L) {
-        return null;
+    /**
+     * Visits the values of the current key in the order they are stored.
+     *
+     * @param visitor Entry visitor returning false to stop the iteration
+     * @return False if the iteration was stopped by the visitor
+     */
+    public boolean testValues(LongLongPredicate visitor) {
+      var node = current();
+      var key = nodes.get(node, KEY);
+      return LongLongAVLDiskMap.this.testValues(key, nodes.get(node, COUNT), nodes.get(node, TAIL), nodes.get(node, VALUE), true, visitor);
+    }
+
+    /**
+     * Returns number of values of the current key.
+     *
+     * @return Values count
+     */
+    public long countValues() {
+      return nodes.get(current(), COUNT);
+    }
+
+    // goes to the extreme node of the subtree in the child direction
+    private boolean descend(long node, int child) {
+      for (; node >= 0L; node = nodes.get(node, child)) {
+        push(node);
       }
-      var offset = this.node - base;
-      return couldUseTheSameSegment(node, offset, NODE_SIZE, map.segmentSize)
-        ? new VirtualNode(segment, node, (int) (node - offset), ro, map)
-        : map.newNode(node, ro);
+      return depth > 0;
     }
 
-    private SegmentEntry valueSegmentOf(long addr) {
-      var offset = node - base;
-      return couldUseTheSameSegment(addr, offset, 16, map.segmentSize)
-        ? new SegmentEntry(offset, segment)
-        : map.segment(addr, 16, ro);
+    private boolean move(int forward, int backward) {
+      if (depth == 0) {
+        return false;
+      }
+      var node = path[depth - 1];
+      var child = nodes.get(node, forward);
+      if (child >= 0L) {
+        return descend(child, backward);
+      }
+      // climb up until we come from the backward side of the parent
+      while (--depth > 0) {
+        var parent = path[depth - 1];
+        if (nodes.get(parent, backward) == node) {
+          return true;
+        }
+        node = parent;
+      }
+      return false;
     }
 
-    private void setLeft(VirtualNode node) {
-      segment.set(JAVA_LONG, base + LEFT, node == null ? -1L : node.node);
+    private long current() {
+      if (depth == 0) {
+        throw new NoSuchElementException("Cursor is not positioned");
+      }
+      return path[depth - 1];
     }
 
-    private void setRight(VirtualNode node) {
-      segment.set(JAVA_LONG, base + RIGHT, node == null ? -1L : node.node);
+    private void push(long node) {
+      if (depth == path.length) {
+        path = Arrays.copyOf(path, depth << 1);
+      }
+      path[depth++] = node;
     }
+  }
+
+  // supplies the entries to the bulk load in the key order, the values of a key in the stored order
+  private interface EntrySource {
 
-    private long getHeight() {
-      return segment.get(JAVA_LONG, base + HEIGHT);
+    // moves to the next key
+    long nextKey();
+
+    // returns the next value of the current key
+    long nextValue();
+  }
+
+  // the groups of the sorted arrays, the values of a group are stored in the reverse order as put does
+  private static final class ArraySource implements EntrySource {
+
+    private final long[] keys;
+    private final long[] values;
+    private final int[] starts;
+    private int group = -1;
+    private int value;
+
+    private ArraySource(long[] keys, long[] values, int[] starts) {
+      this.keys = keys;
+      this.values = values;
+      this.starts = starts;
     }
 
-    private void setHeight(long height) {
-      segment.set(JAVA_LONG, base + HEIGHT, height);
+    @Override
+    public long nextKey() {
+      value = starts[++group + 1];
+      return keys[starts[group]];
     }
 
-    private void forEachValue(LongConsumer consumer) {
-      consumer.accept(segment.get(JAVA_LONG, base + VALUE));
-      for (var n = segment.get(JAVA_LONG, base + NEXT); n >= 0L; ) {
-        var entry = valueSegmentOf(n);
-        consumer.accept(entry.value(n));
-        n = entry.next(n);
+    @Override
+    public long nextValue() {
+      return values[--value];
+    }
+  }
+
+  // the entries of this map visited by a cursor
+  private final class CursorSource implements EntrySource {
+
+    private final Cursor cursor = cursor();
+    private long count;
+    private long first;
+    private Block block;
+    private int slot;
+
+    @Override
+    public long nextKey() {
+      if (!(cursor.isPositioned() ? cursor.next() : cursor.first())) {
+        throw new ConcurrentModificationException("The map was modified during the compaction");
       }
+      var node = cursor.current();
+      count = cursor.nodes.get(node, COUNT);
+      first = cursor.nodes.get(node, VALUE);
+      block = null;
+      return cursor.nodes.get(node, KEY);
     }
 
-    private boolean contains(long value) {
-      if (value == segment.get(JAVA_LONG, base + VALUE)) return true;
-      for (var n = segment.get(JAVA_LONG, base + NEXT); n >= 0L; ) {
-        var entry = valueSegmentOf(n);
-        if (entry.value(n) == value) return true;
-        n = entry.next(n);
+    @Override
+    public long nextValue() {
+      if (count == 1L) {
+        return first;
       }
-      return false;
+      while (block == null || slot == block.end()) {
+        block = block(block == null ? first : block.next(), true);
+        slot = block.start();
+      }
+      return block.value(slot++);
+    }
+  }
+
+  // the entries of this map accepted by the filter, the keys without accepted values are skipped
+  private final class FilteredSource implements EntrySource {
+
+    private final CursorSource source = new CursorSource();
+    private final long[] accepted;
+    private final LongLongPredicate filter;
+    private int index = -1;
+    private long key;
+
+    private FilteredSource(long[] accepted, LongLongPredicate filter) {
+      this.accepted = accepted;
+      this.filter = filter;
     }
 
-    private boolean contains(long value, LongBinaryOperator comparator) {
-      var c = comparator.applyAsLong(value, segment.get(JAVA_LONG, base + VALUE));
-      if (c == 0) return true;
-      for (var n = segment.get(JAVA_LONG, base + NEXT); n >= 0L; ) {
-        var entry = valueSegmentOf(n);
-        if ((c = comparator.applyAsLong(value, entry.value(n))) == 0) return true;
-        else if (c < 0) return false;
-        else n = entry.next(n);
+    @Override
+    public long nextKey() {
+      do {
+        key = source.nextKey();
+      } while (accepted[++index] == 0L);
+      return key;
+    }
+
+    @Override
+    public long nextValue() {
+      while (true) {
+        var value = source.nextValue();
+        if (filter.test(key, value)) {
+          return value;
+        }
+      }
+    }
+  }
+
+  // writes the nodes in the key order, each node is followed by the full blocks of its values
+  private final class BulkLoader {
+
+    private final EntrySource source;
+    private final long[] counts;
+    private final long[] addresses;
+    private final long base;
+    // values counts of the [0, i) keys giving the subtree totals
+    private final long[] totals;
+    private SegmentEntry entry;
+
+    private BulkLoader(EntrySource source, long[] counts, long[] addresses, long base) {
+      this.source = source;
+      this.counts = counts;
+      this.addresses = addresses;
+      this.base = base;
+      this.totals = new long[orderStatistics ? addresses.length + 1 : 0];
+      for (int i = 1; i < totals.length; i++) {
+        totals[i] = totals[i - 1] + counts[i - 1];
       }
-      return false;
     }
 
-    private long countValues() {
-      long c = 1;
-      for (var n = segment.get(JAVA_LONG, base + NEXT); n >= 0L; n = valueSegmentOf(n).next(n)) {
-        c++;
+    // builds the subtree of the distinct keys [from, to) and returns its root address
+    private long build(int from, int to) {
+      if (from >= to) {
+        return -1L;
+      }
+      var mid = (from + to) >>> 1;
+      var left = build(from, mid);
+      var right = mid + 1 < to ? base + addresses[(mid + 1 + to) >>> 1] : -1L;
+      var node = base + addresses[mid];
+      write(node, mid, left, right, 64 - Long.numberOfLeadingZeros(to - from));
+      if (orderStatistics) {
+        var e = entry(node, nodeSize);
+        e.segment.set(JAVA_LONG, node - e.offset + TOTAL, totals[to] - totals[from]);
       }
-      return c;
+      build(mid + 1, to);
+      return node;
     }
 
-    private LongStream values() {
-      return Stream.iterate(
-        segment.asSlice(base + VALUE, 16L),
-        Objects::nonNull,
-        s -> {
-          var n = s.get(JAVA_LONG, 8);
-          return n < 0L ? null : valueSegmentOf(n).valueSegment(n);
+    private void write(long node, int i, long left, long right, long height) {
+      var count = counts[i];
+      var e = entry(node, nodeSize);
+      var b = node - e.offset;
+      var segment = e.segment;
+      segment.set(JAVA_LONG, b + KEY, source.nextKey());
+      segment.set(JAVA_LONG, b + COUNT, count);
+      segment.set(JAVA_LONG, b + LEFT, left);
+      segment.set(JAVA_LONG, b + RIGHT, right);
+      segment.set(JAVA_LONG, b + HEIGHT, height);
+      segment.set(JAVA_LONG, b + GENERATION, generation);
+      if (count == 1L) {
+        segment.set(JAVA_LONG, b + VALUE, source.nextValue());
+        segment.set(JAVA_LONG, b + TAIL, -1L);
+        return;
+      }
+      var addr = node + nodeSize;
+      var tail = addr;
+      for (var rest = count; rest > 0L; ) {
+        var blockCount = (int) Math.min(rest, maxBlock);
+        var capacity = Math.max(MIN_BLOCK, blockCount);
+        var size = B_VALUES + capacity * (long) Long.BYTES;
+        var be = entry(addr, (int) size);
+        var block = new Block(be.segment, addr - be.offset, addr);
+        rest -= blockCount;
+        block.next(rest > 0L ? addr + size : -1L);
+        block.segment.set(JAVA_INT, block.base + B_CAPACITY, capacity);
+        block.start(0);
+        block.end(blockCount);
+        block.generation((int) generation);
+        for (int j = 0; j < blockCount; j++) {
+          block.value(j, source.nextValue());
         }
-      ).mapToLong(s -> s.get(JAVA_LONG, 0));
+        tail = addr;
+        addr += size;
+      }
+      segment.set(JAVA_LONG, b + VALUE, node + nodeSize);
+      segment.set(JAVA_LONG, b + TAIL, tail);
+    }
+
+    private SegmentEntry entry(long addr, int size) {
+      var e = entry;
+      if (e == null || !couldUseTheSameSegment(addr, e.offset, size, segmentSize)) {
+        entry = e = segment(addr, size, false);
+      }
+      return e;
     }
   }
 
-  private record SegmentEntry(long offset, MemorySegment segment) {
+  private static final class SegmentEntry {
+
+    private final long offset;
+    private final MemorySegment segment;
+    // CLOCK reference bit, racy updates are tolerated as the recency is approximate anyway
+    private boolean referenced = true;
+    // direction of the scan the segment was prefetched for until its first read, otherwise 0
+    private int prefetched;
 
-    private MemorySegment valueSegment(long addr) {
-      return segment.asSlice(addr - offset, 16L);
+    private SegmentEntry(long offset, MemorySegment segment) {
+      this.offset = offset;
+      this.segment = segment;
     }
 
-    private long value(long addr) {
-      return segment.get(JAVA_LONG, addr - offset);
+    private boolean covers(long addr, int size) {
+      return addr >= offset && addr - offset <= segment.byteSize() - size;
     }
+  }
 
-    private long next(long addr) {
-      return segment.get(JAVA_LONG, addr - offset + 8);
+  private record Block(MemorySegment segment, long base, long addr) {
+
+    private long next() {
+      return getAcquire(segment, base + B_NEXT);
+    }
+
+    private void next(long next) {
+      setRelease(segment, base + B_NEXT, next);
+    }
+
+    private int capacity() {
+      return segment.get(JAVA_INT, base + B_CAPACITY);
+    }
+
+    private int start() {
+      return (int) JAVA_INT.varHandle().getAcquire(segment, base + B_START);
+    }
+
+    private void start(int start) {
+      JAVA_INT.varHandle().setRelease(segment, base + B_START, start);
     }
 
-    private void next(long addr, long next) {
-      segment.set(JAVA_LONG, addr - offset + 8, next);
+    private int end() {
+      return (int) JAVA_INT.varHandle().getAcquire(segment, base + B_END);
     }
 
-    private void set(long addr, long value, long next) {
-      var o = addr - offset;
-      segment.set(JAVA_LONG, o, value);
-      segment.set(JAVA_LONG, o + 8, next);
+    private void end(int end) {
+      JAVA_INT.varHandle().setRelease(segment, base + B_END, end);
+    }
+
+    private int generation() {
+      return segment.get(JAVA_INT, base + B_GENERATION);
+    }
+
+    private void generation(int generation) {
+      segment.set(JAVA_INT, base + B_GENERATION, generation);
+    }
+
+    private long value(int i) {
+      return segment.get(JAVA_LONG, base + B_VALUES + i * (long) Long.BYTES);
+    }
+
+    private void value(int i, long value) {
+      segment.set(JAVA_LONG, base + B_VALUES + i * (long) Long.BYTES, value);
+    }
+
+    // copies the [from, to) slots to the target block starting from the given slot
+    private void moveTo(int from, int to, Block target, int position) {
+      MemorySegment.copy(
+        segment, base + B_VALUES + from * (long) Long.BYTES,
+        target.segment, target.base + B_VALUES + position * (long) Long.BYTES,
+        (to - from) * (long) Long.BYTES
+      );
+    }
+
+    // binary search in the used slots, returns (-(insertion point) - 1) if the value is not found
+    private int search(long value, LongBinaryOperator comparator) {
+      int low = start(), high = end() - 1;
+      while (low <= high) {
+        var mid = (low + high) >>> 1;
+        var c = comparator.applyAsLong(value, value(mid));
+        if (c > 0L) {
+          low = mid + 1;
+        } else if (c < 0L) {
+          high = mid - 1;
+        } else {
+          return mid;
+        }
+      }
+      return -(low + 1);
     }
   }
 }
@@ -0,0 +1,239 @@
+package org.dauch.piola.collections.map;
+
+/*-
+ * #%L
+ * piola-server
+ * %%
+ * Copyright (C) 2024 dauch
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.util.Arrays;
+import java.util.function.LongConsumer;
+
+import static java.lang.foreign.ValueLayout.JAVA_INT;
+import static java.lang.foreign.ValueLayout.JAVA_LONG;
+import static org.dauch.piola.collections.map.LongLongAVLDiskMap.*;
+
+/**
+ * An off-heap variant of {@link LongLongAVLMemoryMap}. The nodes and the value blocks have the layout
+ * of {@link LongLongAVLDiskMap} (the tail and generation fields are not used) and are stored in memory segments
+ * of {@value #CHUNK_SIZE} bytes allocated by an arena, so the map is invisible to the garbage collector.
+ * The values of a key are visited in the reverse insertion order. The memory is released on close.
+ * The implementation is not thread safe.
+ */
+public final class LongLongAVLOffHeapMap implements AutoCloseable {
+
+  static final int CHUNK_BITS = 20;
+  static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+  static final long CHUNK_MASK = CHUNK_SIZE - 1;
+
+  private final Arena arena = Arena.ofShared();
+  private MemorySegment[] chunks = new MemorySegment[16];
+  private int chunkCount;
+  private long last;
+  private long root = -1L;
+  private long[] path = new long[64];
+
+  public void get(long key, LongConsumer consumer) {
+    var node = find(key);
+    if (node < 0L) {
+      return;
+    }
+    if (get(node, COUNT) == 1L) {
+      consumer.accept(get(node, VALUE));
+      return;
+    }
+    // the head block is filled from its end, the following blocks are full
+    for (var addr = get(node, VALUE); addr >= 0L; addr = get(addr, B_NEXT)) {
+      var chunk = chunk(addr);
+      var base = addr & CHUNK_MASK;
+      for (int i = chunk.get(JAVA_INT, base + B_START), end = chunk.get(JAVA_INT, base + B_END); i < end; i++) {
+        consumer.accept(chunk.get(JAVA_LONG, base + B_VALUES + i * (long) Long.BYTES));
+      }
+    }
+  }
+
+  public long countValues(long key) {
+    var node = find(key);
+    return node < 0L ? 0L : get(node, COUNT);
+  }
+
+  private long find(long key) {
+    for (var node = root; node >= 0L; ) {
+      var nodeKey = get(node, KEY);
+      if (key < nodeKey) {
+        node = get(node, LEFT);
+      } else if (key > nodeKey) {
+        node = get(node, RIGHT);
+      } else {
+        return node;
+      }
+    }
+    return -1L;
+  }
+
+  public void put(long key, long value) {
+    var depth = 0;
+    var node = root;
+    while (node >= 0L) {
+      var nodeKey = get(node, KEY);
+      if (key == nodeKey) {
+        prepend(node, value);
+        return;
+      }
+      if (depth == path.length) {
+        path = Arrays.copyOf(path, depth << 1);
+      }
+      path[depth++] = node;
+      node = get(node, key < nodeKey ? LEFT : RIGHT);
+    }
+    node = allocate(NODE_SIZE);
+    set(node, KEY, key);
+    set(node, VALUE, value);
+    set(node, COUNT, 1L);
+    set(node, LEFT, -1L);
+    set(node, RIGHT, -1L);
+    set(node, HEIGHT, 1L);
+    // link the new node and rebalance the path bottom-up until the subtree height stays the same
+    for (var child = node; ; ) {
+      if (depth == 0) {
+        root = child;
+        break;
+      }
+      var parent = path[--depth];
+      set(parent, key < get(parent, KEY) ? LEFT : RIGHT, child);
+      var height = get(parent, HEIGHT);
+      var balanced = balance(parent);
+      if (balanced == parent && get(parent, HEIGHT) == height) {
+        break;
+      }
+      child = balanced;
+    }
+  }
+
+  // the values are prepended to the head block, a new head block is allocated when it is full
+  private void prepend(long node, long value) {
+    var count = get(node, COUNT);
+    var head = count == 1L ? -1L : get(node, VALUE);
+    var chunk = head < 0L ? null : chunk(head);
+    var base = head & CHUNK_MASK;
+    var start = chunk == null ? 0 : chunk.get(JAVA_INT, base + B_START);
+    if (start == 0) {
+      var capacity = (int) Math.min(MAX_BLOCK, Math.max(MIN_BLOCK, Long.highestOneBit(count)));
+      var block = allocate(B_VALUES + capacity * Long.BYTES);
+      chunk = chunk(block);
+      base = block & CHUNK_MASK;
+      chunk.set(JAVA_LONG, base + B_NEXT, head);
+      chunk.set(JAVA_INT, base + B_CAPACITY, capacity);
+      chunk.set(JAVA_INT, base + B_END, capacity);
+      start = capacity;
+      if (count == 1L) {
+        chunk.set(JAVA_LONG, base + B_VALUES + --start * (long) Long.BYTES, get(node, VALUE));
+      }
+      set(node, VALUE, block);
+    }
+    chunk.set(JAVA_LONG, base + B_VALUES + --start * (long) Long.BYTES, value);
+    chunk.set(JAVA_INT, base + B_START, start);
+    set(node, COUNT, count + 1L);
+  }
+
+  private long height(long node) {
+    return node < 0L ? 0L : get(node, HEIGHT);
+  }
+
+  private void updateHeight(long node) {
+    set(node, HEIGHT, 1L + Math.max(height(get(node, LEFT)), height(get(node, RIGHT))));
+  }
+
+  private long balance(long node) {
+    var left = get(node, LEFT);
+    var right = get(node, RIGHT);
+    var bf = height(left) - height(right);
+    if (bf > 1L) {
+      if (height(get(left, LEFT)) < height(get(left, RIGHT))) {
+        set(node, LEFT, rotateLeft(left));
+      }
+      return rotateRight(node);
+    } else if (bf < -1L) {
+      if (height(get(right, LEFT)) > height(get(right, RIGHT))) {
+        set(node, RIGHT, rotateRight(right));
+      }
+      return rotateLeft(node);
+    } else {
+      updateHeight(node);
+      return node;
+    }
+  }
+
+  private long rotateRight(long n) {
+    var rotated = get(n, LEFT);
+    set(n, LEFT, get(rotated, RIGHT));
+    set(rotated, RIGHT, n);
+    updateHeight(n);
+    updateHeight(rotated);
+    return rotated;
+  }
+
+  private long rotateLeft(long n) {
+    var rotated = get(n, RIGHT);
+    set(n, RIGHT, get(rotated, LEFT));
+    set(rotated, LEFT, n);
+    updateHeight(n);
+    updateHeight(rotated);
+    return rotated;
+  }
+
+  // the cells do not cross the chunk boundaries, the rest of a chunk is skipped when a cell does not fit
+  private long allocate(int size) {
+    var addr = last;
+    if ((addr + size - 1L) >>> CHUNK_BITS >= chunkCount) {
+      if (chunkCount == chunks.length) {
+        chunks = Arrays.copyOf(chunks, chunkCount << 1);
+      }
+      addr = (long) chunkCount << CHUNK_BITS;
+      chunks[chunkCount++] = arena.allocate(CHUNK_SIZE, Long.BYTES);
+    }
+    last = addr + size;
+    return addr;
+  }
+
+  private MemorySegment chunk(long addr) {
+    return chunks[(int) (addr >>> CHUNK_BITS)];
+  }
+
+  private long get(long addr, int field) {
+    return chunk(addr).get(JAVA_LONG, (addr & CHUNK_MASK) + field);
+  }
+
+  private void set(long addr, int field, long value) {
+    chunk(addr).set(JAVA_LONG, (addr & CHUNK_MASK) + field, value);
+  }
+
+  /**
+   * Releases the memory of the map.
+   */
+  @Override
+  public void close() {
+    chunks = new MemorySegment[0];
+    chunkCount = 0;
+    root = -1L;
+    arena.close();
+  }
+}
@@ -0,0 +1,735 @@
+package org.dauch.piola.collections.map;
+
+/*-
+ * #%L
+ * piola-server
+ * %%
+ * Copyright (C) 2024 dauch
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.ref.Cleaner;
+import java.lang.ref.Cleaner.Cleanable;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.LongBinaryOperator;
+import java.util.function.LongConsumer;
+import java.util.stream.LongStream;
+import java.util.stream.StreamSupport;
+
+import static java.lang.foreign.ValueLayout.JAVA_INT;
+import static java.lang.foreign.ValueLayout.JAVA_LONG;
+import static java.nio.channels.FileChannel.MapMode.READ_WRITE;
+import static java.nio.file.StandardOpenOption.*;
+
+/**
+ * B+tree map based on Java 22 memory segments mapped to a file.
+ * The file is a sequence of pages of the same size, the first page is the file header.
+ * Leaf pages hold the sorted (key, value) entries and are linked in both directions,
+ * inner pages hold the separating entries and the child page addresses.
+ * The values of a key are stored as adjacent entries in the stored order, so the values
+ * inserted with a comparator are located by a single descent.
+ * The thread safety rules are the same as for {@link LongLongAVLDiskMap}.
+ * <p>
+ * <b>Experimental</b>: the pages are modified in place and a {@link #checkpoint()} only forces them,
+ * so a crash may leave a torn tree which is not detected on opening: a map not closed properly has to be
+ * rebuilt from its source data. The evicted segments are unmapped only once collected, so the lookups
+ * through a small cache may exhaust the mappings limit of the process when nothing else triggers
+ * a garbage collection.
+ */
+public final class LongLongBTreeDiskMap implements LongLongDiskMap {
+
+  private static final Cleaner CLEANER = Cleaner.create(Thread.ofVirtual().name("btreemap").factory());
+
+  // common constants
+  static final long VERSION = 1;
+  static final int MIN_PAGE_SIZE = 1024;
+  static final int MAX_PAGE_SIZE = 65536;
+
+  // header offsets
+  static final int H_VERSION = 0; // file version
+  static final int H_PAGE_SIZE = H_VERSION + Long.BYTES; // page size
+  static final int H_ROOT = H_PAGE_SIZE + Long.BYTES; // root page address
+  static final int H_LAST = H_ROOT + Long.BYTES; // last position
+
+  // page arithmetics
+  static final int P_TYPE = 0; // page type (int)
+  static final int P_COUNT = P_TYPE + Integer.BYTES; // number of entries (int)
+  static final int P_PREV = P_COUNT + Integer.BYTES; // previous leaf address
+  static final int P_NEXT = P_PREV + Long.BYTES; // next leaf address
+  static final int P_ENTRIES = P_NEXT + Long.BYTES;
+  static final int LEAF = 0;
+  static final int INNER = 1;
+
+  // leaf entry: key, value
+  static final int LEAF_ENTRY = 2 * Long.BYTES;
+  // inner page: the first child followed by the (key, value, right child) entries
+  static final int INNER_ENTRY = 3 * Long.BYTES;
+
+  // file channel
+  private final FileChannel channel;
+
+  // header management objects
+  private final Arena headerArena = Arena.ofShared();
+  private final MemorySegment header;
+
+  // page geometry
+  private final int pageSize;
+  private final int leafCapacity;
+  private final int innerCapacity;
+
+  // segments cache
+  private final int segmentSize;
+  private final int maxSegments;
+  private final ConcurrentSkipListMap<Long, MemorySegment> segments = new ConcurrentSkipListMap<>(Long::compare);
+  private final ConcurrentSkipListMap<Long, Cleanable> cleanActions = new ConcurrentSkipListMap<>();
+  // mapped segments by segment number, racy reads are safe as the segments are immutable
+  private MemorySegment[] mapped = new MemorySegment[16];
+
+  // writer state reused by the modifications
+  private final Pages writer = new Pages();
+  private long[] pathPages = new long[16];
+  private int[] pathIndices = new int[16];
+  private int depth;
+
+  /**
+   * Constructs a B+tree disk based map.
+   *
+   * @param file        A file to use as storage
+   * @param pageSize    Page size (a power of two, typically 4096 - 16384)
+   * @param segmentSize Segment size (memory mapped segments of such size will be used, a multiple of pageSize)
+   * @param maxSegments Maximum number of segments (segment evictions from the cache start from smaller offsets)
+   */
+  public LongLongBTreeDiskMap(Path file, int pageSize, int segmentSize, int maxSegments) {
+    this.pageSize = checkPageSize(pageSize);
+    this.segmentSize = checkSegmentSize(segmentSize, pageSize);
+    this.maxSegments = checkMaxSegments(maxSegments);
+    this.leafCapacity = (pageSize - P_ENTRIES) / LEAF_ENTRY;
+    this.innerCapacity = (pageSize - P_ENTRIES - Long.BYTES) / INNER_ENTRY;
+    try {
+      channel = FileChannel.open(file, EnumSet.of(CREATE, WRITE, READ));
+      header = channel.map(READ_WRITE, 0L, pageSize, headerArena);
+      if (header.get(JAVA_LONG, H_LAST) == 0L) {
+        header.set(JAVA_LONG, H_VERSION, VERSION);
+        header.set(JAVA_LONG, H_PAGE_SIZE, pageSize);
+        header.set(JAVA_LONG, H_ROOT, -1L);
+        header.set(JAVA_LONG, H_LAST, pageSize);
+      } else if (header.get(JAVA_LONG, H_VERSION) != VERSION || header.get(JAVA_LONG, H_PAGE_SIZE) != pageSize) {
+        var version = header.get(JAVA_LONG, H_VERSION);
+        var size = header.get(JAVA_LONG, H_PAGE_SIZE);
+        headerArena.close();
+        channel.close();
+        throw new IllegalStateException("Unsupported version " + version + " or page size " + size + " of " + file);
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  @Override
+  public void get(long key, LongConsumer consumer) {
+    var r = new Pages();
+    if (r.seek(key, 0L, null, false, false) && r.key() == key) {
+      do {
+        consumer.accept(r.value());
+      } while (r.next() && r.key() == key);
+    }
+  }
+
+  @Override
+  public LongStream get(long key) {
+    var r = new Pages();
+    var found = r.seek(key, 0L, null, false, false) && r.key() == key;
+    var spliterator = new Spliterators.AbstractLongSpliterator(Long.MAX_VALUE, Spliterator.ORDERED) {
+
+      private boolean hasNext = found;
+
+      @Override
+      public boolean tryAdvance(LongConsumer action) {
+        if (!hasNext) {
+          return false;
+        }
+        action.accept(r.value());
+        hasNext = r.next() && r.key() == key;
+        return true;
+      }
+    };
+    return StreamSupport.longStream(spliterator, false);
+  }
+
+  @Override
+  public boolean contains(long key) {
+    var r = new Pages();
+    return r.seek(key, 0L, null, false, false) && r.key() == key;
+  }
+
+  @Override
+  public boolean contains(long key, long value) {
+    var r = new Pages();
+    if (r.seek(key, 0L, null, false, false) && r.key() == key) {
+      do {
+        if (r.value() == value) {
+          return true;
+        }
+      } while (r.next() && r.key() == key);
+    }
+    return false;
+  }
+
+  @Override
+  public boolean contains(long key, long value, LongBinaryOperator comparator) {
+    var r = new Pages();
+    return r.seek(key, value, comparator, false, false)
+      && r.key() == key
+      && comparator.applyAsLong(value, r.value()) == 0L;
+  }
+
+  /**
+   * Returns number of values associated with the given key.
+   * The values are counted as the distance between the bounds of the key entries
+   * summing the entry counts of the leaves in between.
+   *
+   * @param key Key
+   * @return Values count
+   */
+  @Override
+  public long countValues(long key) {
+    var r = new Pages();
+    if (!r.seek(key, 0L, null, false, false) || r.key() != key) {
+      return 0L;
+    }
+    var leaf = r.insertLeaf;
+    var count = (long) -r.insertIndex;
+    r.seek(key, 0L, null, true, false);
+    for (var last = r.insertLeaf; leaf != last; leaf = r.getLong(leaf, P_NEXT)) {
+      count += r.getInt(leaf, P_COUNT);
+    }
+    return count + r.insertIndex;
+  }
+
+  @Override
+  public boolean forEach(long from, long to, boolean descending, LongLongPredicate visitor) {
+    if (from > to) {
+      return true;
+    }
+    var r = new Pages();
+    if (!descending) {
+      if (r.seek(from, 0L, null, false, false)) {
+        do {
+          var k = r.key();
+          if (k > to) {
+            break;
+          }
+          if (!visitor.test(k, r.value())) {
+            return false;
+          }
+        } while (r.next());
+      }
+      return true;
+    }
+    if (!r.seekLast(to)) {
+      return true;
+    }
+    while (true) {
+      var k = r.key();
+      if (k < from) {
+        return true;
+      }
+      // rewind to the first value of the key to keep the stored order of values
+      while (r.previous()) {
+        if (r.key() != k) {
+          r.next();
+          break;
+        }
+      }
+      var leaf = r.leaf;
+      var index = r.index;
+      do {
+        if (!visitor.test(k, r.value())) {
+          return false;
+        }
+      } while (r.next() && r.key() == k);
+      r.leaf = leaf;
+      r.index = index;
+      if (!r.previous()) {
+        return true;
+      }
+    }
+  }
+
+  @Override
+  public boolean concurrentReads() {
+    return false;
+  }
+
+  /**
+   * Forces the cached segments and the header. The pages are modified in place, so unlike
+   * {@link LongLongAVLDiskMap#checkpoint()} this does not protect the tree from the partially flushed changes
+   * following the checkpoint.
+   */
+  @Override
+  public void checkpoint() {
+    for (var segment : segments.values()) {
+      segment.force();
+    }
+    header.force();
+  }
+
+  @Override
+  public void set(long key, long value) {
+    var w = writer;
+    if (w.seek(key, 0L, null, false, true) && w.key() == key) {
+      w.setLong(w.leaf, leafEntry(w.index) + Long.BYTES, value);
+    } else {
+      insert(key, value);
+    }
+  }
+
+  @Override
+  public void put(long key, long value) {
+    writer.seek(key, 0L, null, false, true);
+    insert(key, value);
+  }
+
+  @Override
+  public void put(long key, long value, LongBinaryOperator comparator) {
+    var w = writer;
+    var found = w.seek(key, value, comparator, false, true) && w.key() == key;
+    if (found && comparator.applyAsLong(value, w.value()) == 0L) {
+      return;
+    }
+    insert(key, value);
+  }
+
+  // inserts the entry at the writer position found by the last seek
+  private void insert(long key, long value) {
+    var w = writer;
+    var leaf = w.insertLeaf;
+    var index = w.insertIndex;
+    if (leaf < 0L) {
+      leaf = newPage(LEAF);
+      header.set(JAVA_LONG, H_ROOT, leaf);
+    }
+    var count = w.getInt(leaf, P_COUNT);
+    if (count < leafCapacity) {
+      insertLeafEntry(leaf, count, index, key, value);
+      return;
+    }
+    // split the full leaf, appending to the last leaf leaves the left one full
+    var next = w.getLong(leaf, P_NEXT);
+    var half = index == count && next < 0L ? count : count / 2;
+    var right = newPage(LEAF);
+    w.copy(leaf, leafEntry(half), right, leafEntry(0), (count - half) * (long) LEAF_ENTRY);
+    w.setInt(right, P_COUNT, count - half);
+    w.setInt(leaf, P_COUNT, half);
+    w.setLong(right, P_PREV, leaf);
+    w.setLong(right, P_NEXT, next);
+    w.setLong(leaf, P_NEXT, right);
+    if (next >= 0L) {
+      w.setLong(next, P_PREV, right);
+    }
+    if (index <= half && half < count) {
+      insertLeafEntry(leaf, half, index, key, value);
+    } else {
+      insertLeafEntry(right, count - half, index - half, key, value);
+    }
+    insertSeparator(depth - 1, w.getLong(right, leafEntry(0)), w.getLong(right, leafEntry(0) + Long.BYTES), leaf, right);
+  }
+
+  private void insertLeafEntry(long leaf, int count, int index, long key, long value) {
+    var w = writer;
+    var offset = leafEntry(index);
+    if (index < count) {
+      w.copy(leaf, offset, leaf, offset + LEAF_ENTRY, (count - index) * (long) LEAF_ENTRY);
+    }
+    w.setLong(leaf, offset, key);
+    w.setLong(leaf, offset + Long.BYTES, value);
+    w.setInt(leaf, P_COUNT, count + 1);
+  }
+
+  // inserts the separator of the split child at the given level of the writer path
+  private void insertSeparator(int level, long key, long value, long left, long right) {
+    var w = writer;
+    if (level < 0) {
+      var root = newPage(INNER);
+      w.setLong(root, innerChild(0), left);
+      insertInnerEntry(root, 0, 0, key, value, right);
+      header.set(JAVA_LONG, H_ROOT, root);
+      return;
+    }
+    var page = pathPages[level];
+    var index = pathIndices[level];
+    var count = w.getInt(page, P_COUNT);
+    if (count < innerCapacity) {
+      insertInnerEntry(page, count, index, key, value, right);
+      return;
+    }
+    // split the full inner page promoting its middle entry
+    var mid = count / 2;
+    var promotedKey = w.getLong(page, innerEntry(mid));
+    var promotedValue = w.getLong(page, innerEntry(mid) + Long.BYTES);
+    var sibling = newPage(INNER);
+    w.setLong(sibling, innerChild(0), w.getLong(page, innerChild(mid + 1)));
+    w.copy(page, innerEntry(mid + 1), sibling, innerEntry(0), (count - mid - 1) * (long) INNER_ENTRY);
+    w.setInt(sibling, P_COUNT, count - mid - 1);
+    w.setInt(page, P_COUNT, mid);
+    if (index <= mid) {
+      insertInnerEntry(page, mid, index, key, value, right);
+    } else {
+      insertInnerEntry(sibling, count - mid - 1, index - mid - 1, key, value, right);
+    }
+    insertSeparator(level - 1, promotedKey, promotedValue, page, sibling);
+  }
+
+  private void insertInnerEntry(long page, int count, int index, long key, long value, long right) {
+    var w = writer;
+    var offset = innerEntry(index);
+    if (index < count) {
+      w.copy(page, offset, page, offset + INNER_ENTRY, (count - index) * (long) INNER_ENTRY);
+    }
+    w.setLong(page, offset, key);
+    w.setLong(page, offset + Long.BYTES, value);
+    w.setLong(page, offset + 2 * Long.BYTES, right);
+    w.setInt(page, P_COUNT, count + 1);
+  }
+
+  private long newPage(int type) {
+    var page = getAndAdd(header, H_LAST, pageSize);
+    var w = writer;
+    w.setInt(page, P_TYPE, type);
+    w.setInt(page, P_COUNT, 0);
+    w.setLong(page, P_PREV, -1L);
+    w.setLong(page, P_NEXT, -1L);
+    return page;
+  }
+
+  private void pushPath(long page, int index) {
+    if (depth == pathPages.length) {
+      pathPages = Arrays.copyOf(pathPages, depth * 2);
+      pathIndices = Arrays.copyOf(pathIndices, depth * 2);
+    }
+    pathPages[depth] = page;
+    pathIndices[depth++] = index;
+  }
+
+  private static int leafEntry(int index) {
+    return P_ENTRIES + index * LEAF_ENTRY;
+  }
+
+  private static int innerEntry(int index) {
+    return P_ENTRIES + Long.BYTES + index * INNER_ENTRY;
+  }
+
+  private static int innerChild(int index) {
+    return P_ENTRIES + index * INNER_ENTRY;
+  }
+
+  // checks whether the (k, v) entry precedes the position searched for
+  private static boolean precedes(long k, long v, long key, long value, LongBinaryOperator cmp, boolean after) {
+    if (cmp != null) {
+      return k < key || k == key && cmp.applyAsLong(value, v) > 0L;
+    } else {
+      return after ? k <= key : k < key;
+    }
+  }
+
+  private static long getAndAdd(MemorySegment segment, long offset, long value) {
+    return (long) JAVA_LONG.varHandle().getAndAdd(segment, offset, value);
+  }
+
+  private MemorySegment segment(long page) {
+    var n = (int) (page / segmentSize);
+    var m = mapped;
+    if (n < m.length && m[n] != null) {
+      return m[n];
+    }
+    var start = (long) n * segmentSize;
+    var s = segments.get(start);
+    if (s != null) {
+      return cache(n, s);
+    }
+    var arena = Arena.ofShared();
+    try {
+      var segment = channel.map(READ_WRITE, start, segmentSize, arena);
+      var segmentAddress = segment.address();
+      var actions = cleanActions;
+      actions.put(segmentAddress, CLEANER.register(segment, () -> {
+        actions.remove(segmentAddress);
+        arena.close();
+      }));
+      var old = segments.putIfAbsent(start, segment);
+      if (old != null) {
+        return cache(n, old);
+      }
+      while (segments.size() > maxSegments) {
+        for (var it = segments.entrySet().iterator(); it.hasNext(); ) {
+          var e = it.next();
+          if (e.getValue() != segment && segments.size() > maxSegments) {
+            it.remove();
+            evict((int) (e.getKey() / segmentSize));
+            e.getValue().force();
+            if (segments.size() <= maxSegments) {
+              break;
+            }
+          }
+        }
+      }
+      return cache(n, segment);
+    } catch (IOException e) {
+      arena.close();
+      throw new UncheckedIOException(e);
+    } catch (Throwable e) {
+      arena.close();
+      throw e;
+    }
+  }
+
+  private MemorySegment cache(int n, MemorySegment segment) {
+    var m = mapped;
+    if (n >= m.length) {
+      mapped = m = Arrays.copyOf(m, Math.max(n + 1, m.length * 2));
+    }
+    return m[n] = segment;
+  }
+
+  private void evict(int n) {
+    var m = mapped;
+    if (n < m.length) {
+      m[n] = null;
+    }
+  }
+
+  /**
+   * Closes the map. See {@link LongLongAVLDiskMap#close()} for the notes on unmapping the segments.
+   */
+  @Override
+  public void close() {
+    try (channel; headerArena; var _ = (Closeable) header::force) {
+      var exception = new IllegalArgumentException();
+      mapped = new MemorySegment[0];
+      segments.entrySet().removeIf(e -> {
+        try {
+          e.getValue().force();
+        } catch (Throwable x) {
+          exception.addSuppressed(new IllegalStateException("Unable to force segment at " + e.getKey(), x));
+        }
+        return true;
+      });
+      cleanActions.entrySet().removeIf(e -> {
+        try {
+          e.getValue().clean();
+        } catch (Throwable x) {
+          exception.addSuppressed(new IllegalStateException("Unable to close arena at " + e.getKey(), x));
+        }
+        return true;
+      });
+      if (exception.getSuppressed().length > 0) {
+        throw exception;
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private static int checkPageSize(int pageSize) {
+    if (pageSize < MIN_PAGE_SIZE || pageSize > MAX_PAGE_SIZE || Integer.bitCount(pageSize) != 1) {
+      throw new IllegalArgumentException("pageSize must be a power of two in [" + MIN_PAGE_SIZE + ", " + MAX_PAGE_SIZE + "]");
+    }
+    return pageSize;
+  }
+
+  private static int checkSegmentSize(int segmentSize, int pageSize) {
+    if (segmentSize < pageSize || segmentSize % pageSize != 0) {
+      throw new IllegalArgumentException("segmentSize must be a multiple of pageSize");
+    }
+    return segmentSize;
+  }
+
+  private static int checkMaxSegments(int maxSegments) {
+    if (maxSegments < 2) {
+      throw new IllegalArgumentException("maxSegments must be at least 2");
+    }
+    return maxSegments;
+  }
+
+  // reads and writes the pages through the last used segment and keeps a position in the leaves
+  private final class Pages {
+
+    private MemorySegment segment;
+    private long offset = Long.MIN_VALUE;
+
+    // current position
+    private long leaf = -1L;
+    private int index;
+
+    // insertion position found by the last seek
+    private long insertLeaf;
+    private int insertIndex;
+
+    private long getLong(long page, int field) {
+      return segment(page).get(JAVA_LONG, page - offset + field);
+    }
+
+    private void setLong(long page, int field, long value) {
+      segment(page).set(JAVA_LONG, page - offset + field, value);
+    }
+
+    private int getInt(long page, int field) {
+      return segment(page).get(JAVA_INT, page - offset + field);
+    }
+
+    private void setInt(long page, int field, int value) {
+      segment(page).set(JAVA_INT, page - offset + field, value);
+    }
+
+    private void copy(long src, int srcField, long dst, int dstField, long size) {
+      var s = segment(src);
+      var srcOffset = src - offset + srcField;
+      var d = segment(dst);
+      MemorySegment.copy(s, srcOffset, d, dst - offset + dstField, size);
+    }
+
+    private MemorySegment segment(long page) {
+      var o = page - offset;
+      if (o < 0L || o >= segmentSize) {
+        segment = LongLongBTreeDiskMap.this.segment(page);
+        offset = page - page % segmentSize;
+      }
+      return segment;
+    }
+
+    private long key() {
+      return getLong(leaf, leafEntry(index));
+    }
+
+    private long value() {
+      return getLong(leaf, leafEntry(index) + Long.BYTES);
+    }
+
+    /*
+     * Positions to the first entry not preceding the searched position and returns true if
+     * such an entry exists. The insertion position is remembered,
+     * the path of inner pages is recorded when requested.
+     */
+    private boolean seek(long key, long value, LongBinaryOperator cmp, boolean after, boolean record) {
+      if (record) {
+        depth = 0;
+      }
+      var page = header.get(JAVA_LONG, H_ROOT);
+      if (page < 0L) {
+        insertLeaf = leaf = -1L;
+        insertIndex = index = 0;
+        return false;
+      }
+      while (getInt(page, P_TYPE) == INNER) {
+        var lo = 0;
+        var hi = getInt(page, P_COUNT);
+        while (lo < hi) {
+          var mid = (lo + hi) >>> 1;
+          var o = innerEntry(mid);
+          if (precedes(getLong(page, o), getLong(page, o + Long.BYTES), key, value, cmp, after)) {
+            lo = mid + 1;
+          } else {
+            hi = mid;
+          }
+        }
+        if (record) {
+          pushPath(page, lo);
+        }
+        page = getLong(page, innerChild(lo));
+      }
+      var lo = 0;
+      var count = getInt(page, P_COUNT);
+      var hi = count;
+      while (lo < hi) {
+        var mid = (lo + hi) >>> 1;
+        var o = leafEntry(mid);
+        if (precedes(getLong(page, o), getLong(page, o + Long.BYTES), key, value, cmp, after)) {
+          lo = mid + 1;
+        } else {
+          hi = mid;
+        }
+      }
+      insertLeaf = leaf = page;
+      insertIndex = index = lo;
+      if (lo == count) {
+        // the entry following the position is the first one of the next leaf
+        var next = getLong(page, P_NEXT);
+        if (next < 0L) {
+          return false;
+        }
+        leaf = next;
+        index = 0;
+      }
+      return true;
+    }
+
+    // positions to the last entry with a key not greater than the given one
+    private boolean seekLast(long key) {
+      seek(key, 0L, null, true, false);
+      if (leaf < 0L) {
+        return false;
+      }
+      leaf = insertLeaf;
+      index = insertIndex;
+      if (index < getInt(leaf, P_COUNT)) {
+        return previous();
+      } else {
+        index--;
+        return index >= 0;
+      }
+    }
+
+    private boolean next() {
+      if (index + 1 < getInt(leaf, P_COUNT)) {
+        index++;
+        return true;
+      }
+      var next = getLong(leaf, P_NEXT);
+      if (next < 0L) {
+        return false;
+      }
+      leaf = next;
+      index = 0;
+      return true;
+    }
+
+    private boolean previous() {
+      if (index > 0) {
+        index--;
+        return true;
+      }
+      var prev = getLong(leaf, P_PREV);
+      if (prev < 0L) {
+        return false;
+      }
+      leaf = prev;
+      index = getInt(prev, P_COUNT) - 1;
+      return true;
+    }
+  }
+}
@@ -0,0 +1,171 @@
+package org.dauch.piola.collections.map;
+
+/*-
+ * #%L
+ * piola-server
+ * %%
+ * Copyright (C) 2024 dauch
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import java.util.function.LongBinaryOperator;
+import java.util.function.LongConsumer;
+import java.util.stream.LongStream;
+
+/**
+ * A disk based multimap of long keys to long values.
+ */
+public interface LongLongDiskMap extends AutoCloseable {
+
+  /**
+   * Get values associated to a key.
+   *
+   * @param key      A given key
+   * @param consumer Value consumer
+   */
+  void get(long key, LongConsumer consumer);
+
+  /**
+   * Returns a lazy stream of values.
+   *
+   * @param key A given key
+   * @return Stream of values
+   */
+  LongStream get(long key);
+
+  /**
+   * Returns true when the specified key is present.
+   *
+   * @param key Key
+   * @return True if the key is present
+   */
+  boolean contains(long key);
+
+  /**
+   * Returns true when the specified key and value exist
+   *
+   * @param key   Key
+   * @param value Value
+   * @return Check status
+   */
+  boolean contains(long key, long value);
+
+  /**
+   * Returns true if the specified key and value exist. The values should be
+   * inserted using the same comparator.
+   *
+   * @param key        Key
+   * @param value      Value
+   * @param comparator Comparator
+   * @return Check status
+   */
+  boolean contains(long key, long value, LongBinaryOperator comparator);
+
+  /**
+   * Returns number of values associated with the given key
+   *
+   * @param key Key
+   * @return Values count
+   */
+  long countValues(long key);
+
+  /**
+   * Visits the entries with keys in the given range in key order.
+   * The values of a key are visited in the order they are stored.
+   *
+   * @param from       Lower bound of keys (inclusive)
+   * @param to         Upper bound of keys (inclusive)
+   * @param descending True to visit the keys in descending order
+   * @param visitor    Entry visitor returning false to stop the iteration
+   * @return False if the iteration was stopped by the visitor
+   */
+  boolean forEach(long from, long to, boolean descending, LongLongPredicate visitor);
+
+  /**
+   * Sets (by overwrite if exists) a value for the given key
+   *
+   * @param key   Key
+   * @param value Value
+   */
+  void set(long key, long value);
+
+  /**
+   * Inserts an entry to the map. The value will be inserted as a first value.
+   *
+   * @param key   Entry key
+   * @param value Entry value
+   */
+  void put(long key, long value);
+
+  /**
+   * Inserts an entry to the map. The value will be inserted according to
+   * comparator, duplications will be omitted. The caller code
+   * is responsible for not using different comparators for the same key.
+   *
+   * @param key        Entry key
+   * @param value      Entry value
+   * @param comparator Value comparator
+   */
+  void put(long key, long value, LongBinaryOperator comparator);
+
+  /**
+   * Returns true if the read methods may be called without locking while a single thread
+   * modifies the map.
+   *
+   * @return Concurrent reads support
+   */
+  boolean concurrentReads();
+
+  /**
+   * Returns true if a range scan resumed from a key visits only the remaining part of the range,
+   * so a range may be scanned in several passes. A map scanning all its entries for a range returns false.
+   *
+   * @return Resumable scans support
+   */
+  default boolean resumableScans() {
+    return true;
+  }
+
+  /**
+   * Makes the changes made so far durable.
+   */
+  void checkpoint();
+
+  /**
+   * Makes the changes made so far durable along with a mark, e.g. the position of the source data they cover.
+   * A map restoring its last checkpoint after a crash restores the mark as well, see {@link #mark()}.
+   *
+   * @param mark Non-negative mark
+   */
+  default void checkpoint(long mark) {
+    checkpoint();
+  }
+
+  /**
+   * Returns the mark of the last checkpoint. A map opened after a crash has the mark of the checkpoint
+   * it was restored to. A map not restoring a checkpoint after a crash returns -1: its state after a crash
+   * is unknown.
+   *
+   * @return Mark or -1
+   */
+  default long mark() {
+    return -1L;
+  }
+
+  @Override
+  void close();
+}
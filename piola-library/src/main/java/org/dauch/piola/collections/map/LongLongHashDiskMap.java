@@ -0,0 +1,809 @@
+package org.dauch.piola.collections.map;
+
+/*-
+ * #%L
+ * piola-server
+ * %%
+ * Copyright (C) 2024 dauch
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.ref.Cleaner;
+import java.lang.ref.Cleaner.Cleanable;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.LongBinaryOperator;
+import java.util.function.LongConsumer;
+import java.util.stream.LongStream;
+import java.util.stream.StreamSupport;
+
+import static java.lang.foreign.ValueLayout.JAVA_INT;
+import static java.lang.foreign.ValueLayout.JAVA_LONG;
+import static java.nio.channels.FileChannel.MapMode.READ_WRITE;
+import static java.nio.file.StandardOpenOption.*;
+
+/**
+ * Hash map based on Java 22 memory segments mapped to a file.
+ * The keys are stored in an open addressing table with linear probing, so a lookup of a key
+ * usually touches a single slot. A single value of a key is stored in the slot, multiple values are stored
+ * in a linked list of overflow blocks holding up to {@value #MAX_BLOCK} values each.
+ * <p>
+ * The table is doubled when it is filled by 3/4. The resizing is incremental: each modification moves
+ * a few slots of the old table to the new one, and the lookups check both tables until all the slots are moved.
+ * The space of the old tables is not reused.
+ * <p>
+ * The keys are not ordered, so {@link #forEach(long, long, boolean, LongLongPredicate)} looks up every key
+ * of a narrow range and scans the whole table for a wider one. The thread safety rules are the same as for
+ * {@link LongLongAVLDiskMap}.
+ */
+public final class LongLongHashDiskMap implements LongLongDiskMap {
+
+  private static final Cleaner CLEANER = Cleaner.create(Thread.ofVirtual().name("hashmap").factory());
+
+  // common constants
+  static final int HEADER_SIZE = 4096;
+  static final long VERSION = 1;
+  static final int MIN_CAPACITY = 256;
+  static final int MIN_BLOCK = 4;
+  static final int MAX_BLOCK = 256;
+  // number of the old table slots moved by a modification while the table is resized
+  static final int MIGRATION_STEP = 8;
+  // the key ranges narrower than this are visited by lookups instead of a table scan
+  static final long MAX_LOOKUP_RANGE = 64L;
+
+  // header offsets
+  static final int H_VERSION = 0; // file version
+  static final int H_LAST = H_VERSION + Long.BYTES; // last position
+  static final int H_SIZE = H_LAST + Long.BYTES; // number of keys
+  static final int H_TABLE = H_SIZE + Long.BYTES; // table address
+  static final int H_CAPACITY = H_TABLE + Long.BYTES; // number of table slots
+  static final int H_OLD_TABLE = H_CAPACITY + Long.BYTES; // address of the table being resized or -1
+  static final int H_OLD_CAPACITY = H_OLD_TABLE + Long.BYTES; // number of the old table slots
+  static final int H_MOVED = H_OLD_CAPACITY + Long.BYTES; // number of the old table slots moved to the new table
+
+  // slot arithmetics
+  static final int S_KEY = 0;
+  static final int S_COUNT = S_KEY + Long.BYTES; // values count, 0 for a free slot and -1 for a moved one
+  static final int S_VALUE = S_COUNT + Long.BYTES; // the value if there is only one, otherwise the head block address
+  static final int S_TAIL = S_VALUE + Long.BYTES; // tail block address
+  static final int SLOT_SIZE = S_TAIL + Long.BYTES;
+
+  // block arithmetics
+  static final int B_NEXT = 0; // next block address
+  static final int B_CAPACITY = B_NEXT + Long.BYTES; // number of value slots (int)
+  static final int B_START = B_CAPACITY + Integer.BYTES; // first used slot (int)
+  static final int B_END = B_START + Integer.BYTES; // slot following the last used one (int)
+  static final int B_VALUES = B_END + Integer.BYTES + Integer.BYTES; // value slots
+
+  // file channel
+  private final FileChannel channel;
+
+  // header management objects
+  private final Arena headerArena = Arena.ofShared();
+  private final MemorySegment header;
+
+  // segments cache
+  private final int segmentSize;
+  private final int maxSegments;
+  private final ConcurrentSkipListMap<Long, MemorySegment> segments = new ConcurrentSkipListMap<>(Long::compare);
+  private final ConcurrentSkipListMap<Long, Cleanable> cleanActions = new ConcurrentSkipListMap<>();
+  // mapped segments by segment number, racy reads are safe as the segments are immutable
+  private MemorySegment[] mapped = new MemorySegment[16];
+
+  // writer state reused by the modifications
+  private final Cells writer = new Cells();
+
+  /**
+   * Constructs a hash disk based map.
+   *
+   * @param file        A file to use as storage
+   * @param segmentSize Segment size (memory mapped segments of such size will be used, a multiple of 4096)
+   * @param maxSegments Maximum number of segments (segment evictions from the cache start from smaller offsets)
+   */
+  public LongLongHashDiskMap(Path file, int segmentSize, int maxSegments) {
+    this.segmentSize = checkSegmentSize(segmentSize);
+    this.maxSegments = checkMaxSegments(maxSegments);
+    try {
+      channel = FileChannel.open(file, EnumSet.of(CREATE, WRITE, READ));
+      header = channel.map(READ_WRITE, 0L, HEADER_SIZE, headerArena);
+      if (header.get(JAVA_LONG, H_LAST) == 0L) {
+        header.set(JAVA_LONG, H_VERSION, VERSION);
+        header.set(JAVA_LONG, H_LAST, HEADER_SIZE);
+        header.set(JAVA_LONG, H_TABLE, allocate(MIN_CAPACITY * (long) SLOT_SIZE, SLOT_SIZE));
+        header.set(JAVA_LONG, H_CAPACITY, MIN_CAPACITY);
+        header.set(JAVA_LONG, H_OLD_TABLE, -1L);
+      } else if (header.get(JAVA_LONG, H_VERSION) != VERSION) {
+        var version = header.get(JAVA_LONG, H_VERSION);
+        headerArena.close();
+        channel.close();
+        throw new IllegalStateException("Unsupported version " + version + " of " + file);
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  @Override
+  public void get(long key, LongConsumer consumer) {
+    var r = new Cells();
+    var slot = find(r, key);
+    if (slot < 0L) {
+      return;
+    }
+    if (r.getLong(slot, S_COUNT) == 1L) {
+      consumer.accept(r.getLong(slot, S_VALUE));
+      return;
+    }
+    for (var block = r.getLong(slot, S_VALUE); block >= 0L; block = r.getLong(block, B_NEXT)) {
+      for (int i = r.getInt(block, B_START), end = r.getInt(block, B_END); i < end; i++) {
+        consumer.accept(r.getLong(block, value(i)));
+      }
+    }
+  }
+
+  @Override
+  public LongStream get(long key) {
+    var r = new Cells();
+    var slot = find(r, key);
+    if (slot < 0L) {
+      return LongStream.empty();
+    }
+    var count = r.getLong(slot, S_COUNT);
+    if (count == 1L) {
+      return LongStream.of(r.getLong(slot, S_VALUE));
+    }
+    var head = r.getLong(slot, S_VALUE);
+    var spliterator = new Spliterators.AbstractLongSpliterator(count, Spliterator.ORDERED) {
+
+      private long block = head;
+      private int index = r.getInt(head, B_START);
+
+      @Override
+      public boolean tryAdvance(LongConsumer action) {
+        if (block < 0L) {
+          return false;
+        }
+        action.accept(r.getLong(block, value(index)));
+        if (++index == r.getInt(block, B_END) && (block = r.getLong(block, B_NEXT)) >= 0L) {
+          index = r.getInt(block, B_START);
+        }
+        return true;
+      }
+    };
+    return StreamSupport.longStream(spliterator, false);
+  }
+
+  @Override
+  public boolean contains(long key) {
+    return find(new Cells(), key) >= 0L;
+  }
+
+  @Override
+  public boolean contains(long key, long value) {
+    var r = new Cells();
+    var slot = find(r, key);
+    if (slot < 0L) {
+      return false;
+    }
+    if (r.getLong(slot, S_COUNT) == 1L) {
+      return r.getLong(slot, S_VALUE) == value;
+    }
+    for (var block = r.getLong(slot, S_VALUE); block >= 0L; block = r.getLong(block, B_NEXT)) {
+      for (int i = r.getInt(block, B_START), end = r.getInt(block, B_END); i < end; i++) {
+        if (r.getLong(block, value(i)) == value) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  @Override
+  public boolean contains(long key, long value, LongBinaryOperator comparator) {
+    var r = new Cells();
+    var slot = find(r, key);
+    if (slot < 0L) {
+      return false;
+    }
+    if (r.getLong(slot, S_COUNT) == 1L) {
+      return comparator.applyAsLong(value, r.getLong(slot, S_VALUE)) == 0L;
+    }
+    for (var block = r.getLong(slot, S_VALUE); block >= 0L; block = r.getLong(block, B_NEXT)) {
+      var end = r.getInt(block, B_END);
+      if (comparator.applyAsLong(value, r.getLong(block, value(end - 1))) <= 0L) {
+        return search(r, block, value, comparator) < 0;
+      }
+    }
+    return false;
+  }
+
+  @Override
+  public long countValues(long key) {
+    var r = new Cells();
+    var slot = find(r, key);
+    return slot < 0L ? 0L : r.getLong(slot, S_COUNT);
+  }
+
+  /**
+   * Visits the entries with keys in the given range in key order. The keys of a range narrower
+   * than {@value #MAX_LOOKUP_RANGE} are looked up one by one, otherwise the tables are scanned
+   * for the keys of the range, which are sorted before visiting them.
+   *
+   * @param from       Lower bound of keys (inclusive)
+   * @param to         Upper bound of keys (inclusive)
+   * @param descending True to visit the keys in descending order
+   * @param visitor    Entry visitor returning false to stop the iteration
+   * @return False if the iteration was stopped by the visitor
+   */
+  @Override
+  public boolean forEach(long from, long to, boolean descending, LongLongPredicate visitor) {
+    if (from > to) {
+      return true;
+    }
+    var r = new Cells();
+    var width = to - from;
+    if (width >= 0L && width < MAX_LOOKUP_RANGE) {
+      for (var i = 0L; i <= width; i++) {
+        var slot = find(r, descending ? to - i : from + i);
+        if (slot >= 0L && !visit(r, slot, visitor)) {
+          return false;
+        }
+      }
+      return true;
+    }
+    var builder = LongStream.builder();
+    scan(r, header.get(JAVA_LONG, H_TABLE), header.get(JAVA_LONG, H_CAPACITY), from, to, builder);
+    var old = header.get(JAVA_LONG, H_OLD_TABLE);
+    if (old >= 0L) {
+      scan(r, old, header.get(JAVA_LONG, H_OLD_CAPACITY), from, to, builder);
+    }
+    var keys = builder.build().sorted().toArray();
+    for (int i = 0, n = keys.length; i < n; i++) {
+      if (!visit(r, find(r, keys[descending ? n - 1 - i : i]), visitor)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private void scan(Cells r, long table, long capacity, long from, long to, LongStream.Builder builder) {
+    for (long slot = table, end = table + capacity * SLOT_SIZE; slot < end; slot += SLOT_SIZE) {
+      if (r.getLong(slot, S_COUNT) > 0L) {
+        var key = r.getLong(slot, S_KEY);
+        if (key >= from && key <= to) {
+          builder.add(key);
+        }
+      }
+    }
+  }
+
+  private boolean visit(Cells r, long slot, LongLongPredicate visitor) {
+    var key = r.getLong(slot, S_KEY);
+    if (r.getLong(slot, S_COUNT) == 1L) {
+      return visitor.test(key, r.getLong(slot, S_VALUE));
+    }
+    for (var block = r.getLong(slot, S_VALUE); block >= 0L; block = r.getLong(block, B_NEXT)) {
+      for (int i = r.getInt(block, B_START), end = r.getInt(block, B_END); i < end; i++) {
+        if (!visitor.test(key, r.getLong(block, value(i)))) {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
+  @Override
+  public boolean concurrentReads() {
+    return false;
+  }
+
+  @Override
+  public boolean resumableScans() {
+    return false;
+  }
+
+  /**
+   * Forces the cached segments and the header. The slots and blocks are modified in place, so unlike
+   * {@link LongLongAVLDiskMap#checkpoint()} this does not protect the map from the partially flushed changes
+   * following the checkpoint.
+   */
+  @Override
+  public void checkpoint() {
+    for (var segment : segments.values()) {
+      segment.force();
+    }
+    header.force();
+  }
+
+  @Override
+  public void set(long key, long value) {
+    var w = writer;
+    var slot = writeSlot(key);
+    var count = w.getLong(slot, S_COUNT);
+    if (count == 0L) {
+      init(slot, value);
+    } else if (count == 1L) {
+      w.setLong(slot, S_VALUE, value);
+    } else {
+      var head = w.getLong(slot, S_VALUE);
+      w.setLong(head, value(w.getInt(head, B_START)), value);
+    }
+  }
+
+  @Override
+  public void put(long key, long value) {
+    var slot = writeSlot(key);
+    if (writer.getLong(slot, S_COUNT) == 0L) {
+      init(slot, value);
+    } else {
+      prepend(slot, value);
+    }
+  }
+
+  @Override
+  public void put(long key, long value, LongBinaryOperator comparator) {
+    var slot = writeSlot(key);
+    if (writer.getLong(slot, S_COUNT) == 0L) {
+      init(slot, value);
+    } else {
+      insert(slot, value, comparator);
+    }
+  }
+
+  private void init(long slot, long value) {
+    var w = writer;
+    w.setLong(slot, S_VALUE, value);
+    w.setLong(slot, S_TAIL, -1L);
+    w.setLong(slot, S_COUNT, 1L);
+  }
+
+  private void prepend(long slot, long value) {
+    var w = writer;
+    var count = w.getLong(slot, S_COUNT);
+    if (count == 1L) {
+      var block = newBlock(MIN_BLOCK, MIN_BLOCK);
+      w.setLong(block, value(MIN_BLOCK - 1), w.getLong(slot, S_VALUE));
+      w.setInt(block, B_START, MIN_BLOCK - 1);
+      w.setLong(slot, S_VALUE, block);
+      w.setLong(slot, S_TAIL, block);
+    }
+    var head = w.getLong(slot, S_VALUE);
+    var start = w.getInt(head, B_START);
+    if (start == 0) {
+      var capacity = blockCapacity(count);
+      var block = newBlock(capacity, capacity);
+      w.setLong(block, B_NEXT, head);
+      w.setLong(slot, S_VALUE, head = block);
+      start = capacity;
+    }
+    w.setLong(head, value(--start), value);
+    w.setInt(head, B_START, start);
+    w.setLong(slot, S_COUNT, count + 1L);
+  }
+
+  // the values inserted with a comparator are kept sorted, the values following the tail or preceding the head
+  // are added without a search
+  private void insert(long slot, long value, LongBinaryOperator comparator) {
+    var w = writer;
+    var count = w.getLong(slot, S_COUNT);
+    if (count == 1L) {
+      var single = w.getLong(slot, S_VALUE);
+      var c = comparator.applyAsLong(value, single);
+      if (c == 0L) {
+        return;
+      }
+      var block = newBlock(MIN_BLOCK, 0);
+      w.setLong(block, value(0), c < 0L ? value : single);
+      w.setLong(block, value(1), c < 0L ? single : value);
+      w.setInt(block, B_END, 2);
+      w.setLong(slot, S_VALUE, block);
+      w.setLong(slot, S_TAIL, block);
+      w.setLong(slot, S_COUNT, 2L);
+      return;
+    }
+    var tail = w.getLong(slot, S_TAIL);
+    var c = comparator.applyAsLong(value, w.getLong(tail, value(w.getInt(tail, B_END) - 1)));
+    if (c == 0L) {
+      return;
+    } else if (c > 0L) {
+      append(slot, tail, count, value);
+    } else {
+      var block = w.getLong(slot, S_VALUE);
+      c = comparator.applyAsLong(value, w.getLong(block, value(w.getInt(block, B_START))));
+      if (c == 0L) {
+        return;
+      } else if (c < 0L) {
+        prepend(slot, value);
+        return;
+      }
+      while (comparator.applyAsLong(value, w.getLong(block, value(w.getInt(block, B_END) - 1))) > 0L) {
+        block = w.getLong(block, B_NEXT);
+      }
+      var index = search(w, block, value, comparator);
+      if (index < 0) {
+        return;
+      }
+      insertAt(slot, block, index, value);
+    }
+    w.setLong(slot, S_COUNT, count + 1L);
+  }
+
+  private void append(long slot, long tail, long count, long value) {
+    var w = writer;
+    var end = w.getInt(tail, B_END);
+    if (end == w.getInt(tail, B_CAPACITY)) {
+      var start = w.getInt(tail, B_START);
+      if (start > 0) {
+        w.move(tail, start, start - 1, end - start);
+        w.setInt(tail, B_START, start - 1);
+        end--;
+      } else {
+        var block = newBlock(blockCapacity(count), 0);
+        w.setLong(tail, B_NEXT, block);
+        w.setLong(slot, S_TAIL, tail = block);
+        end = 0;
+      }
+    }
+    w.setLong(tail, value(end), value);
+    w.setInt(tail, B_END, end + 1);
+  }
+
+  private void insertAt(long slot, long block, int index, long value) {
+    var w = writer;
+    var start = w.getInt(block, B_START);
+    var end = w.getInt(block, B_END);
+    var capacity = w.getInt(block, B_CAPACITY);
+    if (end < capacity) {
+      w.move(block, index, index + 1, end - index);
+      w.setLong(block, value(index), value);
+      w.setInt(block, B_END, end + 1);
+    } else if (start > 0) {
+      w.move(block, start, start - 1, index - start);
+      w.setLong(block, value(index - 1), value);
+      w.setInt(block, B_START, start - 1);
+    } else {
+      // split the full block moving its upper half to a new one
+      var half = capacity / 2;
+      var next = newBlock(capacity, 0);
+      w.copy(block, value(half), next, value(0), (capacity - half) * (long) Long.BYTES);
+      w.setInt(next, B_END, capacity - half);
+      w.setLong(next, B_NEXT, w.getLong(block, B_NEXT));
+      w.setLong(block, B_NEXT, next);
+      w.setInt(block, B_END, half);
+      if (w.getLong(slot, S_TAIL) == block) {
+        w.setLong(slot, S_TAIL, next);
+      }
+      if (index <= half) {
+        insertAt(slot, block, index, value);
+      } else {
+        insertAt(slot, next, index - half, value);
+      }
+    }
+  }
+
+  // returns the insertion index of the value in the block or -1 if the value is present
+  private static int search(Cells c, long block, long value, LongBinaryOperator comparator) {
+    var lo = c.getInt(block, B_START);
+    var hi = c.getInt(block, B_END);
+    while (lo < hi) {
+      var mid = (lo + hi) >>> 1;
+      var r = comparator.applyAsLong(value, c.getLong(block, value(mid)));
+      if (r == 0L) {
+        return -1;
+      } else if (r > 0L) {
+        lo = mid + 1;
+      } else {
+        hi = mid;
+      }
+    }
+    return lo;
+  }
+
+  private long newBlock(int capacity, int position) {
+    var block = allocate(B_VALUES + capacity * (long) Long.BYTES, Long.BYTES);
+    var w = writer;
+    w.setLong(block, B_NEXT, -1L);
+    w.setInt(block, B_CAPACITY, capacity);
+    w.setInt(block, B_START, position);
+    w.setInt(block, B_END, position);
+    return block;
+  }
+
+  // the blocks grow with the number of values of a key
+  private static int blockCapacity(long count) {
+    return (int) Math.min(MAX_BLOCK, Math.max(MIN_BLOCK, Long.highestOneBit(count)));
+  }
+
+  // finds the slot of the key or takes a free one for it, the slot of the old table is moved to the new one
+  private long writeSlot(long key) {
+    migrate(MIGRATION_STEP);
+    var w = writer;
+    var capacity = header.get(JAVA_LONG, H_CAPACITY);
+    var slot = probe(w, header.get(JAVA_LONG, H_TABLE), capacity, key);
+    if (w.getLong(slot, S_COUNT) != 0L) {
+      return slot;
+    }
+    var old = header.get(JAVA_LONG, H_OLD_TABLE);
+    if (old >= 0L) {
+      var oldSlot = probe(w, old, header.get(JAVA_LONG, H_OLD_CAPACITY), key);
+      if (w.getLong(oldSlot, S_COUNT) > 0L) {
+        move(oldSlot, slot);
+        return slot;
+      }
+    }
+    var size = header.get(JAVA_LONG, H_SIZE) + 1L;
+    if (size * 4L > capacity * 3L) {
+      grow();
+      slot = probe(w, header.get(JAVA_LONG, H_TABLE), header.get(JAVA_LONG, H_CAPACITY), key);
+    }
+    w.setLong(slot, S_KEY, key);
+    header.set(JAVA_LONG, H_SIZE, size);
+    return slot;
+  }
+
+  private void grow() {
+    migrate(Integer.MAX_VALUE);
+    var table = header.get(JAVA_LONG, H_TABLE);
+    var capacity = header.get(JAVA_LONG, H_CAPACITY);
+    header.set(JAVA_LONG, H_TABLE, allocate(2L * capacity * SLOT_SIZE, SLOT_SIZE));
+    header.set(JAVA_LONG, H_CAPACITY, 2L * capacity);
+    header.set(JAVA_LONG, H_OLD_TABLE, table);
+    header.set(JAVA_LONG, H_OLD_CAPACITY, capacity);
+    header.set(JAVA_LONG, H_MOVED, 0L);
+  }
+
+  // moves the next slots of the old table to the new one
+  private void migrate(int slots) {
+    var old = header.get(JAVA_LONG, H_OLD_TABLE);
+    if (old < 0L) {
+      return;
+    }
+    var w = writer;
+    var table = header.get(JAVA_LONG, H_TABLE);
+    var capacity = header.get(JAVA_LONG, H_CAPACITY);
+    var oldCapacity = header.get(JAVA_LONG, H_OLD_CAPACITY);
+    var moved = header.get(JAVA_LONG, H_MOVED);
+    for (var end = Math.min(oldCapacity, moved + slots); moved < end; moved++) {
+      var slot = old + moved * SLOT_SIZE;
+      if (w.getLong(slot, S_COUNT) > 0L) {
+        move(slot, probe(w, table, capacity, w.getLong(slot, S_KEY)));
+      }
+    }
+    if (moved == oldCapacity) {
+      header.set(JAVA_LONG, H_OLD_TABLE, -1L);
+      header.set(JAVA_LONG, H_OLD_CAPACITY, 0L);
+      header.set(JAVA_LONG, H_MOVED, 0L);
+    } else {
+      header.set(JAVA_LONG, H_MOVED, moved);
+    }
+  }
+
+  // the moved slot keeps the probe sequences of the old table going on
+  private void move(long from, long to) {
+    var w = writer;
+    w.copy(from, 0, to, 0, SLOT_SIZE);
+    w.setLong(from, S_COUNT, -1L);
+  }
+
+  private long find(Cells c, long key) {
+    var slot = probe(c, header.get(JAVA_LONG, H_TABLE), header.get(JAVA_LONG, H_CAPACITY), key);
+    if (c.getLong(slot, S_COUNT) > 0L) {
+      return slot;
+    }
+    var old = header.get(JAVA_LONG, H_OLD_TABLE);
+    if (old >= 0L) {
+      slot = probe(c, old, header.get(JAVA_LONG, H_OLD_CAPACITY), key);
+      if (c.getLong(slot, S_COUNT) > 0L) {
+        return slot;
+      }
+    }
+    return -1L;
+  }
+
+  // returns the slot of the key or the free slot terminating its probe sequence
+  private static long probe(Cells c, long table, long capacity, long key) {
+    var mask = capacity - 1L;
+    for (var i = hash(key) & mask; ; i = (i + 1L) & mask) {
+      var slot = table + i * SLOT_SIZE;
+      var count = c.getLong(slot, S_COUNT);
+      if (count == 0L || count > 0L && c.getLong(slot, S_KEY) == key) {
+        return slot;
+      }
+    }
+  }
+
+  private static long hash(long key) {
+    var h = key * 0x9E3779B97F4A7C15L;
+    return h ^ (h >>> 32);
+  }
+
+  private static long value(int index) {
+    return B_VALUES + index * (long) Long.BYTES;
+  }
+
+  // the blocks do not cross the segment boundaries, the tables are aligned to the slot size
+  private long allocate(long size, int alignment) {
+    var addr = (header.get(JAVA_LONG, H_LAST) + alignment - 1) & -alignment;
+    if (size <= segmentSize && addr / segmentSize != (addr + size - 1L) / segmentSize) {
+      addr = (addr / segmentSize + 1L) * segmentSize;
+    }
+    header.set(JAVA_LONG, H_LAST, addr + size);
+    return addr;
+  }
+
+  private MemorySegment segment(long addr) {
+    var n = (int) (addr / segmentSize);
+    var m = mapped;
+    if (n < m.length && m[n] != null) {
+      return m[n];
+    }
+    var start = (long) n * segmentSize;
+    var s = segments.get(start);
+    if (s != null) {
+      return cache(n, s);
+    }
+    var arena = Arena.ofShared();
+    try {
+      var segment = channel.map(READ_WRITE, start, segmentSize, arena);
+      var segmentAddress = segment.address();
+      var actions = cleanActions;
+      actions.put(segmentAddress, CLEANER.register(segment, () -> {
+        actions.remove(segmentAddress);
+        arena.close();
+      }));
+      var old = segments.putIfAbsent(start, segment);
+      if (old != null) {
+        return cache(n, old);
+      }
+      while (segments.size() > maxSegments) {
+        for (var it = segments.entrySet().iterator(); it.hasNext(); ) {
+          var e = it.next();
+          if (e.getValue() != segment && segments.size() > maxSegments) {
+            it.remove();
+            evict((int) (e.getKey() / segmentSize));
+            e.getValue().force();
+            if (segments.size() <= maxSegments) {
+              break;
+            }
+          }
+        }
+      }
+      return cache(n, segment);
+    } catch (IOException e) {
+      arena.close();
+      throw new UncheckedIOException(e);
+    } catch (Throwable e) {
+      arena.close();
+      throw e;
+    }
+  }
+
+  private MemorySegment cache(int n, MemorySegment segment) {
+    var m = mapped;
+    if (n >= m.length) {
+      mapped = m = Arrays.copyOf(m, Math.max(n + 1, m.length * 2));
+    }
+    return m[n] = segment;
+  }
+
+  private void evict(int n) {
+    var m = mapped;
+    if (n < m.length) {
+      m[n] = null;
+    }
+  }
+
+  /**
+   * Closes the map. See {@link LongLongAVLDiskMap#close()} for the notes on unmapping the segments.
+   */
+  @Override
+  public void close() {
+    try (channel; headerArena; var _ = (Closeable) header::force) {
+      var exception = new IllegalArgumentException();
+      mapped = new MemorySegment[0];
+      segments.entrySet().removeIf(e -> {
+        try {
+          e.getValue().force();
+        } catch (Throwable x) {
+          exception.addSuppressed(new IllegalStateException("Unable to force segment at " + e.getKey(), x));
+        }
+        return true;
+      });
+      cleanActions.entrySet().removeIf(e -> {
+        try {
+          e.getValue().clean();
+        } catch (Throwable x) {
+          exception.addSuppressed(new IllegalStateException("Unable to close arena at " + e.getKey(), x));
+        }
+        return true;
+      });
+      if (exception.getSuppressed().length > 0) {
+        throw exception;
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private static int checkSegmentSize(int segmentSize) {
+    if (segmentSize < HEADER_SIZE || segmentSize % HEADER_SIZE != 0) {
+      throw new IllegalArgumentException("segmentSize must be a multiple of " + HEADER_SIZE);
+    }
+    return segmentSize;
+  }
+
+  private static int checkMaxSegments(int maxSegments) {
+    if (maxSegments < 2) {
+      throw new IllegalArgumentException("maxSegments must be at least 2");
+    }
+    return maxSegments;
+  }
+
+  // reads and writes the slots and blocks through the last used segment
+  private final class Cells {
+
+    private MemorySegment segment;
+    private long offset = Long.MIN_VALUE;
+
+    private long getLong(long addr, long field) {
+      return segment(addr).get(JAVA_LONG, addr - offset + field);
+    }
+
+    private void setLong(long addr, long field, long value) {
+      segment(addr).set(JAVA_LONG, addr - offset + field, value);
+    }
+
+    private int getInt(long addr, int field) {
+      return segment(addr).get(JAVA_INT, addr - offset + field);
+    }
+
+    private void setInt(long addr, int field, int value) {
+      segment(addr).set(JAVA_INT, addr - offset + field, value);
+    }
+
+    private void copy(long src, long srcField, long dst, long dstField, long size) {
+      var s = segment(src);
+      var srcOffset = src - offset + srcField;
+      var d = segment(dst);
+      MemorySegment.copy(s, srcOffset, d, dst - offset + dstField, size);
+    }
+
+    // moves the values within a block
+    private void move(long block, int from, int to, int count) {
+      copy(block, value(from), block, value(to), count * (long) Long.BYTES);
+    }
+
+    private MemorySegment segment(long addr) {
+      var o = addr - offset;
+      if (o < 0L || o >= segmentSize) {
+        segment = LongLongHashDiskMap.this.segment(addr);
+        offset = addr - addr % segmentSize;
+      }
+      return segment;
+    }
+  }
+}
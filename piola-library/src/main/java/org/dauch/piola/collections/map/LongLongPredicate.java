@@ -0,0 +1,39 @@
+package org.dauch.piola.collections.map;
+
+/*-
+ * #%L
+ * piola-server
+ * %%
+ * Copyright (C) 2024 dauch
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+/**
+ * A predicate of a key and a value.
+ */
+@FunctionalInterface
+public interface LongLongPredicate {
+
+  /**
+   * Tests an entry.
+   *
+   * @param key   Key
+   * @param value Value
+   * @return True to continue, false to stop
+   */
+  boolean test(long key, long value);
+}
@@ -0,0 +1,81 @@
+package org.dauch.piola.util;
+
+/*-
+ * #%L
+ * piola-server
+ * %%
+ * Copyright (C) 2024 dauch
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+/**
+ * CRC-32C arithmetic: combines the checksums of adjacent byte sequences without reading the bytes.
+ */
+public final class Crc {
+
+  // reflected CRC-32C polynomial
+  private static final int POLY = 0x82F63B78;
+  // x^(2^n) modulo the polynomial
+  private static final int[] POWERS = new int[64];
+
+  static {
+    POWERS[0] = 1 << 30;
+    for (int n = 1; n < POWERS.length; n++) {
+      POWERS[n] = multiply(POWERS[n - 1], POWERS[n - 1]);
+    }
+  }
+
+  private Crc() {
+  }
+
+  /**
+   * Computes the checksum of the concatenation of two sequences. As the operation is an involution
+   * with respect to the second checksum, it also extracts the checksum of the suffix:
+   * {@code combine(crc(a), crc(a + b), length(b)) == crc(b)}.
+   *
+   * @param crc1    Checksum of the first sequence
+   * @param crc2    Checksum of the second sequence
+   * @param length2 Length of the second sequence
+   * @return Checksum of the concatenation
+   */
+  public static int combine(int crc1, int crc2, long length2) {
+    return multiply(power(length2), crc1) ^ crc2;
+  }
+
+  // x^(8n) modulo the polynomial
+  private static int power(long n) {
+    var p = 1 << 31;
+    for (var k = 3; n != 0L; n >>>= 1, k++) {
+      if ((n & 1L) != 0L) {
+        p = multiply(POWERS[k & 63], p);
+      }
+    }
+    return p;
+  }
+
+  // multiplies two polynomials modulo the polynomial, the bits are reflected
+  private static int multiply(int a, int b) {
+    var p = 0;
+    for (var m = 1 << 31; m != 0; m >>>= 1) {
+      if ((a & m) != 0) {
+        p ^= b;
+      }
+      b = (b & 1) != 0 ? (b >>> 1) ^ POLY : b >>> 1;
+    }
+    return p;
+  }
+}
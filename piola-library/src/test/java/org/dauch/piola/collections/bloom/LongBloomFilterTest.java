@@ -0,0 +1,95 @@
+package org.dauch.piola.collections.bloom;
+
+/*-
+ * #%L
+ * piola-server
+ * %%
+ * Copyright (C) 2024 dauch
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LongBloomFilterTest {
+
+  private Path file;
+
+  @BeforeEach
+  void beforeEach(@TempDir Path dir) {
+    file = dir.resolve("file.bloom");
+  }
+
+  @ParameterizedTest
+  @ValueSource(doubles = {0.1, 0.01, 0.001})
+  void falsePositiveRate(double rate) {
+    var random = new Random(0L);
+    // the keys fill several stages
+    var keys = random.longs(100_000).toArray();
+    try (var filter = new LongBloomFilter(file, rate)) {
+      assertTrue(filter.isReset());
+      for (var key : keys) {
+        filter.add(key);
+      }
+      // the keys found by the filter before being added are not counted
+      assertTrue(filter.getKeys() > (1d - rate) * keys.length);
+    }
+    try (var filter = new LongBloomFilter(file, rate)) {
+      assertFalse(filter.isReset());
+      for (var key : keys) {
+        assertTrue(filter.mightContain(key));
+      }
+      var positives = random.longs(100_000).filter(filter::mightContain).count();
+      assertTrue(positives < rate * 100_000, () -> "Too many false positives: " + positives);
+      assertEquals(BigInteger.valueOf(200_000L), filter.getChecks());
+      assertEquals(BigInteger.valueOf(100_000L - positives), filter.getNegatives());
+      assertEquals((100_000d - positives) / 200_000d, filter.getHitRate(), 1e-9);
+    }
+  }
+
+  @Test
+  void resetOnCrashOrRateChange() throws Exception {
+    try (var filter = new LongBloomFilter(file, 0.01)) {
+      filter.add(1L);
+      // the copy of an open filter is what a crash leaves
+      Files.copy(file, file.resolveSibling("copy.bloom"));
+    }
+    try (var filter = new LongBloomFilter(file.resolveSibling("copy.bloom"), 0.01)) {
+      assertTrue(filter.isReset());
+      assertFalse(filter.mightContain(1L));
+    }
+    try (var filter = new LongBloomFilter(file, 0.01)) {
+      assertFalse(filter.isReset());
+      assertTrue(filter.mightContain(1L));
+    }
+    try (var filter = new LongBloomFilter(file, 0.02)) {
+      assertTrue(filter.isReset());
+      assertEquals(0L, filter.getKeys());
+    }
+    assertThrows(IllegalArgumentException.class, () -> new LongBloomFilter(file, 1d));
+  }
+}
@@ -0,0 +1,89 @@
+package org.dauch.piola.collections.buffer;
+
+/*-
+ * #%L
+ * piola-server
+ * %%
+ * Copyright (C) 2024 dauch
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BufferManagerTest {
+
+  @TempDir
+  private Path dir;
+
+  @Test
+  void getAndRelease() throws Exception {
+    try (var manager = new BufferManager("test", dir, 8, 1024, 0.5f, true)) {
+      var indices = new HashSet<Integer>();
+      var buffers = new ByteBuffer[8];
+      for (int i = 0; i < buffers.length; i++) {
+        buffers[i] = manager.get();
+        assertEquals(1024, buffers[i].capacity());
+        assertTrue(indices.add(manager.find(buffers[i])));
+      }
+      assertThrows(IllegalStateException.class, () -> manager.find(buffers[0].duplicate()));
+      assertThrows(IllegalStateException.class, () -> manager.find(ByteBuffer.allocateDirect(1024)));
+      assertThrows(IllegalStateException.class, () -> manager.find(ByteBuffer.allocate(1024)));
+      buffers[3].putLong(0, 42L).position(1000);
+      manager.release(buffers[3]);
+      assertThrows(IllegalStateException.class, () -> manager.release(buffers[3]));
+      var buffer = manager.get();
+      assertSame(buffers[3], buffer);
+      assertEquals(0, buffer.position());
+      assertEquals(0L, buffer.getLong(0));
+      for (var b : buffers) {
+        manager.release(b);
+      }
+    }
+  }
+
+  @Test
+  void contention() throws Exception {
+    var owners = new ConcurrentHashMap<Integer, Thread>();
+    try (var manager = new BufferManager("test", dir, 4, 64, 1f, true); var executor = Executors.newVirtualThreadPerTaskExecutor()) {
+      var futures = new Future<?>[16];
+      for (int t = 0; t < futures.length; t++) {
+        futures[t] = executor.submit(() -> {
+          for (int i = 0; i < 10_000; i++) {
+            var buffer = manager.get();
+            var index = manager.find(buffer);
+            assertNull(owners.put(index, Thread.currentThread()));
+            Thread.yield();
+            assertSame(Thread.currentThread(), owners.remove(index));
+            manager.release(buffer);
+          }
+        });
+      }
+      for (var future : futures) {
+        future.get();
+      }
+    }
+  }
+}
@@ -33,17 +33,25 @@ import org.junit.jupiter.api.io.TempDir;
 import org.junit.jupiter.params.ParameterizedTest;
 import org.junit.jupiter.params.provider.Arguments;
 import org.junit.jupiter.params.provider.MethodSource;
+import org.junit.jupiter.params.provider.ValueSource;
 
 import java.lang.foreign.Arena;
 import java.lang.foreign.MemorySegment;
 import java.nio.channels.FileChannel;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.*;
 
+import static java.lang.foreign.ValueLayout.JAVA_INT;
 import static java.lang.foreign.ValueLayout.JAVA_LONG;
 import static java.nio.channels.FileChannel.MapMode.READ_ONLY;
+import static java.nio.channels.FileChannel.MapMode.READ_WRITE;
 import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
 import static org.dauch.piola.collections.map.LongLongAVLDiskMap.*;
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -91,6 +99,19 @@ class LongLongAVLDiskMapTest {
     }
   }
 
+  @Test
+  void sorted_ascending_inserts() {
+    try (var map = new LongLongAVLDiskMap(file, 1 << 10, 1024)) {
+      map.put(1L, 1L, Long::compare);
+      map.put(1L, 3L, Long::compare);
+      map.put(1L, 2L, Long::compare);
+      map.put(1L, 5L, Long::compare);
+      map.put(1L, 4L, Long::compare);
+      assertArrayEquals(new long[]{1L, 2L, 3L, 4L, 5L}, map.get(1L).toArray());
+      assertEquals(5L, map.countValues(1L));
+    }
+  }
+
   @Test
   void sorted_check_duplicates() {
     try (var map = new LongLongAVLDiskMap(file, 1 << 10, 1024)) {
@@ -104,6 +125,608 @@ class LongLongAVLDiskMapTest {
     }
   }
 
+  @ParameterizedTest
+  @ValueSource(ints = {1, 2, 5, 255, 256, 257, 10_000})
+  void manyValues(int n) {
+    manyValues(n, false);
+  }
+
+  @ParameterizedTest
+  @ValueSource(ints = {1, 2, 5, 255, 256, 257, 10_000})
+  void manyValuesConcurrentReads(int n) {
+    manyValues(n, true);
+  }
+
+  private void manyValues(int n, boolean concurrentReads) {
+    var random = new Random(n);
+    var values = LongStream.generate(() -> random.nextLong(n * 2L)).limit(n).toArray();
+    try (var map = new LongLongAVLDiskMap(file, 1 << 10, 1024, concurrentReads)) {
+      var expectedUnordered = new LongArrayList();
+      var expectedAsc = new TreeSet<Long>();
+      var expectedDesc = new TreeSet<Long>(Comparator.reverseOrder());
+      for (var v : values) {
+        map.put(1L, v);
+        map.put(2L, v, Long::compare);
+        map.put(3L, v, (v1, v2) -> Long.compare(v2, v1));
+        expectedUnordered.addAtIndex(0, v);
+        expectedAsc.add(v);
+        expectedDesc.add(v);
+      }
+      assertArrayEquals(expectedUnordered.toArray(), map.get(1L).toArray());
+      assertArrayEquals(get(map, 1L), map.get(1L).toArray());
+      assertArrayEquals(expectedAsc.stream().mapToLong(Long::longValue).toArray(), map.get(2L).toArray());
+      assertArrayEquals(expectedDesc.stream().mapToLong(Long::longValue).toArray(), map.get(3L).toArray());
+      assertEquals(n, map.countValues(1L));
+      assertEquals(expectedAsc.size(), map.countValues(2L));
+      assertEquals(expectedDesc.size(), map.countValues(3L));
+      for (var v = -1L; v <= n * 2L; v++) {
+        var present = expectedAsc.contains(v);
+        assertEquals(present, map.contains(1L, v));
+        assertEquals(present, map.contains(2L, v, Long::compare));
+        assertEquals(present, map.contains(3L, v, (v1, v2) -> Long.compare(v2, v1)));
+      }
+      map.set(1L, -5L);
+      assertEquals(-5L, map.get(1L).findFirst().orElseThrow());
+      assertEquals(n, map.countValues(1L));
+    }
+  }
+
+  @Test
+  void concurrentReads() throws Exception {
+    var random = new Random(0L);
+    var n = 100_000;
+    var keys = LongStream.generate(() -> random.nextLong(10_000L)).limit(n).toArray();
+    var values = LongStream.generate(random::nextLong).limit(n).toArray();
+    var written = new AtomicInteger();
+    try (var map = new LongLongAVLDiskMap(file, 1 << 16, 1024, true); var executor = Executors.newFixedThreadPool(3)) {
+      var readers = IntStream.range(0, 3).mapToObj(r -> executor.submit(() -> {
+        var rnd = new Random(r);
+        for (var w = written.get(); w < n; w = written.get()) {
+          if (w == 0) {
+            Thread.onSpinWait();
+            continue;
+          }
+          var i = rnd.nextInt(w);
+          assertTrue(map.contains(keys[i], values[i], Long::compare), () -> "ordered " + i);
+          assertTrue(map.contains(~keys[i], values[i]), () -> "unordered " + i);
+          var last = new long[] {Long.MIN_VALUE, Long.MIN_VALUE};
+          map.forEach(Math.max(0L, keys[i] - 100L), keys[i] + 100L, false, (k, v) -> {
+            assertTrue(k > last[0] || k == last[0] && v > last[1]);
+            last[0] = k;
+            last[1] = v;
+            return true;
+          });
+        }
+        return null;
+      })).toList();
+      for (int i = 0; i < n; i++) {
+        map.put(keys[i], values[i], Long::compare);
+        map.put(~keys[i], values[i]);
+        written.set(i + 1);
+      }
+      for (var reader : readers) {
+        reader.get();
+      }
+      for (int i = 0; i < n; i++) {
+        assertTrue(map.contains(keys[i], values[i], Long::compare));
+      }
+    }
+  }
+
+  @Test
+  void segmentCache() {
+    var random = new Random(0L);
+    var keys = LongStream.generate(random::nextLong).limit(10_000L).toArray();
+    var map = new LongLongAVLDiskMap(file, 1024, 4);
+    try (map) {
+      for (var key : keys) {
+        map.put(key, key);
+      }
+      for (var key : keys) {
+        assertEquals(1L, map.countValues(key));
+      }
+      assertTrue(map.getCachedSegments() <= 8);
+      assertTrue(map.getHits().signum() > 0);
+      assertTrue(map.getMisses().signum() > 0);
+      assertEquals(map.getMisses(), map.getMaps());
+    }
+    assertEquals(0, map.getCachedSegments());
+    assertEquals(4096L, map.getForcedBytes().longValueExact());
+    try (var reopened = new LongLongAVLDiskMap(file, 1 << 20, 4)) {
+      for (var key : keys) {
+        assertArrayEquals(new long[] {key}, get(reopened, key));
+      }
+    }
+  }
+
+  @Test
+  void lastSegmentHits() {
+    try (var map = new LongLongAVLDiskMap(file, 1 << 20, 4)) {
+      map.put(1L, 1L);
+      var hits = map.getHits();
+      for (int i = 0; i < 100; i++) {
+        assertEquals(1L, map.countValues(1L));
+      }
+      assertTrue(map.getHits().subtract(hits).longValueExact() >= 100L);
+      assertEquals(map.getMisses(), map.getMaps());
+    }
+  }
+
+  @Test
+  void prefetch() {
+    var random = new Random(0L);
+    var compacted = file.resolveSibling("compacted.data");
+    var expected = new LongArrayList();
+    var expectedDescending = new LongArrayList();
+    try (var map = new LongLongAVLDiskMap(file, 1 << 12, 1024)) {
+      for (int i = 0; i < 20_000; i++) {
+        map.put(random.nextLong(5000L), random.nextLong());
+      }
+      map.compact(compacted).close();
+      map.forEach(Long.MIN_VALUE, Long.MAX_VALUE, false, (k, v) -> expected.add(k) && expected.add(v));
+      map.forEach(Long.MIN_VALUE, Long.MAX_VALUE, true, (k, v) -> expectedDescending.add(k) && expectedDescending.add(v));
+    }
+    assertThrows(IllegalArgumentException.class, () -> new LongLongAVLDiskMap(compacted, 1 << 12, 4, false, false, 4));
+    var map = new LongLongAVLDiskMap(compacted, 1 << 12, 16, false, false, 4);
+    try (map) {
+      var actual = new LongArrayList();
+      map.forEach(Long.MIN_VALUE, Long.MAX_VALUE, false, (k, v) -> actual.add(k) && actual.add(v));
+      assertEquals(expected, actual);
+      assertTrue(map.getPrefetches().signum() > 0);
+      assertTrue(map.getPrefetchHits().signum() > 0);
+      var descending = new LongArrayList();
+      map.forEach(Long.MIN_VALUE, Long.MAX_VALUE, true, (k, v) -> descending.add(k) && descending.add(v));
+      assertEquals(expectedDescending, descending);
+      assertTrue(map.getCachedSegments() <= 32);
+    }
+    assertEquals(0, map.getCachedSegments());
+  }
+
+  @ParameterizedTest
+  @ValueSource(booleans = {false, true})
+  void remove(boolean concurrentReads) throws Exception {
+    var random = new Random(0L);
+    var expected = new TreeMap<Long, LongArrayList>();
+    try (var map = new LongLongAVLDiskMap(file, 1 << 12, 1024, concurrentReads)) {
+      for (int i = 0; i < 20_000; i++) {
+        var key = random.nextLong(1000L);
+        var value = random.nextLong(100L);
+        expected.computeIfAbsent(key, _ -> new LongArrayList()).addAtIndex(0, value);
+        map.put(key, value);
+      }
+      assertFalse(map.remove(1000L));
+      assertFalse(map.remove(1000L, 1L));
+      assertFalse(map.remove(0L, 100L));
+      for (int i = 0; i < 15_000; i++) {
+        var key = random.nextLong(1000L);
+        var values = expected.get(key);
+        if (i % 100 == 0) {
+          assertEquals(values != null, map.remove(key));
+          expected.remove(key);
+        } else if (values != null) {
+          var value = values.get(random.nextInt(values.size()));
+          assertTrue(map.remove(key, value));
+          values.removeAtIndex(values.indexOf(value));
+          if (values.isEmpty()) {
+            expected.remove(key);
+          }
+        }
+      }
+      var actualKeys = new LongArrayList();
+      var actualValues = new LongArrayList();
+      map.forEach(Long.MIN_VALUE, Long.MAX_VALUE, false, (k, v) -> {
+        actualKeys.add(k);
+        actualValues.add(v);
+        return true;
+      });
+      var expectedKeys = new LongArrayList();
+      var expectedValues = new LongArrayList();
+      expected.forEach((k, vs) -> vs.forEach(v -> {
+        expectedKeys.add(k);
+        expectedValues.add(v);
+      }));
+      assertEquals(expectedKeys, actualKeys);
+      assertEquals(expectedValues, actualValues);
+      expected.forEach((k, vs) -> assertEquals(vs.size(), map.countValues(k)));
+    }
+    try (var ch = FileChannel.open(file, EnumSet.of(READ)); var arena = Arena.ofConfined()) {
+      var segment = ch.map(READ_ONLY, 0L, ch.size(), arena);
+      checkBalance(segment, segment.get(JAVA_LONG, H_ROOT));
+    }
+  }
+
+  @Test
+  void concurrentRemovals() throws Exception {
+    var n = 50_000;
+    var removed = new AtomicInteger();
+    try (var map = new LongLongAVLDiskMap(file, 1 << 16, 1024, true); var executor = Executors.newFixedThreadPool(3)) {
+      for (int i = 0; i < n; i++) {
+        map.put(i, i);
+        map.put(i, ~i);
+        map.put(i, -i);
+      }
+      var readers = IntStream.range(0, 3).mapToObj(r -> executor.submit(() -> {
+        var rnd = new Random(r);
+        while (removed.get() < n) {
+          // the even keys keep their values, the odd ones lose them one by one
+          var key = rnd.nextInt(n / 2) * 2L;
+          assertTrue(map.contains(key, key), () -> "key " + key);
+          assertTrue(map.contains(key, ~key), () -> "key " + key);
+          assertEquals(3L, map.countValues(key));
+          var last = new long[] {key - 1L};
+          map.forEach(key - 1L, key + 20L, false, (k, _) -> {
+            assertTrue(k >= last[0]);
+            assertTrue(k % 2L != 0L || k - last[0] <= 2L);
+            last[0] = k;
+            return true;
+          });
+        }
+        return null;
+      })).toList();
+      for (int i = 1; i < n; i += 2) {
+        assertTrue(map.remove(i, ~i));
+        assertTrue(map.remove(i, i));
+        assertTrue(map.remove(i, -i));
+        removed.set(i + 1);
+      }
+      removed.set(n);
+      for (var reader : readers) {
+        reader.get();
+      }
+      for (int i = 0; i < n; i++) {
+        assertEquals(i % 2 == 0, map.contains(i));
+      }
+    }
+  }
+
+  @Test
+  void removeAndReuse() throws Exception {
+    var random = new Random(0L);
+    var keys = LongStream.generate(() -> random.nextLong(1000L)).limit(10_000L).toArray();
+    try (var map = new LongLongAVLDiskMap(file, 1 << 12, 1024)) {
+      for (var key : keys) {
+        map.put(key, ~key);
+      }
+      var last = last();
+      for (var key : keys) {
+        map.remove(key);
+      }
+      assertFalse(map.cursor().first());
+      for (var key : keys) {
+        map.put(key, ~key);
+      }
+      assertEquals(last, last());
+      for (var key : keys) {
+        assertTrue(map.contains(key, ~key));
+      }
+    }
+  }
+
+  @ParameterizedTest
+  @ValueSource(booleans = {false, true})
+  void compact(boolean concurrentReads) throws Exception {
+    var random = new Random(0L);
+    var target = file.resolveSibling("compacted.data");
+    try (var map = new LongLongAVLDiskMap(file, 1 << 12, 1024, concurrentReads)) {
+      for (int i = 0; i < 20_000; i++) {
+        var key = random.nextLong(1000L);
+        map.put(key, random.nextLong(100L), Long::compare);
+        map.put(~key, random.nextLong());
+      }
+      for (int i = 0; i < 500; i++) {
+        map.remove(random.nextLong(1000L));
+      }
+      try (var compacted = map.compact(target)) {
+        var expected = new LongArrayList();
+        var actual = new LongArrayList();
+        map.forEach(Long.MIN_VALUE, Long.MAX_VALUE, false, (k, v) -> expected.add(k) && expected.add(v));
+        compacted.forEach(Long.MIN_VALUE, Long.MAX_VALUE, false, (k, v) -> actual.add(k) && actual.add(v));
+        assertEquals(expected, actual);
+        assertTrue(compacted.contains(expected.get(0), expected.get(1)));
+        assertThrows(IllegalArgumentException.class, () -> map.compact(target));
+      }
+    }
+    try (var ch = FileChannel.open(target, EnumSet.of(READ)); var arena = Arena.ofConfined()) {
+      var segment = ch.map(READ_ONLY, 0L, ch.size(), arena);
+      checkBalance(segment, segment.get(JAVA_LONG, H_ROOT));
+      assertTrue(segment.get(JAVA_LONG, H_LAST) < last());
+    }
+  }
+
+  @ParameterizedTest
+  @ValueSource(booleans = {false, true})
+  void compactFiltered(boolean orderStatistics) throws Exception {
+    var random = new Random(0L);
+    var target = file.resolveSibling("compacted.data");
+    try (var map = new LongLongAVLDiskMap(file, 1 << 12, 1024, true, orderStatistics)) {
+      for (int i = 0; i < 20_000; i++) {
+        map.put(random.nextLong(1000L), i, Long::compare);
+      }
+      // the keys below 100 lose all their values
+      LongLongPredicate filter = (k, v) -> k >= 100L && v >= 5_000L;
+      try (var compacted = map.compact(target, filter)) {
+        var expected = new LongArrayList();
+        var actual = new LongArrayList();
+        map.forEach(Long.MIN_VALUE, Long.MAX_VALUE, false, (k, v) -> !filter.test(k, v) || expected.add(k) && expected.add(v));
+        compacted.forEach(Long.MIN_VALUE, Long.MAX_VALUE, false, (k, v) -> actual.add(k) && actual.add(v));
+        assertEquals(expected, actual);
+        assertFalse(compacted.contains(42L));
+        assertEquals(map.get(500L).filter(v -> v >= 5_000L).count(), compacted.countValues(500L));
+        if (orderStatistics) {
+          assertEquals(expected.size() / 2, compacted.count(Long.MIN_VALUE, Long.MAX_VALUE));
+        }
+      }
+    }
+    try (var ch = FileChannel.open(target, EnumSet.of(READ)); var arena = Arena.ofConfined()) {
+      var segment = ch.map(READ_ONLY, 0L, ch.size(), arena);
+      checkBalance(segment, segment.get(JAVA_LONG, H_ROOT));
+    }
+  }
+
+  @ParameterizedTest
+  @ValueSource(booleans = {false, true})
+  void checkpoint(boolean concurrentReads) throws Exception {
+    var random = new Random(0L);
+    var crashed = file.resolveSibling("crashed.data");
+    var expected = new TreeMap<Long, LongArrayList>();
+    try (var map = new LongLongAVLDiskMap(file, 1 << 12, 1024, concurrentReads)) {
+      for (int round = 0; round < 5; round++) {
+        modify(map, expected, random, 5_000);
+        map.checkpoint();
+        var checkpointed = copy(expected);
+        // the file copied while the map is modified has the changes following the checkpoint
+        modify(map, expected, random, 5_000);
+        assertEquals(entries(expected), entries(map));
+        Files.copy(file, crashed, StandardCopyOption.REPLACE_EXISTING);
+        try (var recovered = new LongLongAVLDiskMap(crashed, 1 << 12, 1024, concurrentReads)) {
+          assertEquals(entries(checkpointed), entries(recovered));
+          modify(recovered, checkpointed, random, 5_000);
+        }
+        try (var reopened = new LongLongAVLDiskMap(crashed, 1 << 12, 1024, concurrentReads)) {
+          assertEquals(entries(checkpointed), entries(reopened));
+        }
+        try (var ch = FileChannel.open(crashed, EnumSet.of(READ)); var arena = Arena.ofConfined()) {
+          var segment = ch.map(READ_ONLY, 0L, ch.size(), arena);
+          checkBalance(segment, segment.get(JAVA_LONG, H_ROOT));
+        }
+      }
+    }
+  }
+
+  @Test
+  void checkpointSlots() throws Exception {
+    var copy = file.resolveSibling("copy.data");
+    try (var map = new LongLongAVLDiskMap(file, 1 << 12, 1024)) {
+      map.put(1L, 1L);
+      map.checkpoint();
+      map.put(2L, 2L);
+      map.checkpoint();
+      map.put(3L, 3L);
+      Files.copy(file, copy);
+    }
+    try (var ch = FileChannel.open(copy, EnumSet.of(READ, WRITE)); var arena = Arena.ofConfined()) {
+      var header = ch.map(READ_WRITE, 0L, FILE_HEADER_SIZE, arena);
+      var newest = header.get(JAVA_LONG, H_SLOTS + C_GENERATION) > header.get(JAVA_LONG, H_SLOTS + SLOT_SIZE + C_GENERATION)
+        ? H_SLOTS
+        : H_SLOTS + SLOT_SIZE;
+      header.set(JAVA_LONG, newest + C_STATE, 0L);
+    }
+    try (var map = new LongLongAVLDiskMap(copy, 1 << 12, 1024)) {
+      assertTrue(map.contains(1L, 1L));
+      assertFalse(map.contains(2L));
+      assertFalse(map.contains(3L));
+    }
+    try (var map = new LongLongAVLDiskMap(file, 1 << 12, 1024)) {
+      assertTrue(map.contains(3L, 3L));
+    }
+  }
+
+  @Test
+  void garbageBytes() throws Exception {
+    var random = new Random(0L);
+    try (var map = new LongLongAVLDiskMap(file, 1 << 12, 1024, true)) {
+      for (int i = 0; i < 10_000; i++) {
+        map.put(random.nextLong(1000L), i, Long::compare);
+      }
+      var garbage = map.garbageBytes();
+      assertTrue(garbage > 0L);
+      for (long key = 0L; key < 500L; key++) {
+        map.remove(key);
+      }
+      assertTrue(map.garbageBytes() > garbage);
+      assertTrue(map.garbageBytes() < map.usedBytes());
+      garbage = map.garbageBytes();
+      map.checkpoint();
+      try (var compacted = map.compact(file.resolveSibling("compacted.data"))) {
+        assertEquals(0L, compacted.garbageBytes());
+        assertTrue(compacted.usedBytes() <= map.usedBytes() - garbage);
+      }
+    }
+    try (var map = new LongLongAVLDiskMap(file, 1 << 12, 1024, true)) {
+      assertTrue(map.garbageBytes() > 0L);
+    }
+    try (var map = new LongLongAVLDiskMap(file.resolveSibling("exclusive.data"), 1 << 12, 1024, false)) {
+      for (int i = 0; i < 10_000; i++) {
+        map.put(random.nextLong(1000L), i, Long::compare);
+      }
+      map.remove(1L);
+      assertEquals(0L, map.garbageBytes());
+    }
+  }
+
+  @Test
+  void checkpointMark() throws Exception {
+    var crashed = file.resolveSibling("crashed.data");
+    try (var map = new LongLongAVLDiskMap(file, 1 << 12, 1024, true)) {
+      assertEquals(0L, map.mark());
+      map.put(1L, 1L);
+      map.checkpoint(10L);
+      map.put(2L, 2L);
+      map.checkpoint(20L);
+      map.put(3L, 3L);
+      // the mark is recorded by the next checkpoint only
+      map.checkpoint(30L);
+      map.put(4L, 4L);
+      Files.copy(file, crashed);
+      assertThrows(IllegalArgumentException.class, () -> map.checkpoint(-1L));
+      try (var compacted = map.compact(file.resolveSibling("compacted.data"))) {
+        assertEquals(30L, compacted.mark());
+      }
+    }
+    try (var recovered = new LongLongAVLDiskMap(crashed, 1 << 12, 1024, true)) {
+      assertEquals(30L, recovered.mark());
+      assertTrue(recovered.contains(3L, 3L));
+      assertFalse(recovered.contains(4L));
+    }
+    try (var reopened = new LongLongAVLDiskMap(file, 1 << 12, 1024, true)) {
+      assertEquals(30L, reopened.mark());
+    }
+  }
+
+  @ParameterizedTest
+  @ValueSource(booleans = {false, true})
+  void orderStatistics(boolean concurrentReads) throws Exception {
+    var random = new Random(0L);
+    var expected = new TreeMap<Long, LongArrayList>();
+    try (var map = new LongLongAVLDiskMap(file, 1 << 12, 1024, concurrentReads, true)) {
+      for (int round = 0; round < 4; round++) {
+        modify(map, expected, random, 5_000);
+        checkOrderStatistics(map, expected, random);
+        if (round % 2 == 0) {
+          map.checkpoint();
+        }
+      }
+      var keys = expected.keySet().stream().mapToLong(Long::longValue).toArray();
+      var values = LongStream.range(0L, keys.length).toArray();
+      var loaded = file.resolveSibling("loaded.data");
+      try (var bulk = new LongLongAVLDiskMap(loaded, 1 << 12, 1024, concurrentReads, true)) {
+        bulk.putAll(keys, values);
+        var ones = new TreeMap<Long, LongArrayList>();
+        expected.keySet().forEach(k -> ones.put(k, LongArrayList.newListWith(0L)));
+        checkOrderStatistics(bulk, ones, random);
+      }
+      try (var compacted = map.compact(file.resolveSibling("compacted.data"))) {
+        assertTrue(compacted.orderStatistics());
+        checkOrderStatistics(compacted, expected, random);
+      }
+    }
+    try (var map = new LongLongAVLDiskMap(file, 1 << 12, 1024, concurrentReads)) {
+      assertTrue(map.orderStatistics());
+      checkOrderStatistics(map, expected, random);
+    }
+    try (var ch = FileChannel.open(file, EnumSet.of(READ)); var arena = Arena.ofConfined()) {
+      var segment = ch.map(READ_ONLY, 0L, ch.size(), arena);
+      checkBalance(segment, segment.get(JAVA_LONG, H_ROOT));
+      checkTotals(segment, segment.get(JAVA_LONG, H_ROOT));
+    }
+    var plain = file.resolveSibling("plain.data");
+    try (var map = new LongLongAVLDiskMap(plain, 1 << 12, 1024)) {
+      map.put(1L, 1L);
+      assertFalse(map.orderStatistics());
+      assertThrows(IllegalStateException.class, () -> map.count(0L, 1L));
+    }
+  }
+
+  private static void checkOrderStatistics(LongLongAVLDiskMap map, TreeMap<Long, LongArrayList> expected, Random random) {
+    var total = expected.values().stream().mapToLong(LongArrayList::size).sum();
+    assertEquals(total, map.countValues());
+    var position = 0L;
+    for (var e : expected.entrySet()) {
+      var key = e.getKey();
+      assertEquals(position, map.rank(key));
+      assertEquals(key, map.select(position));
+      position += e.getValue().size();
+      assertEquals(key, map.select(position - 1L));
+    }
+    assertThrows(IndexOutOfBoundsException.class, () -> map.select(-1L));
+    assertThrows(IndexOutOfBoundsException.class, () -> map.select(total));
+    assertEquals(0L, map.rank(Long.MIN_VALUE));
+    assertEquals(total, map.rank(Long.MAX_VALUE));
+    assertEquals(total, map.count(Long.MIN_VALUE, Long.MAX_VALUE));
+    for (int i = 0; i < 1000; i++) {
+      var from = random.nextLong(-10L, 2010L);
+      var to = from + random.nextLong(-10L, 500L);
+      var count = from > to ? 0L : expected.subMap(from, true, to, true).values().stream().mapToLong(LongArrayList::size).sum();
+      assertEquals(count, map.count(from, to));
+    }
+  }
+
+  private static long checkTotals(MemorySegment segment, long address) {
+    if (address < 0L) {
+      return 0L;
+    }
+    var total = segment.get(JAVA_LONG, address + COUNT)
+      + checkTotals(segment, segment.get(JAVA_LONG, address + LEFT))
+      + checkTotals(segment, segment.get(JAVA_LONG, address + RIGHT));
+    assertEquals(total, segment.get(JAVA_LONG, address + TOTAL), () -> "Total mismatch at " + address);
+    return total;
+  }
+
+  // puts the values of the first thousand keys in the reverse order and the next thousand sorted, removes some of them
+  private static void modify(LongLongAVLDiskMap map, TreeMap<Long, LongArrayList> expected, Random random, int n) {
+    for (int i = 0; i < n; i++) {
+      var key = random.nextLong(2000L);
+      var value = random.nextLong(100L);
+      var values = expected.get(key);
+      switch (random.nextInt(10)) {
+        case 0 -> {
+          assertEquals(values != null, map.remove(key));
+          expected.remove(key);
+        }
+        case 1, 2 -> {
+          var index = values == null ? -1 : values.indexOf(value);
+          assertEquals(index >= 0, map.remove(key, value));
+          if (index >= 0) {
+            values.removeAtIndex(index);
+            if (values.isEmpty()) expected.remove(key);
+          }
+        }
+        case 3 -> {
+          if (key < 1000L) {
+            map.set(key, value);
+            if (values == null) expected.put(key, LongArrayList.newListWith(value));
+            else values.set(0, value);
+          }
+        }
+        default -> {
+          values = expected.computeIfAbsent(key, _ -> new LongArrayList());
+          if (key < 1000L) {
+            map.put(key, value);
+            values.addAtIndex(0, value);
+          } else {
+            map.put(key, value, Long::compare);
+            var index = values.binarySearch(value);
+            if (index < 0) values.addAtIndex(-index - 1, value);
+          }
+        }
+      }
+    }
+  }
+
+  private static TreeMap<Long, LongArrayList> copy(TreeMap<Long, LongArrayList> map) {
+    var copy = new TreeMap<Long, LongArrayList>();
+    map.forEach((k, vs) -> copy.put(k, LongArrayList.newList(vs)));
+    return copy;
+  }
+
+  private static LongArrayList entries(TreeMap<Long, LongArrayList> map) {
+    var entries = new LongArrayList();
+    map.forEach((k, vs) -> vs.forEach(v -> entries.addAll(k, v)));
+    return entries;
+  }
+
+  private static LongArrayList entries(LongLongAVLDiskMap map) {
+    var entries = new LongArrayList();
+    map.forEach(Long.MIN_VALUE, Long.MAX_VALUE, false, (k, v) -> entries.add(k) && entries.add(v));
+    return entries;
+  }
+
+  private long last() throws Exception {
+    try (var ch = FileChannel.open(file, EnumSet.of(READ)); var arena = Arena.ofConfined()) {
+      return ch.map(READ_ONLY, 0L, FILE_HEADER_SIZE, arena).get(JAVA_LONG, H_LAST);
+    }
+  }
+
   private static long[] get(LongLongAVLDiskMap map, long key) {
     var streamBuilder = LongStream.builder();
     map.get(key, streamBuilder::add);
@@ -146,6 +769,134 @@ class LongLongAVLDiskMapTest {
     }
   }
 
+  @ParameterizedTest
+  @MethodSource("randomDataToPut")
+  void rangeScan(long[] keys, long[] values) {
+    var map = new TreeMap<Long, LongArrayList>();
+    try (var actualMap = new LongLongAVLDiskMap(file, 1 << 20, 1024)) {
+      for (int i = 0; i < keys.length; i++) {
+        map.computeIfAbsent(keys[i], _ -> new LongArrayList()).addAtIndex(0, values[i]);
+        actualMap.put(keys[i], values[i]);
+      }
+      for (var descending : new boolean[]{false, true}) {
+        var range = descending ? map.subMap(100L, true, 900L, true).reversed() : map.subMap(100L, true, 900L, true);
+        var expectedKeys = new LongArrayList();
+        var expectedValues = new LongArrayList();
+        range.forEach((k, vs) -> vs.forEach(v -> {
+          expectedKeys.add(k);
+          expectedValues.add(v);
+        }));
+        var actualKeys = new LongArrayList();
+        var actualValues = new LongArrayList();
+        assertTrue(actualMap.forEach(100L, 900L, descending, (k, v) -> {
+          actualKeys.add(k);
+          actualValues.add(v);
+          return true;
+        }));
+        assertEquals(expectedKeys, actualKeys);
+        assertEquals(expectedValues, actualValues);
+        var limited = new LongArrayList();
+        assertEquals(expectedValues.size() < 3, actualMap.forEach(100L, 900L, descending, (_, v) -> {
+          limited.add(v);
+          return limited.size() < 3;
+        }));
+        assertArrayEquals(Arrays.copyOf(expectedValues.toArray(), Math.min(3, expectedValues.size())), limited.toArray());
+      }
+    }
+  }
+
+  @ParameterizedTest
+  @MethodSource("randomDataToPut")
+  void cursor(long[] keys, long[] values) {
+    var map = new TreeMap<Long, LongArrayList>();
+    try (var actualMap = new LongLongAVLDiskMap(file, 1 << 20, 1024)) {
+      var cursor = actualMap.cursor();
+      assertFalse(cursor.first());
+      assertFalse(cursor.isPositioned());
+      for (int i = 0; i < keys.length; i++) {
+        map.computeIfAbsent(keys[i], _ -> new LongArrayList()).addAtIndex(0, values[i]);
+        actualMap.put(keys[i], values[i]);
+      }
+      var ascending = new LongArrayList();
+      for (var found = cursor.first(); found; found = cursor.next()) {
+        ascending.add(cursor.key());
+        var actualValues = new LongArrayList();
+        cursor.forEachValue(actualValues::add);
+        assertEquals(map.get(cursor.key()), actualValues);
+      }
+      assertArrayEquals(map.keySet().stream().mapToLong(Long::longValue).toArray(), ascending.toArray());
+      var descending = new LongArrayList();
+      for (var found = cursor.last(); found; found = cursor.previous()) {
+        descending.add(cursor.key());
+      }
+      assertArrayEquals(map.descendingKeySet().stream().mapToLong(Long::longValue).toArray(), descending.toArray());
+      for (var key = -1L; key <= 1000L; key += 7L) {
+        var ceiling = map.ceilingKey(key);
+        assertEquals(ceiling != null, cursor.ceiling(key));
+        if (ceiling != null) {
+          assertEquals(ceiling, cursor.key());
+          var higher = map.higherKey(ceiling);
+          assertEquals(higher != null, cursor.next());
+          if (higher != null) assertEquals(higher, cursor.key());
+        }
+        var floor = map.floorKey(key);
+        assertEquals(floor != null, cursor.floor(key));
+        if (floor != null) {
+          assertEquals(floor, cursor.key());
+          var lower = map.lowerKey(floor);
+          assertEquals(lower != null, cursor.previous());
+          if (lower != null) assertEquals(lower, cursor.key());
+        }
+      }
+    }
+  }
+
+  @ParameterizedTest
+  @MethodSource("randomDataToPut")
+  void bulkLoad(long[] keys, long[] values) throws Exception {
+    var order = IntStream.range(0, keys.length).boxed().sorted(Comparator.comparingLong(i -> keys[i])).toList();
+    var sortedKeys = order.stream().mapToLong(i -> keys[i]).toArray();
+    var sortedValues = order.stream().mapToLong(i -> values[i]).toArray();
+    var map = new TreeMap<Long, LongArrayList>();
+    try (var actualMap = new LongLongAVLDiskMap(file, 1 << 20, 1024)) {
+      for (int i = 0; i < sortedKeys.length; i++) {
+        map.computeIfAbsent(sortedKeys[i], _ -> new LongArrayList()).addAtIndex(0, sortedValues[i]);
+      }
+      actualMap.putAll(sortedKeys, sortedValues);
+      actualMap.putAll(new long[]{-1L, -1L, 2000L}, new long[]{1L, 2L, 3L});
+      map.computeIfAbsent(-1L, _ -> new LongArrayList()).addAllAtIndex(0, 2L, 1L);
+      map.computeIfAbsent(2000L, _ -> new LongArrayList()).addAtIndex(0, 3L);
+      var actualKeys = new LongArrayList();
+      var actualValues = new LongArrayList();
+      actualMap.forEach(Long.MIN_VALUE, Long.MAX_VALUE, false, (k, v) -> {
+        actualKeys.add(k);
+        actualValues.add(v);
+        return true;
+      });
+      var expectedKeys = new LongArrayList();
+      var expectedValues = new LongArrayList();
+      map.forEach((k, vs) -> vs.forEach(v -> {
+        expectedKeys.add(k);
+        expectedValues.add(v);
+      }));
+      assertEquals(expectedKeys, actualKeys);
+      assertEquals(expectedValues, actualValues);
+    }
+    try (var ch = FileChannel.open(file, EnumSet.of(READ)); var arena = Arena.ofConfined()) {
+      var segment = ch.map(READ_ONLY, 0L, ch.size(), arena);
+      checkBalance(segment, segment.get(JAVA_LONG, H_ROOT));
+    }
+  }
+
+  @Test
+  void bulkLoadUnsorted() {
+    try (var map = new LongLongAVLDiskMap(file, 1 << 10, 1024)) {
+      assertThrows(IllegalArgumentException.class, () -> map.putAll(new long[]{2L, 1L}, new long[]{1L, 2L}));
+      assertThrows(IllegalArgumentException.class, () -> map.putAll(new long[]{1L}, new long[]{1L, 2L}));
+      assertFalse(map.contains(1L));
+    }
+  }
+
   static Stream<Arguments> randomDataToPut() {
     var random = new Random(0L);
     return IntStream.of(
@@ -163,6 +914,18 @@ class LongLongAVLDiskMapTest {
       });
   }
 
+  private long checkBalance(MemorySegment segment, long address) {
+    if (address < 0L) {
+      return 0L;
+    }
+    var left = checkBalance(segment, segment.get(JAVA_LONG, address + LEFT));
+    var right = checkBalance(segment, segment.get(JAVA_LONG, address + RIGHT));
+    var height = segment.get(JAVA_LONG, address + HEIGHT);
+    assertTrue(Math.abs(left - right) <= 1L, () -> "Unbalanced node at " + address);
+    assertEquals(1L + Math.max(left, right), height, () -> "Height mismatch at " + address);
+    return height;
+  }
+
   private void compare(MemorySegment segment, Node node, long address, ImmutableLongList stack) {
     // check null node
     if (node == null) {
@@ -180,10 +943,14 @@ class LongLongAVLDiskMapTest {
     for (var e = node.value; e != null; e = e.prev()) {
       expectedValuesBuilder.add(e.value());
     }
-    actualValuesBuilder.add(segment.get(JAVA_LONG, address + VALUE));
-    for (var a = segment.get(JAVA_LONG, address + NEXT); a >= 0L; ) {
-      actualValuesBuilder.add(segment.get(JAVA_LONG, a));
-      a = segment.get(JAVA_LONG, a + 8);
+    if (segment.get(JAVA_LONG, address + COUNT) == 1L) {
+      actualValuesBuilder.add(segment.get(JAVA_LONG, address + VALUE));
+    } else {
+      for (var a = segment.get(JAVA_LONG, address + VALUE); a >= 0L; a = segment.get(JAVA_LONG, a + B_NEXT)) {
+        for (int i = segment.get(JAVA_INT, a + B_START), end = segment.get(JAVA_INT, a + B_END); i < end; i++) {
+          actualValuesBuilder.add(segment.get(JAVA_LONG, a + B_VALUES + i * 8L));
+        }
+      }
     }
     assertArrayEquals(
       expectedValuesBuilder.build().toArray(),
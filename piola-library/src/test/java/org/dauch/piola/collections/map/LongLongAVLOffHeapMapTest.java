@@ -0,0 +1,74 @@
+package org.dauch.piola.collections.map;
+
+/*-
+ * #%L
+ * piola-server
+ * %%
+ * Copyright (C) 2024 dauch
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import org.eclipse.collections.impl.list.mutable.primitive.LongArrayList;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LongLongAVLOffHeapMapTest {
+
+  @Test
+  void twoValues() {
+    try (var map = new LongLongAVLOffHeapMap()) {
+      map.put(5L, 20L);
+      map.put(5L, 30L);
+      assertArrayEquals(new long[]{30L, 20L}, get(map, 5L));
+      assertArrayEquals(new long[0], get(map, 6L));
+      assertEquals(2L, map.countValues(5L));
+    }
+  }
+
+  @ParameterizedTest
+  @ValueSource(ints = {10, 1000, 100_000})
+  void sameAsMemoryMap(int keys) {
+    var random = new Random(keys);
+    var expected = new LongLongAVLMemoryMap();
+    try (var map = new LongLongAVLOffHeapMap()) {
+      for (int i = 0; i < 300_000; i++) {
+        var key = random.nextLong(keys);
+        var value = random.nextLong();
+        expected.put(key, value);
+        map.put(key, value);
+      }
+      for (long k = -1L; k <= keys; k++) {
+        var key = k;
+        var values = new LongArrayList();
+        expected.get(key, values::add);
+        assertArrayEquals(values.toArray(), get(map, key), () -> "Key " + key);
+        assertEquals(values.size(), map.countValues(key));
+      }
+    }
+  }
+
+  private static long[] get(LongLongAVLOffHeapMap map, long key) {
+    var list = new LongArrayList();
+    map.get(key, list::add);
+    return list.toArray();
+  }
+}
@@ -0,0 +1,182 @@
+package org.dauch.piola.collections.map;
+
+/*-
+ * #%L
+ * piola-server
+ * %%
+ * Copyright (C) 2024 dauch
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import org.eclipse.collections.impl.factory.primitive.LongSets;
+import org.eclipse.collections.impl.list.mutable.primitive.LongArrayList;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.Arguments;
+import org.junit.jupiter.params.provider.MethodSource;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.nio.file.Path;
+import java.util.*;
+import java.util.stream.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LongLongBTreeDiskMapTest {
+
+  private Path file;
+
+  @BeforeEach
+  void beforeEach(@TempDir Path dir) {
+    file = dir.resolve("file.data");
+  }
+
+  @Test
+  void simple() {
+    try (var map = new LongLongBTreeDiskMap(file, 1 << 10, 1 << 16, 1024)) {
+      assertFalse(map.contains(10L));
+      map.put(10L, 20L);
+      map.put(10L, 30L);
+      assertArrayEquals(new long[]{30L, 20L}, map.get(10L).toArray());
+      assertEquals(0L, map.countValues(11L));
+    }
+  }
+
+  @Test
+  void reopen() {
+    try (var map = new LongLongBTreeDiskMap(file, 1 << 10, 1 << 16, 1024)) {
+      for (var i = 0L; i < 10_000L; i++) {
+        map.put(i % 100L, i);
+      }
+    }
+    try (var map = new LongLongBTreeDiskMap(file, 1 << 10, 1 << 16, 1024)) {
+      assertEquals(100L, map.countValues(7L));
+      assertEquals(9907L, map.get(7L).findFirst().orElseThrow());
+    }
+    assertThrows(IllegalStateException.class, () -> new LongLongBTreeDiskMap(file, 1 << 12, 1 << 16, 1024));
+  }
+
+  @ParameterizedTest
+  @ValueSource(ints = {1, 2, 5, 63, 64, 65, 10_000})
+  void manyValues(int n) {
+    var random = new Random(n);
+    var values = LongStream.generate(() -> random.nextLong(n * 2L)).limit(n).toArray();
+    try (var map = new LongLongBTreeDiskMap(file, 1 << 10, 1 << 16, 1024)) {
+      var expectedUnordered = new LongArrayList();
+      var expectedAsc = new TreeSet<Long>();
+      var expectedDesc = new TreeSet<Long>(Comparator.reverseOrder());
+      for (var v : values) {
+        map.put(1L, v);
+        map.put(2L, v, Long::compare);
+        map.put(3L, v, (v1, v2) -> Long.compare(v2, v1));
+        expectedUnordered.addAtIndex(0, v);
+        expectedAsc.add(v);
+        expectedDesc.add(v);
+      }
+      assertArrayEquals(expectedUnordered.toArray(), map.get(1L).toArray());
+      assertArrayEquals(expectedAsc.stream().mapToLong(Long::longValue).toArray(), map.get(2L).toArray());
+      assertArrayEquals(expectedDesc.stream().mapToLong(Long::longValue).toArray(), map.get(3L).toArray());
+      assertEquals(n, map.countValues(1L));
+      assertEquals(expectedAsc.size(), map.countValues(2L));
+      assertEquals(expectedDesc.size(), map.countValues(3L));
+      for (var v = -1L; v <= n * 2L; v++) {
+        var present = expectedAsc.contains(v);
+        assertEquals(present, map.contains(1L, v));
+        assertEquals(present, map.contains(2L, v, Long::compare));
+        assertEquals(present, map.contains(3L, v, (v1, v2) -> Long.compare(v2, v1)));
+      }
+      map.set(1L, -5L);
+      assertEquals(-5L, map.get(1L).findFirst().orElseThrow());
+      assertEquals(n, map.countValues(1L));
+    }
+  }
+
+  @ParameterizedTest
+  @MethodSource("randomDataToPut")
+  void putAndGet(long[] keys, long[] values) {
+    var map = new TreeMap<Long, LongArrayList>();
+    try (var actualMap = new LongLongBTreeDiskMap(file, 1 << 12, 1 << 20, 1024)) {
+      for (int i = 0; i < keys.length; i++) {
+        map.computeIfAbsent(keys[i], _ -> new LongArrayList()).addAtIndex(0, values[i]);
+        actualMap.put(keys[i], values[i]);
+      }
+      for (var it = LongSets.immutable.of(keys).longIterator(); it.hasNext(); ) {
+        var key = it.next();
+        var expected = map.get(key);
+        var actual = new LongArrayList();
+        actualMap.get(key, actual::add);
+        assertEquals(expected, actual);
+        assertArrayEquals(expected.toArray(), actualMap.get(key).toArray());
+        assertEquals(expected.size(), actualMap.countValues(key));
+      }
+      assertFalse(actualMap.contains(-1L));
+      assertFalse(actualMap.contains(1000L));
+    }
+  }
+
+  @ParameterizedTest
+  @MethodSource("randomDataToPut")
+  void rangeScan(long[] keys, long[] values) {
+    var map = new TreeMap<Long, LongArrayList>();
+    try (var actualMap = new LongLongBTreeDiskMap(file, 1 << 10, 1 << 16, 1024)) {
+      for (int i = 0; i < keys.length; i++) {
+        map.computeIfAbsent(keys[i], _ -> new LongArrayList()).addAtIndex(0, values[i]);
+        actualMap.put(keys[i], values[i]);
+      }
+      for (var descending : new boolean[]{false, true}) {
+        var range = descending ? map.subMap(100L, true, 900L, true).reversed() : map.subMap(100L, true, 900L, true);
+        var expectedKeys = new LongArrayList();
+        var expectedValues = new LongArrayList();
+        range.forEach((k, vs) -> vs.forEach(v -> {
+          expectedKeys.add(k);
+          expectedValues.add(v);
+        }));
+        var actualKeys = new LongArrayList();
+        var actualValues = new LongArrayList();
+        assertTrue(actualMap.forEach(100L, 900L, descending, (k, v) -> {
+          actualKeys.add(k);
+          actualValues.add(v);
+          return true;
+        }));
+        assertEquals(expectedKeys, actualKeys);
+        assertEquals(expectedValues, actualValues);
+        var all = new LongArrayList();
+        assertTrue(actualMap.forEach(Long.MIN_VALUE, Long.MAX_VALUE, descending, (_, v) -> all.add(v)));
+        assertEquals(keys.length, all.size());
+      }
+    }
+  }
+
+  static Stream<Arguments> randomDataToPut() {
+    var random = new Random(0L);
+    return IntStream.of(
+        1,
+        1 << 3,
+        1 << 6,
+        1 << 10,
+        1 << 16,
+        1 << 20
+      )
+      .mapToObj(n -> {
+        var keys = LongStream.generate(() -> random.nextLong(1000L)).limit(n).toArray();
+        var values = LongStream.generate(() -> random.nextLong(1000L)).limit(n).toArray();
+        return Arguments.of(keys, values);
+      });
+  }
+}
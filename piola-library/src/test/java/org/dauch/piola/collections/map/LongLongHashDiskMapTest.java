@@ -0,0 +1,200 @@
+package org.dauch.piola.collections.map;
+
+/*-
+ * #%L
+ * piola-server
+ * %%
+ * Copyright (C) 2024 dauch
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import org.eclipse.collections.impl.factory.primitive.LongSets;
+import org.eclipse.collections.impl.list.mutable.primitive.LongArrayList;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.Arguments;
+import org.junit.jupiter.params.provider.MethodSource;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.nio.file.Path;
+import java.util.*;
+import java.util.stream.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LongLongHashDiskMapTest {
+
+  private Path file;
+
+  @BeforeEach
+  void beforeEach(@TempDir Path dir) {
+    file = dir.resolve("file.data");
+  }
+
+  @Test
+  void simple() {
+    try (var map = new LongLongHashDiskMap(file, 1 << 12, 1024)) {
+      assertFalse(map.contains(10L));
+      map.put(10L, 20L);
+      map.put(10L, 30L);
+      assertArrayEquals(new long[]{30L, 20L}, map.get(10L).toArray());
+      assertEquals(0L, map.countValues(11L));
+    }
+  }
+
+  @Test
+  void reopenWhileResizing() {
+    // 192 keys fill 3/4 of the initial table, so the next key starts the resizing
+    try (var map = new LongLongHashDiskMap(file, 1 << 12, 1024)) {
+      for (var i = 0L; i < 10_000L; i++) {
+        map.put(i % 192L, i);
+      }
+      map.put(1000L, 1L);
+    }
+    try (var map = new LongLongHashDiskMap(file, 1 << 12, 1024)) {
+      for (var step = 0; step < 2; step++) {
+        for (var key = 0L; key < 192L; key++) {
+          var last = 9999L - (9999L - key) % 192L;
+          assertEquals(last / 192L + 1L, map.countValues(key));
+          assertEquals(last, map.get(key).findFirst().orElseThrow());
+        }
+        assertArrayEquals(new long[]{1L}, map.get(1000L).toArray());
+        // the following modifications complete the resizing
+        for (var key = 2000L + step * 100L; key < 2100L + step * 100L; key++) {
+          map.put(key, key);
+        }
+      }
+      var keys = new LongArrayList();
+      assertTrue(map.forEach(2000L, 2999L, false, (k, _) -> keys.add(k)));
+      assertArrayEquals(LongStream.range(2000L, 2200L).toArray(), keys.toArray());
+    }
+    assertThrows(IllegalArgumentException.class, () -> new LongLongHashDiskMap(file, 1000, 1024));
+  }
+
+  @ParameterizedTest
+  @ValueSource(ints = {1, 2, 5, 63, 64, 65, 10_000})
+  void manyValues(int n) {
+    var random = new Random(n);
+    var values = LongStream.generate(() -> random.nextLong(n * 2L)).limit(n).toArray();
+    try (var map = new LongLongHashDiskMap(file, 1 << 12, 1024)) {
+      var expectedUnordered = new LongArrayList();
+      var expectedAsc = new TreeSet<Long>();
+      var expectedDesc = new TreeSet<Long>(Comparator.reverseOrder());
+      for (var v : values) {
+        map.put(1L, v);
+        map.put(2L, v, Long::compare);
+        map.put(3L, v, (v1, v2) -> Long.compare(v2, v1));
+        expectedUnordered.addAtIndex(0, v);
+        expectedAsc.add(v);
+        expectedDesc.add(v);
+      }
+      assertArrayEquals(expectedUnordered.toArray(), map.get(1L).toArray());
+      assertArrayEquals(expectedAsc.stream().mapToLong(Long::longValue).toArray(), map.get(2L).toArray());
+      assertArrayEquals(expectedDesc.stream().mapToLong(Long::longValue).toArray(), map.get(3L).toArray());
+      assertEquals(n, map.countValues(1L));
+      assertEquals(expectedAsc.size(), map.countValues(2L));
+      assertEquals(expectedDesc.size(), map.countValues(3L));
+      for (var v = -1L; v <= n * 2L; v++) {
+        var present = expectedAsc.contains(v);
+        assertEquals(present, map.contains(1L, v));
+        assertEquals(present, map.contains(2L, v, Long::compare));
+        assertEquals(present, map.contains(3L, v, (v1, v2) -> Long.compare(v2, v1)));
+      }
+      map.set(1L, -5L);
+      assertEquals(-5L, map.get(1L).findFirst().orElseThrow());
+      assertEquals(n, map.countValues(1L));
+    }
+  }
+
+  @ParameterizedTest
+  @MethodSource("randomDataToPut")
+  void putAndGet(long[] keys, long[] values) {
+    var map = new TreeMap<Long, LongArrayList>();
+    try (var actualMap = new LongLongHashDiskMap(file, 1 << 16, 1024)) {
+      for (int i = 0; i < keys.length; i++) {
+        map.computeIfAbsent(keys[i], _ -> new LongArrayList()).addAtIndex(0, values[i]);
+        actualMap.put(keys[i], values[i]);
+      }
+      for (var it = LongSets.immutable.of(keys).longIterator(); it.hasNext(); ) {
+        var key = it.next();
+        var expected = map.get(key);
+        var actual = new LongArrayList();
+        actualMap.get(key, actual::add);
+        assertEquals(expected, actual);
+        assertArrayEquals(expected.toArray(), actualMap.get(key).toArray());
+        assertEquals(expected.size(), actualMap.countValues(key));
+      }
+      assertFalse(actualMap.contains(-1L));
+      assertFalse(actualMap.contains(Long.MAX_VALUE));
+    }
+  }
+
+  @ParameterizedTest
+  @MethodSource("randomDataToPut")
+  void rangeScan(long[] keys, long[] values) {
+    var map = new TreeMap<Long, LongArrayList>();
+    try (var actualMap = new LongLongHashDiskMap(file, 1 << 16, 1024)) {
+      for (int i = 0; i < keys.length; i++) {
+        map.computeIfAbsent(keys[i], _ -> new LongArrayList()).addAtIndex(0, values[i]);
+        actualMap.put(keys[i], values[i]);
+      }
+      // the narrow range is looked up key by key, the wide one is scanned
+      for (var range : new long[][]{{100L, 110L}, {100L, 90_000L}}) {
+        for (var descending : new boolean[]{false, true}) {
+          var subMap = map.subMap(range[0], true, range[1], true);
+          var expectedKeys = new LongArrayList();
+          var expectedValues = new LongArrayList();
+          (descending ? subMap.reversed() : subMap).forEach((k, vs) -> vs.forEach(v -> {
+            expectedKeys.add(k);
+            expectedValues.add(v);
+          }));
+          var actualKeys = new LongArrayList();
+          var actualValues = new LongArrayList();
+          assertTrue(actualMap.forEach(range[0], range[1], descending, (k, v) -> {
+            actualKeys.add(k);
+            actualValues.add(v);
+            return true;
+          }));
+          assertEquals(expectedKeys, actualKeys);
+          assertEquals(expectedValues, actualValues);
+        }
+      }
+      var all = new LongArrayList();
+      assertTrue(actualMap.forEach(Long.MIN_VALUE, Long.MAX_VALUE, false, (_, v) -> all.add(v)));
+      assertEquals(keys.length, all.size());
+    }
+  }
+
+  static Stream<Arguments> randomDataToPut() {
+    var random = new Random(0L);
+    return IntStream.of(
+        1,
+        1 << 3,
+        1 << 6,
+        1 << 10,
+        1 << 16,
+        1 << 20
+      )
+      .mapToObj(n -> {
+        var keys = LongStream.generate(() -> random.nextLong(100_000L)).limit(n).toArray();
+        var values = LongStream.generate(() -> random.nextLong(1000L)).limit(n).toArray();
+        return Arguments.of(keys, values);
+      });
+  }
+}
@@ -0,0 +1,60 @@
+package org.dauch.piola.util;
+
+/*-
+ * #%L
+ * piola-server
+ * %%
+ * Copyright (C) 2024 dauch
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.util.Random;
+import java.util.zip.CRC32C;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class CrcTest {
+
+  @ParameterizedTest
+  @ValueSource(ints = {0, 1, 7, 64, 1000, 70_000})
+  void combine(int length) {
+    // given
+    var random = new Random(length);
+    var a = new byte[31];
+    var b = new byte[length];
+    random.nextBytes(a);
+    random.nextBytes(b);
+    // when
+    var crcA = crc(a);
+    var crcB = crc(b);
+    var crcAB = crc(a, b);
+    // then
+    assertEquals(crcAB, Crc.combine(crcA, crcB, length));
+    assertEquals(crcB, Crc.combine(crcA, crcAB, length));
+  }
+
+  private static int crc(byte[]... parts) {
+    var crc = new CRC32C();
+    for (var part : parts) {
+      crc.update(part);
+    }
+    return (int) crc.getValue();
+  }
+}